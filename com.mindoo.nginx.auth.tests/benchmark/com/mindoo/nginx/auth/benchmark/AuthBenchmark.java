@@ -0,0 +1,330 @@
+package com.mindoo.nginx.auth.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mindoo.nginx.auth.AuthConfig;
+import com.mindoo.nginx.auth.AuthHandler;
+import com.mindoo.nginx.auth.AuthRequest;
+import com.mindoo.nginx.auth.AuthResponse;
+import com.mindoo.nginx.auth.cache.CredentialCache;
+import com.mindoo.nginx.auth.directory.InMemoryUserDirectory;
+import com.mindoo.nginx.auth.smtp.LocalDomainMatcher;
+import com.mindoo.nginx.auth.smtp.SmtpAddress;
+import com.mindoo.nginx.auth.utils.HttpUtils;
+
+/**
+ * Micro benchmarks of the auth hot path without a Domino server, run with the
+ * {@link MicroBenchmark} harness:
+ * <ul>
+ * <li><code>decode</code>: {@link HttpUtils#urlDecode} of login names with and without escapes</li>
+ * <li><code>domains</code>: {@link SmtpAddress#parse} and {@link LocalDomainMatcher#isLocal} for exact,
+ * wildcard and remote recipients</li>
+ * <li><code>auth</code>: the full decision flow of {@link AuthHandler#handle} against an
+ * {@link InMemoryUserDirectory}, for logins with and without credential cache, wrong passwords,
+ * inbound SMTP and relay attempts</li>
+ * </ul>
+ * Usage: <code>java com.mindoo.nginx.auth.benchmark.AuthBenchmark [options]</code>
+ * <ul>
+ * <li><code>-suites decode,domains,auth</code> suites to run</li>
+ * <li><code>-threads 1,4</code> thread counts to run each benchmark with (1 and the number of CPU cores by default)</li>
+ * <li><code>-warmup 3</code> number of warm-up iterations</li>
+ * <li><code>-iterations 5</code> number of measurement iterations</li>
+ * <li><code>-time 1000</code> duration of an iteration in milliseconds</li>
+ * <li><code>-latency 0</code> simulated directory lookup in microseconds for the auth suite</li>
+ * <li><code>-users 1000</code> number of users in the in-memory directory</li>
+ * </ul>
+ *
+ * @author Karsten Lehmann
+ */
+public class AuthBenchmark {
+	private static final String LOCAL_DOMAIN = "example.com";
+	/** number of prebuilt requests per thread, so that building them is not measured */
+	private static final int REQUESTS_PER_THREAD = 1024;
+
+	private List<String> m_suites = Arrays.asList("decode", "domains", "auth");
+	private int[] m_threads;
+	private int m_warmup = 3;
+	private int m_iterations = 5;
+	private long m_timeMillis = 1000;
+	private long m_latencyMicros;
+	private int m_users = 1000;
+
+	public static void main(String[] args) throws Exception {
+		AuthBenchmark benchmark = new AuthBenchmark();
+		try {
+			benchmark.parseArgs(args);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		benchmark.run();
+	}
+
+	private void parseArgs(String[] args) {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		m_threads = cpus>1 ? new int[] {1, cpus} : new int[] {1};
+
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if (i+1>=args.length) {
+				throw new IllegalArgumentException("Missing value for "+arg);
+			}
+			String val = args[++i];
+			if ("-suites".equals(arg)) {
+				m_suites = Arrays.asList(val.split(","));
+			}
+			else if ("-threads".equals(arg)) {
+				String[] parts = val.split(",");
+				m_threads = new int[parts.length];
+				for (int j=0; j<parts.length; j++) {
+					m_threads[j] = Integer.parseInt(parts[j].trim());
+					if (m_threads[j]<=0) {
+						throw new IllegalArgumentException("Thread counts must be positive");
+					}
+				}
+			}
+			else if ("-warmup".equals(arg)) {
+				m_warmup = Integer.parseInt(val);
+			}
+			else if ("-iterations".equals(arg)) {
+				m_iterations = Integer.parseInt(val);
+			}
+			else if ("-time".equals(arg)) {
+				m_timeMillis = Long.parseLong(val);
+			}
+			else if ("-latency".equals(arg)) {
+				m_latencyMicros = Long.parseLong(val);
+			}
+			else if ("-users".equals(arg)) {
+				m_users = Integer.parseInt(val);
+			}
+			else {
+				throw new IllegalArgumentException("Unknown option "+arg);
+			}
+		}
+		if (m_users<=0) {
+			throw new IllegalArgumentException("-users must be positive");
+		}
+	}
+
+	private void run() throws Exception {
+		MicroBenchmark harness = new MicroBenchmark(m_warmup, m_iterations, m_timeMillis);
+		Map<String,MicroBenchmark.Operation> benchmarks = new LinkedHashMap<String,MicroBenchmark.Operation>();
+		if (m_suites.contains("decode")) {
+			addDecodeBenchmarks(benchmarks);
+		}
+		if (m_suites.contains("domains")) {
+			addDomainBenchmarks(benchmarks);
+		}
+		List<AuthHandler> handlers = new ArrayList<AuthHandler>();
+		if (m_suites.contains("auth")) {
+			addAuthBenchmarks(benchmarks, handlers);
+		}
+
+		System.out.println("Warm-up "+m_warmup+" x "+m_timeMillis+"ms, measurement "+m_iterations+" x "+m_timeMillis+"ms"+
+				(m_suites.contains("auth") ? ", directory latency "+m_latencyMicros+"us, "+m_users+" users" : "")+
+				(MicroBenchmark.isAllocationProfilingAvailable() ? "" : ", allocation profiling not available on this JVM"));
+		System.out.println(MicroBenchmark.Result.getHeader());
+		for (Map.Entry<String,MicroBenchmark.Operation> currEntry : benchmarks.entrySet()) {
+			for (int currThreads : m_threads) {
+				System.out.println(harness.run(currEntry.getKey(), currEntry.getValue(), currThreads));
+			}
+		}
+		for (AuthHandler currHandler : handlers) {
+			currHandler.shutdown();
+		}
+	}
+
+	private static void addDecodeBenchmarks(Map<String,MicroBenchmark.Operation> benchmarks) {
+		benchmarks.put("decode.plain", new MicroBenchmark.Operation() {
+
+			@Override
+			public Object run(Object state, long i) {
+				return HttpUtils.urlDecode("john.doe@example.com", HttpUtils.UTF_8, true);
+			}
+		});
+		benchmarks.put("decode.escaped", new MicroBenchmark.Operation() {
+
+			@Override
+			public Object run(Object state, long i) {
+				return HttpUtils.urlDecode("j%C3%B6rg.m%C3%BCller%40example.com", HttpUtils.UTF_8, true);
+			}
+		});
+	}
+
+	private static void addDomainBenchmarks(Map<String,MicroBenchmark.Operation> benchmarks) {
+		//a typical multi-tenant setup: many exact domains and some wildcards
+		List<String> domains = new ArrayList<String>();
+		for (int i=0; i<100; i++) {
+			domains.add("domain"+i+".example.com");
+		}
+		for (int i=0; i<10; i++) {
+			domains.add("*.sub"+i+".example.net");
+		}
+		final LocalDomainMatcher matcher = new LocalDomainMatcher(domains.toArray(new String[domains.size()]));
+
+		benchmarks.put("domains.exact", new DomainOperation(matcher, "RCPT TO:<john.doe@Domain37.example.com>", true));
+		benchmarks.put("domains.wildcard", new DomainOperation(matcher, "RCPT TO:<john.doe@mx.sub5.example.net>", true));
+		benchmarks.put("domains.remote", new DomainOperation(matcher, "RCPT TO:<john.doe@gmail.com> NOTIFY=NEVER", false));
+	}
+
+	private void addAuthBenchmarks(Map<String,MicroBenchmark.Operation> benchmarks, List<AuthHandler> handlers) {
+		InMemoryUserDirectory directory = new InMemoryUserDirectory();
+		directory.setLatency(m_latencyMicros, m_latencyMicros);
+		for (int i=0; i<m_users; i++) {
+			directory.addUser(new String[] {"user"+i, "user"+i+"@"+LOCAL_DOMAIN}, "pw"+i);
+		}
+		AuthHandler handler = createHandler(directory);
+		AuthHandler cachedHandler = createHandler(directory);
+		cachedHandler.setCredentialCache(new CredentialCache(m_users * 2, 3600000));
+		handlers.add(handler);
+		handlers.add(cachedHandler);
+
+		benchmarks.put("auth.login", new AuthOperation(handler, "login", "OK"));
+		benchmarks.put("auth.login.cached", new AuthOperation(cachedHandler, "login", "OK"));
+		benchmarks.put("auth.badpassword", new AuthOperation(handler, "badpassword", "Invalid login or password"));
+		benchmarks.put("auth.smtp.inbound", new AuthOperation(handler, "inbound", "OK"));
+		benchmarks.put("auth.smtp.relay", new AuthOperation(handler, "relay", null));
+	}
+
+	private static AuthHandler createHandler(InMemoryUserDirectory directory) {
+		return new AuthHandler(directory, new AuthConfig(new String[] {LOCAL_DOMAIN}, "127.0.0.1",
+				null, null, null, null, true, false, 1, null, null, true));
+	}
+
+	/**
+	 * Parses a recipient and checks if its domain is local
+	 */
+	private static class DomainOperation extends MicroBenchmark.Operation {
+		private final LocalDomainMatcher m_matcher;
+		private final String m_cmd;
+
+		public DomainOperation(LocalDomainMatcher matcher, String cmd, boolean expectedLocal) {
+			m_matcher = matcher;
+			m_cmd = cmd;
+			if (matcher.isLocal(SmtpAddress.parse(cmd))!=expectedLocal) {
+				throw new IllegalStateException("Unexpected result for "+cmd);
+			}
+		}
+
+		@Override
+		public Object run(Object state, long i) {
+			return Boolean.valueOf(m_matcher.isLocal(SmtpAddress.parse(m_cmd)));
+		}
+	}
+
+	/**
+	 * Sends prebuilt requests of one kind through an {@link AuthHandler}
+	 */
+	private class AuthOperation extends MicroBenchmark.Operation {
+		private final AuthHandler m_handler;
+		private final String m_kind;
+		private final String m_expectedStatus;
+
+		/**
+		 * Creates a new operation
+		 *
+		 * @param handler handler
+		 * @param kind login, badpassword, inbound or relay
+		 * @param expectedStatus Auth-Status to verify or null for any status other than OK
+		 */
+		public AuthOperation(AuthHandler handler, String kind, String expectedStatus) {
+			m_handler = handler;
+			m_kind = kind;
+			m_expectedStatus = expectedStatus;
+		}
+
+		@Override
+		public Object setUp(int threadIdx) {
+			ThreadState state = new ThreadState();
+			for (int i=0; i<REQUESTS_PER_THREAD; i++) {
+				int userIdx = (threadIdx * REQUESTS_PER_THREAD + i) % m_users;
+				Map<String,String> headers = new HashMap<String,String>();
+				headers.put("Auth-Method", "plain");
+				headers.put("Auth-Login-Attempt", "1");
+				headers.put("Client-IP", "10."+threadIdx+"."+(i >> 8)+"."+(i & 0xff));
+				if ("inbound".equals(m_kind) || "relay".equals(m_kind)) {
+					headers.put("Auth-Protocol", "smtp");
+					headers.put("Auth-User", "");
+					headers.put("Auth-Pass", "");
+					headers.put("Auth-SMTP-Helo", "mx.example.org");
+					headers.put("Auth-SMTP-From", "MAIL FROM:<sender"+i+"@example.org>");
+					headers.put("Auth-SMTP-To", "inbound".equals(m_kind) ? "RCPT TO:<user"+userIdx+"@"+LOCAL_DOMAIN+">" :
+						"RCPT TO:<someone@example.net>");
+				}
+				else {
+					headers.put("Auth-Protocol", "imap");
+					headers.put("Auth-User", "user"+userIdx);
+					headers.put("Auth-Pass", "login".equals(m_kind) ? "pw"+userIdx : "wrong");
+				}
+				state.m_requests[i] = new MapRequest(headers);
+			}
+
+			//fails early instead of measuring the wrong code path
+			state.m_response.m_status = null;
+			m_handler.handle(state.m_requests[0], state.m_response);
+			String status = state.m_response.m_status;
+			if (m_expectedStatus==null ? "OK".equals(status) : !m_expectedStatus.equals(status)) {
+				throw new IllegalStateException("Unexpected Auth-Status for "+m_kind+": "+status);
+			}
+			return state;
+		}
+
+		@Override
+		public Object run(Object stateObj, long i) {
+			ThreadState state = (ThreadState) stateObj;
+			state.m_response.m_status = null;
+			m_handler.handle(state.m_requests[(int) (i % REQUESTS_PER_THREAD)], state.m_response);
+			return state.m_response.m_status;
+		}
+	}
+
+	private static class ThreadState {
+		private final MapRequest[] m_requests = new MapRequest[REQUESTS_PER_THREAD];
+		private final StatusResponse m_response = new StatusResponse();
+	}
+
+	private static class MapRequest implements AuthRequest {
+		private final Map<String,String> m_headers;
+
+		public MapRequest(Map<String,String> headers) {
+			m_headers = headers;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return m_headers.get(name);
+		}
+
+		@Override
+		public Collection<String> getHeaderNames() {
+			return m_headers.keySet();
+		}
+	}
+
+	/**
+	 * Keeps only the Auth-Status, so that collecting the response is not measured
+	 */
+	private static class StatusResponse implements AuthResponse {
+		private String m_status;
+
+		@Override
+		public void setHeader(String name, String value) {
+			if ("Auth-Status".equals(name)) {
+				m_status = value;
+			}
+		}
+
+		@Override
+		public void sendError(int status, String msg) {
+			m_status = Integer.toString(status);
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package com.mindoo.nginx.auth.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Minimal JMH-style harness for Java 6: runs an operation in a number of threads for
+ * several timed warm-up and measurement iterations and reports the throughput with its
+ * error across iterations, the average time per operation and the bytes allocated per
+ * operation (HotSpot only). Results of the operation are consumed so that the JIT
+ * cannot remove the measured code.
+ *
+ * @author Karsten Lehmann
+ */
+public class MicroBenchmark {
+	/** checking the clock after every call would dominate fast operations */
+	private static final int CLOCK_CHECK_INTERVAL = 64;
+
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+	private static final Method GET_ALLOCATED_BYTES;
+	static {
+		Method method = null;
+		try {
+			//HotSpot extension, not part of the Java 6 API
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			method.invoke(THREAD_BEAN, Long.valueOf(Thread.currentThread().getId()));
+		}
+		catch (Exception e) {
+			method = null;
+		}
+		GET_ALLOCATED_BYTES = method;
+	}
+
+	/** written at the end of each thread, keeps the consumed results alive */
+	public static volatile long s_blackhole;
+
+	private final int m_warmupIterations;
+	private final int m_measurementIterations;
+	private final long m_iterationMillis;
+
+	/**
+	 * Operation to measure
+	 */
+	public static abstract class Operation {
+
+		/**
+		 * Creates the state of a benchmark thread, called before the warm-up
+		 *
+		 * @param threadIdx index of the thread
+		 * @return state passed to {@link #run(Object, long)}
+		 * @throws Exception
+		 */
+		public Object setUp(int threadIdx) throws Exception {
+			return null;
+		}
+
+		/**
+		 * Runs the operation once
+		 *
+		 * @param state state of the thread
+		 * @param i number of the call in this thread
+		 * @return result to consume
+		 * @throws Exception
+		 */
+		public abstract Object run(Object state, long i) throws Exception;
+	}
+
+	/**
+	 * Creates a new harness
+	 *
+	 * @param warmupIterations number of iterations to discard
+	 * @param measurementIterations number of measured iterations
+	 * @param iterationMillis duration of an iteration in milliseconds
+	 */
+	public MicroBenchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+		m_warmupIterations = Math.max(0, warmupIterations);
+		m_measurementIterations = Math.max(1, measurementIterations);
+		m_iterationMillis = Math.max(1, iterationMillis);
+	}
+
+	/**
+	 * Checks if bytes per operation can be measured on this JVM
+	 *
+	 * @return true if available
+	 */
+	public static boolean isAllocationProfilingAvailable() {
+		return GET_ALLOCATED_BYTES!=null;
+	}
+
+	private static long getAllocatedBytes() {
+		if (GET_ALLOCATED_BYTES==null) {
+			return 0;
+		}
+		try {
+			return ((Long) GET_ALLOCATED_BYTES.invoke(THREAD_BEAN, Long.valueOf(Thread.currentThread().getId()))).longValue();
+		}
+		catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Runs an operation
+	 *
+	 * @param name name of the benchmark
+	 * @param op operation
+	 * @param threads number of threads calling the operation concurrently
+	 * @return result
+	 * @throws Exception if setting up or running the operation failed
+	 */
+	public Result run(String name, final Operation op, final int threads) throws Exception {
+		final int iterations = m_warmupIterations + m_measurementIterations;
+		final long[][] ops = new long[threads][iterations];
+		final long[][] nanos = new long[threads][iterations];
+		final long[][] bytes = new long[threads][iterations];
+		final Exception[] errors = new Exception[threads];
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+
+		Thread[] workers = new Thread[threads];
+		for (int t=0; t<threads; t++) {
+			final int threadIdx = t;
+			workers[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Object state = op.setUp(threadIdx);
+						long blackhole = 0;
+						long i = 0;
+						for (int iter=0; iter<iterations; iter++) {
+							//all threads start an iteration together
+							barrier.await();
+							long bytesStart = getAllocatedBytes();
+							long start = System.nanoTime();
+							long deadline = start + m_iterationMillis * 1000000L;
+							long iterOps = 0;
+							long now;
+							do {
+								for (int j=0; j<CLOCK_CHECK_INTERVAL; j++) {
+									Object result = op.run(state, i++);
+									blackhole += result==null ? 1 : result.hashCode();
+								}
+								iterOps += CLOCK_CHECK_INTERVAL;
+							}
+							while ((now = System.nanoTime()) < deadline);
+							bytes[threadIdx][iter] = getAllocatedBytes() - bytesStart;
+							nanos[threadIdx][iter] = now - start;
+							ops[threadIdx][iter] = iterOps;
+						}
+						s_blackhole += blackhole;
+					}
+					catch (Exception e) {
+						errors[threadIdx] = e;
+						barrier.reset();
+					}
+				}
+			}, "MicroBenchmark "+name+" "+t);
+			workers[t].start();
+		}
+		for (Thread currWorker : workers) {
+			currWorker.join();
+		}
+		Exception firstError = null;
+		for (Exception currError : errors) {
+			//the other threads only see the broken barrier
+			if (currError!=null && (firstError==null || firstError instanceof BrokenBarrierException)) {
+				firstError = currError;
+			}
+		}
+		if (firstError!=null) {
+			throw firstError;
+		}
+
+		double[] opsPerSec = new double[m_measurementIterations];
+		long totalOps = 0;
+		long totalBytes = 0;
+		for (int iter=0; iter<m_measurementIterations; iter++) {
+			for (int t=0; t<threads; t++) {
+				int idx = m_warmupIterations + iter;
+				opsPerSec[iter] += ops[t][idx] * 1e9 / nanos[t][idx];
+				totalOps += ops[t][idx];
+				totalBytes += bytes[t][idx];
+			}
+		}
+		return new Result(name, threads, opsPerSec, isAllocationProfilingAvailable() ? (double) totalBytes / totalOps : -1);
+	}
+
+	/**
+	 * Measured values of a benchmark
+	 */
+	public static class Result {
+		private final String m_name;
+		private final int m_threads;
+		private final double m_opsPerSec;
+		private final double m_error;
+		private final double m_bytesPerOp;
+
+		public Result(String name, int threads, double[] opsPerSec, double bytesPerOp) {
+			m_name = name;
+			m_threads = threads;
+			double sum = 0;
+			for (double currValue : opsPerSec) {
+				sum += currValue;
+			}
+			m_opsPerSec = sum / opsPerSec.length;
+			double squares = 0;
+			for (double currValue : opsPerSec) {
+				squares += (currValue - m_opsPerSec) * (currValue - m_opsPerSec);
+			}
+			m_error = opsPerSec.length>1 ? Math.sqrt(squares / (opsPerSec.length - 1)) : 0;
+			m_bytesPerOp = bytesPerOp;
+		}
+
+		public String getName() {
+			return m_name;
+		}
+
+		public int getThreads() {
+			return m_threads;
+		}
+
+		/**
+		 * Returns the mean throughput of all threads
+		 *
+		 * @return operations per second
+		 */
+		public double getOpsPerSec() {
+			return m_opsPerSec;
+		}
+
+		/**
+		 * Returns the standard deviation of the throughput across the measurement iterations
+		 *
+		 * @return operations per second
+		 */
+		public double getError() {
+			return m_error;
+		}
+
+		/**
+		 * Returns the average time of an operation in one thread
+		 *
+		 * @return nanoseconds
+		 */
+		public double getNanosPerOp() {
+			return m_threads * 1e9 / m_opsPerSec;
+		}
+
+		/**
+		 * Returns the bytes allocated per operation
+		 *
+		 * @return bytes or -1 if not available
+		 */
+		public double getBytesPerOp() {
+			return m_bytesPerOp;
+		}
+
+		public static String getHeader() {
+			return String.format("%-24s %7s %14s %12s %12s %10s", "Benchmark", "Threads", "ops/s", "error", "ns/op", "B/op");
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-24s %7d %14.0f %12.0f %12.1f %10s", m_name, m_threads, m_opsPerSec, m_error,
+					getNanosPerOp(), m_bytesPerOp<0 ? "n/a" : String.format("%.1f", m_bytesPerOp));
+		}
+	}
+}
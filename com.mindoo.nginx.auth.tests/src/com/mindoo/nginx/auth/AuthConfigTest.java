@@ -0,0 +1,68 @@
+package com.mindoo.nginx.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of the {@link AuthConfig} change report used for hot reloads
+ *
+ * @author Karsten Lehmann
+ */
+public class AuthConfigTest {
+
+	private static AuthConfig create(String authKeyValue, String waitOnError, boolean enabled, String[] debugUsers) {
+		return new AuthConfig(new String[] {"example.com", "*.example.org"}, "192.0.2.10", "X-NGX-Auth-Key", authKeyValue,
+				waitOnError, null, enabled, false, 1, null, debugUsers, false);
+	}
+
+	@Test
+	public void testNoChanges() {
+		AuthConfig config = create("secret", "3", true, new String[] {"john"});
+		assertTrue(config.diff(create("secret", "3", true, new String[] {"john"})).isEmpty());
+		assertTrue(config.diff(config).isEmpty());
+	}
+
+	@Test
+	public void testChangedKeys() {
+		AuthConfig oldConfig = create("secret", "3", true, null);
+		AuthConfig newConfig = create("secret", "5", false, new String[] {"john", "mary"});
+		List<String> changes = newConfig.diff(oldConfig);
+		assertEquals(Arrays.asList(
+				"NGINXAUTH_WAITONERROR: 3 => 5",
+				"NGINXAUTH_ENABLED: true => false",
+				"NGINXAUTH_DEBUG_USERS: [] => [john, mary]"), changes);
+
+		//unset values
+		changes = create("secret", null, true, null).diff(oldConfig);
+		assertEquals(Arrays.asList("NGINXAUTH_WAITONERROR: 3 => null"), changes);
+	}
+
+	@Test
+	public void testAuthKeyMasked() {
+		AuthConfig oldConfig = create("oldsecret", "3", true, null);
+		AuthConfig newConfig = create("newsecret", "3", true, null);
+		List<String> changes = newConfig.diff(oldConfig);
+		assertEquals(Arrays.asList("NGINXAUTH_AUTHKEY_VALUE: *** => ***"), changes);
+		for (String currChange : changes) {
+			assertFalse(currChange, currChange.contains("oldsecret") || currChange.contains("newsecret"));
+		}
+		//also when the key gets set or removed
+		assertEquals(Arrays.asList("NGINXAUTH_AUTHKEY_VALUE: *** => ***"), create(null, "3", true, null).diff(oldConfig));
+		assertEquals(Arrays.asList("NGINXAUTH_AUTHKEY_VALUE: *** => ***"), oldConfig.diff(create(null, "3", true, null)));
+	}
+
+	@Test
+	public void testWaitOnErrorSeconds() {
+		assertEquals(3, create(null, " 3 ", true, null).getWaitOnErrorSeconds());
+		assertEquals(1, create(null, null, true, null).getWaitOnErrorSeconds());
+		assertEquals(1, create(null, "", true, null).getWaitOnErrorSeconds());
+		assertEquals(1, create(null, "abc", true, null).getWaitOnErrorSeconds());
+		assertEquals(1, create(null, "0", true, null).getWaitOnErrorSeconds());
+	}
+}
@@ -0,0 +1,180 @@
+package com.mindoo.nginx.auth.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link AuditTrail} with a sink that can be blocked to simulate a slow
+ * audit database or disk
+ *
+ * @author Karsten Lehmann
+ */
+public class AuditTrailTest {
+	private AuditTrail m_trail;
+
+	@After
+	public void tearDown() {
+		if (m_trail!=null) {
+			m_trail.stop();
+		}
+	}
+
+	private static boolean offer(AuditTrail trail, int i) {
+		return trail.offer("imap", "ok", "user"+i, "192.0.2.1", null, null, "1", "127.0.0.1", 100);
+	}
+
+	private static void await(CountDownLatch latch) throws InterruptedException {
+		if (!latch.await(5, TimeUnit.SECONDS)) {
+			fail("Timeout waiting for the writer thread");
+		}
+	}
+
+	@Test
+	public void testFullBufferDropsEvents() throws Exception {
+		RecordingSink sink = new RecordingSink();
+		m_trail = new AuditTrail(16, 4, 60000, sink);
+		assertEquals(16, m_trail.getCapacity());
+		m_trail.start();
+
+		//the writer thread takes the first event and blocks in the sink, its slot stays occupied
+		assertTrue(offer(m_trail, 0));
+		await(sink.m_blocked);
+
+		int accepted = 1;
+		int dropped = 0;
+		for (int i=1; i<=100; i++) {
+			if (offer(m_trail, i)) {
+				accepted++;
+			}
+			else {
+				dropped++;
+			}
+		}
+		assertEquals(16, accepted);
+		assertEquals(85, dropped);
+		assertEquals(85, m_trail.getDropped());
+		assertEquals(16, m_trail.getQueued());
+		assertEquals(0, m_trail.getWritten());
+
+		sink.m_release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (m_trail.getWritten()<16) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Events not written: "+m_trail);
+			}
+			Thread.sleep(5);
+		}
+		assertEquals(4, m_trail.getBatches());
+		assertEquals(0, m_trail.getQueued());
+		//buffer space is available again after the writer caught up
+		assertTrue(offer(m_trail, 101));
+		m_trail.stop();
+
+		assertEquals(17, m_trail.getWritten());
+		assertEquals(5, m_trail.getBatches());
+		assertEquals(85, m_trail.getDropped());
+		assertEquals(0, m_trail.getSinkErrors());
+		//the first events are kept in order, later ones dropped
+		List<String> expectedUsers = new ArrayList<String>();
+		for (int i=0; i<16; i++) {
+			expectedUsers.add("user"+i);
+		}
+		expectedUsers.add("user101");
+		assertEquals(expectedUsers, sink.m_users);
+		assertEquals(5, sink.m_flushes.get());
+		assertEquals(1, sink.m_closed.get());
+	}
+
+	@Test
+	public void testFlushInterval() throws Exception {
+		RecordingSink sink = new RecordingSink();
+		sink.m_release.countDown();
+		m_trail = new AuditTrail(64, 100, 50, sink);
+		m_trail.start();
+
+		assertTrue(offer(m_trail, 0));
+		assertTrue(offer(m_trail, 1));
+		//the batch is not full, the events get flushed after the interval
+		long deadline = System.currentTimeMillis() + 5000;
+		while (m_trail.getWritten()<2) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Events not flushed: "+m_trail);
+			}
+			Thread.sleep(5);
+		}
+		assertEquals(1, m_trail.getBatches());
+		assertEquals(0, sink.m_closed.get());
+	}
+
+	@Test
+	public void testSinkErrors() throws Exception {
+		RecordingSink sink = new RecordingSink() {
+			@Override
+			public void write(AuditEvent event) throws Exception {
+				if (event.getUser().endsWith("1") || event.getUser().endsWith("3")) {
+					throw new IllegalStateException("Disk full");
+				}
+				super.write(event);
+			}
+		};
+		sink.m_release.countDown();
+		m_trail = new AuditTrail(64, 100, 60000, sink);
+		m_trail.start();
+		for (int i=0; i<10; i++) {
+			assertTrue(offer(m_trail, i));
+		}
+		m_trail.stop();
+
+		//failed events are counted, not written
+		assertEquals(8, m_trail.getWritten());
+		assertEquals(2, m_trail.getSinkErrors());
+		assertEquals(0, m_trail.getDropped());
+		assertFalse(sink.m_users.contains("user1"));
+		assertEquals(1, sink.m_closed.get());
+	}
+
+	/**
+	 * Sink that records the user names and blocks the first write until it gets released
+	 */
+	private static class RecordingSink implements AuditSink {
+		private final CountDownLatch m_blocked = new CountDownLatch(1);
+		private final CountDownLatch m_release = new CountDownLatch(1);
+		private final List<String> m_users = Collections.synchronizedList(new ArrayList<String>());
+		private final AtomicInteger m_flushes = new AtomicInteger();
+		private final AtomicInteger m_closed = new AtomicInteger();
+
+		@Override
+		public void write(AuditEvent event) throws Exception {
+			m_blocked.countDown();
+			m_release.await();
+			m_users.add(event.getUser());
+		}
+
+		@Override
+		public void flush() throws Exception {
+			m_flushes.incrementAndGet();
+		}
+
+		@Override
+		public void close() {
+			m_closed.incrementAndGet();
+		}
+
+		@Override
+		public boolean isNotesThreadRequired() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.mindoo.nginx.auth.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the {@link AuditTrail} writing to a {@link FileAuditSink}: flushed batches,
+ * rotation and the written and dropped counts
+ *
+ * @author Karsten Lehmann
+ */
+public class FileAuditSinkTest {
+	@Rule
+	public TemporaryFolder m_folder = new TemporaryFolder();
+
+	private AuditTrail m_trail;
+
+	@After
+	public void tearDown() {
+		if (m_trail!=null) {
+			m_trail.stop();
+		}
+	}
+
+	private void awaitWritten(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (m_trail.getWritten()<count) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Events not written: "+m_trail);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void testBatchesFlushed() throws Exception {
+		File file = new File(m_folder.getRoot(), "logs/audit.log");
+		m_trail = new AuditTrail(64, 2, 60000, new FileAuditSink(file, 1024 * 1024, 2));
+		m_trail.start();
+
+		assertTrue(m_trail.offer("imap", "ok", "John Doe", "192.0.2.1", null, null, "1", "127.0.0.1", 1234));
+		assertTrue(m_trail.offer("smtp", "relay_denied", null, "192.0.2.2", "a@b.com", "c@d.com", "2", "", 56));
+		assertTrue(m_trail.offer("pop3", "bad_password", "evil\tuser\r\nok", "192.0.2.3", null, null, null, null, 7));
+
+		//the full batch is readable before the trail gets stopped
+		awaitWritten(2);
+		List<String> lines = readLines(file);
+		assertEquals(2, lines.size());
+		assertEquals(1, m_trail.getBatches());
+
+		String[] columns = lines.get(0).split("\t", -1);
+		assertEquals(10, columns.length);
+		assertTrue(columns[0], columns[0].matches("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}[+-]\\d{4}"));
+		assertEquals("ok\timap\tJohn Doe\t192.0.2.1\t-\t-\t1\t127.0.0.1\t1234", lines.get(0).substring(columns[0].length() + 1));
+		assertTrue(lines.get(1).endsWith("\trelay_denied\tsmtp\t-\t192.0.2.2\ta@b.com\tc@d.com\t2\t-\t56"));
+
+		//the rest is flushed on stop
+		m_trail.stop();
+		lines = readLines(file);
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(2).endsWith("\tbad_password\tpop3\tevil user  ok\t192.0.2.3\t-\t-\t-\t-\t7"));
+		assertEquals(3, m_trail.getWritten());
+		assertEquals(2, m_trail.getBatches());
+		assertEquals(0, m_trail.getSinkErrors());
+	}
+
+	@Test
+	public void testRotation() throws Exception {
+		File file = new File(m_folder.getRoot(), "audit.log");
+		//1024 bytes is the smallest rotation size
+		m_trail = new AuditTrail(4096, 100, 60000, new FileAuditSink(file, 1024, 2));
+		m_trail.start();
+		int events = 2000;
+		for (int i=0; i<events; i++) {
+			assertTrue(m_trail.offer("imap", "ok", "user"+i, "192.0.2.1", null, null, "1", "127.0.0.1", 100));
+		}
+		m_trail.stop();
+		assertEquals(events, m_trail.getWritten());
+
+		File rotated1 = new File(file.getPath()+".1");
+		File rotated2 = new File(file.getPath()+".2");
+		assertTrue(rotated1.exists());
+		assertTrue(rotated2.exists());
+		assertFalse(new File(file.getPath()+".3").exists());
+
+		//files are rotated with the first line that exceeds the size
+		List<String> current = readLines(file);
+		for (File currRotated : new File[] {rotated2, rotated1}) {
+			List<String> rotatedLines = readLines(currRotated);
+			int maxLineBytes = rotatedLines.get(rotatedLines.size() - 1).length() + System.getProperty("line.separator").length();
+			assertTrue(currRotated.length() >= 1024);
+			assertTrue(currRotated.length() < 1024 + maxLineBytes);
+		}
+		assertTrue(file.length() < 1024 + 100);
+
+		//the kept files contain the newest events in order
+		List<String> lines = new ArrayList<String>();
+		lines.addAll(readLines(rotated2));
+		lines.addAll(readLines(rotated1));
+		lines.addAll(current);
+		int first = events - lines.size();
+		assertTrue(first>0);
+		for (int i=0; i<lines.size(); i++) {
+			assertEquals("user"+(first + i), lines.get(i).split("\t")[3]);
+		}
+	}
+
+	@Test
+	public void testWrittenAndDroppedAddUp() throws Exception {
+		File file = new File(m_folder.getRoot(), "audit.log");
+		m_trail = new AuditTrail(64, 50, 10, new FileAuditSink(file, 100 * 1024 * 1024, 1));
+		m_trail.start();
+
+		final int eventsPerThread = 20000;
+		final AtomicLong accepted = new AtomicLong();
+		Thread[] threads = new Thread[4];
+		for (int t=0; t<threads.length; t++) {
+			final int threadIdx = t;
+			threads[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i=0; i<eventsPerThread; i++) {
+						if (m_trail.offer("imap", "ok", "user"+threadIdx+"-"+i, "192.0.2.1", null, null, "1", "127.0.0.1", 100)) {
+							accepted.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread currThread : threads) {
+			currThread.join();
+		}
+		m_trail.stop();
+
+		long offered = (long) threads.length * eventsPerThread;
+		assertEquals(offered, m_trail.getWritten() + m_trail.getDropped());
+		assertEquals(accepted.get(), m_trail.getWritten());
+		assertEquals(0, m_trail.getSinkErrors());
+		assertEquals(0, m_trail.getQueued());
+		//batches of at most 50 events
+		assertTrue(m_trail.getBatches() >= (m_trail.getWritten() + 49) / 50);
+		assertEquals(m_trail.getWritten(), readLines(file).size());
+		assertFalse(new File(file.getPath()+".1").exists());
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine())!=null) {
+				lines.add(line);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return lines;
+	}
+}
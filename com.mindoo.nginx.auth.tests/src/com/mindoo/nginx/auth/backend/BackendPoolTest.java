@@ -0,0 +1,259 @@
+package com.mindoo.nginx.auth.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Failover tests of the {@link BackendPool} with local server sockets as backends
+ * that go down and come back up
+ *
+ * @author Karsten Lehmann
+ */
+public class BackendPoolTest {
+	private final List<LocalServer> m_servers = new ArrayList<LocalServer>();
+	private BackendPool m_pool;
+
+	@After
+	public void tearDown() {
+		if (m_pool!=null) {
+			m_pool.shutdown();
+		}
+		for (LocalServer currServer : m_servers) {
+			currServer.stop();
+		}
+	}
+
+	/**
+	 * Creates a pool with one listening local server per weight
+	 */
+	private List<Backend> createPool(BackendPool.Strategy strategy, int maxFails, int... weights) throws IOException {
+		m_pool = new BackendPool(strategy, maxFails, 500);
+		List<Backend> backends = new ArrayList<Backend>();
+		for (int currWeight : weights) {
+			LocalServer server = new LocalServer();
+			server.start();
+			m_servers.add(server);
+			Backend backend = new Backend("imap", "127.0.0.1", server.m_port, currWeight);
+			m_pool.addBackend(backend);
+			backends.add(backend);
+		}
+		return backends;
+	}
+
+	private Map<Backend,Integer> selectMany(int count) {
+		Map<Backend,Integer> counts = new HashMap<Backend,Integer>();
+		for (int i=0; i<count; i++) {
+			Backend backend = m_pool.select("imap", null);
+			Integer oldCount = counts.get(backend);
+			counts.put(backend, Integer.valueOf(oldCount==null ? 1 : oldCount.intValue()+1));
+		}
+		return counts;
+	}
+
+	private static void awaitUp(Backend backend, boolean up) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (backend.isUp()!=up) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Backend not "+(up ? "up" : "down")+": "+backend);
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testRoundRobinFailover() throws Exception {
+		List<Backend> backends = createPool(BackendPool.Strategy.ROUND_ROBIN, 2, 1, 2);
+		Backend b1 = backends.get(0);
+		Backend b2 = backends.get(1);
+
+		Map<Backend,Integer> counts = selectMany(300);
+		assertEquals(Integer.valueOf(100), counts.get(b1));
+		assertEquals(Integer.valueOf(200), counts.get(b2));
+
+		m_servers.get(1).stop();
+		assertFalse(m_pool.probe(b2));
+		//one failure is below maxFails
+		assertTrue(b2.isUp());
+		assertFalse(m_pool.probe(b2));
+		assertFalse(b2.isUp());
+		assertEquals(Integer.valueOf(300), selectMany(300).get(b1));
+
+		m_servers.get(1).start();
+		assertTrue(m_pool.probe(b2));
+		assertTrue(b2.isUp());
+		counts = selectMany(300);
+		assertEquals(Integer.valueOf(100), counts.get(b1));
+		assertEquals(Integer.valueOf(200), counts.get(b2));
+	}
+
+	@Test
+	public void testAllDown() throws Exception {
+		List<Backend> backends = createPool(BackendPool.Strategy.ROUND_ROBIN, 1, 1, 1);
+		for (LocalServer currServer : m_servers) {
+			currServer.stop();
+		}
+		m_pool.probeAll();
+		assertNull(m_pool.select("imap", null));
+		assertNull(m_pool.select("pop3", null));
+		assertTrue(m_pool.hasBackends("imap"));
+		assertFalse(m_pool.hasBackends("pop3"));
+
+		m_servers.get(0).start();
+		m_pool.probeAll();
+		assertSame(backends.get(0), m_pool.select("imap", null));
+		assertSame(backends.get(0), m_pool.select("imap", null));
+	}
+
+	@Test
+	public void testHashFailover() throws Exception {
+		List<Backend> backends = createPool(BackendPool.Strategy.HASH, 1, 1, 1, 1);
+		Backend down = backends.get(1);
+
+		Map<String,Backend> assignment = new HashMap<String,Backend>();
+		for (int i=0; i<300; i++) {
+			String user = "user"+i+"@example.com";
+			Backend backend = m_pool.select("imap", user);
+			//sticky
+			assertSame(backend, m_pool.select("imap", user));
+			assignment.put(user, backend);
+		}
+
+		m_servers.get(1).stop();
+		m_pool.probeAll();
+		assertFalse(down.isUp());
+		int moved = 0;
+		for (Map.Entry<String,Backend> currEntry : assignment.entrySet()) {
+			Backend backend = m_pool.select("imap", currEntry.getKey());
+			if (currEntry.getValue()==down) {
+				assertNotSame(down, backend);
+				moved++;
+			}
+			else {
+				//users of healthy backends stay where they are
+				assertSame(currEntry.getValue(), backend);
+			}
+		}
+		assertTrue("moved "+moved, moved>0);
+
+		m_servers.get(1).start();
+		m_pool.probeAll();
+		for (Map.Entry<String,Backend> currEntry : assignment.entrySet()) {
+			assertSame(currEntry.getValue(), m_pool.select("imap", currEntry.getKey()));
+		}
+	}
+
+	@Test
+	public void testLeastFailures() throws Exception {
+		List<Backend> backends = createPool(BackendPool.Strategy.LEAST_FAILURES, 3, 1, 1);
+		Backend flaky = backends.get(0);
+		Backend stable = backends.get(1);
+
+		m_servers.get(0).stop();
+		m_pool.probe(flaky);
+		m_pool.probe(flaky);
+		m_servers.get(0).start();
+		m_pool.probe(flaky);
+		//still up, but has recent failures
+		assertTrue(flaky.isUp());
+		assertTrue(flaky.getRecentFailures()>0);
+		assertEquals(Integer.valueOf(100), selectMany(100).get(stable));
+
+		//successful probes decay the failures
+		while (flaky.getRecentFailures()>0) {
+			m_pool.probe(flaky);
+		}
+		Map<Backend,Integer> counts = selectMany(100);
+		assertEquals(Integer.valueOf(50), counts.get(flaky));
+		assertEquals(Integer.valueOf(50), counts.get(stable));
+	}
+
+	@Test
+	public void testBackgroundProbes() throws Exception {
+		List<Backend> backends = createPool(BackendPool.Strategy.ROUND_ROBIN, 2, 1, 1);
+		Backend b1 = backends.get(1);
+		m_pool.start(20);
+
+		m_servers.get(1).stop();
+		awaitUp(b1, false);
+		assertEquals(Integer.valueOf(10), selectMany(10).get(backends.get(0)));
+
+		m_servers.get(1).start();
+		awaitUp(b1, true);
+		assertEquals(Integer.valueOf(5), selectMany(10).get(b1));
+
+		StringBuilder sb = new StringBuilder();
+		m_pool.writeMetrics(sb);
+		assertTrue(sb.toString(), sb.indexOf("nginxauth_backends_up 2\n")!=-1);
+	}
+
+	@Test
+	public void testParse() {
+		List<Backend> backends = BackendPool.parse("imap", "mail1, mail2:1143*3 ,[::1]:993,[::1]*2, 127.0.0.1", 143);
+		assertEquals(5, backends.size());
+		assertEquals("mail1", backends.get(0).getHost());
+		assertEquals(143, backends.get(0).getPort());
+		assertEquals(1, backends.get(0).getWeight());
+		assertEquals("mail2", backends.get(1).getHost());
+		assertEquals(1143, backends.get(1).getPort());
+		assertEquals(3, backends.get(1).getWeight());
+		assertEquals("::1", backends.get(2).getHost());
+		assertEquals(993, backends.get(2).getPort());
+		assertEquals(143, backends.get(3).getPort());
+		assertEquals(2, backends.get(3).getWeight());
+		assertEquals("127.0.0.1", backends.get(4).getHost());
+
+		for (String currInvalid : new String[] {"mail1:abc", "[::1", "[::1]x", "mail1*x"}) {
+			try {
+				BackendPool.parse("imap", currInvalid, 143);
+				fail("Invalid backend accepted: "+currInvalid);
+			}
+			catch (IllegalArgumentException e) {
+				//expected
+			}
+		}
+	}
+
+	/**
+	 * Listening socket that can be stopped and restarted on the same port
+	 */
+	private static class LocalServer {
+		private int m_port;
+		private ServerSocket m_socket;
+
+		public void start() throws IOException {
+			m_socket = new ServerSocket();
+			m_socket.setReuseAddress(true);
+			m_socket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), m_port));
+			m_port = m_socket.getLocalPort();
+		}
+
+		public void stop() {
+			if (m_socket!=null) {
+				try {
+					m_socket.close();
+				}
+				catch (IOException e) {
+					//ignore
+				}
+				m_socket = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.mindoo.nginx.auth.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests of the {@link BloomFilter} sizing and of the false-positive rate measured
+ * against the configured one
+ *
+ * @author Karsten Lehmann
+ */
+public class BloomFilterTest {
+
+	@Test
+	public void testSizing() {
+		//m = -n ln(p) / ln(2)^2, k = m/n ln(2)
+		BloomFilter filter = new BloomFilter(100000, 0.01, 0);
+		long expectedBits = (long) Math.ceil(-100000 * Math.log(0.01) / (Math.log(2) * Math.log(2)));
+		assertTrue(filter.getMemoryBytes() * 8 >= expectedBits);
+		assertTrue(filter.getMemoryBytes() * 8 < expectedBits + 64);
+		assertEquals(7, filter.getNumHashes());
+
+		filter = new BloomFilter(100000, 0.001, 0);
+		assertEquals(10, filter.getNumHashes());
+		assertEquals(1.5, (double) filter.getMemoryBytes() / new BloomFilter(100000, 0.01, 0).getMemoryBytes(), 0.01);
+
+		//at least one long and one hash
+		filter = new BloomFilter(0, 0.5, 0);
+		assertEquals(8, filter.getMemoryBytes());
+		assertTrue(filter.getNumHashes()>=1);
+	}
+
+	@Test
+	public void testMaxBytes() {
+		BloomFilter filter = new BloomFilter(100000, 0.01, 16384);
+		assertEquals(16384, filter.getMemoryBytes());
+		//fewer hashes for the smaller bit array
+		assertEquals(1, filter.getNumHashes());
+
+		for (int i=0; i<100000; i++) {
+			filter.put("user"+i);
+		}
+		double fpp = measureFpp(filter);
+		assertTrue("fpp="+fpp, fpp > 0.05);
+		assertEquals(fpp, filter.getEstimatedFpp(), 0.02);
+	}
+
+	@Test
+	public void testInvalidFpp() {
+		for (double currFpp : new double[] {0, 1, -0.1, 1.5}) {
+			try {
+				new BloomFilter(1000, currFpp, 0);
+				fail("Accepted "+currFpp);
+			}
+			catch (IllegalArgumentException e) {
+				//expected
+			}
+		}
+	}
+
+	@Test
+	public void testNoFalseNegatives() {
+		BloomFilter filter = new BloomFilter(50000, 0.01, 0);
+		for (int i=0; i<50000; i++) {
+			filter.put("user"+i+"@acme.com");
+		}
+		for (int i=0; i<50000; i++) {
+			assertTrue(filter.mightContain("user"+i+"@acme.com"));
+		}
+	}
+
+	@Test
+	public void testMeasuredFpp() {
+		for (double currFpp : new double[] {0.05, 0.01, 0.001}) {
+			BloomFilter filter = new BloomFilter(100000, currFpp, 0);
+			assertEquals(0, filter.getEstimatedFpp(), 0);
+			assertFalse(filter.mightContain("user0"));
+			for (int i=0; i<100000; i++) {
+				filter.put("user"+i);
+			}
+			double fpp = measureFpp(filter);
+			//1,000,000 probes, well within the random variation
+			assertTrue("configured "+currFpp+", measured "+fpp, fpp > currFpp * 0.7 && fpp < currFpp * 1.3);
+			assertEquals(currFpp, filter.getEstimatedFpp(), currFpp * 0.2);
+		}
+	}
+
+	@Test
+	public void testConcurrentPut() throws Exception {
+		final BloomFilter filter = new BloomFilter(40000, 0.01, 0);
+		Thread[] threads = new Thread[4];
+		for (int t=0; t<threads.length; t++) {
+			final int offset = t * 10000;
+			threads[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i=0; i<10000; i++) {
+						filter.put("user"+(offset + i));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread currThread : threads) {
+			currThread.join();
+		}
+		for (int i=0; i<40000; i++) {
+			assertTrue(filter.mightContain("user"+i));
+		}
+	}
+
+	/**
+	 * Returns the ratio of names that have not been added, but are reported as contained
+	 */
+	private static double measureFpp(BloomFilter filter) {
+		int probes = 1000000;
+		int falsePositives = 0;
+		for (int i=0; i<probes; i++) {
+			if (filter.mightContain("unknown"+i)) {
+				falsePositives++;
+			}
+		}
+		return (double) falsePositives / probes;
+	}
+}
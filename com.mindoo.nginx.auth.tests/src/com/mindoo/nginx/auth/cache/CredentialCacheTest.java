@@ -0,0 +1,157 @@
+package com.mindoo.nginx.auth.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the {@link CredentialCache} expiry, eviction and staleness window with a
+ * controlled clock
+ *
+ * @author Karsten Lehmann
+ */
+public class CredentialCacheTest {
+	private static final long TTL_MILLIS = 60000;
+	private static final long STALE_MILLIS = 300000;
+
+	private static class TestCache extends CredentialCache {
+		private long m_now = 1000000;
+
+		public TestCache(int maxEntries, long maxStaleMillis) {
+			super(maxEntries, TTL_MILLIS, maxStaleMillis);
+		}
+
+		@Override
+		long currentTimeMillis() {
+			return m_now;
+		}
+
+		public void advance(long millis) {
+			m_now += millis;
+		}
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		TestCache cache = new TestCache(10, 0);
+		assertFalse(cache.isVerified("john", "secret"));
+		cache.putVerified("John", "secret", "(hash1)");
+		//user names are compared case insensitive
+		assertTrue(cache.isVerified(" JOHN ", "secret"));
+		assertFalse(cache.isVerified("mary", "secret"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void testTTLExpiry() {
+		TestCache cache = new TestCache(10, 0);
+		cache.putVerified("john", "secret", "(hash1)");
+		cache.advance(TTL_MILLIS);
+		assertTrue(cache.isVerified("john", "secret"));
+		cache.advance(1);
+		assertFalse(cache.isVerified("john", "secret"));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void testLRUEviction() {
+		TestCache cache = new TestCache(3, 0);
+		cache.putVerified("user1", "pw", "(hash)");
+		cache.putVerified("user2", "pw", "(hash)");
+		cache.putVerified("user3", "pw", "(hash)");
+		//user1 becomes the most recently used entry
+		assertTrue(cache.isVerified("user1", "pw"));
+		cache.putVerified("user4", "pw", "(hash)");
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertFalse(cache.isVerified("user2", "pw"));
+		assertTrue(cache.isVerified("user1", "pw"));
+		assertTrue(cache.isVerified("user3", "pw"));
+		assertTrue(cache.isVerified("user4", "pw"));
+	}
+
+	@Test
+	public void testPasswordMismatchEvicts() {
+		TestCache cache = new TestCache(10, STALE_MILLIS);
+		cache.putVerified("john", "secret", "(hash1)");
+		assertFalse(cache.isVerified("john", "wrong"));
+		assertEquals(1, cache.getEvictions());
+		//also the old password needs to be checked against the directory again
+		assertFalse(cache.isVerified("john", "secret"));
+		assertFalse(cache.isVerifiedStale("john", "secret"));
+	}
+
+	@Test
+	public void testPasswordHashChangeEvicts() {
+		TestCache cache = new TestCache(10, STALE_MILLIS);
+		cache.putVerified("john", "secret", "(hash1)");
+		cache.checkPasswordHash("john", "(hash1)");
+		assertTrue(cache.isVerified("john", "secret"));
+		assertEquals(0, cache.getEvictions());
+
+		//password changed in the directory
+		cache.checkPasswordHash("JOHN", "(hash2)");
+		assertEquals(1, cache.getEvictions());
+		assertFalse(cache.isVerified("john", "secret"));
+		assertFalse(cache.isVerifiedStale("john", "secret"));
+	}
+
+	@Test
+	public void testInvalidate() {
+		TestCache cache = new TestCache(10, 0);
+		cache.putVerified("john", "secret", "(hash1)");
+		cache.invalidate("mary");
+		assertEquals(0, cache.getEvictions());
+		cache.invalidate("John");
+		assertEquals(1, cache.getEvictions());
+		assertFalse(cache.isVerified("john", "secret"));
+	}
+
+	@Test
+	public void testStaleWindow() {
+		TestCache cache = new TestCache(10, STALE_MILLIS);
+		cache.putVerified("john", "secret", "(hash1)");
+		cache.advance(TTL_MILLIS + 1);
+		//expired for regular checks, but kept as fallback
+		assertFalse(cache.isVerified("john", "secret"));
+		assertEquals(1, cache.size());
+		assertTrue(cache.isVerifiedStale("john", "secret"));
+		assertFalse(cache.isVerifiedStale("john", "wrong"));
+		assertEquals(1, cache.getStaleHits());
+		assertEquals(TTL_MILLIS + 1, cache.getStaleAgeMillisSum());
+
+		cache.advance(STALE_MILLIS - 1);
+		assertTrue(cache.isVerifiedStale("john", "secret"));
+		cache.advance(1);
+		assertFalse(cache.isVerifiedStale("john", "secret"));
+		assertFalse(cache.isVerified("john", "secret"));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void testNoStaleWindow() {
+		TestCache cache = new TestCache(10, 0);
+		cache.putVerified("john", "secret", "(hash1)");
+		assertFalse(cache.isVerifiedStale("john", "secret"));
+	}
+
+	@Test
+	public void testPurgeExpired() {
+		TestCache cache = new TestCache(10, STALE_MILLIS);
+		cache.putVerified("john", "secret", "(hash1)");
+		cache.advance(TTL_MILLIS);
+		cache.putVerified("mary", "secret", "(hash2)");
+		cache.advance(STALE_MILLIS + 1);
+		//john is beyond the staleness window, mary still within
+		cache.purgeExpired();
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertTrue(cache.isVerifiedStale("mary", "secret"));
+	}
+}
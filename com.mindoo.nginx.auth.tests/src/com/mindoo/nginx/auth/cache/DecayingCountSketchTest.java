@@ -0,0 +1,99 @@
+package com.mindoo.nginx.auth.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the {@link DecayingCountSketch} with a controlled clock
+ *
+ * @author Karsten Lehmann
+ */
+public class DecayingCountSketchTest {
+	private static final long WINDOW_MILLIS = 1000;
+
+	private static class TestSketch extends DecayingCountSketch {
+		private long m_now = 1000000;
+
+		public TestSketch(int width) {
+			super(width, WINDOW_MILLIS);
+		}
+
+		@Override
+		long currentTimeMillis() {
+			return m_now;
+		}
+
+		public void advance(long millis) {
+			m_now += millis;
+		}
+	}
+
+	@Test
+	public void testCounts() {
+		TestSketch sketch = new TestSketch(1024);
+		assertEquals(0, sketch.estimate("a"));
+		for (int i=1; i<=5; i++) {
+			assertEquals(i, sketch.increment("a"));
+		}
+		assertEquals(5, sketch.estimate("a"));
+		assertEquals(1, sketch.increment("b"));
+		assertEquals(0, sketch.estimate("c"));
+		assertEquals(5, sketch.estimate("a"));
+	}
+
+	@Test
+	public void testDecay() {
+		TestSketch sketch = new TestSketch(1024);
+		for (int i=0; i<8; i++) {
+			sketch.increment("a");
+		}
+		//within the same window
+		sketch.advance(WINDOW_MILLIS - 1);
+		assertEquals(8, sketch.estimate("a"));
+		//halved per elapsed window
+		sketch.advance(1);
+		assertEquals(4, sketch.estimate("a"));
+		sketch.advance(2 * WINDOW_MILLIS);
+		assertEquals(1, sketch.estimate("a"));
+		//counting continues from the decayed value
+		assertEquals(2, sketch.increment("a"));
+		sketch.advance(WINDOW_MILLIS);
+		assertEquals(1, sketch.estimate("a"));
+		sketch.advance(40 * WINDOW_MILLIS);
+		assertEquals(0, sketch.estimate("a"));
+		assertEquals(1, sketch.increment("a"));
+	}
+
+	@Test
+	public void testNeverUnderestimates() {
+		TestSketch sketch = new TestSketch(256);
+		Random random = new Random(42);
+		int[] counts = new int[2000];
+		for (int i=0; i<20000; i++) {
+			int key = random.nextInt(counts.length);
+			counts[key]++;
+			sketch.increment("key"+key);
+		}
+		for (int i=0; i<counts.length; i++) {
+			assertTrue("Key "+i, sketch.estimate("key"+i) >= counts[i]);
+		}
+	}
+
+	@Test
+	public void testManyDistinctKeysDoNotSaturate() {
+		//one failure window of a dictionary attack with 2000 random names per second for 500 seconds
+		TestSketch sketch = new TestSketch(65536);
+		for (int i=0; i<1000000; i++) {
+			sketch.increment("attack"+i);
+		}
+		int maxEstimate = 0;
+		for (int i=0; i<10000; i++) {
+			maxEstimate = Math.max(maxEstimate, sketch.estimate("user"+i));
+		}
+		assertTrue("Max estimate of unseen keys: "+maxEstimate, maxEstimate < 12);
+	}
+}
@@ -0,0 +1,95 @@
+package com.mindoo.nginx.auth.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the {@link FailureThrottle} escalation and blocking
+ *
+ * @author Karsten Lehmann
+ */
+public class FailureThrottleTest {
+	private static final int BASE_WAIT = 2;
+
+	@Test
+	public void testEscalation() {
+		FailureThrottle throttle = new FailureThrottle(1024, 300000, 0, 0, 60);
+		int[] expected = new int[] {2, 4, 8, 16, 32, 60, 60};
+		for (int currExpected : expected) {
+			assertEquals(currExpected, throttle.recordFailure("192.0.2.1", "john", BASE_WAIT));
+		}
+		//the higher count of IP and user wins
+		assertEquals(2, throttle.recordFailure("192.0.2.2", "mary", BASE_WAIT));
+		assertEquals(4, throttle.recordFailure("192.0.2.3", "mary", BASE_WAIT));
+		assertEquals(60, throttle.recordFailure("192.0.2.1", null, BASE_WAIT));
+		assertEquals(expected.length + 3, throttle.getFailures());
+		assertEquals(60, throttle.getMaxWaitSeconds(BASE_WAIT));
+		//a base wait above the max raises the max
+		assertEquals(90, throttle.getMaxWaitSeconds(90));
+		assertFalse(throttle.isBlocked("192.0.2.1", "john"));
+	}
+
+	@Test
+	public void testBaseWaitPerCall() {
+		FailureThrottle throttle = new FailureThrottle(1024, 300000, 0, 0, 60);
+		assertEquals(3, throttle.recordFailure("192.0.2.1", "john", 3));
+		//e.g. after reloading $NGINXAUTH_WAITONERROR
+		assertEquals(20, throttle.recordFailure("192.0.2.1", "john", 10));
+		assertEquals(1, throttle.recordFailure("192.0.2.2", "mary", 0));
+		assertEquals(40, throttle.recordFailure("192.0.2.1", "john", 10));
+		assertEquals(60, throttle.recordFailure("192.0.2.1", "john", 10));
+	}
+
+	@Test
+	public void testUserLimit() {
+		FailureThrottle throttle = new FailureThrottle(1024, 300000, 0, 3, 60);
+		for (int i=0; i<2; i++) {
+			throttle.recordFailure("192.0.2."+i, "john", BASE_WAIT);
+		}
+		assertFalse(throttle.isBlocked("192.0.2.10", "john"));
+		throttle.recordFailure("192.0.2.2", "john", BASE_WAIT);
+		assertTrue(throttle.isBlocked("192.0.2.10", "john"));
+		assertTrue(throttle.isBlocked(null, "john"));
+		assertFalse(throttle.isBlocked("192.0.2.10", "mary"));
+		assertEquals(2, throttle.getBlocked());
+	}
+
+	@Test
+	public void testIPLimit() {
+		FailureThrottle throttle = new FailureThrottle(1024, 300000, 3, 0, 60);
+		for (int i=0; i<3; i++) {
+			throttle.recordFailure("192.0.2.1", "user"+i, BASE_WAIT);
+		}
+		assertTrue(throttle.isBlocked("192.0.2.1", "mary"));
+		assertFalse(throttle.isBlocked("192.0.2.2", "mary"));
+		//unknown client IP, e.g. from trusted networks
+		assertFalse(throttle.isBlocked(null, "user0"));
+	}
+
+	@Test
+	public void testUnknownUsersNotCountedPerUser() {
+		FailureThrottle throttle = new FailureThrottle(1024, 300000, 0, 3, 60);
+		for (int i=0; i<100; i++) {
+			//user name not found in the directory
+			throttle.recordFailure("192.0.2.1", null, BASE_WAIT);
+		}
+		assertFalse(throttle.isBlocked("192.0.2.1", "john"));
+	}
+
+	@Test
+	public void testManyDistinctKeysDoNotBlockOthers() {
+		//defaults of NGINXAUTH_THROTTLE_WIDTH, _IPLIMIT and _USERLIMIT
+		FailureThrottle throttle = new FailureThrottle(65536, 300000, 50, 20, 60);
+		for (int i=0; i<1000000; i++) {
+			//rotating client IPs, each trying a different existing account once
+			throttle.recordFailure("10."+((i >> 16) & 0xff)+"."+((i >> 8) & 0xff)+"."+(i & 0xff), "user"+i, BASE_WAIT);
+		}
+		for (int i=0; i<1000; i++) {
+			assertFalse("Blocked: "+i, throttle.isBlocked("192.0.2."+(i % 256), "real"+i));
+		}
+		assertEquals(0, throttle.getBlocked());
+	}
+}
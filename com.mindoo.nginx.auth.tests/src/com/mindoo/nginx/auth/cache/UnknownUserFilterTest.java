@@ -0,0 +1,111 @@
+package com.mindoo.nginx.auth.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of the {@link UnknownUserFilter} with a controlled clock for the negative cache
+ *
+ * @author Karsten Lehmann
+ */
+public class UnknownUserFilterTest {
+	private static final long TTL_MILLIS = 30000;
+
+	private static class TestFilter extends UnknownUserFilter {
+		private long m_now = 1000000;
+
+		public TestFilter(int negativeCacheSize) {
+			super(0, 0.01, 0, negativeCacheSize, TTL_MILLIS);
+		}
+
+		@Override
+		long currentTimeMillis() {
+			return m_now;
+		}
+
+		public void advance(long millis) {
+			m_now += millis;
+		}
+	}
+
+	@Test
+	public void testFilter() {
+		TestFilter filter = new TestFilter(100);
+		//nothing rejected before the first build
+		assertFalse(filter.isFilterBuilt());
+		assertFalse(filter.isUnknown("nobody"));
+
+		filter.rebuild(Arrays.asList("john doe", "jdoe", "john.doe@acme.com"));
+		assertTrue(filter.isFilterBuilt());
+		assertTrue(filter.getFilterMemoryBytes()>0);
+		assertFalse(filter.isUnknown(" JDoe "));
+		assertFalse(filter.isUnknown("John.Doe@acme.com"));
+		assertTrue(filter.isUnknown("nobody"));
+
+		filter.addKnown(new String[] {"nobody"});
+		assertFalse(filter.isUnknown("nobody"));
+
+		assertEquals(1, filter.getFilterRejects());
+		assertEquals(4, filter.getPassed());
+		assertEquals(0, filter.getNegativeCacheRejects());
+	}
+
+	@Test
+	public void testNegativeCacheTTL() {
+		TestFilter filter = new TestFilter(100);
+		filter.addUnknown("Nobody");
+		assertTrue(filter.isUnknown(" nobody "));
+
+		filter.advance(TTL_MILLIS - 1);
+		assertTrue(filter.isUnknown("nobody"));
+		//expired, a user created in the meantime is found
+		filter.advance(1);
+		assertFalse(filter.isUnknown("nobody"));
+		assertFalse(filter.isUnknown("nobody"));
+
+		//a new lookup starts a new period
+		filter.addUnknown("nobody");
+		filter.advance(TTL_MILLIS / 2);
+		assertTrue(filter.isUnknown("nobody"));
+
+		assertEquals(3, filter.getNegativeCacheRejects());
+		assertEquals(2, filter.getPassed());
+	}
+
+	@Test
+	public void testNegativeCacheCoversFalsePositives() {
+		TestFilter filter = new TestFilter(100);
+		//in the filter, e.g. a false positive or a deleted user
+		filter.rebuild(Arrays.asList("jdoe"));
+		filter.addUnknown("jdoe");
+		assertTrue(filter.isUnknown("jdoe"));
+		assertEquals(0, filter.getFilterRejects());
+		assertEquals(1, filter.getNegativeCacheRejects());
+
+		//users added to the directory are removed from the negative cache
+		filter.addKnown(new String[] {"jdoe"});
+		assertFalse(filter.isUnknown("jdoe"));
+	}
+
+	@Test
+	public void testNegativeCacheSize() {
+		TestFilter filter = new TestFilter(2);
+		filter.addUnknown("a");
+		filter.addUnknown("b");
+		//access order, "a" was used more recently than "b"
+		assertTrue(filter.isUnknown("a"));
+		filter.addUnknown("c");
+		assertTrue(filter.isUnknown("a"));
+		assertFalse(filter.isUnknown("b"));
+		assertTrue(filter.isUnknown("c"));
+
+		TestFilter disabled = new TestFilter(0);
+		disabled.addUnknown("a");
+		assertFalse(disabled.isUnknown("a"));
+	}
+}
@@ -0,0 +1,220 @@
+package com.mindoo.nginx.auth.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mindoo.nginx.auth.directory.CircuitBreakerDirectory.State;
+import com.mindoo.nginx.auth.directory.CredentialCheckResult.Status;
+
+/**
+ * State transition tests of the {@link CircuitBreakerDirectory} with a controlled clock
+ * and a directory whose failures are set by the test
+ *
+ * @author Karsten Lehmann
+ */
+public class CircuitBreakerDirectoryTest {
+	private static final int THRESHOLD = 5;
+	private static final long OPEN_MILLIS = 30000;
+
+	private FaultyDirectory m_delegate;
+	private TestBreaker m_breaker;
+	private ExecutorService m_executor;
+
+	/**
+	 * Directory that throws the configured exception or waits for a latch before answering
+	 */
+	private static class FaultyDirectory extends InMemoryUserDirectory {
+		private volatile Exception m_error;
+		private volatile CountDownLatch m_block;
+		private volatile CountDownLatch m_entered = new CountDownLatch(1);
+
+		@Override
+		public CredentialCheckResult checkCredentials(String user, String password) throws Exception {
+			m_entered.countDown();
+			CountDownLatch block = m_block;
+			if (block!=null) {
+				block.await();
+			}
+			Exception error = m_error;
+			if (error!=null) {
+				throw error;
+			}
+			return super.checkCredentials(user, password);
+		}
+	}
+
+	private static class TestBreaker extends CircuitBreakerDirectory {
+		private volatile long m_now = 1000000;
+
+		public TestBreaker(UserDirectory delegate) {
+			super(delegate, THRESHOLD, OPEN_MILLIS);
+		}
+
+		@Override
+		long currentTimeMillis() {
+			return m_now;
+		}
+
+		public void advance(long millis) {
+			m_now += millis;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		m_delegate = new FaultyDirectory();
+		m_delegate.addUser(new String[] {"john"}, "secret");
+		m_breaker = new TestBreaker(m_delegate);
+		m_executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		m_executor.shutdownNow();
+	}
+
+	private void expectFailure(Class<? extends Exception> expected) {
+		try {
+			m_breaker.checkCredentials("john", "secret");
+			fail("Expected "+expected.getSimpleName());
+		}
+		catch (Exception e) {
+			assertSame(expected, e.getClass());
+		}
+	}
+
+	private void open() {
+		m_delegate.m_error = new TimeoutException("lookup timed out");
+		for (int i=0; i<THRESHOLD; i++) {
+			expectFailure(TimeoutException.class);
+		}
+		assertEquals(State.OPEN, m_breaker.getState());
+	}
+
+	@Test
+	public void testOpensAtThreshold() throws Exception {
+		m_delegate.m_error = new TimeoutException("lookup timed out");
+		for (int i=0; i<THRESHOLD-1; i++) {
+			expectFailure(TimeoutException.class);
+			assertEquals(State.CLOSED, m_breaker.getState());
+		}
+		//a success resets the consecutive failures
+		m_delegate.m_error = null;
+		assertEquals(Status.OK, m_breaker.checkCredentials("john", "secret").getStatus());
+		m_delegate.m_error = new IllegalStateException("database is being compacted");
+		for (int i=0; i<THRESHOLD-1; i++) {
+			expectFailure(IllegalStateException.class);
+		}
+		assertEquals(State.CLOSED, m_breaker.getState());
+		expectFailure(IllegalStateException.class);
+		assertEquals(State.OPEN, m_breaker.getState());
+		assertEquals(1, m_breaker.getOpenedCount());
+
+		//skipped while open, also wrong passwords
+		m_delegate.m_error = null;
+		long lookups = m_delegate.getLookups();
+		expectFailure(DirectoryUnavailableException.class);
+		m_breaker.advance(OPEN_MILLIS - 1);
+		expectFailure(DirectoryUnavailableException.class);
+		assertEquals(lookups, m_delegate.getLookups());
+		assertEquals(2, m_breaker.getRejected());
+	}
+
+	@Test
+	public void testTrialSuccessCloses() throws Exception {
+		open();
+		m_delegate.m_error = null;
+		m_breaker.advance(OPEN_MILLIS);
+		//unknown user counts as answer of the directory
+		assertEquals(Status.UNKNOWN_USER, m_breaker.checkCredentials("mary", "secret").getStatus());
+		assertEquals(State.CLOSED, m_breaker.getState());
+		assertEquals(1, m_breaker.getClosedCount());
+		assertEquals(OPEN_MILLIS, m_breaker.getOpenMillisSum());
+		assertEquals(Status.OK, m_breaker.checkCredentials("john", "secret").getStatus());
+	}
+
+	@Test
+	public void testTrialFailureReopens() throws Exception {
+		open();
+		m_breaker.advance(OPEN_MILLIS);
+		expectFailure(TimeoutException.class);
+		assertEquals(State.OPEN, m_breaker.getState());
+		//open time starts again with the failed trial
+		m_delegate.m_error = null;
+		m_breaker.advance(OPEN_MILLIS - 1);
+		expectFailure(DirectoryUnavailableException.class);
+		m_breaker.advance(1);
+		assertEquals(Status.OK, m_breaker.checkCredentials("john", "secret").getStatus());
+		assertEquals(State.CLOSED, m_breaker.getState());
+		assertEquals(1, m_breaker.getOpenedCount());
+	}
+
+	@Test
+	public void testSingleTrialWhileHalfOpen() throws Exception {
+		open();
+		m_delegate.m_error = null;
+		m_delegate.m_entered = new CountDownLatch(1);
+		m_delegate.m_block = new CountDownLatch(1);
+		m_breaker.advance(OPEN_MILLIS);
+
+		Future<CredentialCheckResult> trial = m_executor.submit(new Callable<CredentialCheckResult>() {
+
+			@Override
+			public CredentialCheckResult call() throws Exception {
+				return m_breaker.checkCredentials("john", "secret");
+			}
+		});
+		assertTrue(m_delegate.m_entered.await(5, TimeUnit.SECONDS));
+		assertEquals(State.HALF_OPEN, m_breaker.getState());
+		//further requests must not reach the directory while the trial runs
+		for (int i=0; i<3; i++) {
+			expectFailure(DirectoryUnavailableException.class);
+		}
+		m_delegate.m_block.countDown();
+		assertEquals(Status.OK, trial.get(5, TimeUnit.SECONDS).getStatus());
+		assertEquals(State.CLOSED, m_breaker.getState());
+	}
+
+	@Test
+	public void testOverloadDoesNotOpen() throws Exception {
+		m_delegate.m_error = new DirectoryOverloadException("queue full");
+		for (int i=0; i<THRESHOLD * 10; i++) {
+			expectFailure(DirectoryOverloadException.class);
+		}
+		assertEquals(State.CLOSED, m_breaker.getState());
+		//overload between real failures does not add to them either
+		m_delegate.m_error = new TimeoutException("lookup timed out");
+		for (int i=0; i<THRESHOLD-1; i++) {
+			expectFailure(TimeoutException.class);
+		}
+		assertEquals(State.CLOSED, m_breaker.getState());
+		assertEquals(0, m_breaker.getOpenedCount());
+	}
+
+	@Test
+	public void testOverloadedTrialKeepsHalfOpen() throws Exception {
+		open();
+		m_breaker.advance(OPEN_MILLIS);
+		m_delegate.m_error = new DirectoryOverloadException("queue full");
+		expectFailure(DirectoryOverloadException.class);
+		assertEquals(State.HALF_OPEN, m_breaker.getState());
+		//next request gets the trial
+		m_delegate.m_error = null;
+		assertEquals(Status.OK, m_breaker.checkCredentials("john", "secret").getStatus());
+		assertEquals(State.CLOSED, m_breaker.getState());
+	}
+}
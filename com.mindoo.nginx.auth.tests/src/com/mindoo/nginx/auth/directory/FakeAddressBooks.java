@@ -0,0 +1,330 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import lotus.domino.Database;
+import lotus.domino.DateTime;
+import lotus.domino.Document;
+import lotus.domino.DocumentCollection;
+import lotus.domino.Name;
+import lotus.domino.ReplicationInfo;
+import lotus.domino.Session;
+
+/**
+ * Address books kept in memory for tests of the directory indexes. Implements the parts
+ * of the Domino API used by {@link AbstractDirectoryIndex#refresh(Session, boolean)} with
+ * dynamic proxies: modified documents and deletion stubs since a time, item values and
+ * hierarchical names. Modification times come from a counter, so each change is newer
+ * than the previous refresh.
+ *
+ * @author Karsten Lehmann
+ */
+public class FakeAddressBooks {
+	private final List<Book> m_books = new ArrayList<Book>();
+	private long m_clock = 1000000;
+
+	/**
+	 * Address book with documents by note id
+	 */
+	public class Book {
+		private final String m_replicaId;
+		private final Map<String,FakeDocument> m_docs = new LinkedHashMap<String,FakeDocument>();
+		private long m_cutoffDays;
+
+		private Book(String replicaId) {
+			m_replicaId = replicaId;
+		}
+
+		/**
+		 * Creates or replaces a document
+		 *
+		 * @param noteId note id
+		 * @param items item names and values, a value is a String or String[]
+		 * @return this book
+		 */
+		public Book put(String noteId, Object... items) {
+			Map<String,Vector<Object>> values = new LinkedHashMap<String,Vector<Object>>();
+			for (int i=0; i<items.length; i+=2) {
+				Object value = items[i+1];
+				values.put(((String) items[i]).toLowerCase(), new Vector<Object>(value instanceof String[] ?
+						Arrays.asList((Object[]) value) : Arrays.asList(value)));
+			}
+			m_docs.put(noteId, new FakeDocument(noteId, values, false, ++m_clock));
+			return this;
+		}
+
+		/**
+		 * Deletes a document, leaving a deletion stub
+		 *
+		 * @param noteId note id
+		 * @return this book
+		 */
+		public Book delete(String noteId) {
+			m_docs.put(noteId, new FakeDocument(noteId, new LinkedHashMap<String,Vector<Object>>(), true, ++m_clock));
+			return this;
+		}
+
+		/**
+		 * Sets the replication cutoff interval used to decide if deletion stubs may have been purged
+		 *
+		 * @param days days, 0 to keep them forever
+		 */
+		public void setCutoffDays(long days) {
+			m_cutoffDays = days;
+		}
+
+		private Database toDatabase() {
+			return proxy(Database.class, new InvocationHandler() {
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if ("isOpen".equals(name) || "open".equals(name)) {
+						return Boolean.TRUE;
+					}
+					else if ("getReplicaID".equals(name)) {
+						return m_replicaId;
+					}
+					else if ("getFilePath".equals(name)) {
+						return m_replicaId+".nsf";
+					}
+					else if ("getReplicationInfo".equals(name)) {
+						return proxy(ReplicationInfo.class, new InvocationHandler() {
+
+							@Override
+							public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+								if ("getCutoffInterval".equals(method.getName())) {
+									return Long.valueOf(m_cutoffDays);
+								}
+								return unsupported(method);
+							}
+						});
+					}
+					else if ("getModifiedDocuments".equals(name)) {
+						long since = args[0]==null ? Long.MIN_VALUE : ((DateTime) args[0]).toJavaDate().getTime();
+						List<Document> docs = new ArrayList<Document>();
+						for (FakeDocument currDoc : m_docs.values()) {
+							//deletion stubs are only returned for incremental searches
+							if (currDoc.m_modified > since && (!currDoc.m_deleted || args[0]!=null)) {
+								docs.add(currDoc.toDocument());
+							}
+						}
+						return toCollection(docs, m_clock);
+					}
+					return unsupported(method);
+				}
+			});
+		}
+	}
+
+	private static class FakeDocument {
+		private final String m_noteId;
+		private final Map<String,Vector<Object>> m_items;
+		private final boolean m_deleted;
+		private final long m_modified;
+
+		public FakeDocument(String noteId, Map<String,Vector<Object>> items, boolean deleted, long modified) {
+			m_noteId = noteId;
+			m_items = items;
+			m_deleted = deleted;
+			m_modified = modified;
+		}
+
+		private Document toDocument() {
+			return proxy(Document.class, new InvocationHandler() {
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if ("getNoteID".equals(name)) {
+						return m_noteId;
+					}
+					else if ("isDeleted".equals(name)) {
+						return Boolean.valueOf(m_deleted);
+					}
+					else if ("getItemValue".equals(name)) {
+						Vector<Object> values = m_items.get(((String) args[0]).toLowerCase());
+						return values==null ? new Vector<Object>() : new Vector<Object>(values);
+					}
+					else if ("getItemValueString".equals(name)) {
+						Vector<Object> values = m_items.get(((String) args[0]).toLowerCase());
+						return values==null || values.isEmpty() ? "" : values.get(0).toString();
+					}
+					else if ("hasItem".equals(name)) {
+						return Boolean.valueOf(m_items.containsKey(((String) args[0]).toLowerCase()));
+					}
+					return unsupported(method);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Adds an address book, the first one added is the primary directory
+	 *
+	 * @param replicaId replica id
+	 * @return book
+	 */
+	public Book addBook(String replicaId) {
+		Book book = new Book(replicaId);
+		m_books.add(book);
+		return book;
+	}
+
+	/**
+	 * Returns a session that lists the address books
+	 *
+	 * @return session
+	 */
+	public Session getSession() {
+		return proxy(Session.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("getAddressBooks".equals(name)) {
+					Vector<Database> dbs = new Vector<Database>();
+					for (Book currBook : m_books) {
+						dbs.add(currBook.toDatabase());
+					}
+					return dbs;
+				}
+				else if ("createDateTime".equals(name)) {
+					return toDateTime(((Date) args[0]).getTime());
+				}
+				else if ("createName".equals(name)) {
+					return toName((String) args[0]);
+				}
+				return unsupported(method);
+			}
+		});
+	}
+
+	/**
+	 * Converts a name like "John Doe/Sales/Acme" or "CN=John Doe/OU=Sales/O=Acme" to its
+	 * canonical form, flat names are returned unchanged
+	 *
+	 * @param name name
+	 * @return canonical name
+	 */
+	public static String toCanonical(String name) {
+		if (name.indexOf('/')==-1 || name.indexOf('=')!=-1) {
+			return name;
+		}
+		String[] parts = name.split("/");
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<parts.length; i++) {
+			if (i>0) {
+				sb.append('/');
+			}
+			sb.append(i==0 ? "CN=" : (i==parts.length-1 ? "O=" : "OU=")).append(parts[i].trim());
+		}
+		return sb.toString();
+	}
+
+	private static Name toName(String name) {
+		final String canonical = toCanonical(name.trim());
+		return proxy(Name.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String methodName = method.getName();
+				if ("getCanonical".equals(methodName)) {
+					return canonical;
+				}
+				else if ("getAbbreviated".equals(methodName) || "getCommon".equals(methodName)) {
+					StringBuilder sb = new StringBuilder();
+					for (String currPart : canonical.split("/")) {
+						if (sb.length()>0) {
+							sb.append('/');
+						}
+						sb.append(currPart.substring(currPart.indexOf('=') + 1));
+						if ("getCommon".equals(methodName)) {
+							break;
+						}
+					}
+					return sb.toString();
+				}
+				else if ("isHierarchical".equals(methodName)) {
+					return Boolean.valueOf(canonical.indexOf('=')!=-1);
+				}
+				return unsupported(method);
+			}
+		});
+	}
+
+	private static DateTime toDateTime(final long time) {
+		return proxy(DateTime.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("toJavaDate".equals(method.getName())) {
+					return new Date(time);
+				}
+				return unsupported(method);
+			}
+		});
+	}
+
+	private static DocumentCollection toCollection(final List<Document> docs, final long untilTime) {
+		return proxy(DocumentCollection.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("getFirstDocument".equals(name)) {
+					return docs.isEmpty() ? null : docs.get(0);
+				}
+				else if ("getNextDocument".equals(name)) {
+					int idx = docs.indexOf(args[0]);
+					return idx+1<docs.size() ? docs.get(idx+1) : null;
+				}
+				else if ("getCount".equals(name)) {
+					return Integer.valueOf(docs.size());
+				}
+				else if ("getUntilTime".equals(name)) {
+					return toDateTime(untilTime);
+				}
+				return unsupported(method);
+			}
+		});
+	}
+
+	private static Object unsupported(Method method) {
+		if ("recycle".equals(method.getName())) {
+			return null;
+		}
+		throw new UnsupportedOperationException(method.getName());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(final Class<T> clazz, final InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(FakeAddressBooks.class.getClassLoader(), new Class<?>[] {clazz}, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				//identity semantics for getNextDocument and collections
+				if ("equals".equals(name) && method.getParameterTypes().length==1) {
+					return Boolean.valueOf(proxy==args[0]);
+				}
+				else if ("hashCode".equals(name) && method.getParameterTypes().length==0) {
+					return Integer.valueOf(System.identityHashCode(proxy));
+				}
+				else if ("toString".equals(name) && method.getParameterTypes().length==0) {
+					return clazz.getSimpleName()+"@"+Integer.toHexString(System.identityHashCode(proxy));
+				}
+				return handler.invoke(proxy, method, args);
+			}
+		});
+	}
+}
@@ -0,0 +1,147 @@
+package com.mindoo.nginx.auth.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link GroupMembershipIndex} name keys and group expansion, using address
+ * books kept in memory
+ *
+ * @author Karsten Lehmann
+ */
+public class GroupMembershipIndexTest {
+	private FakeAddressBooks m_books;
+	private FakeAddressBooks.Book m_names;
+	private GroupMembershipIndex m_index;
+	private long m_mailUsers;
+	private long m_sales;
+	private long m_staff;
+
+	@Before
+	public void setUp() {
+		m_books = new FakeAddressBooks();
+		m_names = m_books.addBook("names");
+		m_index = new GroupMembershipIndex(Arrays.asList("MailUsers", "Sales", "Staff"));
+		m_mailUsers = m_index.getGroupMask("mailusers");
+		m_sales = m_index.getGroupMask("SALES");
+		m_staff = m_index.getGroupMask(" Staff ");
+	}
+
+	@Test
+	public void testToKey() {
+		assertEquals("john doe/sales/acme", GroupMembershipIndex.toKey("CN=John Doe/OU=Sales/O=Acme"));
+		assertEquals("john doe/sales/acme", GroupMembershipIndex.toKey(" John Doe/Sales/Acme "));
+		assertEquals("john doe/sales/acme/de", GroupMembershipIndex.toKey("cn=John Doe/ou=Sales/o=Acme/c=DE"));
+		assertEquals("*/sales/acme", GroupMembershipIndex.toKey("*/OU=Sales/O=Acme"));
+		assertEquals("*/sales/acme", GroupMembershipIndex.toKey("*/Sales/Acme"));
+		assertEquals("mailusers", GroupMembershipIndex.toKey("MailUsers"));
+		assertEquals("", GroupMembershipIndex.toKey("  "));
+	}
+
+	@Test
+	public void testGroupMasks() {
+		assertEquals(1, m_mailUsers);
+		assertEquals(2, m_sales);
+		assertEquals(4, m_staff);
+		assertEquals(0, m_index.getGroupMask("Other"));
+
+		List<String> groups = new ArrayList<String>();
+		for (int i=0; i<=GroupMembershipIndex.MAX_GROUPS; i++) {
+			groups.add("Group"+i);
+		}
+		assertEquals(Long.MIN_VALUE, new GroupMembershipIndex(groups.subList(0, GroupMembershipIndex.MAX_GROUPS)).getGroupMask("group63"));
+		try {
+			new GroupMembershipIndex(groups);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testNestedGroups() throws Exception {
+		m_names.put("1", "Type", "Group", "ListName", "MailUsers", "Members", new String[] {"CN=John Doe/O=Acme", "Sales", "LocalAdmins"});
+		m_names.put("2", "Type", "Group", "ListName", "Sales", "Members", new String[] {"CN=Jane Roe/OU=Sales/O=Acme", "Sales Managers"});
+		//nested group with another name of the document
+		m_names.put("3", "Type", "Group", "ListName", new String[] {"Managers", "Sales Managers"}, "Members", "CN=Max Mustermann/O=Acme");
+		m_names.put("4", "Type", "Person", "FullName", "CN=Peter Miller/O=Acme");
+		m_index.refresh(m_books.getSession(), true);
+
+		assertEquals(3, m_index.getEntryCount());
+		assertEquals(m_mailUsers, m_index.getGroupBits("John Doe/Acme"));
+		assertEquals(m_mailUsers | m_sales, m_index.getGroupBits("CN=Jane Roe/OU=Sales/O=Acme"));
+		assertEquals(m_mailUsers | m_sales, m_index.getGroupBits("max mustermann/acme"));
+		//unknown nested names are kept as members
+		assertEquals(m_mailUsers, m_index.getGroupBits("localadmins"));
+		assertEquals(0, m_index.getGroupBits("CN=Peter Miller/O=Acme"));
+		assertEquals(4, m_index.getMemberCount());
+	}
+
+	@Test
+	public void testCycle() throws Exception {
+		m_names.put("1", "Type", "Group", "ListName", "MailUsers", "Members", new String[] {"A", "CN=John Doe/O=Acme"});
+		m_names.put("2", "Type", "Group", "ListName", "A", "Members", new String[] {"B", "CN=Jane Roe/O=Acme"});
+		m_names.put("3", "Type", "Group", "ListName", "B", "Members", new String[] {"A", "B", "CN=Max Mustermann/O=Acme"});
+		m_names.put("4", "Type", "Group", "ListName", "Sales", "Members", "B");
+		m_index.refresh(m_books.getSession(), true);
+
+		assertEquals(m_mailUsers, m_index.getGroupBits("john doe/acme"));
+		assertEquals(m_mailUsers | m_sales, m_index.getGroupBits("jane roe/acme"));
+		assertEquals(m_mailUsers | m_sales, m_index.getGroupBits("max mustermann/acme"));
+		assertEquals(3, m_index.getMemberCount());
+	}
+
+	@Test
+	public void testWildcard() throws Exception {
+		m_names.put("1", "Type", "Group", "ListName", "Staff", "Members", new String[] {"*/OU=Berlin/O=Acme", "Berlin Externals"});
+		m_names.put("2", "Type", "Group", "ListName", "Berlin Externals", "Members", "*/Partner");
+		m_names.put("3", "Type", "Group", "ListName", "MailUsers", "Members", "*/O=Acme");
+		m_index.refresh(m_books.getSession(), true);
+
+		assertEquals(m_staff | m_mailUsers, m_index.getGroupBits("CN=Anyone/OU=Berlin/O=Acme"));
+		assertEquals(m_staff | m_mailUsers, m_index.getGroupBits("Someone Else/Berlin/Acme"));
+		assertEquals(m_mailUsers, m_index.getGroupBits("CN=Anyone/OU=Munich/O=Acme"));
+		assertEquals(m_staff, m_index.getGroupBits("CN=Guest/O=Partner"));
+		assertEquals(0, m_index.getGroupBits("CN=Guest/O=NotPartner"));
+		assertEquals(0, m_index.getGroupBits("Flat Name"));
+		assertEquals(0, m_index.getMemberCount());
+	}
+
+	@Test
+	public void testMergeAddressBooks() throws Exception {
+		m_names.put("1", "Type", "Group", "ListName", "MailUsers", "Members", "CN=John Doe/O=Acme");
+		FakeAddressBooks.Book external = m_books.addBook("external");
+		external.put("1", "Type", "Group", "ListName", "mailusers", "Members", new String[] {"CN=Jane Roe/O=Partner", "Sales"});
+		external.put("2", "Type", "Group", "ListName", "Sales", "Members", "CN=Max Mustermann/O=Partner");
+		m_index.refresh(m_books.getSession(), true);
+
+		assertEquals(m_mailUsers, m_index.getGroupBits("john doe/acme"));
+		assertEquals(m_mailUsers, m_index.getGroupBits("jane roe/partner"));
+		assertEquals(m_mailUsers | m_sales, m_index.getGroupBits("max mustermann/partner"));
+
+		//changes and deletions of one document keep the members of the other one
+		external.put("1", "Type", "Group", "ListName", "MailUsers", "Members", "CN=Jane Roe/O=Partner");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals(m_sales, m_index.getGroupBits("max mustermann/partner"));
+		assertEquals(m_mailUsers, m_index.getGroupBits("john doe/acme"));
+
+		m_names.delete("1");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals(0, m_index.getGroupBits("john doe/acme"));
+		assertEquals(m_mailUsers, m_index.getGroupBits("jane roe/partner"));
+
+		//a group document that is changed to another type is removed
+		external.put("2", "Type", "Person", "FullName", "CN=Sales/O=Partner");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals(0, m_index.getGroupBits("max mustermann/partner"));
+		assertEquals(1, m_index.getEntryCount());
+	}
+}
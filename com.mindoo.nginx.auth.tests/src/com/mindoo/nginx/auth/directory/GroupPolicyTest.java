@@ -0,0 +1,104 @@
+package com.mindoo.nginx.auth.directory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mindoo.nginx.auth.directory.GroupPolicy.Access;
+
+/**
+ * Tests of the {@link GroupPolicy} access checks per protocol
+ *
+ * @author Karsten Lehmann
+ */
+public class GroupPolicyTest {
+	private FakeAddressBooks m_books;
+	private FakeAddressBooks.Book m_names;
+	private UserIndex m_userIndex;
+	private GroupPolicy m_policy;
+
+	@Before
+	public void setUp() throws Exception {
+		m_books = new FakeAddressBooks();
+		m_names = m_books.addBook("names");
+		m_names.put("1", "Type", "Person", "FullName", "CN=John Doe/O=Acme", "ShortName", "jdoe");
+		m_names.put("2", "Type", "Person", "FullName", "CN=Jane Roe/O=Acme", "ShortName", "jroe");
+		m_names.put("3", "Type", "Person", "FullName", "CN=Max Mustermann/O=Acme", "ShortName", "max");
+		m_names.put("4", "Type", "Group", "ListName", "MailUsers", "Members", new String[] {"CN=John Doe/O=Acme", "IMAP Users"});
+		m_names.put("5", "Type", "Group", "ListName", "IMAP Users", "Members", "CN=Jane Roe/O=Acme");
+		m_names.put("6", "Type", "Group", "ListName", "Terminations", "Members", "CN=Jane Roe/O=Acme");
+
+		m_userIndex = new UserIndex();
+		m_userIndex.refresh(m_books.getSession(), true);
+
+		Map<String,List<String>> allowGroups = new HashMap<String,List<String>>();
+		allowGroups.put("imap", GroupPolicy.parseGroups("MailUsers, ,IMAP Users"));
+		allowGroups.put("pop3", GroupPolicy.parseGroups("MailUsers"));
+		Map<String,List<String>> denyGroups = new HashMap<String,List<String>>();
+		denyGroups.put("imap", GroupPolicy.parseGroups("Terminations"));
+		denyGroups.put("smtp", GroupPolicy.parseGroups("Terminations"));
+		m_policy = new GroupPolicy(m_userIndex, allowGroups, denyGroups);
+	}
+
+	@Test
+	public void testParseGroups() {
+		assertEquals(Arrays.asList("MailUsers", "IMAP Users"), GroupPolicy.parseGroups(" MailUsers, ,IMAP Users,"));
+		assertEquals(0, GroupPolicy.parseGroups(null).size());
+	}
+
+	@Test
+	public void testUnavailable() {
+		assertEquals(Access.UNAVAILABLE, m_policy.check("imap", "jdoe"));
+		assertEquals(Access.UNAVAILABLE, m_policy.check("smtp", "jdoe"));
+		//unrestricted protocols do not need the index
+		assertEquals(Access.ALLOWED, m_policy.check("http", "jdoe"));
+		assertEquals(0, m_policy.getAllowed());
+		assertEquals(0, m_policy.getDenied());
+	}
+
+	@Test
+	public void testCheck() throws Exception {
+		m_policy.getMembershipIndex().refresh(m_books.getSession(), true);
+
+		//direct member
+		assertEquals(Access.ALLOWED, m_policy.check("imap", "jdoe"));
+		assertEquals(Access.ALLOWED, m_policy.check("pop3", "John Doe/Acme"));
+		assertEquals(Access.ALLOWED, m_policy.check("smtp", "jdoe"));
+		//nested member, but also denied
+		assertEquals(Access.DENIED, m_policy.check("imap", "jroe"));
+		assertEquals(Access.ALLOWED, m_policy.check("pop3", "jroe"));
+		assertEquals(Access.DENIED, m_policy.check("smtp", "jroe"));
+		//not a member of an allowed group
+		assertEquals(Access.DENIED, m_policy.check("imap", "max"));
+		assertEquals(Access.ALLOWED, m_policy.check("smtp", "max"));
+		//not in the user index
+		assertEquals(Access.DENIED, m_policy.check("pop3", "unknown"));
+		assertEquals(Access.ALLOWED, m_policy.check("smtp", "unknown"));
+
+		assertEquals(6, m_policy.getAllowed());
+		assertEquals(4, m_policy.getDenied());
+	}
+
+	@Test
+	public void testMembershipChanges() throws Exception {
+		GroupMembershipIndex membershipIndex = m_policy.getMembershipIndex();
+		membershipIndex.refresh(m_books.getSession(), true);
+		assertEquals(Access.DENIED, m_policy.check("imap", "jroe"));
+
+		m_names.put("6", "Type", "Group", "ListName", "Terminations", "Members", "CN=Max Mustermann/O=Acme");
+		membershipIndex.refresh(m_books.getSession(), false);
+		assertEquals(Access.ALLOWED, m_policy.check("imap", "jroe"));
+		assertEquals(Access.DENIED, m_policy.check("smtp", "max"));
+
+		m_names.delete("4");
+		membershipIndex.refresh(m_books.getSession(), false);
+		assertEquals(Access.DENIED, m_policy.check("imap", "jdoe"));
+		assertEquals(Access.ALLOWED, m_policy.check("imap", "jroe"));
+	}
+}
@@ -0,0 +1,266 @@
+package com.mindoo.nginx.auth.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mindoo.nginx.auth.directory.RecipientIndex.HashCountTable;
+import com.mindoo.nginx.auth.smtp.SmtpAddress;
+
+/**
+ * Tests of the {@link RecipientIndex} lookups and of its {@link RecipientIndex.HashCountTable},
+ * using address books kept in memory
+ *
+ * @author Karsten Lehmann
+ */
+public class RecipientIndexTest {
+	private FakeAddressBooks m_books;
+	private FakeAddressBooks.Book m_names;
+	private RecipientIndex m_index;
+
+	@Before
+	public void setUp() {
+		m_books = new FakeAddressBooks();
+		m_names = m_books.addBook("names");
+		m_names.put("1", "Type", "Person", "FullName", new String[] {"CN=John Doe/O=Acme", "Johnny"}, "ShortName", "jdoe",
+				"InternetAddress", "John.Doe@acme.com");
+		m_names.put("2", "Type", "Database", "FullName", "Support", "InternetAddress", "help@acme.com");
+		m_names.put("3", "Type", "Group", "ListName", "Sales Team", "GroupType", "1", "InternetAddress", "sales@acme.com");
+		m_names.put("4", "Type", "Group", "ListName", "Admins", "GroupType", "3", "InternetAddress", "admins@acme.com");
+		m_names.put("5", "Type", "Group", "ListName", "Editors", "GroupType", "2");
+		m_names.put("6", "Type", "Server", "ServerName", "CN=Mail1/O=Acme");
+		m_index = new RecipientIndex();
+	}
+
+	private boolean isDeliverable(String address) {
+		return m_index.isDeliverable(SmtpAddress.parse(address));
+	}
+
+	@Test
+	public void testNotLoadedAcceptsAll() {
+		assertTrue(isDeliverable("nobody@acme.com"));
+		assertEquals(0, m_index.getAccepted());
+		assertEquals(0, m_index.getRejected());
+	}
+
+	@Test
+	public void testDeliverable() throws Exception {
+		m_index.refresh(m_books.getSession(), true);
+
+		assertTrue(isDeliverable("john.doe@acme.com"));
+		assertTrue(isDeliverable("JOHN.DOE@ACME.COM"));
+		//domain alias, matched by local part
+		assertTrue(isDeliverable("john.doe@acme.de"));
+		//short name, common name and alternate full name
+		assertTrue(isDeliverable("jdoe@acme.com"));
+		assertTrue(isDeliverable("johnny@acme.com"));
+		assertTrue(isDeliverable("john_doe@acme.com"));
+		assertTrue(isDeliverable("\"John Doe\"@acme.com"));
+		//mail-in database and mail group
+		assertTrue(isDeliverable("help@acme.com"));
+		assertTrue(isDeliverable("support@acme.com"));
+		assertTrue(isDeliverable("sales@acme.com"));
+		assertTrue(isDeliverable("sales.team@acme.com"));
+
+		//ACL and deny list groups, servers
+		assertFalse(isDeliverable("admins@acme.com"));
+		assertFalse(isDeliverable("editors@acme.com"));
+		assertFalse(isDeliverable("mail1@acme.com"));
+		assertFalse(isDeliverable("jane.doe@acme.com"));
+
+		assertEquals(11, m_index.getAccepted());
+		assertEquals(4, m_index.getRejected());
+	}
+
+	@Test
+	public void testIncrementalChanges() throws Exception {
+		m_names.put("7", "Type", "Person", "FullName", "CN=Jane Roe/O=Acme", "ShortName", "jdoe", "InternetAddress", "jane.roe@acme.com");
+		m_index.refresh(m_books.getSession(), true);
+		int entries = m_index.getEntryCount();
+
+		//rename: the old address and alternate name are gone, the new address is found
+		m_names.put("1", "Type", "Person", "FullName", "CN=John Doe/O=Acme", "ShortName", "jdoe", "InternetAddress", "jd@acme.com");
+		assertFalse(m_index.refresh(m_books.getSession(), false));
+		assertFalse(isDeliverable("johnny@acme.com"));
+		assertTrue(isDeliverable("jd@acme.com"));
+		//still matches the common name
+		assertTrue(isDeliverable("john.doe@acme.com"));
+
+		//the short name is shared with Jane Roe and stays
+		m_names.delete("1");
+		m_index.refresh(m_books.getSession(), false);
+		assertFalse(isDeliverable("jd@acme.com"));
+		assertFalse(isDeliverable("john.doe@acme.com"));
+		assertTrue(isDeliverable("jdoe@acme.com"));
+		//john.doe, johnny, jd, john doe removed
+		assertEquals(entries - 4, m_index.getEntryCount());
+
+		m_names.delete("7");
+		m_index.refresh(m_books.getSession(), false);
+		assertFalse(isDeliverable("jdoe@acme.com"));
+
+		//a group changed to an ACL group no longer receives mail
+		m_names.put("3", "Type", "Group", "ListName", "Sales Team", "GroupType", "2", "InternetAddress", "sales@acme.com");
+		m_index.refresh(m_books.getSession(), false);
+		assertFalse(isDeliverable("sales@acme.com"));
+		assertFalse(isDeliverable("sales_team@acme.com"));
+	}
+
+	@Test
+	public void testFullRefreshDropsDeleted() throws Exception {
+		m_index.refresh(m_books.getSession(), true);
+		m_names.delete("2");
+		assertTrue(m_index.refresh(m_books.getSession(), true));
+		assertFalse(isDeliverable("help@acme.com"));
+		assertTrue(isDeliverable("john.doe@acme.com"));
+	}
+
+	@Test
+	public void testTableCounts() {
+		HashCountTable table = new HashCountTable(16);
+		table = table.add(42);
+		table = table.add(42);
+		assertEquals(1, table.size());
+
+		table.remove(42);
+		assertTrue(table.contains(42));
+		assertEquals(1, table.size());
+		table.remove(42);
+		assertFalse(table.contains(42));
+		assertEquals(0, table.size());
+
+		//more removes than adds do not go negative
+		table.remove(42);
+		table = table.add(42);
+		assertTrue(table.contains(42));
+		assertEquals(1, table.size());
+		table.remove(43);
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void testTombstonesKeepProbeChains() {
+		HashCountTable table = new HashCountTable(4);
+		//same start slot in a table of 16 slots
+		table = table.add(5).add(21).add(37);
+		table.remove(21);
+		assertFalse(table.contains(21));
+		assertTrue(table.contains(5));
+		assertTrue(table.contains(37));
+
+		table.remove(5);
+		assertTrue(table.contains(37));
+		assertEquals(1, table.size());
+
+		//the removed slot is reused
+		HashCountTable sameTable = table.add(21);
+		assertSame(table, sameTable);
+		assertTrue(table.contains(21));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void testZeroHash() {
+		HashCountTable table = new HashCountTable(16);
+		table = table.add(0);
+		assertTrue(table.contains(0));
+		//0 marks empty slots and shares its slot with 1
+		assertTrue(table.contains(1));
+		table = table.add(1);
+		assertEquals(1, table.size());
+		table.remove(0);
+		table.remove(1);
+		assertFalse(table.contains(0));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testGrowth() {
+		HashCountTable first = new HashCountTable(4);
+		HashCountTable table = first;
+		for (long i=1; i<=1000; i++) {
+			table = table.add(i * 0x9E3779B97F4A7C15L);
+		}
+		assertEquals(1000, table.size());
+		for (long i=1; i<=1000; i++) {
+			assertTrue(table.contains(i * 0x9E3779B97F4A7C15L));
+		}
+		//the replaced table is left unchanged for readers still using it
+		assertEquals(12, first.size());
+		assertTrue(first.contains(0x9E3779B97F4A7C15L));
+
+		//a rebuild drops removed keys
+		for (long i=1; i<=990; i++) {
+			table.remove(i * 0x9E3779B97F4A7C15L);
+		}
+		for (long i=1; i<=5000; i++) {
+			table = table.add(-i);
+		}
+		assertEquals(5010, table.size());
+		assertFalse(table.contains(0x9E3779B97F4A7C15L));
+		assertTrue(table.contains(1000 * 0x9E3779B97F4A7C15L));
+	}
+
+	@Test
+	public void testConcurrentReaders() throws Exception {
+		final long[] stableKeys = new long[100];
+		HashCountTable initial = new HashCountTable(16);
+		for (int i=0; i<stableKeys.length; i++) {
+			stableKeys[i] = (i + 1) * 0x9E3779B97F4A7C15L;
+			initial = initial.add(stableKeys[i]);
+		}
+		final HashCountTable[] current = new HashCountTable[] {initial};
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicLong misses = new AtomicLong();
+		final AtomicLong checks = new AtomicLong();
+
+		Thread[] readers = new Thread[2];
+		for (int t=0; t<readers.length; t++) {
+			readers[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					while (!done.get()) {
+						HashCountTable table;
+						synchronized (current) {
+							table = current[0];
+						}
+						for (long currKey : stableKeys) {
+							if (!table.contains(currKey)) {
+								misses.incrementAndGet();
+							}
+							checks.incrementAndGet();
+						}
+					}
+				}
+			});
+			readers[t].start();
+		}
+
+		//single writer, adding and removing other keys with growth and rebuilds
+		HashCountTable table = initial;
+		for (long i=1; i<=200000; i++) {
+			table = table.add(-i);
+			if (i>50) {
+				table.remove(-(i - 50));
+			}
+			synchronized (current) {
+				current[0] = table;
+			}
+		}
+		done.set(true);
+		for (Thread currReader : readers) {
+			currReader.join();
+		}
+		assertTrue(checks.get()>0);
+		assertEquals(0, misses.get());
+		assertEquals(stableKeys.length + 50, table.size());
+	}
+}
@@ -0,0 +1,197 @@
+package com.mindoo.nginx.auth.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mindoo.nginx.auth.directory.CredentialCheckResult.Status;
+
+/**
+ * Concurrency tests of the {@link SingleFlightDirectory} with an {@link InMemoryUserDirectory}
+ * that simulates slow lookups
+ *
+ * @author Karsten Lehmann
+ */
+public class SingleFlightDirectoryTest {
+	private InMemoryUserDirectory m_directory;
+	private ExecutorService m_executor;
+
+	@Before
+	public void setUp() {
+		m_directory = new InMemoryUserDirectory();
+		m_directory.addUser(new String[] {"John Doe", "john", "john@example.com"}, "secret");
+		m_executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		m_executor.shutdownNow();
+	}
+
+	private Future<CredentialCheckResult> check(final UserDirectory directory, final String user, final String password) {
+		return m_executor.submit(new Callable<CredentialCheckResult>() {
+
+			@Override
+			public CredentialCheckResult call() throws Exception {
+				return directory.checkCredentials(user, password);
+			}
+		});
+	}
+
+	/**
+	 * Waits until the first request registered its check, so that the following
+	 * requests find it in flight
+	 */
+	private static void awaitInFlight(SingleFlightDirectory directory, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (directory.getInFlight()<count) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Check did not start: "+directory);
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testIdenticalCredentialsCoalesced() throws Exception {
+		m_directory.setLatency(300000, 300000);
+		SingleFlightDirectory directory = new SingleFlightDirectory(m_directory, 5000);
+
+		Future<CredentialCheckResult> first = check(directory, "john", "secret");
+		awaitInFlight(directory, 1);
+		List<Future<CredentialCheckResult>> waiters = new ArrayList<Future<CredentialCheckResult>>();
+		for (int i=0; i<10; i++) {
+			//user names are compared case insensitive
+			waiters.add(check(directory, i%2==0 ? "john" : " JOHN ", "secret"));
+		}
+
+		CredentialCheckResult result = first.get(5, TimeUnit.SECONDS);
+		assertEquals(Status.OK, result.getStatus());
+		for (Future<CredentialCheckResult> currWaiter : waiters) {
+			assertSame(result, currWaiter.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, m_directory.getLookups());
+		assertEquals(1, directory.getExecuted());
+		assertEquals(10, directory.getCoalesced());
+		assertEquals(0, directory.getInFlight());
+	}
+
+	@Test
+	public void testDifferentPasswordsNotShared() throws Exception {
+		m_directory.setLatency(300000, 300000);
+		SingleFlightDirectory directory = new SingleFlightDirectory(m_directory, 5000);
+
+		Future<CredentialCheckResult> correct = check(directory, "john", "secret");
+		awaitInFlight(directory, 1);
+		Future<CredentialCheckResult> wrong = check(directory, "john", "Secret");
+		awaitInFlight(directory, 2);
+		Future<CredentialCheckResult> correct2 = check(directory, "john", "secret");
+
+		assertEquals(Status.OK, correct.get(5, TimeUnit.SECONDS).getStatus());
+		assertEquals(Status.INVALID_PASSWORD, wrong.get(5, TimeUnit.SECONDS).getStatus());
+		assertSame(correct.get(), correct2.get(5, TimeUnit.SECONDS));
+		assertEquals(2, m_directory.getLookups());
+		assertEquals(2, directory.getExecuted());
+		assertEquals(1, directory.getCoalesced());
+	}
+
+	@Test
+	public void testExceptionPropagatedToWaiters() throws Exception {
+		final Exception failure = new IllegalStateException("Directory not available");
+		InMemoryUserDirectory failingDirectory = new InMemoryUserDirectory() {
+			@Override
+			public CredentialCheckResult checkCredentials(String user, String password) throws Exception {
+				super.checkCredentials(user, password);
+				throw failure;
+			}
+		};
+		failingDirectory.setLatency(300000, 300000);
+		SingleFlightDirectory directory = new SingleFlightDirectory(failingDirectory, 5000);
+
+		Future<CredentialCheckResult> first = check(directory, "john", "secret");
+		awaitInFlight(directory, 1);
+		List<Future<CredentialCheckResult>> waiters = new ArrayList<Future<CredentialCheckResult>>();
+		for (int i=0; i<5; i++) {
+			waiters.add(check(directory, "john", "secret"));
+		}
+		waiters.add(first);
+
+		for (Future<CredentialCheckResult> currWaiter : waiters) {
+			try {
+				currWaiter.get(5, TimeUnit.SECONDS);
+				fail("Exception expected");
+			}
+			catch (ExecutionException e) {
+				assertSame(failure, e.getCause());
+			}
+		}
+		assertEquals(1, failingDirectory.getLookups());
+		assertEquals(0, directory.getInFlight());
+
+		//a failed check is not remembered
+		failingDirectory.setLatency(0, 0);
+		try {
+			directory.checkCredentials("john", "secret");
+			fail("Exception expected");
+		}
+		catch (IllegalStateException e) {
+			assertSame(failure, e);
+		}
+		assertEquals(2, failingDirectory.getLookups());
+	}
+
+	@Test
+	public void testWaiterTimeout() throws Exception {
+		m_directory.setLatency(1000000, 1000000);
+		SingleFlightDirectory directory = new SingleFlightDirectory(m_directory, 100);
+
+		Future<CredentialCheckResult> first = check(directory, "john", "secret");
+		awaitInFlight(directory, 1);
+		long t0 = System.currentTimeMillis();
+		try {
+			directory.checkCredentials("john", "secret");
+			fail("TimeoutException expected");
+		}
+		catch (TimeoutException e) {
+			long waited = System.currentTimeMillis() - t0;
+			assertTrue("waited "+waited+"ms", waited>=90 && waited<900);
+		}
+		//the timeout of a waiter does not affect the check itself
+		assertEquals(1, directory.getInFlight());
+		assertEquals(Status.OK, first.get(5, TimeUnit.SECONDS).getStatus());
+		assertEquals(1, m_directory.getLookups());
+		assertEquals(0, directory.getInFlight());
+	}
+
+	@Test
+	public void testFlightRemovedAfterCompletion() throws Exception {
+		SingleFlightDirectory directory = new SingleFlightDirectory(m_directory, 5000);
+
+		assertEquals(Status.OK, directory.checkCredentials("john", "secret").getStatus());
+		assertEquals(0, directory.getInFlight());
+
+		//a password change is seen by the next check
+		m_directory.addUser(new String[] {"john"}, "newsecret");
+		assertEquals(Status.INVALID_PASSWORD, directory.checkCredentials("john", "secret").getStatus());
+		assertEquals(Status.OK, directory.checkCredentials("john", "newsecret").getStatus());
+		assertEquals(0, directory.getInFlight());
+		assertEquals(3, m_directory.getLookups());
+		assertEquals(3, directory.getExecuted());
+		assertEquals(0, directory.getCoalesced());
+	}
+}
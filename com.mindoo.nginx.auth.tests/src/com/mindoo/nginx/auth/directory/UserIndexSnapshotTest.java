@@ -0,0 +1,214 @@
+package com.mindoo.nginx.auth.directory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mindoo.nginx.auth.directory.UserIndex.UserEntry;
+
+/**
+ * Round trip and corruption tests of the {@link UserIndexSnapshot} file format
+ *
+ * @author Karsten Lehmann
+ */
+public class UserIndexSnapshotTest {
+	@Rule
+	public TemporaryFolder m_folder = new TemporaryFolder();
+
+	private FakeAddressBooks m_books;
+	private FakeAddressBooks.Book m_names;
+	private UserIndex m_index;
+	private UserIndexSnapshot m_snapshot;
+
+	@Before
+	public void setUp() throws Exception {
+		m_books = new FakeAddressBooks();
+		m_names = m_books.addBook("names");
+		m_names.put("1", "Type", "Person", "FullName", "CN=John Doe/O=Acme", "ShortName", "jdoe",
+				"InternetAddress", "john.doe@acme.com", "HTTPPassword", "(hash1)", "MailServer", "CN=Mail1/O=Acme");
+		m_books.addBook("external").put("1", "Type", "Person", "FullName", "CN=Jane Roe/O=Partner", "ShortName", "jdoe",
+				"HTTPPassword", "(hash2)");
+
+		m_index = new UserIndex();
+		m_index.refresh(m_books.getSession(), true);
+		m_snapshot = new UserIndexSnapshot(new File(m_folder.getRoot(), "snapshot/userindex.dat"), 60000);
+		m_snapshot.write(m_index);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		UserIndex restored = new UserIndex();
+		assertTrue(m_snapshot.restore(restored));
+		assertTrue(restored.isLoaded());
+		assertFalse(new File(m_snapshot.getFile().getPath()+".tmp").exists());
+
+		assertEquals(m_index.getEntryCount(), restored.getEntryCount());
+		assertEquals(m_index.getNameCount(), restored.getNameCount());
+		assertEquals(m_index.getWatermarks(), restored.getWatermarks());
+		assertEquals(Arrays.asList("names", "external"), restored.getAddressBookReplicaIds());
+		assertEquals(m_index.getLastFullRefresh(), restored.getLastFullRefresh());
+
+		UserEntry entry = restored.lookup("John Doe/Acme");
+		assertNotNull(entry);
+		assertEquals("CN=John Doe/O=Acme", entry.getCanonicalName());
+		assertEquals("cn=mail1/o=acme", entry.getMailServer());
+		assertArrayEquals(m_index.lookup("jdoe").getNames(), entry.getNames());
+		//first address book wins
+		assertEquals("names", restored.lookup("jdoe").getAddressBookReplicaId());
+		assertNull(restored.lookup("jane roe").getMailServer());
+
+		//only the fingerprint of the password hash is stored
+		assertNull(entry.getPasswordHash());
+		assertFalse(entry.restorePasswordHash("(changed)"));
+		assertTrue(entry.restorePasswordHash("(hash1)"));
+		assertEquals("(hash1)", entry.getPasswordHash());
+	}
+
+	@Test
+	public void testIncrementalRefreshAfterRestore() throws Exception {
+		UserIndex restored = new UserIndex();
+		assertTrue(m_snapshot.restore(restored));
+		assertFalse(restored.refresh(m_books.getSession(), false));
+		assertEquals(0, restored.getLastRefreshDocCount());
+
+		m_books.addBook("more").put("9", "Type", "Person", "FullName", "CN=Max Mustermann/O=Acme", "HTTPPassword", "(hash3)");
+		assertFalse(restored.refresh(m_books.getSession(), false));
+		assertEquals(1, restored.getLastRefreshDocCount());
+		assertNotNull(restored.lookup("max mustermann"));
+		assertNotNull(restored.lookup("john doe"));
+
+		//the shadowed entry has been restored and takes over the short name
+		m_names.delete("1");
+		restored.refresh(m_books.getSession(), false);
+		assertNull(restored.lookup("john doe"));
+		assertEquals("external", restored.lookup("jdoe").getAddressBookReplicaId());
+	}
+
+	@Test
+	public void testMissingFile() {
+		UserIndexSnapshot snapshot = new UserIndexSnapshot(new File(m_folder.getRoot(), "missing.dat"), 60000);
+		UserIndex index = new UserIndex();
+		assertFalse(snapshot.restore(index));
+		assertFalse(index.isLoaded());
+	}
+
+	@Test
+	public void testWrongMagic() throws Exception {
+		byte[] data = readFile();
+		data[0] ^= 0x01;
+		writeFile(data, true);
+		assertRejected();
+	}
+
+	@Test
+	public void testWrongVersion() throws Exception {
+		byte[] data = readFile();
+		ByteBuffer.wrap(data).putInt(4, 99);
+		writeFile(data, true);
+		assertRejected();
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		byte[] data = readFile();
+		//flip single bits throughout the content
+		for (int i=0; i<data.length - 8; i+=7) {
+			data[i] ^= 0x10;
+			writeFile(data, false);
+			assertRejected();
+			data[i] ^= 0x10;
+		}
+		writeFile(data, false);
+		assertTrue(m_snapshot.restore(new UserIndex()));
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		byte[] data = readFile();
+		writeFile(Arrays.copyOf(data, data.length - 1), false);
+		assertRejected();
+		writeFile(Arrays.copyOf(data, 12), false);
+		assertRejected();
+		writeFile(new byte[0], false);
+		assertRejected();
+
+		//shorter content with matching checksum, the entries end early
+		byte[] truncated = new byte[data.length - 20];
+		System.arraycopy(data, 0, truncated, 0, truncated.length - 8);
+		writeFile(truncated, true);
+		assertRejected();
+	}
+
+	@Test
+	public void testTrailingData() throws Exception {
+		byte[] data = readFile();
+
+		//appended after the checksum
+		byte[] appended = Arrays.copyOf(data, data.length + 4);
+		writeFile(appended, false);
+		assertRejected();
+
+		//inserted before the checksum, covered by a matching checksum
+		byte[] inserted = new byte[data.length + 4];
+		System.arraycopy(data, 0, inserted, 0, data.length - 8);
+		writeFile(inserted, true);
+		assertRejected();
+	}
+
+	private void assertRejected() {
+		UserIndex index = new UserIndex();
+		assertFalse(m_snapshot.restore(index));
+		assertFalse(index.isLoaded());
+		assertEquals(0, index.getEntryCount());
+	}
+
+	private byte[] readFile() throws IOException {
+		File file = m_snapshot.getFile();
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream fIn = new FileInputStream(file);
+		try {
+			int pos = 0;
+			while (pos<data.length) {
+				pos += fIn.read(data, pos, data.length - pos);
+			}
+		}
+		finally {
+			fIn.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Writes the snapshot file, optionally replacing the trailing checksum with the one of the content
+	 */
+	private void writeFile(byte[] data, boolean updateChecksum) throws IOException {
+		if (updateChecksum) {
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length - 8);
+			ByteBuffer.wrap(data).putLong(data.length - 8, crc.getValue());
+		}
+		FileOutputStream fOut = new FileOutputStream(m_snapshot.getFile());
+		try {
+			fOut.write(data);
+		}
+		finally {
+			fOut.close();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.mindoo.nginx.auth.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mindoo.nginx.auth.directory.UserIndex.UserEntry;
+
+/**
+ * Tests of the {@link UserIndex} name resolution across address books with full and
+ * incremental refreshes
+ *
+ * @author Karsten Lehmann
+ */
+public class UserIndexTest {
+	private FakeAddressBooks m_books;
+	private FakeAddressBooks.Book m_names;
+	private FakeAddressBooks.Book m_external;
+	private FakeAddressBooks.Book m_archive;
+	private UserIndex m_index;
+	private RecordingListener m_listener;
+
+	@Before
+	public void setUp() {
+		m_books = new FakeAddressBooks();
+		m_names = m_books.addBook("names");
+		m_external = m_books.addBook("external");
+		m_archive = m_books.addBook("archive");
+		m_names.put("1", "Type", "Person", "FullName", new String[] {"CN=John Doe/O=Acme", "Johnny"}, "ShortName", "jdoe",
+				"InternetAddress", "John.Doe@acme.com", "HTTPPassword", "(hash1)", "MailServer", "Mail1/Acme");
+		m_index = new UserIndex();
+		m_listener = new RecordingListener();
+		m_index.setListener(m_listener);
+	}
+
+	private String lookupBook(String name) {
+		UserEntry entry = m_index.lookup(name);
+		return entry==null ? null : entry.getAddressBookReplicaId();
+	}
+
+	@Test
+	public void testNames() throws Exception {
+		m_names.put("2", "Type", "Group", "ListName", "Sales", "Members", "CN=John Doe/O=Acme");
+		m_index.refresh(m_books.getSession(), true);
+
+		UserEntry entry = m_index.lookup("JOHN DOE/ACME");
+		assertEquals("CN=John Doe/O=Acme", entry.getCanonicalName());
+		assertEquals("(hash1)", entry.getPasswordHash());
+		assertEquals("cn=mail1/o=acme", entry.getMailServer());
+		assertEquals(new TreeSet<String>(Arrays.asList("cn=john doe/o=acme", "john doe/acme", "john doe", "johnny", "jdoe",
+				"john.doe@acme.com")), new TreeSet<String>(Arrays.asList(entry.getNames())));
+		for (String currName : entry.getNames()) {
+			assertEquals(entry, m_index.lookup(currName));
+		}
+		assertEquals(entry, m_index.lookup(" Johnny "));
+		assertNull(m_index.lookup("sales"));
+		assertEquals(1, m_index.getEntryCount());
+		assertEquals(6, m_index.getNameCount());
+		assertEquals(1, m_listener.m_fullRefreshes);
+	}
+
+	@Test
+	public void testFirstAddressBookWins() throws Exception {
+		m_archive.put("1", "Type", "Person", "FullName", "CN=Jim Doe/O=Archive", "ShortName", "jdoe");
+		m_external.put("1", "Type", "Person", "FullName", "CN=Joe Doe/O=Partner", "ShortName", "jdoe", "InternetAddress", "john.doe@acme.com");
+		m_index.refresh(m_books.getSession(), true);
+		assertEquals("names", lookupBook("jdoe"));
+		assertEquals("names", lookupBook("john.doe@acme.com"));
+		assertEquals("external", lookupBook("joe doe"));
+
+		//a later change in another address book does not take over the name
+		m_external.put("1", "Type", "Person", "FullName", "CN=Joe Doe/O=Partner", "ShortName", "jdoe", "InternetAddress", "john.doe@acme.com",
+				"HTTPPassword", "(new)");
+		m_archive.put("1", "Type", "Person", "FullName", "CN=Jim Doe/O=Archive", "ShortName", "jdoe", "HTTPPassword", "(new)");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("names", lookupBook("jdoe"));
+		assertEquals("names", lookupBook("john.doe@acme.com"));
+		assertTrue(m_listener.m_removedNames.isEmpty());
+
+		//the changed winner keeps the names it still has
+		m_names.put("1", "Type", "Person", "FullName", "CN=John Doe/O=Acme", "ShortName", "jdoe", "HTTPPassword", "(new)");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("names", lookupBook("jdoe"));
+		assertEquals("(new)", m_index.lookup("jdoe").getPasswordHash());
+		assertEquals(3, m_listener.m_changedEntries.size());
+		//john.doe@acme.com now belongs to the person in the external address book
+		assertEquals(new HashSet<String>(Arrays.asList("johnny", "john.doe@acme.com")), m_listener.m_removedNames.get(0));
+		assertEquals("external", lookupBook("john.doe@acme.com"));
+		assertNull(lookupBook("johnny"));
+	}
+
+	@Test
+	public void testDeletionTakeover() throws Exception {
+		m_archive.put("1", "Type", "Person", "FullName", "CN=Jim Doe/O=Archive", "ShortName", "jdoe");
+		m_external.put("1", "Type", "Person", "FullName", "CN=Joe Doe/O=Partner", "ShortName", "jdoe");
+		m_index.refresh(m_books.getSession(), true);
+
+		//the shadowed entry of the next address book takes over, not the one indexed last
+		m_names.delete("1");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("external", lookupBook("jdoe"));
+		assertEquals(2, m_index.getEntryCount());
+		assertNull(m_index.lookup("john doe"));
+		assertEquals(new HashSet<String>(Arrays.asList("cn=john doe/o=acme", "john doe/acme", "john doe", "johnny", "jdoe",
+				"john.doe@acme.com")), m_listener.m_removedNames.get(0));
+
+		m_external.delete("1");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("archive", lookupBook("jdoe"));
+
+		m_archive.delete("1");
+		m_index.refresh(m_books.getSession(), false);
+		assertNull(lookupBook("jdoe"));
+		assertEquals(0, m_index.getEntryCount());
+		assertEquals(0, m_index.getNameCount());
+		assertEquals(3, m_listener.m_removedNames.size());
+	}
+
+	@Test
+	public void testShadowedEntryDeleted() throws Exception {
+		m_external.put("1", "Type", "Person", "FullName", "CN=Joe Doe/O=Partner", "ShortName", "jdoe");
+		m_index.refresh(m_books.getSession(), true);
+
+		//removing the shadowed entry leaves the winner and is not reported for the shared name
+		m_external.delete("1");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("names", lookupBook("jdoe"));
+		assertEquals(Collections.singleton("joe doe"), filter(m_listener.m_removedNames.get(0), "joe doe", "jdoe"));
+
+		//the shadowed entry is gone, too
+		m_names.delete("1");
+		m_index.refresh(m_books.getSession(), false);
+		assertNull(lookupBook("jdoe"));
+	}
+
+	@Test
+	public void testRename() throws Exception {
+		m_external.put("1", "Type", "Person", "FullName", "CN=Joe Doe/O=Partner", "ShortName", new String[] {"jdoe", "joe"});
+		m_index.refresh(m_books.getSession(), true);
+
+		//the renamed winner releases the short name to the shadowed entry
+		m_names.put("1", "Type", "Person", "FullName", "CN=John Doe/O=Acme", "ShortName", "johnd");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("external", lookupBook("jdoe"));
+		assertEquals("names", lookupBook("johnd"));
+		assertEquals("names", lookupBook("john doe"));
+		assertNull(lookupBook("johnny"));
+		assertEquals(new HashSet<String>(Arrays.asList("jdoe", "johnny", "john.doe@acme.com")), m_listener.m_removedNames.get(0));
+
+		//the name comes back to the first address book
+		m_names.put("1", "Type", "Person", "FullName", "CN=John Doe/O=Acme", "ShortName", "jdoe");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("names", lookupBook("jdoe"));
+		assertEquals("external", lookupBook("joe"));
+
+		//a person document changed to another type is removed
+		m_names.put("1", "Type", "Group", "ListName", "John Doe");
+		m_index.refresh(m_books.getSession(), false);
+		assertEquals("external", lookupBook("jdoe"));
+		assertNull(lookupBook("john doe"));
+	}
+
+	@Test
+	public void testSameAddressBook() throws Exception {
+		m_names.put("2", "Type", "Person", "FullName", "CN=Jane Doe/O=Acme", "ShortName", "jdoe");
+		m_index.refresh(m_books.getSession(), true);
+		UserEntry winner = m_index.lookup("jdoe");
+
+		//the other document of the same address book takes over
+		m_names.delete(winner.getNoteId());
+		m_index.refresh(m_books.getSession(), false);
+		UserEntry other = m_index.lookup("jdoe");
+		assertEquals("names", other.getAddressBookReplicaId());
+		assertFalse(winner.getNoteId().equals(other.getNoteId()));
+	}
+
+	@Test
+	public void testRestore() throws Exception {
+		m_external.put("1", "Type", "Person", "FullName", "CN=Joe Doe/O=Partner", "ShortName", "jdoe");
+		m_index.refresh(m_books.getSession(), true);
+
+		//restore in reverse order, the first address book still wins
+		List<UserEntry> entries = new ArrayList<UserEntry>(m_index.getEntries());
+		Collections.reverse(entries);
+		UserIndex restored = new UserIndex();
+		restored.setListener(m_listener);
+		restored.restore(entries, m_index.getWatermarks(), m_index.getAddressBookReplicaIds(), m_index.getLastFullRefresh(), 0);
+		assertTrue(restored.isLoaded());
+		assertEquals(2, m_listener.m_fullRefreshes);
+		assertEquals("names", restored.lookup("jdoe").getAddressBookReplicaId());
+
+		//incremental refresh after a restore, the shadowed entry takes over
+		m_names.delete("1");
+		assertFalse(restored.refresh(m_books.getSession(), false));
+		assertEquals("external", restored.lookup("jdoe").getAddressBookReplicaId());
+		assertEquals(1, restored.getEntryCount());
+	}
+
+	@Test
+	public void testFullRefreshReportsRemovedNames() throws Exception {
+		m_external.put("1", "Type", "Person", "FullName", "CN=Joe Doe/O=Partner", "ShortName", "jdoe");
+		m_index.refresh(m_books.getSession(), true);
+
+		m_names.delete("1");
+		m_index.refresh(m_books.getSession(), true);
+		assertEquals("external", lookupBook("jdoe"));
+		assertEquals(new HashSet<String>(Arrays.asList("cn=john doe/o=acme", "john doe/acme", "john doe", "johnny", "jdoe",
+				"john.doe@acme.com")), m_listener.m_fullRefreshRemovedNames);
+	}
+
+	private static Set<String> filter(Set<String> names, String... keep) {
+		Set<String> result = new HashSet<String>(names);
+		result.retainAll(Arrays.asList(keep));
+		return result;
+	}
+
+	private static class RecordingListener implements UserIndex.Listener {
+		private int m_fullRefreshes;
+		private Set<String> m_fullRefreshRemovedNames;
+		private final List<UserEntry> m_changedEntries = new ArrayList<UserEntry>();
+		private final List<Set<String>> m_removedNames = new ArrayList<Set<String>>();
+
+		@Override
+		public void onFullRefresh(Set<String> names, Set<String> removedNames) {
+			m_fullRefreshes++;
+			m_fullRefreshRemovedNames = removedNames;
+		}
+
+		@Override
+		public void onEntryChanged(UserEntry entry) {
+			m_changedEntries.add(entry);
+		}
+
+		@Override
+		public void onNamesRemoved(Set<String> removedNames, Set<String> names) {
+			m_removedNames.add(new HashSet<String>(removedNames));
+		}
+	}
+}
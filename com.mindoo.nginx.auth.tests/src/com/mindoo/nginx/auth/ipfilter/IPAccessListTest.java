@@ -0,0 +1,112 @@
+package com.mindoo.nginx.auth.ipfilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mindoo.nginx.auth.ipfilter.IPAccessList.Access;
+
+/**
+ * Tests of the {@link IPAccessList} precedence and file reloading
+ *
+ * @author Karsten Lehmann
+ */
+public class IPAccessListTest {
+	@Rule
+	public TemporaryFolder m_folder = new TemporaryFolder();
+
+	private static void write(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testAllowOverridesDeny() throws Exception {
+		File allowFile = m_folder.newFile("allow.txt");
+		write(allowFile, "# internal networks\n192.0.2.128/25\n2001:db8:1::/48 ; office\n");
+		File denyFile = m_folder.newFile("deny.txt");
+		write(denyFile, "192.0.2.0/24\n\n  198.51.100.7  \nnot an address\n2001:db8::/32\n");
+		IPAccessList list = new IPAccessList(Arrays.asList(allowFile), Arrays.asList(denyFile));
+		assertTrue(list.reload());
+
+		assertEquals(Access.DENIED, list.check("192.0.2.1"));
+		assertEquals(Access.ALLOWED, list.check("192.0.2.200"));
+		assertEquals(Access.DENIED, list.check("198.51.100.7"));
+		assertEquals(Access.UNLISTED, list.check("198.51.100.8"));
+		assertEquals(Access.ALLOWED, list.check("2001:db8:1::25"));
+		assertEquals(Access.DENIED, list.check("2001:db8:2::25"));
+		assertEquals(Access.UNLISTED, list.check(null));
+		assertEquals(2, list.getAllowedCount());
+		assertEquals(3, list.getDeniedCount());
+	}
+
+	@Test
+	public void testReloadOnChange() throws Exception {
+		File denyFile = m_folder.newFile("deny.txt");
+		write(denyFile, "192.0.2.0/24\n");
+		File missingFile = new File(m_folder.getRoot(), "missing.txt");
+		IPAccessList list = new IPAccessList(Collections.<File>emptyList(), Arrays.asList(denyFile, missingFile));
+		assertTrue(list.reload());
+		assertEquals(Access.DENIED, list.check("192.0.2.1"));
+		//unchanged
+		assertFalse(list.reload());
+
+		write(denyFile, "198.51.100.0/24\n203.0.113.0/24\n");
+		assertTrue(denyFile.setLastModified(denyFile.lastModified() + 2000));
+		assertTrue(list.reload());
+		assertEquals(Access.UNLISTED, list.check("192.0.2.1"));
+		assertEquals(Access.DENIED, list.check("203.0.113.1"));
+		assertEquals(2, list.getDenied().getIPv4RangeCount());
+
+		//a file created later is picked up
+		write(missingFile, "192.0.2.1\n");
+		assertTrue(list.reload());
+		assertEquals(Access.DENIED, list.check("192.0.2.1"));
+		assertEquals(3, list.getReloads());
+	}
+
+	@Test
+	public void testParseFiles() {
+		assertEquals(Arrays.asList(new File("/a/allow.txt"), new File("b.txt")), IPAccessList.parseFiles(" /a/allow.txt, ,b.txt"));
+		assertTrue(IPAccessList.parseFiles(null).isEmpty());
+	}
+
+	@Test
+	public void testUnreadableFileRetried() throws Exception {
+		File denyFile = new File(m_folder.getRoot(), "deny.txt");
+		//a directory exists, but cannot be read as file
+		assertTrue(denyFile.mkdir());
+		IPAccessList list = new IPAccessList(Collections.<File>emptyList(), Arrays.asList(denyFile));
+		//the empty allow list is loaded
+		list.reload();
+		assertEquals(1, list.getLoadErrors());
+		//unchanged modification time and size, but still not loaded, so it is read again
+		assertFalse(list.reload());
+		assertEquals(2, list.getLoadErrors());
+		assertEquals(Access.UNLISTED, list.check("192.0.2.1"));
+
+		assertTrue(denyFile.delete());
+		write(denyFile, "192.0.2.0/24\n");
+		assertTrue(list.reload());
+		assertEquals(Access.DENIED, list.check("192.0.2.1"));
+		//loaded successfully, not read again until changed
+		assertFalse(list.reload());
+		assertEquals(2, list.getLoadErrors());
+		assertEquals(2, list.getReloads());
+	}
+}
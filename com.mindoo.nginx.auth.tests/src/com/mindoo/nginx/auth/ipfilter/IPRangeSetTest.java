@@ -0,0 +1,158 @@
+package com.mindoo.nginx.auth.ipfilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link IPRangeSet} parsing, merging and boundary lookups
+ *
+ * @author Karsten Lehmann
+ */
+public class IPRangeSetTest {
+
+	private static IPRangeSet build(String... cidrs) {
+		IPRangeSet.Builder builder = new IPRangeSet.Builder();
+		for (String currCidr : cidrs) {
+			builder.add(currCidr);
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void testIPv4Boundaries() {
+		IPRangeSet set = build("192.0.2.0/24", "198.51.100.7");
+		assertFalse(set.contains("192.0.1.255"));
+		assertTrue(set.contains("192.0.2.0"));
+		assertTrue(set.contains("192.0.2.128"));
+		assertTrue(set.contains("192.0.2.255"));
+		assertFalse(set.contains("192.0.3.0"));
+		assertTrue(set.contains("198.51.100.7"));
+		assertFalse(set.contains("198.51.100.6"));
+		assertFalse(set.contains("198.51.100.8"));
+		assertEquals(2, set.getIPv4RangeCount());
+		assertEquals(0, set.getIPv6RangeCount());
+	}
+
+	@Test
+	public void testIPv4HostBitsAndExtremes() {
+		//host bits of the address are ignored
+		IPRangeSet set = build("10.1.2.3/8");
+		assertTrue(set.contains("10.0.0.0"));
+		assertTrue(set.contains("10.255.255.255"));
+		assertFalse(set.contains("11.0.0.0"));
+		assertFalse(set.contains("9.255.255.255"));
+
+		//unsigned comparison across 127.x / 128.x
+		set = build("128.0.0.0/1");
+		assertTrue(set.contains("128.0.0.0"));
+		assertTrue(set.contains("255.255.255.255"));
+		assertFalse(set.contains("127.255.255.255"));
+
+		set = build("0.0.0.0/0");
+		assertTrue(set.contains("0.0.0.0"));
+		assertTrue(set.contains("255.255.255.255"));
+		assertEquals(1, set.getIPv4RangeCount());
+		assertFalse(set.contains("2001:db8::1"));
+	}
+
+	@Test
+	public void testIPv4Merging() {
+		//overlapping, contained and adjacent blocks in random order
+		IPRangeSet set = build("192.0.2.128/25", "192.0.2.0/25", "192.0.3.0/24", "192.0.2.64/26", "192.0.2.10",
+				"203.0.113.0/24", "203.0.113.5/32", "203.0.115.0/24");
+		assertEquals(3, set.getIPv4RangeCount());
+		assertTrue(set.contains("192.0.2.0"));
+		assertTrue(set.contains("192.0.3.255"));
+		assertFalse(set.contains("192.0.4.0"));
+		assertTrue(set.contains("203.0.113.255"));
+		assertFalse(set.contains("203.0.114.0"));
+		assertTrue(set.contains("203.0.115.0"));
+	}
+
+	@Test
+	public void testIPv6() {
+		IPRangeSet set = build("2001:db8::/32", "fe80::1", "::1");
+		assertTrue(set.contains("2001:db8::"));
+		assertTrue(set.contains("2001:db8:0:0:0:0:0:1"));
+		assertTrue(set.contains("2001:0DB8:ffff:ffff:ffff:ffff:ffff:ffff"));
+		assertTrue(set.contains("[2001:db8::1]"));
+		assertFalse(set.contains("2001:db9::"));
+		assertFalse(set.contains("2001:db7:ffff:ffff:ffff:ffff:ffff:ffff"));
+		assertTrue(set.contains("fe80::1"));
+		assertTrue(set.contains("fe80::1%eth0"));
+		assertFalse(set.contains("fe80::2"));
+		assertTrue(set.contains("::1"));
+		assertTrue(set.contains("0:0:0:0:0:0:0:1"));
+		assertFalse(set.contains("::"));
+		assertEquals(3, set.getIPv6RangeCount());
+		assertEquals(0, set.getIPv4RangeCount());
+		assertFalse(set.contains("192.0.2.1"));
+	}
+
+	@Test
+	public void testIPv6BoundariesAcross64Bits() {
+		//block ending at the lower half and blocks starting at the upper half of the address
+		IPRangeSet set = build("2001:db8:0:1::/64", "2001:db8:0:2::/64", "2001:db8:0:4::/63");
+		//the first two are adjacent and merged
+		assertEquals(2, set.getIPv6RangeCount());
+		assertTrue(set.contains("2001:db8:0:1:ffff:ffff:ffff:ffff"));
+		assertTrue(set.contains("2001:db8:0:2::"));
+		assertFalse(set.contains("2001:db8:0:3::"));
+		assertFalse(set.contains("2001:db8:0:0:ffff:ffff:ffff:ffff"));
+		assertTrue(set.contains("2001:db8:0:5:ffff:ffff:ffff:ffff"));
+		assertFalse(set.contains("2001:db8:0:6::"));
+
+		//prefix lengths above 64 bits
+		set = build("2001:db8::8000:0:0:0/65", "2001:db8::7fff:ffff:ffff:ffff");
+		assertEquals(1, set.getIPv6RangeCount());
+		assertTrue(set.contains("2001:db8::7fff:ffff:ffff:ffff"));
+		assertTrue(set.contains("2001:db8::ffff:ffff:ffff:ffff"));
+		assertFalse(set.contains("2001:db8::7fff:ffff:ffff:fffe"));
+		assertFalse(set.contains("2001:db8:0:1::"));
+
+		set = build("::/0");
+		assertTrue(set.contains("::"));
+		assertTrue(set.contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+	}
+
+	@Test
+	public void testIPv4MappedAddresses() {
+		IPRangeSet set = build("192.0.2.0/24", "::ffff:198.51.100.0/120");
+		assertEquals(2, set.getIPv4RangeCount());
+		assertEquals(0, set.getIPv6RangeCount());
+		assertTrue(set.contains("::ffff:192.0.2.1"));
+		assertTrue(set.contains("::ffff:c000:201"));
+		assertTrue(set.contains("198.51.100.255"));
+		assertFalse(set.contains("::ffff:198.51.101.0"));
+	}
+
+	@Test
+	public void testInvalidAddresses() {
+		IPRangeSet set = build("0.0.0.0/0", "::/0");
+		for (String currInvalid : new String[] {null, "", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "a.b.c.d",
+				"2001:db8::1::2", "2001:db8:", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "12345::", "g::1"}) {
+			assertFalse(String.valueOf(currInvalid), set.contains(currInvalid));
+		}
+		for (String currInvalid : new String[] {"192.0.2.0/33", "192.0.2.0/x", "192.0.2", "2001:db8::/129",
+				"2001:db8:::1", "example.com", "10.0.0.0/-1"}) {
+			try {
+				build(currInvalid);
+				fail("Expected exception for "+currInvalid);
+			}
+			catch (IllegalArgumentException e) {
+				//expected
+			}
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		assertTrue(IPRangeSet.EMPTY.isEmpty());
+		assertFalse(IPRangeSet.EMPTY.contains("192.0.2.1"));
+		assertFalse(IPRangeSet.EMPTY.contains("::1"));
+	}
+}
@@ -0,0 +1,266 @@
+package com.mindoo.nginx.auth.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.mindoo.nginx.auth.AuthConfig;
+import com.mindoo.nginx.auth.AuthHandler;
+import com.mindoo.nginx.auth.directory.InMemoryUserDirectory;
+
+/**
+ * Sends raw requests over loopback sockets to a {@link NioAuthListener} backed by an
+ * {@link InMemoryUserDirectory}
+ *
+ * @author Karsten Lehmann
+ */
+public class NioAuthListenerTest {
+	private static final String LOGIN = "GET /auth?x=1 HTTP/1.0\r\n" +
+			"Host: localhost\r\n" +
+			"auth-method: plain\r\n" +
+			"Auth-User: john\r\n" +
+			"Auth-Pass: secret\r\n" +
+			"Auth-Protocol: imap\r\n" +
+			"Auth-Login-Attempt: 1\r\n" +
+			"Client-IP: 192.0.2.10\r\n" +
+			"\r\n";
+
+	private InMemoryUserDirectory m_directory;
+	private NioAuthListener m_listener;
+	private AuthHandler m_handler;
+
+	private NioAuthListener start(int threads) throws IOException {
+		m_directory = new InMemoryUserDirectory();
+		m_directory.addUser(new String[] {"john", "john@example.com"}, "secret");
+		m_handler = new AuthHandler(m_directory, new AuthConfig(new String[] {"example.com"}, "127.0.0.1",
+				null, null, null, null, true, false, 1, null, null, true));
+		m_listener = new NioAuthListener(m_handler, new InetSocketAddress("127.0.0.1", 0), threads);
+		m_listener.start();
+		return m_listener;
+	}
+
+	@After
+	public void tearDown() {
+		if (m_listener!=null) {
+			m_listener.stop();
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		socket.connect(m_listener.getLocalAddress(), 5000);
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static String readResponse(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int len;
+		while ((len = in.read(buf))!=-1) {
+			out.write(buf, 0, len);
+		}
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private String send(String request) throws IOException {
+		Socket socket = connect();
+		try {
+			socket.getOutputStream().write(request.getBytes("ISO-8859-1"));
+			return readResponse(socket);
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testLogin() throws Exception {
+		start(2);
+		String resp = send(LOGIN);
+		assertTrue(resp, resp.startsWith("HTTP/1.0 200 OK\r\n"));
+		assertTrue(resp, resp.contains("Auth-Status: OK\r\n"));
+		assertTrue(resp, resp.contains("Auth-Server: 127.0.0.1\r\n"));
+		assertTrue(resp, resp.contains("Auth-Port: 143\r\n"));
+		assertTrue(resp, resp.endsWith("\r\n\r\n"));
+	}
+
+	@Test
+	public void testInvalidPassword() throws Exception {
+		start(2);
+		String resp = send(LOGIN.replace("Auth-Pass: secret", "Auth-Pass: wrong"));
+		assertTrue(resp, resp.startsWith("HTTP/1.0 200 OK\r\n"));
+		assertTrue(resp, resp.contains("Auth-Status: Invalid login or password\r\n"));
+	}
+
+	@Test
+	public void testLfOnlyAndSplitRequest() throws Exception {
+		start(2);
+		byte[] request = LOGIN.replace("\r\n", "\n").getBytes("ISO-8859-1");
+		Socket socket = connect();
+		try {
+			OutputStream out = socket.getOutputStream();
+			//headers arrive in several reads
+			for (int i=0; i<request.length; i+=7) {
+				out.write(request, i, Math.min(7, request.length - i));
+				out.flush();
+				Thread.sleep(2);
+			}
+			String resp = readResponse(socket);
+			assertTrue(resp, resp.contains("Auth-Status: OK\r\n"));
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testDuplicateHeaderFirstWins() throws Exception {
+		start(2);
+		String resp = send(LOGIN.replace("Auth-Pass: secret\r\n", "Auth-Pass: secret\r\nAUTH-PASS: wrong\r\n"));
+		assertTrue(resp, resp.contains("Auth-Status: OK\r\n"));
+	}
+
+	@Test
+	public void testReady() throws Exception {
+		start(1);
+		String resp = send("GET /auth/ready HTTP/1.0\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 200 OK\r\n"));
+		assertTrue(resp, resp.endsWith("\r\n\r\nready\n"));
+	}
+
+	@Test
+	public void testMetricsAccess() throws Exception {
+		start(1);
+		//enabled without auth key, only for loopback clients like this test
+		String resp = send("GET /auth/metrics HTTP/1.0\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 200 OK\r\n"));
+		assertTrue(resp, resp.contains("nginxauth_requests_total"));
+
+		m_handler.setConfig(new AuthConfig(new String[] {"example.com"}, "127.0.0.1",
+				"X-NGX-Auth-Key", "s3cret", null, null, true, false, 1, null, null, true));
+		resp = send("GET /auth/metrics HTTP/1.0\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 403 "));
+		resp = send("GET /auth/metrics HTTP/1.0\r\nX-NGX-Auth-Key: wrong\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 403 "));
+		resp = send("GET /auth/metrics HTTP/1.0\r\nx-ngx-auth-key: s3cret\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 200 OK\r\n"));
+
+		//disabled by default
+		m_handler.setConfig(new AuthConfig(new String[] {"example.com"}));
+		resp = send("GET /auth/metrics HTTP/1.0\r\nX-NGX-Auth-Key: s3cret\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 404 "));
+	}
+
+	@Test
+	public void testBadRequestLine() throws Exception {
+		start(1);
+		String resp = send("HELLO\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 400 Bad Request\r\n"));
+		resp = send("GET /auth HTTP/1.0\r\nno colon here\r\n\r\n");
+		assertTrue(resp, resp.startsWith("HTTP/1.0 400 Bad Request\r\n"));
+		assertEquals(2, m_listener.getBadRequests());
+		assertEquals(0, m_listener.getRequests());
+	}
+
+	@Test
+	public void testHeaderTooLarge() throws Exception {
+		start(1);
+		StringBuilder sb = new StringBuilder("GET /auth HTTP/1.0\r\nX-Filler: ");
+		while (sb.length() < 20000) {
+			sb.append("0123456789");
+		}
+		Socket socket = connect();
+		try {
+			//no terminating empty line, the listener must give up at its limit
+			socket.getOutputStream().write(sb.toString().getBytes("ISO-8859-1"));
+			String resp = readResponse(socket);
+			assertTrue(resp, resp.startsWith("HTTP/1.0 431 Request Header Fields Too Large\r\n"));
+		}
+		catch (IOException e) {
+			//the listener may close the connection while we are still writing
+		}
+		finally {
+			socket.close();
+		}
+		assertEquals(1, m_listener.getBadRequests());
+	}
+
+	@Test
+	public void testWorkerPoolRejection() throws Exception {
+		//one worker with a queue of 64 tasks, each check takes 30ms
+		start(1);
+		m_directory.setLatency(30000, 30000);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			for (int i=0; i<100; i++) {
+				Socket socket = connect();
+				sockets.add(socket);
+				socket.getOutputStream().write(LOGIN.getBytes("ISO-8859-1"));
+			}
+			int ok = 0;
+			int temporaryFailures = 0;
+			for (Socket currSocket : sockets) {
+				String resp = readResponse(currSocket);
+				assertTrue(resp, resp.startsWith("HTTP/1.0 200 OK\r\n"));
+				if (resp.contains("Auth-Status: OK\r\n")) {
+					ok++;
+				}
+				else if (resp.contains("Auth-Status: Temporary server problem, try again later\r\n")) {
+					assertTrue(resp, resp.contains("Auth-Wait: 5\r\n"));
+					temporaryFailures++;
+				}
+			}
+			assertEquals(100, ok + temporaryFailures);
+			assertTrue("rejected: "+temporaryFailures, temporaryFailures > 0);
+			assertEquals(temporaryFailures, m_listener.getRejected());
+			assertEquals(100, m_listener.getRequests());
+		}
+		finally {
+			for (Socket currSocket : sockets) {
+				currSocket.close();
+			}
+		}
+	}
+
+	@Test
+	public void testIdleConnectionClosed() throws Exception {
+		start(1);
+		m_listener.setIdleTimeoutMillis(200);
+		Socket socket = connect();
+		try {
+			socket.getOutputStream().write("GET /auth HTTP/1.0\r\nAuth-User: jo".getBytes("ISO-8859-1"));
+			long t0 = System.currentTimeMillis();
+			assertEquals(-1, socket.getInputStream().read());
+			assertTrue(System.currentTimeMillis() - t0 < 5000);
+		}
+		finally {
+			socket.close();
+		}
+		assertEquals(1, m_listener.getIdleClosed());
+	}
+
+	@Test
+	public void testProcessingConnectionNotIdle() throws Exception {
+		start(1);
+		m_listener.setIdleTimeoutMillis(200);
+		//the check takes longer than the idle timeout plus a sweep interval
+		m_directory.setLatency(1500000, 1500000);
+		String resp = send(LOGIN);
+		assertTrue(resp, resp.contains("Auth-Status: OK\r\n"));
+		assertEquals(0, m_listener.getIdleClosed());
+	}
+}
@@ -0,0 +1,135 @@
+package com.mindoo.nginx.auth.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Table driven tests of {@link SmtpAddress} and {@link LocalDomainMatcher}
+ *
+ * @author Karsten Lehmann
+ */
+public class SmtpAddressTest {
+	/** input, expected local part, expected domain; null local part if the input is rejected */
+	private static final String[][] ADDRESSES = new String[][] {
+		//full commands as sent by nginx
+		{"MAIL FROM:<peter.miller@gmail.com> SIZE=1234", "peter.miller", "gmail.com"},
+		{"mail from: <Peter.Miller@GMail.COM>", "Peter.Miller", "gmail.com"},
+		{"RCPT TO:<john.doe@mylocaldomain.com>", "john.doe", "mylocaldomain.com"},
+		{"  RCPT TO:<john.doe@mylocaldomain.com> NOTIFY=NEVER", "john.doe", "mylocaldomain.com"},
+		//path or plain address
+		{"<john.doe@example.com>", "john.doe", "example.com"},
+		{"john.doe@example.com", "john.doe", "example.com"},
+		{"john.doe@example.com SIZE=1", "john.doe", "example.com"},
+		{"john.doe@example.com.", "john.doe", "example.com"},
+		{"<john.doe@example.com.>", "john.doe", "example.com"},
+		{"john+tag@example.com", "john+tag", "example.com"},
+		{"john@sub-1.my_domain.example.com", "john", "sub-1.my_domain.example.com"},
+		{"j\u00f6rg@b\u00fccher.example", "j\u00f6rg", "b\u00fccher.example"},
+		//quoted local parts
+		{"<\"john doe\"@example.com>", "\"john doe\"", "example.com"},
+		{"<\"john@doe\"@example.com>", "\"john@doe\"", "example.com"},
+		{"<\"john>doe\"@example.com>", "\"john>doe\"", "example.com"},
+		{"<\"john\\\"doe\"@example.com>", "\"john\\\"doe\"", "example.com"},
+		{"\"john doe\"@example.com", "\"john doe\"", "example.com"},
+		{"<\"john doe@example.com>", null, null},
+		//source routes
+		{"RCPT TO:<@relay1.example.org:john@example.com>", "john", "example.com"},
+		{"RCPT TO:<@relay1.example.org,@relay2.example.org:john@example.com>", "john", "example.com"},
+		{"RCPT TO:<@relay1.example.org>", null, null},
+		//address literals
+		{"<postmaster@[192.0.2.1]>", "postmaster", "[192.0.2.1]"},
+		{"<postmaster@[IPv6:2001:db8::1]>", "postmaster", "[ipv6:2001:db8::1]"},
+		{"<postmaster@[192.0.2.1>", null, null},
+		//null sender and other values without address
+		{"MAIL FROM:<>", null, null},
+		{"MAIL FROM:<> SIZE=1234", null, null},
+		{"<>", null, null},
+		{"", null, null},
+		{"   ", null, null},
+		{"MAIL FROM:", null, null},
+		{null, null, null},
+		{"postmaster", null, null},
+		{"<postmaster>", null, null},
+		//invalid addresses
+		{"<john.doe@example.com", null, null},
+		{"<@example.com>", null, null},
+		{"@example.com", null, null},
+		{"john@", null, null},
+		{"<john@>", null, null},
+		{"john@.", null, null},
+		{"john@example..com", null, null},
+		{"john@.example.com", null, null},
+		{"john@exa mple.com", "john", "exa"},
+		{"<john@exa mple.com>", null, null},
+		{"john@example.com/x", null, null},
+	};
+
+	/** configured domains, domain to check, expected result */
+	private static final Object[][] DOMAINS = new Object[][] {
+		{new String[] {"example.com"}, "example.com", Boolean.TRUE},
+		{new String[] {"example.com"}, "sub.example.com", Boolean.FALSE},
+		{new String[] {"example.com"}, "example.org", Boolean.FALSE},
+		{new String[] {"example.com"}, "myexample.com", Boolean.FALSE},
+		{new String[] {" Example.COM. "}, "example.com", Boolean.TRUE},
+		{new String[] {"*.example.com"}, "sub.example.com", Boolean.TRUE},
+		{new String[] {"*.example.com"}, "a.b.example.com", Boolean.TRUE},
+		{new String[] {"*.example.com"}, "example.com", Boolean.FALSE},
+		{new String[] {"*.example.com"}, "subexample.com", Boolean.FALSE},
+		{new String[] {"*.example.com"}, "sub.example.com.evil.org", Boolean.FALSE},
+		{new String[] {"*.example.com"}, "com", Boolean.FALSE},
+		{new String[] {"*.example.com", "example.com"}, "example.com", Boolean.TRUE},
+		{new String[] {"*.sub.example.com"}, "x.sub.example.com", Boolean.TRUE},
+		{new String[] {"*.sub.example.com"}, "x.example.com", Boolean.FALSE},
+		{new String[] {"*.sub.example.com"}, "sub.example.com", Boolean.FALSE},
+		{new String[] {"*.sub.example.com", "*.example.com"}, "x.example.com", Boolean.TRUE},
+		{new String[] {"*.example.com", "*.sub.example.com"}, "x.sub.example.com", Boolean.TRUE},
+		{new String[] {"a.example.com", "*.b.example.com"}, "a.example.com", Boolean.TRUE},
+		{new String[] {"a.example.com", "*.b.example.com"}, "x.a.example.com", Boolean.FALSE},
+		{new String[] {"*.com"}, "example.com", Boolean.TRUE},
+		{new String[] {"[192.0.2.1]"}, "[192.0.2.1]", Boolean.TRUE},
+		{new String[] {"", " ", "."}, "", Boolean.FALSE},
+		{new String[0], "example.com", Boolean.FALSE},
+	};
+
+	@Test
+	public void testParse() {
+		for (String[] currCase : ADDRESSES) {
+			SmtpAddress address = SmtpAddress.parse(currCase[0]);
+			if (currCase[1]==null) {
+				assertNull("'"+currCase[0]+"'", address);
+			}
+			else {
+				assertEquals("'"+currCase[0]+"'", currCase[1], address==null ? null : address.getLocalPart());
+				assertEquals("'"+currCase[0]+"'", currCase[2], address.getDomain());
+				assertEquals("'"+currCase[0]+"'", currCase[1]+"@"+currCase[2], address.getAddress());
+			}
+		}
+	}
+
+	@Test
+	public void testIsLocal() {
+		for (Object[] currCase : DOMAINS) {
+			String[] domains = (String[]) currCase[0];
+			LocalDomainMatcher matcher = new LocalDomainMatcher(domains);
+			assertEquals(Arrays.asList(domains)+" "+currCase[1], currCase[2], Boolean.valueOf(matcher.isLocal((String) currCase[1])));
+		}
+	}
+
+	@Test
+	public void testIsLocalAddress() {
+		LocalDomainMatcher matcher = new LocalDomainMatcher(new String[] {"example.com", "*.example.org"});
+		assertEquals(2, matcher.size());
+		assertTrue(matcher.isLocal(SmtpAddress.parse("RCPT TO:<John@EXAMPLE.com.>")));
+		assertTrue(matcher.isLocal(SmtpAddress.parse("RCPT TO:<@relay.example.net:john@mail.example.org>")));
+		assertFalse(matcher.isLocal(SmtpAddress.parse("RCPT TO:<john@example.org>")));
+		//null sender
+		assertFalse(matcher.isLocal(SmtpAddress.parse("MAIL FROM:<>")));
+		assertFalse(matcher.isLocal((SmtpAddress) null));
+	}
+}
@@ -0,0 +1,185 @@
+package com.mindoo.nginx.auth.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compares {@link HttpUtils#urlDecode(String, Charset, boolean)} with the original
+ * allocating implementation on random inputs and checks that the common cases do not
+ * allocate decode buffers
+ *
+ * @author Karsten Lehmann
+ */
+public class HttpUtilsTest {
+	private static final Charset[] CHARSETS = new Charset[] {HttpUtils.UTF_8, Charset.forName("ISO-8859-1"),
+		Charset.forName("US-ASCII"), Charset.forName("UTF-16"), Charset.forName("windows-1252")};
+	/** characters the random inputs are built from, biased towards escapes */
+	private static final String ALPHABET = "%%%%%+++ abcxyzABC019aAfF.-_*~@=&/\u00e4\u00e9\u00df\u20ac\ud83d\ude00\u0000\u007f\u0080\u00ff";
+	private static final String[] HEX = new String[] {"0", "1", "7", "8", "9", "a", "b", "c", "C", "e", "F", "f", "g", "G", "%", "+"};
+	private static final long SEED = 4711;
+
+	/**
+	 * The decoder before it got per-thread buffers
+	 */
+	private static String urlDecodeOriginal(final String content, final Charset charset, final boolean plusAsBlank) {
+		if (content == null) {
+			return null;
+		}
+		final ByteBuffer bb = ByteBuffer.allocate(content.length());
+		final CharBuffer cb = CharBuffer.wrap(content);
+		while (cb.hasRemaining()) {
+			final char c = cb.get();
+			if (c == '%' && cb.remaining() >= 2) {
+				final char uc = cb.get();
+				final char lc = cb.get();
+				final int u = Character.digit(uc, 16);
+				final int l = Character.digit(lc, 16);
+				if (u != -1 && l != -1) {
+					bb.put((byte) ((u << 4) + l));
+				} else {
+					bb.put((byte) '%');
+					bb.put((byte) uc);
+					bb.put((byte) lc);
+				}
+			} else if (plusAsBlank && c == '+') {
+				bb.put((byte) ' ');
+			} else {
+				bb.put((byte) c);
+			}
+		}
+		bb.flip();
+		return charset.decode(bb).toString();
+	}
+
+	private static String randomInput(Random rnd, int len) {
+		StringBuilder sb = new StringBuilder(len);
+		while (sb.length() < len) {
+			char c = ALPHABET.charAt(rnd.nextInt(ALPHABET.length()));
+			sb.append(c);
+			if (c=='%') {
+				//mostly valid escapes, some invalid or truncated ones
+				int digits = rnd.nextInt(4);
+				for (int i=0; i<digits; i++) {
+					sb.append(HEX[rnd.nextInt(HEX.length)]);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void assertSameResult(String content) {
+		for (Charset currCharset : CHARSETS) {
+			assertEquals("'"+content+"' "+currCharset+" plusAsBlank", urlDecodeOriginal(content, currCharset, true),
+					HttpUtils.urlDecode(content, currCharset, true));
+			assertEquals("'"+content+"' "+currCharset, urlDecodeOriginal(content, currCharset, false),
+					HttpUtils.urlDecode(content, currCharset, false));
+		}
+	}
+
+	@Test
+	public void testSameResultAsOriginal() {
+		Random rnd = new Random(SEED);
+		for (int i=0; i<20000; i++) {
+			assertSameResult(randomInput(rnd, rnd.nextInt(40)));
+		}
+	}
+
+	@Test
+	public void testSameResultAroundBufferSize() {
+		Random rnd = new Random(SEED);
+		for (int len : new int[] {4094, 4095, 4096, 4097, 4098, 10000}) {
+			for (int i=0; i<20; i++) {
+				assertSameResult(randomInput(rnd, len));
+			}
+		}
+	}
+
+	@Test
+	public void testKnownValues() {
+		assertSameResult(null);
+		assertSameResult("");
+		assertSameResult("%");
+		assertSameResult("%4");
+		assertSameResult("%zz");
+		assertSameResult("100%");
+		assertEquals("j\u00f6rg@example.com", HttpUtils.urlDecode("j%C3%B6rg%40example.com", HttpUtils.UTF_8, false));
+		assertEquals("a b+c", HttpUtils.urlDecode("a+b%2Bc", HttpUtils.UTF_8, true));
+		assertEquals("a+b+c", HttpUtils.urlDecode("a+b%2Bc", HttpUtils.UTF_8, false));
+		assertEquals("\ufffd", HttpUtils.urlDecode("%C3", HttpUtils.UTF_8, false));
+	}
+
+	@Test
+	public void testUnchangedValueNotCopied() {
+		String content = "john.doe@example.com";
+		assertSame(content, HttpUtils.urlDecode(content, HttpUtils.UTF_8, true));
+		//'+' must be kept
+		content = "a+b";
+		assertSame(content, HttpUtils.urlDecode(content, HttpUtils.UTF_8, false));
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread, only available on some JVMs
+	 *
+	 * @return bytes or -1
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		try {
+			//HotSpot extension, not part of the Java 6 API
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return ((Long) method.invoke(threadBean, Long.valueOf(Thread.currentThread().getId()))).longValue();
+		}
+		catch (Exception e) {
+			return -1;
+		}
+	}
+
+	@Test
+	public void testAllocations() {
+		Assume.assumeTrue(getAllocatedBytes()!=-1);
+		String plain = "john.doe@example.com";
+		String escaped = "j%C3%B6rg.m%C3%BCller%40example.com";
+		int calls = 10000;
+		//warm up the JIT and the per-thread buffers
+		for (int i=0; i<calls; i++) {
+			HttpUtils.urlDecode(plain, HttpUtils.UTF_8, true);
+			HttpUtils.urlDecode(escaped, HttpUtils.UTF_8, true);
+			urlDecodeOriginal(escaped, HttpUtils.UTF_8, true);
+		}
+
+		long t0 = getAllocatedBytes();
+		for (int i=0; i<calls; i++) {
+			HttpUtils.urlDecode(plain, HttpUtils.UTF_8, true);
+		}
+		long plainBytes = getAllocatedBytes() - t0;
+
+		t0 = getAllocatedBytes();
+		for (int i=0; i<calls; i++) {
+			HttpUtils.urlDecode(escaped, HttpUtils.UTF_8, true);
+		}
+		long escapedBytes = getAllocatedBytes() - t0;
+
+		t0 = getAllocatedBytes();
+		for (int i=0; i<calls; i++) {
+			urlDecodeOriginal(escaped, HttpUtils.UTF_8, true);
+		}
+		long originalBytes = getAllocatedBytes() - t0;
+
+		//values without escapes are returned as is, the measurement itself allocates a little
+		assertTrue("plain: "+plainBytes+" bytes", plainBytes < calls);
+		//escaped values only allocate the result string
+		assertTrue("escaped: "+escapedBytes+" bytes, original: "+originalBytes+" bytes", escapedBytes * 2 < originalBytes);
+	}
+}
@@ -0,0 +1,252 @@
+package com.mindoo.nginx.auth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+
+import com.ibm.commons.util.StringUtil;
+import com.mindoo.nginx.auth.log.DebugSampler;
+import com.mindoo.nginx.auth.smtp.LocalDomainMatcher;
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Immutable snapshot of the NGINXAUTH_* settings that can be changed at runtime.
+ * {@link AuthHandler} reads all of them from one reference per request, so a reload
+ * swaps them atomically.<br>
+ * <br>
+ * Settings of caches, filters, throttle and session pool define data structures and
+ * still require a restart of the HTTP task.
+ * 
+ * @author Karsten Lehmann
+ */
+public class AuthConfig {
+	private final String[] m_localDomains;
+	private final LocalDomainMatcher m_localDomainMatcher;
+	private final String m_publicServerIP;
+	private final String m_authKeyHeader;
+	private final String m_authKeyValue;
+	private final String m_waitOnError;
+	private final int m_waitOnErrorSeconds;
+	private final String m_waitOnOverload;
+	private final boolean m_enabled;
+	private final boolean m_debug;
+	private final int m_debugSampleRate;
+	private final String[] m_debugIPs;
+	private final String[] m_debugUsers;
+	private final DebugSampler m_debugSampler;
+	private final boolean m_metricsEnabled;
+
+	/**
+	 * Creates a new configuration
+	 *
+	 * @param localDomains domains considered to be local, entries starting with "*." match all subdomains of a domain
+	 * @param publicServerIP IP returned as Auth-Server or null to use the local IP
+	 * @param authKeyHeader name of header with shared secret to send back or null
+	 * @param authKeyValue shared secret or null
+	 * @param waitOnError Auth-Wait value in seconds for failed logins or null
+	 * @param waitOnOverload Auth-Wait value in seconds for temporary failures
+	 * @param enabled false to reject all requests
+	 * @param debug true to write debug messages for all requests
+	 * @param debugSampleRate if debug is true, only write debug messages for every n-th request
+	 * @param debugIPs client IPs to always write debug messages for or null
+	 * @param debugUsers users to always write debug messages for or null
+	 * @param metricsEnabled true to expose metrics via HTTP
+	 */
+	public AuthConfig(String[] localDomains, String publicServerIP, String authKeyHeader, String authKeyValue,
+			String waitOnError, String waitOnOverload, boolean enabled, boolean debug, int debugSampleRate,
+			String[] debugIPs, String[] debugUsers, boolean metricsEnabled) {
+		m_localDomains = localDomains==null ? new String[0] : localDomains.clone();
+		m_localDomainMatcher = new LocalDomainMatcher(m_localDomains);
+		m_publicServerIP = publicServerIP;
+		m_authKeyHeader = authKeyHeader;
+		m_authKeyValue = authKeyValue;
+		m_waitOnError = waitOnError;
+		m_waitOnErrorSeconds = parseSeconds(waitOnError, 1);
+		m_waitOnOverload = StringUtil.isEmpty(waitOnOverload) ? "5" : waitOnOverload;
+		m_enabled = enabled;
+		m_debug = debug;
+		m_debugSampleRate = Math.max(1, debugSampleRate);
+		m_debugIPs = debugIPs==null ? new String[0] : debugIPs.clone();
+		m_debugUsers = debugUsers==null ? new String[0] : debugUsers.clone();
+		m_debugSampler = new DebugSampler(m_debug, m_debugSampleRate, m_debugIPs, m_debugUsers);
+		m_metricsEnabled = metricsEnabled;
+	}
+
+	/**
+	 * Creates a configuration with defaults for all optional settings
+	 *
+	 * @param localDomains domains considered to be local
+	 */
+	public AuthConfig(String[] localDomains) {
+		this(localDomains, null, null, null, null, null, true, false, 1, null, null, false);
+	}
+
+	/**
+	 * Reads the configuration from Notes.ini
+	 *
+	 * @param session session to read Notes.ini variables
+	 * @return configuration
+	 * @throws NotesException
+	 */
+	public static AuthConfig createFromNotesIni(Session session) throws NotesException {
+		//REQUIRED list of domains that are considered to be local,
+		//used for incoming SMTP connections delivering mails from external servers
+		String localDomainsConc = session.getEnvironmentString("NGINXAUTH_LOCALDOMAINS").trim(); //e.g. mylocaldomain.de,mylocaldomain.com
+		if (localDomainsConc.length()==0) {
+			LogUtil.log(Level.SEVERE, "Ini variable $NGINXAUTH_LOCALDOMAINS must be set ");
+		}
+
+		//OPTIONAL IP of this server that NGINX can use to establish SMTP connection;
+		//if this value is missing, we let the JDK read the IP which might be the wrong one
+		String publicServerIP = session.getEnvironmentString("NGINXAUTH_PUBLICIP"); // e.g. 1.2.3.4
+
+		//OPTIONAL switch to write debug message in the server console (disabled by default)
+		boolean debug = "true".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_DEBUG"));
+		//OPTIONAL only write debug messages for every n-th request if $NGINXAUTH_DEBUG is set (1 by default)
+		int debugSampleRate = AuthHandler.getIniInt(session, "NGINXAUTH_DEBUG_SAMPLE", 1);
+		//OPTIONAL comma separated client IPs to always write debug messages for
+		String debugIPs = session.getEnvironmentString("NGINXAUTH_DEBUG_IPS");
+		//OPTIONAL comma separated user names to always write debug messages for
+		String debugUsers = session.getEnvironmentString("NGINXAUTH_DEBUG_USERS");
+
+		//OPTIONAL switch to disable this servlet (enabled by default)
+		boolean enabled = !"false".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_ENABLED"));
+
+		//OPTIONAL shared auth header to let NGINX make sure the request is coming from
+		//a trusted server
+		String authKeyHeader = session.getEnvironmentString("NGINXAUTH_AUTHKEY_HEADER"); // e.g. X-NGX-Auth-Key
+		String authKeyValue = session.getEnvironmentString("NGINXAUTH_AUTHKEY_VALUE"); // e.g. 81jbdvdl
+
+		//OPTIONAL number of seconds to wait on auth errors
+		String waitOnError = session.getEnvironmentString("NGINXAUTH_WAITONERROR"); // e.g. "3"
+		if (StringUtil.isNotEmpty(waitOnError) && parseSeconds(waitOnError, -1)==-1) {
+			LogUtil.log(Level.WARNING, "Invalid value for ini variable $NGINXAUTH_WAITONERROR: "+waitOnError);
+		}
+
+		//OPTIONAL number of seconds nginx should wait before retrying when the directory is overloaded (5 by default)
+		String waitOnOverload = session.getEnvironmentString("NGINXAUTH_WAITONOVERLOAD");
+
+		//OPTIONAL switch to enable the metrics endpoint /auth/metrics for loopback clients or, if
+		//$NGINXAUTH_AUTHKEY_HEADER is set, for requests sending the auth key (disabled by default)
+		boolean metricsEnabled = "true".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_METRICS"));
+
+		return new AuthConfig(localDomainsConc.length()==0 ? new String[0] : localDomainsConc.split(","),
+				publicServerIP, authKeyHeader, authKeyValue, waitOnError, waitOnOverload, enabled,
+				debug, debugSampleRate,
+				StringUtil.isEmpty(debugIPs) ? null : debugIPs.split(","),
+				StringUtil.isEmpty(debugUsers) ? null : debugUsers.split(","),
+				metricsEnabled);
+	}
+
+	public LocalDomainMatcher getLocalDomainMatcher() {
+		return m_localDomainMatcher;
+	}
+
+	public String getPublicServerIP() {
+		return m_publicServerIP;
+	}
+
+	public String getAuthKeyHeader() {
+		return m_authKeyHeader;
+	}
+
+	public String getAuthKeyValue() {
+		return m_authKeyValue;
+	}
+
+	public String getWaitOnError() {
+		return m_waitOnError;
+	}
+
+	/**
+	 * Returns the Auth-Wait value for the first failed login, doubled by the failure throttle
+	 * for each further failure
+	 *
+	 * @return seconds, 1 if $NGINXAUTH_WAITONERROR is not set or invalid
+	 */
+	public int getWaitOnErrorSeconds() {
+		return m_waitOnErrorSeconds;
+	}
+
+	public String getWaitOnOverload() {
+		return m_waitOnOverload;
+	}
+
+	public boolean isEnabled() {
+		return m_enabled;
+	}
+
+	public boolean isDebug() {
+		return m_debug;
+	}
+
+	public DebugSampler getDebugSampler() {
+		return m_debugSampler;
+	}
+
+	public boolean isMetricsEnabled() {
+		return m_metricsEnabled;
+	}
+
+	/**
+	 * Returns a description of all settings that differ from another configuration
+	 *
+	 * @param other other configuration, e.g. the previous one
+	 * @return changes, e.g. "NGINXAUTH_ENABLED: true => false", empty if equal
+	 */
+	public List<String> diff(AuthConfig other) {
+		List<String> changes = new ArrayList<String>();
+		addChange(changes, "NGINXAUTH_LOCALDOMAINS", Arrays.toString(other.m_localDomains), Arrays.toString(m_localDomains));
+		addChange(changes, "NGINXAUTH_PUBLICIP", other.m_publicServerIP, m_publicServerIP);
+		addChange(changes, "NGINXAUTH_AUTHKEY_HEADER", other.m_authKeyHeader, m_authKeyHeader);
+		if (!equal(other.m_authKeyValue, m_authKeyValue)) {
+			//don't write the secret to the log
+			changes.add("NGINXAUTH_AUTHKEY_VALUE: *** => ***");
+		}
+		addChange(changes, "NGINXAUTH_WAITONERROR", other.m_waitOnError, m_waitOnError);
+		addChange(changes, "NGINXAUTH_WAITONOVERLOAD", other.m_waitOnOverload, m_waitOnOverload);
+		addChange(changes, "NGINXAUTH_ENABLED", Boolean.toString(other.m_enabled), Boolean.toString(m_enabled));
+		addChange(changes, "NGINXAUTH_DEBUG", Boolean.toString(other.m_debug), Boolean.toString(m_debug));
+		addChange(changes, "NGINXAUTH_DEBUG_SAMPLE", Integer.toString(other.m_debugSampleRate), Integer.toString(m_debugSampleRate));
+		addChange(changes, "NGINXAUTH_DEBUG_IPS", Arrays.toString(other.m_debugIPs), Arrays.toString(m_debugIPs));
+		addChange(changes, "NGINXAUTH_DEBUG_USERS", Arrays.toString(other.m_debugUsers), Arrays.toString(m_debugUsers));
+		addChange(changes, "NGINXAUTH_METRICS", Boolean.toString(other.m_metricsEnabled), Boolean.toString(m_metricsEnabled));
+		return changes;
+	}
+
+	private static int parseSeconds(String value, int defaultValue) {
+		if (StringUtil.isEmpty(value)) {
+			return defaultValue;
+		}
+		try {
+			int seconds = Integer.parseInt(value.trim());
+			return seconds>0 ? seconds : defaultValue;
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static void addChange(List<String> changes, String name, String oldValue, String newValue) {
+		if (!equal(oldValue, newValue)) {
+			changes.add(name+": "+oldValue+" => "+newValue);
+		}
+	}
+
+	private static boolean equal(String s1, String s2) {
+		return s1==null ? s2==null : s1.equals(s2);
+	}
+
+	@Override
+	public String toString() {
+		return "AuthConfig [localDomains="+Arrays.toString(m_localDomains)+", publicIP="+m_publicServerIP+
+				", authKeyHeader="+m_authKeyHeader+", waitOnError="+m_waitOnError+", waitOnOverload="+m_waitOnOverload+
+				", enabled="+m_enabled+", debug="+m_debug+", debugSample="+m_debugSampleRate+
+				", debugIPs="+Arrays.toString(m_debugIPs)+", debugUsers="+Arrays.toString(m_debugUsers)+
+				", metrics="+m_metricsEnabled+"]";
+	}
+}
@@ -0,0 +1,1466 @@
+package com.mindoo.nginx.auth;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import lotus.domino.Name;
+import lotus.domino.NotesException;
+import lotus.domino.NotesFactory;
+import lotus.domino.NotesThread;
+import lotus.domino.Session;
+
+import com.ibm.commons.util.StringUtil;
+import com.mindoo.nginx.auth.audit.AuditSink;
+import com.mindoo.nginx.auth.audit.AuditTrail;
+import com.mindoo.nginx.auth.audit.DominoAuditSink;
+import com.mindoo.nginx.auth.audit.FileAuditSink;
+import com.mindoo.nginx.auth.backend.Backend;
+import com.mindoo.nginx.auth.backend.BackendPool;
+import com.mindoo.nginx.auth.cache.CredentialCache;
+import com.mindoo.nginx.auth.cache.FailureThrottle;
+import com.mindoo.nginx.auth.cache.UnknownUserFilter;
+import com.mindoo.nginx.auth.directory.AddressBookHitStats;
+import com.mindoo.nginx.auth.directory.CircuitBreakerDirectory;
+import com.mindoo.nginx.auth.directory.CredentialCheckResult;
+import com.mindoo.nginx.auth.directory.CredentialCheckResult.Status;
+import com.mindoo.nginx.auth.directory.DirectoryIndexUpdater;
+import com.mindoo.nginx.auth.directory.DirectoryOverloadException;
+import com.mindoo.nginx.auth.directory.DirectorySessionPool;
+import com.mindoo.nginx.auth.directory.DirectoryUnavailableException;
+import com.mindoo.nginx.auth.directory.DominoUserDirectory;
+import com.mindoo.nginx.auth.directory.DominoUserDirectory.LookupMode;
+import com.mindoo.nginx.auth.directory.GroupPolicy;
+import com.mindoo.nginx.auth.directory.HomeServerLocator;
+import com.mindoo.nginx.auth.directory.RecipientIndex;
+import com.mindoo.nginx.auth.directory.ServerAddressMap;
+import com.mindoo.nginx.auth.directory.SingleFlightDirectory;
+import com.mindoo.nginx.auth.directory.UserDirectory;
+import com.mindoo.nginx.auth.directory.UserIndex;
+import com.mindoo.nginx.auth.directory.UserIndex.UserEntry;
+import com.mindoo.nginx.auth.directory.UserIndexSnapshot;
+import com.mindoo.nginx.auth.ipfilter.IPAccessList;
+import com.mindoo.nginx.auth.ipfilter.IPAccessList.Access;
+import com.mindoo.nginx.auth.log.RingBufferLog;
+import com.mindoo.nginx.auth.metrics.AuthMetrics;
+import com.mindoo.nginx.auth.metrics.AuthMetrics.Outcome;
+import com.mindoo.nginx.auth.metrics.AuthMetrics.Phase;
+import com.mindoo.nginx.auth.smtp.SmtpAddress;
+import com.mindoo.nginx.auth.utils.HttpUtils;
+import com.mindoo.nginx.auth.utils.LogUtil;
+import com.mindoo.nginx.auth.utils.NotesThreadFactory;
+
+/**
+ * Decision logic of the
+ * <a href="http://nginx.org/en/docs/mail/ngx_mail_auth_http_module.html" target="_blank">NGINX auth protocol</a>,
+ * shared by the {@link AuthServlet} and the embedded {@link com.mindoo.nginx.auth.nio.NioAuthListener}
+ * 
+ * @author Karsten Lehmann
+ */
+public class AuthHandler {
+	private final UserDirectory m_directory;
+
+	/** settings that can be reloaded at runtime, read once per request */
+	private volatile AuthConfig m_config;
+
+	/** precomputed Auth-Wait header values */
+	private static final String[] WAIT_SECONDS_VALUES = new String[301];
+	static {
+		for (int i=0; i<WAIT_SECONDS_VALUES.length; i++) {
+			WAIT_SECONDS_VALUES[i] = Integer.toString(i);
+		}
+	}
+
+	/** local IP looked up once if no public IP is configured */
+	private volatile String m_localIP;
+	private ScheduledExecutorService m_configReloader;
+
+	private CredentialCache m_credentialCache;
+	private UnknownUserFilter m_unknownUserFilter;
+	private FailureThrottle m_failureThrottle;
+	private BackendPool m_backendPool;
+	private HomeServerLocator m_homeServerLocator;
+	private IPAccessList m_ipAccessList;
+	private RecipientIndex m_recipientIndex;
+	private AuditTrail m_auditTrail;
+	private GroupPolicy m_groupPolicy;
+
+	private final AuthMetrics m_metrics = new AuthMetrics();
+	private volatile boolean m_ready = true;
+	private final long m_createdAt = System.currentTimeMillis();
+
+	/**
+	 * Creates a new handler without caches, filters and throttling
+	 * 
+	 * @param directory directory to check credentials
+	 * @param localDomains domains considered to be local, entries starting with "*." match all subdomains of a domain
+	 */
+	public AuthHandler(UserDirectory directory, String[] localDomains) {
+		this(directory, new AuthConfig(localDomains));
+	}
+
+	/**
+	 * Creates a new handler without caches, filters and throttling
+	 * 
+	 * @param directory directory to check credentials
+	 * @param config initial configuration
+	 */
+	public AuthHandler(UserDirectory directory, AuthConfig config) {
+		m_directory = directory;
+		m_config = config;
+	}
+
+	/**
+	 * Creates a handler for the Domino directory of this server, configured by
+	 * NGINXAUTH_* Notes.ini variables
+	 * 
+	 * @param session session to read Notes.ini variables
+	 * @return handler
+	 * @throws NotesException
+	 */
+	public static AuthHandler createFromNotesIni(Session session) throws NotesException {
+		AuthConfig config = AuthConfig.createFromNotesIni(session);
+
+		//OPTIONAL number of pooled server sessions used for directory lookups and password
+		//verification, bounds the CPU used for hash checks (number of CPU cores by default)
+		int poolSize = getIniInt(session, "NGINXAUTH_POOL_SIZE", Runtime.getRuntime().availableProcessors());
+		//OPTIONAL number of lookups after which a pooled session gets recreated (1000 by default, 0 for no limit)
+		int poolMaxUses = getIniInt(session, "NGINXAUTH_POOL_MAXUSES", 1000);
+		//OPTIONAL number of seconds between health checks / ($Users) view refreshes of idle sessions (30 by default)
+		int poolCheckInterval = getIniInt(session, "NGINXAUTH_POOL_CHECKINTERVAL", 30);
+		//OPTIONAL max number of milliseconds to wait for a directory lookup (10000 by default)
+		int poolTimeoutMillis = getIniInt(session, "NGINXAUTH_POOL_TIMEOUT", 10000);
+		//OPTIONAL max number of directory lookups waiting for a pooled session before requests get rejected (100 by default)
+		int poolQueueSize = getIniInt(session, "NGINXAUTH_POOL_QUEUESIZE", 100);
+		//OPTIONAL switch to disable sharing one directory check between concurrent requests with the same credentials (enabled by default)
+		boolean singleFlight = !"false".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_SINGLEFLIGHT"));
+
+		//OPTIONAL switch to disable the in-memory index of all ($Users) entries (enabled by default)
+		boolean userIndexEnabled = !"false".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_USERINDEX"));
+		//OPTIONAL number of seconds between incremental index refreshes (60 by default)
+		int indexRefreshInterval = getIniInt(session, "NGINXAUTH_USERINDEX_REFRESH", 60);
+		//OPTIONAL number of seconds between full index refreshes, safety net for changes missed by incremental refreshes (3600 by default)
+		int indexFullRefreshInterval = getIniInt(session, "NGINXAUTH_USERINDEX_FULLREFRESH", 3600);
+
+		//OPTIONAL file to store the user index in, restored after an HTTP restart so that only changes since then
+		//need to be read from the address books (disabled by default)
+		String indexSnapshotPath = session.getEnvironmentString("NGINXAUTH_USERINDEX_SNAPSHOT"); // e.g. nginxauth/userindex.bin
+		//OPTIONAL min number of seconds between writes of the snapshot after incremental refreshes (300 by default)
+		int indexSnapshotInterval = getIniInt(session, "NGINXAUTH_USERINDEX_SNAPSHOT_INTERVAL", 300);
+
+		//OPTIONAL how users are looked up while the user index is disabled or loading and after a
+		//password change: view (probe ($Users) per address book) or directory (one NAMELookup across all directories) (view by default)
+		String lookupModeStr = session.getEnvironmentString("NGINXAUTH_LOOKUPMODE");
+		//OPTIONAL switch to probe the address books in the order of their hit counts in lookup mode view (disabled by default)
+		boolean lookupReorder = "true".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_LOOKUP_REORDER"));
+
+		DirectorySessionPool sessionPool = new DirectorySessionPool(session.getServerName(), poolSize, poolMaxUses,
+				Math.max(1, poolCheckInterval) * 1000L, poolQueueSize);
+		sessionPool.start();
+
+		UserIndex userIndex = userIndexEnabled ? new UserIndex() : null;
+		DominoUserDirectory directory = new DominoUserDirectory(sessionPool, poolTimeoutMillis, userIndex);
+		if (StringUtil.isNotEmpty(lookupModeStr)) {
+			LookupMode lookupMode = LookupMode.parse(lookupModeStr);
+			if (lookupMode!=null) {
+				directory.setLookupMode(lookupMode);
+			}
+			else {
+				LogUtil.log(Level.WARNING, "Invalid value for ini variable $NGINXAUTH_LOOKUPMODE: "+lookupModeStr);
+			}
+		}
+		if (lookupReorder) {
+			directory.setAddressBookHitStats(new AddressBookHitStats());
+		}
+
+		//OPTIONAL switch to disable skipping the directory after repeated failures or timeouts (enabled by default)
+		boolean breakerEnabled = !"false".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_BREAKER"));
+		//OPTIONAL number of consecutive failed or timed out credential checks that open the circuit breaker (5 by default)
+		int breakerFailures = getIniInt(session, "NGINXAUTH_BREAKER_FAILURES", 5);
+		//OPTIONAL number of seconds to skip the directory before a trial check (30 by default)
+		int breakerOpenTime = getIniInt(session, "NGINXAUTH_BREAKER_OPENTIME", 30);
+
+		UserDirectory checkingDirectory = directory;
+		if (breakerEnabled) {
+			checkingDirectory = new CircuitBreakerDirectory(checkingDirectory, breakerFailures, Math.max(1, breakerOpenTime) * 1000L);
+		}
+		if (singleFlight) {
+			checkingDirectory = new SingleFlightDirectory(checkingDirectory, poolTimeoutMillis);
+		}
+		AuthHandler handler = new AuthHandler(checkingDirectory, config);
+		directory.setMetrics(handler.getMetrics());
+
+		//OPTIONAL max number of verified credentials to keep in memory (1000 by default, 0 to disable the cache)
+		int credCacheSize = getIniInt(session, "NGINXAUTH_CREDCACHE_SIZE", 1000);
+		//OPTIONAL number of seconds that verified credentials are valid in the cache (300 by default)
+		int credCacheTTL = getIniInt(session, "NGINXAUTH_CREDCACHE_TTL", 300);
+		//OPTIONAL number of seconds after the TTL that verified credentials are still accepted while the
+		//directory is unavailable (0 by default, disabled)
+		int credCacheMaxStale = getIniInt(session, "NGINXAUTH_CREDCACHE_MAXSTALE", 0);
+		if (credCacheSize>0 && credCacheTTL>0) {
+			handler.setCredentialCache(new CredentialCache(credCacheSize, credCacheTTL * 1000L, Math.max(0, credCacheMaxStale) * 1000L));
+		}
+
+		//OPTIONAL switch to disable rejecting unknown user names without directory lookup (enabled by default)
+		boolean userFilterEnabled = !"false".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_USERFILTER"));
+		//OPTIONAL expected number of login names in the directory (by default computed from the user index)
+		int userFilterCapacity = getIniInt(session, "NGINXAUTH_USERFILTER_CAPACITY", 0);
+		//OPTIONAL false-positive probability of the filter (0.01 by default)
+		double userFilterFpp = getIniDouble(session, "NGINXAUTH_USERFILTER_FPP", 0.01);
+		//OPTIONAL max memory of the filter in KB (no limit by default)
+		int userFilterMaxKB = getIniInt(session, "NGINXAUTH_USERFILTER_MAXKB", 0);
+		//OPTIONAL max number of unknown user names to remember (10000 by default)
+		int negCacheSize = getIniInt(session, "NGINXAUTH_NEGCACHE_SIZE", 10000);
+		//OPTIONAL number of seconds to remember unknown user names (60 by default)
+		int negCacheTTL = getIniInt(session, "NGINXAUTH_NEGCACHE_TTL", 60);
+
+		if (userFilterEnabled) {
+			if (userFilterFpp<=0 || userFilterFpp>=1) {
+				LogUtil.log(Level.WARNING, "Ini variable $NGINXAUTH_USERFILTER_FPP must be between 0 and 1, using 0.01");
+				userFilterFpp = 0.01;
+			}
+			handler.setUnknownUserFilter(new UnknownUserFilter(userFilterCapacity, userFilterFpp, userFilterMaxKB * 1024L,
+					negCacheSize, negCacheTTL * 1000L));
+		}
+
+		//OPTIONAL switch to disable escalating Auth-Wait values and blocking after repeated login failures (enabled by default)
+		boolean throttleEnabled = !"false".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_THROTTLE"));
+		//OPTIONAL number of seconds after which failure counts get halved (300 by default)
+		int throttleWindow = getIniInt(session, "NGINXAUTH_THROTTLE_WINDOW", 300);
+		//OPTIONAL number of recent failures per client IP after which logins get rejected without check (50 by default, 0 for no limit)
+		int throttleIPLimit = getIniInt(session, "NGINXAUTH_THROTTLE_IPLIMIT", 50);
+		//OPTIONAL number of recent failures per user after which logins get rejected without check (20 by default, 0 for no limit)
+		int throttleUserLimit = getIniInt(session, "NGINXAUTH_THROTTLE_USERLIMIT", 20);
+		//OPTIONAL max Auth-Wait value in seconds (60 by default)
+		int throttleMaxWait = getIniInt(session, "NGINXAUTH_THROTTLE_MAXWAIT", 60);
+		//OPTIONAL number of failure counters per sketch row, defines the memory usage (65536 by default)
+		int throttleWidth = getIniInt(session, "NGINXAUTH_THROTTLE_WIDTH", 65536);
+
+		if (throttleEnabled) {
+			//the base wait ($NGINXAUTH_WAITONERROR) is read from the current configuration per request
+			handler.setFailureThrottle(new FailureThrottle(throttleWidth, Math.max(1, throttleWindow) * 1000L,
+					throttleIPLimit, throttleUserLimit, throttleMaxWait));
+		}
+
+		//OPTIONAL comma separated files with client IPs / CIDR blocks whose logins skip the per-IP failure throttle
+		//and that are exempt from the deny list, e.g. internal networks
+		String ipAllowFiles = session.getEnvironmentString("NGINXAUTH_IPALLOW_FILES"); // e.g. /local/notesdata/nginxauth/allow.txt
+		//OPTIONAL comma separated files with client IPs / CIDR blocks that get rejected before any directory access
+		String ipDenyFiles = session.getEnvironmentString("NGINXAUTH_IPDENY_FILES");
+		//OPTIONAL number of seconds between checks for changed IP list files (60 by default, 0 to disable)
+		int ipListReload = getIniInt(session, "NGINXAUTH_IPLIST_RELOAD", 60);
+
+		if (StringUtil.isNotEmpty(ipAllowFiles) || StringUtil.isNotEmpty(ipDenyFiles)) {
+			IPAccessList ipAccessList = new IPAccessList(IPAccessList.parseFiles(ipAllowFiles), IPAccessList.parseFiles(ipDenyFiles));
+			ipAccessList.reload();
+			if (ipListReload>0) {
+				ipAccessList.start(ipListReload * 1000L);
+			}
+			handler.setIPAccessList(ipAccessList);
+		}
+
+		//OPTIONAL switch to send IMAP and POP3 sessions to the server hosting the user's mail file (disabled by default)
+		boolean homeServerEnabled = "true".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_HOMESERVER"));
+		//OPTIONAL number of seconds to cache the IPs of the servers' host names (300 by default)
+		int homeServerDnsTTL = getIniInt(session, "NGINXAUTH_HOMESERVER_DNSTTL", 300);
+
+		//OPTIONAL switch to reject anonymous SMTP deliveries to addresses of local domains that do not exist
+		//in the address books with 550 instead of accepting and bouncing them (disabled by default)
+		boolean rcptCheckEnabled = "true".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_RCPTCHECK"));
+
+		//OPTIONAL comma separated groups whose direct or nested members may log in via IMAP, POP3 or SMTP AUTH
+		//(by default all users may use all protocols)
+		Map<String,List<String>> allowGroups = new HashMap<String,List<String>>();
+		//OPTIONAL comma separated groups whose direct or nested members must not log in via IMAP, POP3 or SMTP AUTH,
+		//even if member of an allowed group (none by default)
+		Map<String,List<String>> denyGroups = new HashMap<String,List<String>>();
+		for (String currProtocol : new String[] {"imap", "pop3", "smtp"}) {
+			String protocolUC = currProtocol.toUpperCase(Locale.ENGLISH);
+			List<String> currAllowGroups = GroupPolicy.parseGroups(session.getEnvironmentString("NGINXAUTH_ALLOWGROUPS_"+protocolUC)); // e.g. MailUsers,IMAPUsers
+			if (!currAllowGroups.isEmpty()) {
+				allowGroups.put(currProtocol, currAllowGroups);
+			}
+			List<String> currDenyGroups = GroupPolicy.parseGroups(session.getEnvironmentString("NGINXAUTH_DENYGROUPS_"+protocolUC)); // e.g. Terminations
+			if (!currDenyGroups.isEmpty()) {
+				denyGroups.put(currProtocol, currDenyGroups);
+			}
+		}
+		boolean groupPolicyEnabled = !allowGroups.isEmpty() || !denyGroups.isEmpty();
+
+		if (userIndex!=null) {
+			final UnknownUserFilter filter = handler.getUnknownUserFilter();
+			final CredentialCache credentialCache = handler.getCredentialCache();
+			if (filter!=null || credentialCache!=null) {
+				//keep the filter in sync with the known login names, drop cached logins of deleted and renamed persons
+				userIndex.setListener(new UserIndex.Listener() {
+
+					@Override
+					public void onFullRefresh(Set<String> names, Set<String> removedNames) {
+						invalidate(removedNames);
+						if (filter!=null) {
+							filter.rebuild(names);
+							LogUtil.log(Level.INFO, "Rebuilt unknown user filter: "+filter);
+						}
+					}
+
+					@Override
+					public void onEntryChanged(UserEntry entry) {
+						if (filter!=null) {
+							filter.addKnown(entry.getNames());
+						}
+					}
+
+					@Override
+					public void onNamesRemoved(Set<String> removedNames, Set<String> names) {
+						invalidate(removedNames);
+						if (filter!=null) {
+							//a bloom filter does not support removal
+							filter.rebuild(names);
+						}
+					}
+
+					private void invalidate(Set<String> removedNames) {
+						if (credentialCache!=null) {
+							for (String currName : removedNames) {
+								credentialCache.invalidate(currName);
+							}
+						}
+					}
+				});
+			}
+
+			DirectoryIndexUpdater indexUpdater = new DirectoryIndexUpdater(session.getServerName(), indexFullRefreshInterval * 1000L);
+			indexUpdater.setDebug(config.isDebug());
+			indexUpdater.addIndex(userIndex);
+
+			if (homeServerEnabled) {
+				ServerAddressMap serverAddresses = new ServerAddressMap(Math.max(1, homeServerDnsTTL) * 1000L);
+				indexUpdater.addIndex(serverAddresses);
+
+				String localServerName = session.getServerName();
+				Name localServerNameObj = session.createName(localServerName);
+				try {
+					localServerName = localServerNameObj.getCanonical();
+				}
+				finally {
+					localServerNameObj.recycle();
+				}
+				handler.setHomeServerLocator(new HomeServerLocator(userIndex, serverAddresses, localServerName));
+			}
+
+			if (rcptCheckEnabled) {
+				RecipientIndex recipientIndex = new RecipientIndex();
+				indexUpdater.addIndex(recipientIndex);
+				handler.setRecipientIndex(recipientIndex);
+			}
+
+			if (groupPolicyEnabled) {
+				try {
+					GroupPolicy groupPolicy = new GroupPolicy(userIndex, allowGroups, denyGroups);
+					indexUpdater.addIndex(groupPolicy.getMembershipIndex());
+					handler.setGroupPolicy(groupPolicy);
+					LogUtil.log(Level.INFO, "Restricting logins to groups: "+groupPolicy);
+				}
+				catch (IllegalArgumentException e) {
+					LogUtil.log(Level.SEVERE, "Invalid $NGINXAUTH_ALLOWGROUPS_* / $NGINXAUTH_DENYGROUPS_* settings, ignoring them: "+e.getMessage());
+				}
+			}
+
+			if (StringUtil.isNotEmpty(indexSnapshotPath)) {
+				UserIndexSnapshot snapshot = new UserIndexSnapshot(new File(indexSnapshotPath.trim()), Math.max(1, indexSnapshotInterval) * 1000L);
+				//serve lookups from the snapshot while the first refresh reads the changes
+				snapshot.restore(userIndex);
+				indexUpdater.addRefreshListener(snapshot);
+			}
+
+			directory.startIndexUpdates(indexUpdater, indexRefreshInterval * 1000L);
+		}
+		else {
+			if (homeServerEnabled) {
+				LogUtil.log(Level.WARNING, "Ini variable $NGINXAUTH_HOMESERVER requires the user index, ignoring it");
+			}
+			if (rcptCheckEnabled) {
+				LogUtil.log(Level.WARNING, "Ini variable $NGINXAUTH_RCPTCHECK requires the user index, ignoring it");
+			}
+			if (groupPolicyEnabled) {
+				LogUtil.log(Level.WARNING, "Ini variables $NGINXAUTH_ALLOWGROUPS_* and $NGINXAUTH_DENYGROUPS_* require the user index, ignoring them");
+			}
+		}
+
+		//OPTIONAL comma separated mail servers to spread sessions across, format host[:port][*weight]
+		//(by default nginx connects to this server)
+		String smtpBackends = session.getEnvironmentString("NGINXAUTH_BACKENDS_SMTP"); // e.g. 10.0.0.1:25,10.0.0.2:25*2
+		String imapBackends = session.getEnvironmentString("NGINXAUTH_BACKENDS_IMAP");
+		String pop3Backends = session.getEnvironmentString("NGINXAUTH_BACKENDS_POP3");
+		//OPTIONAL backend selection: roundrobin (weighted), leastfailures or hash (on the user name) (roundrobin by default)
+		String backendStrategyStr = session.getEnvironmentString("NGINXAUTH_BACKENDS_STRATEGY");
+		//OPTIONAL number of seconds between TCP health probes per backend (10 by default)
+		int backendProbeInterval = getIniInt(session, "NGINXAUTH_BACKENDS_PROBEINTERVAL", 10);
+		//OPTIONAL connect timeout of health probes in milliseconds (2000 by default)
+		int backendProbeTimeout = getIniInt(session, "NGINXAUTH_BACKENDS_PROBETIMEOUT", 2000);
+		//OPTIONAL number of consecutive failed probes after which a backend is skipped (3 by default)
+		int backendMaxFails = getIniInt(session, "NGINXAUTH_BACKENDS_MAXFAILS", 3);
+
+		if (StringUtil.isNotEmpty(smtpBackends) || StringUtil.isNotEmpty(imapBackends) || StringUtil.isNotEmpty(pop3Backends)) {
+			BackendPool.Strategy backendStrategy = BackendPool.Strategy.ROUND_ROBIN;
+			if (StringUtil.isNotEmpty(backendStrategyStr)) {
+				backendStrategy = BackendPool.Strategy.parse(backendStrategyStr);
+				if (backendStrategy==null) {
+					LogUtil.log(Level.WARNING, "Invalid value for ini variable $NGINXAUTH_BACKENDS_STRATEGY: "+backendStrategyStr);
+					backendStrategy = BackendPool.Strategy.ROUND_ROBIN;
+				}
+			}
+			BackendPool backendPool = new BackendPool(backendStrategy, backendMaxFails, backendProbeTimeout);
+			addBackends(backendPool, "smtp", smtpBackends, 25);
+			addBackends(backendPool, "imap", imapBackends, 143);
+			addBackends(backendPool, "pop3", pop3Backends, 110);
+			backendPool.start(Math.max(1, backendProbeInterval) * 1000L);
+			handler.setBackendPool(backendPool);
+			LogUtil.log(Level.INFO, "Routing sessions to "+backendPool);
+		}
+
+		//OPTIONAL local database to record every auth decision in, e.g. nginxauth/audit.nsf, created if missing (disabled by default)
+		String auditDbPath = session.getEnvironmentString("NGINXAUTH_AUDIT_DB");
+		//OPTIONAL local file to record every auth decision in as tab separated line, e.g. nginxauth/audit.log (disabled by default)
+		String auditFilePath = session.getEnvironmentString("NGINXAUTH_AUDIT_FILE");
+		//OPTIONAL max size of the audit file in KB before it gets rotated (10240 by default)
+		int auditMaxSizeKB = getIniInt(session, "NGINXAUTH_AUDIT_MAXSIZE", 10240);
+		//OPTIONAL number of rotated audit files to keep (10 by default)
+		int auditMaxFiles = getIniInt(session, "NGINXAUTH_AUDIT_MAXFILES", 10);
+		//OPTIONAL number of audit events buffered before new ones get dropped (16384 by default)
+		int auditBufferSize = getIniInt(session, "NGINXAUTH_AUDIT_BUFFER", 16384);
+		//OPTIONAL max number of audit events written per batch (500 by default)
+		int auditBatchSize = getIniInt(session, "NGINXAUTH_AUDIT_BATCH", 500);
+		//OPTIONAL max number of milliseconds an audit event waits for its batch to be written (1000 by default)
+		int auditFlushInterval = getIniInt(session, "NGINXAUTH_AUDIT_FLUSHINTERVAL", 1000);
+
+		AuditSink auditSink = null;
+		if (StringUtil.isNotEmpty(auditDbPath)) {
+			auditSink = new DominoAuditSink(auditDbPath.trim());
+			if (StringUtil.isNotEmpty(auditFilePath)) {
+				LogUtil.log(Level.WARNING, "Ini variables $NGINXAUTH_AUDIT_DB and $NGINXAUTH_AUDIT_FILE are both set, ignoring $NGINXAUTH_AUDIT_FILE");
+			}
+		}
+		else if (StringUtil.isNotEmpty(auditFilePath)) {
+			auditSink = new FileAuditSink(new File(auditFilePath.trim()), auditMaxSizeKB * 1024L, auditMaxFiles);
+		}
+		if (auditSink!=null) {
+			AuditTrail auditTrail = new AuditTrail(auditBufferSize, auditBatchSize, auditFlushInterval, auditSink);
+			auditTrail.start();
+			handler.setAuditTrail(auditTrail);
+		}
+
+		//OPTIONAL number of seconds between checks for changed NGINXAUTH_* settings (60 by default, 0 to disable)
+		int configReloadInterval = getIniInt(session, "NGINXAUTH_CONFIG_RELOAD", 60);
+		if (configReloadInterval>0) {
+			handler.startConfigReload(configReloadInterval * 1000L);
+		}
+
+		//OPTIONAL switch to disable the warm-up after startup; requests get a temporary failure until it is done (enabled by default)
+		boolean warmupEnabled = !"false".equalsIgnoreCase(session.getEnvironmentString("NGINXAUTH_WARMUP"));
+		//OPTIONAL max number of seconds the warm-up may take (directory sessions, user index and synthetic requests) before reporting ready anyway (120 by default)
+		int warmupTimeout = getIniInt(session, "NGINXAUTH_WARMUP_TIMEOUT", 120);
+		//OPTIONAL number of synthetic requests processed during warm-up (500 by default)
+		int warmupRequests = getIniInt(session, "NGINXAUTH_WARMUP_REQUESTS", 500);
+		if (warmupEnabled) {
+			handler.startWarmup(warmupRequests, Math.max(1, warmupTimeout) * 1000L);
+		}
+
+		return handler;
+	}
+
+	private static void addBackends(BackendPool pool, String protocol, String spec, int defaultPort) {
+		if (StringUtil.isEmpty(spec)) {
+			return;
+		}
+		try {
+			for (Backend currBackend : BackendPool.parse(protocol, spec, defaultPort)) {
+				pool.addBackend(currBackend);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			LogUtil.log(Level.SEVERE, "Invalid value for ini variable $NGINXAUTH_BACKENDS_"+protocol.toUpperCase(Locale.ENGLISH)+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a numeric Notes.ini value
+	 * 
+	 * @param session session
+	 * @param name name of variable
+	 * @param defaultValue value to return if variable is missing or invalid
+	 * @return value
+	 * @throws NotesException
+	 */
+	static int getIniInt(Session session, String name, int defaultValue) throws NotesException {
+		String val = session.getEnvironmentString(name);
+		if (val==null || val.trim().length()==0) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(val.trim());
+		}
+		catch (NumberFormatException e) {
+			LogUtil.log(Level.WARNING, "Invalid value for ini variable $"+name+": "+val);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads a decimal Notes.ini value
+	 * 
+	 * @param session session
+	 * @param name name of variable
+	 * @param defaultValue value to return if variable is missing or invalid
+	 * @return value
+	 * @throws NotesException
+	 */
+	static double getIniDouble(Session session, String name, double defaultValue) throws NotesException {
+		String val = session.getEnvironmentString(name);
+		if (val==null || val.trim().length()==0) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(val.trim());
+		}
+		catch (NumberFormatException e) {
+			LogUtil.log(Level.WARNING, "Invalid value for ini variable $"+name+": "+val);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the request metrics, recorded even if the metrics endpoint is disabled
+	 * 
+	 * @return metrics
+	 */
+	public AuthMetrics getMetrics() {
+		return m_metrics;
+	}
+
+	/**
+	 * Returns true if the metrics may be read via HTTP
+	 * 
+	 * @return true if enabled
+	 */
+	public boolean isMetricsEnabled() {
+		return m_config.isMetricsEnabled();
+	}
+
+	/**
+	 * Checks if a client may read the metrics: they contain replica IDs, backend addresses
+	 * and failure counters and must not be served to everybody who can reach the Domino HTTP
+	 * server. If $NGINXAUTH_AUTHKEY_HEADER and _VALUE are set, the request needs to send this
+	 * header with the shared secret, otherwise only loopback clients are accepted.
+	 * 
+	 * @param req request to read the auth key header
+	 * @param clientAddress IP address of the client
+	 * @return true if allowed
+	 */
+	public boolean isMetricsAllowed(AuthRequest req, String clientAddress) {
+		AuthConfig config = m_config;
+		String authKeyHeader = config.getAuthKeyHeader();
+		String authKeyValue = config.getAuthKeyValue();
+		if (StringUtil.isNotEmpty(authKeyHeader) && StringUtil.isNotEmpty(authKeyValue)) {
+			String sentValue = req.getHeader(authKeyHeader);
+			//constant time comparison to not leak the secret
+			return sentValue!=null && MessageDigest.isEqual(sentValue.getBytes(HttpUtils.UTF_8), authKeyValue.getBytes(HttpUtils.UTF_8));
+		}
+		return isLoopback(clientAddress);
+	}
+
+	static boolean isLoopback(String address) {
+		if (address==null) {
+			return false;
+		}
+		if (address.startsWith("::ffff:")) {
+			address = address.substring(7);
+		}
+		return address.startsWith("127.") || "::1".equals(address) || "0:0:0:0:0:0:0:1".equals(address);
+	}
+
+	/**
+	 * Writes request metrics and statistics of caches, filters and directory in
+	 * Prometheus text format
+	 * 
+	 * @param sb string builder to write to
+	 */
+	public void writeMetrics(StringBuilder sb) {
+		m_metrics.writePrometheus(sb);
+
+		if (m_credentialCache!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_credcache_hits_total", "Credential cache hits", m_credentialCache.getHits());
+			AuthMetrics.appendCounter(sb, "nginxauth_credcache_misses_total", "Credential cache misses", m_credentialCache.getMisses());
+			AuthMetrics.appendCounter(sb, "nginxauth_credcache_evictions_total", "Credential cache entries removed because of LRU, expiry, password mismatch or change",
+					m_credentialCache.getEvictions());
+			AuthMetrics.appendGauge(sb, "nginxauth_credcache_entries", "Entries in the credential cache", m_credentialCache.size());
+			if (m_credentialCache.getMaxStaleMillis()>0) {
+				AuthMetrics.appendCounter(sb, "nginxauth_credcache_stale_hits_total", "Logins accepted from expired cache entries while the directory was unavailable", m_credentialCache.getStaleHits());
+				AuthMetrics.appendCounter(sb, "nginxauth_credcache_stale_age_seconds_total", "Summed time since expiry of the cache entries used for stale logins",
+						m_credentialCache.getStaleAgeMillisSum() / 1000);
+			}
+		}
+		if (m_failureThrottle!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_throttle_failures_total", "Login failures recorded by the throttle", m_failureThrottle.getFailures());
+			AuthMetrics.appendCounter(sb, "nginxauth_throttle_blocked_total", "Logins blocked by the throttle", m_failureThrottle.getBlocked());
+		}
+		if (m_backendPool!=null) {
+			m_backendPool.writeMetrics(sb);
+		}
+		if (m_ipAccessList!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_iplist_allowed_total", "Requests from client IPs in the allow list", m_ipAccessList.getAllowedCount());
+			AuthMetrics.appendCounter(sb, "nginxauth_iplist_denied_total", "Requests rejected because of the client IP deny list", m_ipAccessList.getDeniedCount());
+			AuthMetrics.appendCounter(sb, "nginxauth_iplist_reloads_total", "IP list files loaded after a change", m_ipAccessList.getReloads());
+			AuthMetrics.appendCounter(sb, "nginxauth_iplist_load_errors_total", "IP list files that could not be read, the previous list was kept", m_ipAccessList.getLoadErrors());
+			AuthMetrics.appendGauge(sb, "nginxauth_iplist_allow_ranges", "Merged address ranges in the allow list",
+					m_ipAccessList.getAllowed().getIPv4RangeCount() + m_ipAccessList.getAllowed().getIPv6RangeCount());
+			AuthMetrics.appendGauge(sb, "nginxauth_iplist_deny_ranges", "Merged address ranges in the deny list",
+					m_ipAccessList.getDenied().getIPv4RangeCount() + m_ipAccessList.getDenied().getIPv6RangeCount());
+		}
+		if (m_recipientIndex!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_rcptcheck_rejected_total", "Anonymous SMTP deliveries rejected because the recipient does not exist", m_recipientIndex.getRejected());
+			AuthMetrics.appendGauge(sb, "nginxauth_rcptcheck_keys", "Addresses and local parts in the recipient index", m_recipientIndex.getEntryCount());
+		}
+		if (m_groupPolicy!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_grouppolicy_denied_total", "Logins rejected because the user is no member of an allowed or member of a denied group", m_groupPolicy.getDenied());
+			AuthMetrics.appendGauge(sb, "nginxauth_grouppolicy_members", "Distinct members of the policy groups after nested group expansion", m_groupPolicy.getMembershipIndex().getMemberCount());
+		}
+		if (m_homeServerLocator!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_homeserver_remote_total", "Sessions sent to the user's home server", m_homeServerLocator.getRemote());
+			AuthMetrics.appendCounter(sb, "nginxauth_homeserver_unresolved_total", "Sessions whose home server has no known address", m_homeServerLocator.getUnresolved());
+			AuthMetrics.appendGauge(sb, "nginxauth_homeserver_servers", "Servers in the server address map", m_homeServerLocator.getServerAddresses().getEntryCount());
+		}
+		if (m_auditTrail!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_audit_written_total", "Audit events written to the audit sink", m_auditTrail.getWritten());
+			AuthMetrics.appendCounter(sb, "nginxauth_audit_dropped_total", "Audit events dropped because the audit buffer was full", m_auditTrail.getDropped());
+			AuthMetrics.appendCounter(sb, "nginxauth_audit_sink_errors_total", "Failed writes and flushes of audit events", m_auditTrail.getSinkErrors());
+			AuthMetrics.appendCounter(sb, "nginxauth_audit_batches_total", "Batches of audit events flushed to the audit sink", m_auditTrail.getBatches());
+			AuthMetrics.appendGauge(sb, "nginxauth_audit_queued", "Audit events waiting to be written", m_auditTrail.getQueued());
+		}
+		RingBufferLog log = LogUtil.getLog();
+		if (log!=null) {
+			AuthMetrics.appendCounter(sb, "nginxauth_log_dropped_total", "Log messages dropped because the log buffer was full", log.getDropped());
+		}
+		UserDirectory directory = m_directory;
+		if (directory instanceof SingleFlightDirectory) {
+			SingleFlightDirectory singleFlight = (SingleFlightDirectory) directory;
+			AuthMetrics.appendCounter(sb, "nginxauth_singleflight_executed_total", "Credential checks passed to the directory", singleFlight.getExecuted());
+			AuthMetrics.appendCounter(sb, "nginxauth_singleflight_coalesced_total", "Credential checks that shared the result of a concurrent identical check", singleFlight.getCoalesced());
+			AuthMetrics.appendGauge(sb, "nginxauth_singleflight_inflight", "Credential checks in flight", singleFlight.getInFlight());
+			directory = singleFlight.getDelegate();
+		}
+		if (directory instanceof CircuitBreakerDirectory) {
+			CircuitBreakerDirectory breaker = (CircuitBreakerDirectory) directory;
+			AuthMetrics.appendGauge(sb, "nginxauth_breaker_state", "Directory circuit breaker state (0=closed, 1=open, 2=half-open)", breaker.getState().getValue());
+			AuthMetrics.appendCounter(sb, "nginxauth_breaker_opened_total", "Times the directory circuit breaker opened", breaker.getOpenedCount());
+			AuthMetrics.appendCounter(sb, "nginxauth_breaker_closed_total", "Times the directory circuit breaker closed after a successful trial check", breaker.getClosedCount());
+			AuthMetrics.appendCounter(sb, "nginxauth_breaker_rejected_total", "Credential checks rejected while the directory circuit breaker was open", breaker.getRejected());
+			AuthMetrics.appendCounter(sb, "nginxauth_breaker_open_seconds_total", "Summed duration of directory outages ended by a successful trial check", breaker.getOpenMillisSum() / 1000);
+			directory = breaker.getDelegate();
+		}
+		if (directory instanceof DominoUserDirectory) {
+			DirectorySessionPool pool = ((DominoUserDirectory) directory).getSessionPool();
+			AuthMetrics.appendGauge(sb, "nginxauth_pool_queued", "Directory lookups waiting for a pooled session", pool.getQueuedTasks());
+			AuthMetrics.appendCounter(sb, "nginxauth_pool_rejections_total", "Directory lookups rejected because the queue was full", pool.getRejections());
+			AuthMetrics.appendCounter(sb, "nginxauth_pool_timeouts_total", "Directory lookups that timed out in the queue", pool.getTimeouts());
+			AuthMetrics.appendCounter(sb, "nginxauth_pool_run_timeouts_total", "Directory lookups that were still running when the caller gave up", pool.getRunTimeouts());
+			AuthMetrics.appendCounter(sb, "nginxauth_pool_sessions_created_total", "Directory sessions created", pool.getSessionsCreated());
+
+			AddressBookHitStats hitStats = ((DominoUserDirectory) directory).getAddressBookHitStats();
+			if (hitStats!=null) {
+				sb.append("# HELP nginxauth_addressbook_hits_total Users found per address book by ($Users) view lookups\n");
+				sb.append("# TYPE nginxauth_addressbook_hits_total counter\n");
+				for (Map.Entry<String,Long> currEntry : hitStats.getHits().entrySet()) {
+					sb.append("nginxauth_addressbook_hits_total{replicaid=\"").append(currEntry.getKey()).append("\"} ")
+							.append(currEntry.getValue()).append('\n');
+				}
+			}
+		}
+	}
+
+	public UserDirectory getDirectory() {
+		return m_directory;
+	}
+
+	/**
+	 * Returns the current configuration
+	 * 
+	 * @return configuration
+	 */
+	public AuthConfig getConfig() {
+		return m_config;
+	}
+
+	/**
+	 * Replaces the configuration; requests already being processed finish with
+	 * the previous one
+	 * 
+	 * @param config new configuration
+	 * @return changed settings, empty if equal
+	 */
+	public List<String> setConfig(AuthConfig config) {
+		AuthConfig oldConfig = m_config;
+		List<String> changes = config.diff(oldConfig);
+		if (!changes.isEmpty()) {
+			if (!StringUtil.equals(oldConfig.getPublicServerIP(), config.getPublicServerIP())) {
+				m_localIP = null;
+			}
+			m_config = config;
+			for (String currChange : changes) {
+				LogUtil.log(Level.INFO, "Configuration changed: "+currChange);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Reads the NGINXAUTH_* settings from Notes.ini and applies them if they have changed
+	 * 
+	 * @return changed settings, empty if equal
+	 * @throws NotesException
+	 */
+	public List<String> reloadConfig() throws NotesException {
+		//may be called from the OSGi console thread
+		NotesThread.sinitThread();
+		try {
+			Session session = NotesFactory.createSession();
+			try {
+				return setConfig(AuthConfig.createFromNotesIni(session));
+			}
+			finally {
+				session.recycle();
+			}
+		}
+		finally {
+			NotesThread.stermThread();
+		}
+	}
+
+	/**
+	 * Starts a thread that periodically calls {@link #reloadConfig()}
+	 * 
+	 * @param intervalMillis interval between checks in milliseconds
+	 */
+	public synchronized void startConfigReload(long intervalMillis) {
+		if (m_configReloader!=null) {
+			return;
+		}
+		m_configReloader = Executors.newSingleThreadScheduledExecutor(new NotesThreadFactory("NGINXAUTH config reloader"));
+		m_configReloader.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					reloadConfig();
+				}
+				catch (Throwable t) {
+					LogUtil.log(Level.SEVERE, "Error reloading configuration", t);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public boolean isDebug() {
+		return m_config.getDebugSampler().isActive();
+	}
+
+	public void setCredentialCache(CredentialCache cache) {
+		m_credentialCache = cache;
+	}
+
+	public CredentialCache getCredentialCache() {
+		return m_credentialCache;
+	}
+
+	public void setUnknownUserFilter(UnknownUserFilter filter) {
+		m_unknownUserFilter = filter;
+	}
+
+	public UnknownUserFilter getUnknownUserFilter() {
+		return m_unknownUserFilter;
+	}
+
+	public void setFailureThrottle(FailureThrottle throttle) {
+		m_failureThrottle = throttle;
+	}
+
+	public FailureThrottle getFailureThrottle() {
+		return m_failureThrottle;
+	}
+
+	/**
+	 * Sets the mail servers that nginx sessions are routed to, protocols without
+	 * backends are routed to this server
+	 * 
+	 * @param pool pool or null
+	 */
+	public void setBackendPool(BackendPool pool) {
+		m_backendPool = pool;
+	}
+
+	public BackendPool getBackendPool() {
+		return m_backendPool;
+	}
+
+	/**
+	 * Sets the locator to send IMAP and POP3 sessions to the user's home mail server
+	 * 
+	 * @param locator locator or null to use this server or the backend pool
+	 */
+	public void setHomeServerLocator(HomeServerLocator locator) {
+		m_homeServerLocator = locator;
+	}
+
+	public HomeServerLocator getHomeServerLocator() {
+		return m_homeServerLocator;
+	}
+
+	/**
+	 * Sets the index used to reject anonymous SMTP deliveries to unknown local recipients
+	 * 
+	 * @param index index or null to accept all recipients of local domains
+	 */
+	public void setRecipientIndex(RecipientIndex index) {
+		m_recipientIndex = index;
+	}
+
+	public RecipientIndex getRecipientIndex() {
+		return m_recipientIndex;
+	}
+
+	/**
+	 * Sets the client IP allow and deny lists
+	 * 
+	 * @param accessList lists or null to accept all clients
+	 */
+	public void setIPAccessList(IPAccessList accessList) {
+		m_ipAccessList = accessList;
+	}
+
+	public IPAccessList getIPAccessList() {
+		return m_ipAccessList;
+	}
+
+	/**
+	 * Sets the audit trail that records every auth decision
+	 * 
+	 * @param auditTrail audit trail, already started, or null
+	 */
+	public void setAuditTrail(AuditTrail auditTrail) {
+		m_auditTrail = auditTrail;
+	}
+
+	public AuditTrail getAuditTrail() {
+		return m_auditTrail;
+	}
+
+	/**
+	 * Sets the group restrictions per protocol
+	 * 
+	 * @param groupPolicy policy or null to let all users use all protocols
+	 */
+	public void setGroupPolicy(GroupPolicy groupPolicy) {
+		m_groupPolicy = groupPolicy;
+	}
+
+	public GroupPolicy getGroupPolicy() {
+		return m_groupPolicy;
+	}
+
+	private String getLocalIP(AuthConfig config) throws UnknownHostException {
+		String publicServerIP = config.getPublicServerIP();
+		if (publicServerIP!=null && publicServerIP.length()>0) {
+			return publicServerIP;
+		}
+		String localIP = m_localIP;
+		if (localIP==null) {
+			//host lookup might be slow, don't repeat it per request
+			localIP = InetAddress.getLocalHost().getHostAddress();
+			m_localIP = localIP;
+		}
+		return localIP;
+	}
+
+	/**
+	 * Frees all resources and writes statistics to the server console
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (m_configReloader!=null) {
+				m_configReloader.shutdownNow();
+				m_configReloader = null;
+			}
+		}
+		if (m_credentialCache!=null) {
+			LogUtil.log(Level.INFO, "Credential cache statistics: "+m_credentialCache);
+		}
+		if (m_unknownUserFilter!=null) {
+			LogUtil.log(Level.INFO, "Unknown user filter statistics: "+m_unknownUserFilter);
+		}
+		if (m_failureThrottle!=null) {
+			LogUtil.log(Level.INFO, "Failure throttle statistics: "+m_failureThrottle);
+		}
+		if (m_recipientIndex!=null) {
+			LogUtil.log(Level.INFO, "Recipient index statistics: "+m_recipientIndex);
+		}
+		if (m_homeServerLocator!=null) {
+			LogUtil.log(Level.INFO, "Home server statistics: "+m_homeServerLocator);
+		}
+		if (m_groupPolicy!=null) {
+			LogUtil.log(Level.INFO, "Group policy statistics: "+m_groupPolicy);
+		}
+		if (m_ipAccessList!=null) {
+			LogUtil.log(Level.INFO, "IP list statistics: "+m_ipAccessList);
+			m_ipAccessList.shutdown();
+		}
+		if (m_backendPool!=null) {
+			LogUtil.log(Level.INFO, "Backend statistics: "+m_backendPool);
+			m_backendPool.shutdown();
+		}
+		if (m_auditTrail!=null) {
+			//writes the buffered events
+			m_auditTrail.stop();
+			LogUtil.log(Level.INFO, "Audit trail statistics: "+m_auditTrail);
+		}
+		if (m_directory instanceof SingleFlightDirectory && ((SingleFlightDirectory) m_directory).getDelegate() instanceof CircuitBreakerDirectory) {
+			LogUtil.log(Level.INFO, "Directory circuit breaker statistics: "+((SingleFlightDirectory) m_directory).getDelegate());
+		}
+		else if (m_directory instanceof CircuitBreakerDirectory) {
+			LogUtil.log(Level.INFO, "Directory circuit breaker statistics: "+m_directory);
+		}
+		m_directory.shutdown();
+	}
+
+	/**
+	 * Returns true if the warm-up is done and requests are processed
+	 * 
+	 * @return true if ready
+	 */
+	public boolean isReady() {
+		return m_ready;
+	}
+
+	/**
+	 * Starts a background thread that warms up the directory and runs synthetic
+	 * requests through {@link #handle(AuthRequest, AuthResponse)}, so that class loading,
+	 * JIT compilation and session creation do not delay the first logins. Until done,
+	 * requests get a temporary failure.
+	 * 
+	 * @param syntheticRequests number of synthetic requests
+	 * @param timeoutMillis max time in milliseconds for the whole warm-up, requests get processed afterwards in any case
+	 */
+	public void startWarmup(final int syntheticRequests, final long timeoutMillis) {
+		m_ready = false;
+		Thread t = new Thread("NGINXAUTH warmup") {
+
+			@Override
+			public void run() {
+				try {
+					warmUp(syntheticRequests, timeoutMillis);
+				}
+				catch (Throwable t) {
+					LogUtil.log(Level.SEVERE, "Error during warm-up", t);
+				}
+				finally {
+					m_ready = true;
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void warmUp(int syntheticRequests, long timeoutMillis) throws InterruptedException {
+		long t0 = System.currentTimeMillis();
+		long deadline = t0 + timeoutMillis;
+		boolean directoryReady = m_directory.warmUp(timeoutMillis);
+		long tDirectory = System.currentTimeMillis();
+		if (!directoryReady) {
+			LogUtil.log(Level.WARNING, "Directory warm-up did not complete within "+timeoutMillis+"ms: "+m_directory);
+		}
+
+		//run all decision paths, using user names that do not exist
+		String[] protocols = new String[] {"imap", "pop3", "smtp"};
+		int i;
+		for (i=0; i<syntheticRequests; i++) {
+			if (System.currentTimeMillis() >= deadline) {
+				//e.g. each request waits for a lookup timeout because the directory is slow
+				LogUtil.log(Level.WARNING, "Warm-up did not complete within "+timeoutMillis+"ms, skipping "+(syntheticRequests - i)+
+						" synthetic requests");
+				break;
+			}
+			final Map<String,String> headers = new HashMap<String,String>();
+			headers.put("Auth-Method", "plain");
+			headers.put("Auth-Login-Attempt", "1");
+			if (i % 3 == 2) {
+				headers.put("Auth-Protocol", "smtp");
+				headers.put("Auth-SMTP-Helo", "warmup");
+				headers.put("Auth-SMTP-From", "MAIL FROM:<warmup"+i+"@example.invalid>");
+				headers.put("Auth-SMTP-To", "RCPT TO:<warmup"+i+"@example.invalid>");
+			}
+			else {
+				headers.put("Auth-Protocol", protocols[i % protocols.length]);
+				headers.put("Auth-User", "nginxauth-warmup-"+i);
+				headers.put("Auth-Pass", "warmup%20"+i);
+			}
+			AuthRequest req = new AuthRequest() {
+
+				@Override
+				public String getHeader(String name) {
+					return headers.get(name);
+				}
+
+				@Override
+				public Collection<String> getHeaderNames() {
+					return headers.keySet();
+				}
+			};
+			AuthResponse resp = new AuthResponse() {
+
+				@Override
+				public void setHeader(String name, String value) {
+					//discard
+				}
+
+				@Override
+				public void sendError(int status, String msg) {
+					//discard
+				}
+			};
+			handle(req, resp, true);
+		}
+		//latencies of synthetic requests would distort the percentiles
+		m_metrics.resetPhases();
+
+		long now = System.currentTimeMillis();
+		LogUtil.log(Level.INFO, "Ready after "+(now - m_createdAt)+"ms (directory: "+(tDirectory - t0)+"ms, "+
+				i+" synthetic requests: "+(now - tDirectory)+"ms)");
+	}
+
+	/**
+	 * Checks the credentials or SMTP envelope of an nginx auth request
+	 * 
+	 * @param req request
+	 * @param resp response
+	 */
+	public void handle(AuthRequest req, AuthResponse resp) {
+		handle(req, resp, false);
+	}
+
+	private void handle(AuthRequest req, AuthResponse resp, boolean synthetic) {
+		long tStart = System.nanoTime();
+		AuthConfig config = m_config;
+		if (!config.isEnabled()) {
+			resp.sendError(403, "Servlet is not enabled.");
+			return;
+		}
+		if (!m_ready && !synthetic) {
+			//still warming up, let nginx retry instead of running into timeouts
+			m_metrics.recordOutcome(req.getHeader("Auth-Protocol"), Outcome.TEMPORARY_FAILURE);
+			sendTemporaryFailure(resp);
+			return;
+		}
+
+		String authUserEnc = req.getHeader("Auth-User");
+		String authPasswordEnc = req.getHeader("Auth-Pass");
+
+		String authUser = null;
+		String authPassword;
+
+		String authProtocol = req.getHeader("Auth-Protocol");
+		String authLoginAttempt = req.getHeader("Auth-Login-Attempt");
+		String clientIP = req.getHeader("Client-IP");
+
+		String smtpFrom = req.getHeader("Auth-SMTP-From"); //Mail from:<peter.miller@gmail.com>
+		String smtpTo = req.getHeader("Auth-SMTP-To"); //RCPT to:<john.doe@mylocaldomain.com>
+
+		boolean debug = config.getDebugSampler().isDebug(clientIP, authUserEnc) || "true".equalsIgnoreCase(req.getHeader("X-Auth-debug"));
+
+		if (debug) {
+			//dump all fields of current request, written asynchronously
+			StringBuilder headers = new StringBuilder(256);
+			for (String currHeaderName : req.getHeaderNames()) {
+				if (headers.length()>0) {
+					headers.append(", ");
+				}
+				headers.append(currHeaderName).append('=');
+				headers.append("Auth-Pass".equalsIgnoreCase(currHeaderName) ? "***" : req.getHeader(currHeaderName));
+			}
+			LogUtil.debug("request", null, clientIP, headers.toString());
+		}
+
+//		GET /auth HTTP/1.0
+//		Host: localhost
+//		Auth-Method: plain # plain/apop/cram-md5/external
+//		Auth-User: user
+//		Auth-Pass: password
+//		Auth-Protocol: imap # imap/pop3/smtp
+//		Auth-Login-Attempt: 1
+//		Client-IP: 192.0.2.42
+//		Client-Host: client.example.org
+
+		Outcome outcome = Outcome.ERROR;
+		String targetServer = null;
+		try {
+			boolean reportSuccess = false;
+			boolean blocked = false;
+			boolean isSmtpFromInLocalDomain = false;
+			boolean isSmtpToInLocalDomain = false;
+			boolean isUnknownRecipient = false;
+			String userKey = null;
+
+			Access ipAccess = m_ipAccessList!=null ? m_ipAccessList.check(clientIP) : Access.UNLISTED;
+			if (ipAccess==Access.DENIED) {
+				//blocked network, reject before decoding credentials or touching the directory
+				outcome = Outcome.IP_DENIED;
+				if (debug)
+					LogUtil.debug("ip.denied", authUserEnc, clientIP, "client IP in deny list, attempt: "+authLoginAttempt);
+				resp.setHeader("Auth-Status", "Access denied");
+				resp.setHeader("Auth-Error-Code", "550 5.7.1");
+				return;
+			}
+			//failures from trusted networks (e.g. NAT gateways) must not block the whole network
+			String throttleIP = ipAccess==Access.ALLOWED ? null : clientIP;
+
+			if (StringUtil.isEmpty(authUserEnc) && StringUtil.isEmpty(authPasswordEnc)) {
+				//user and password are empty for smtp delivery from external hosts
+				//(nginx option smtp_auth none)
+				authUser = "";
+				authPassword = "";
+
+				isSmtpFromInLocalDomain = config.getLocalDomainMatcher().isLocal(SmtpAddress.parse(smtpFrom));
+				SmtpAddress smtpToAddress = SmtpAddress.parse(smtpTo);
+				isSmtpToInLocalDomain = config.getLocalDomainMatcher().isLocal(smtpToAddress);
+
+				if (isSmtpToInLocalDomain && m_recipientIndex!=null && !m_recipientIndex.isDeliverable(smtpToAddress)) {
+					//mail would be received completely and then bounced by the router
+					isUnknownRecipient = true;
+					outcome = Outcome.UNKNOWN_RECIPIENT;
+				}
+				else if (isSmtpToInLocalDomain) {
+					//only allow anonymous connections when delivering email from outside to our own users,
+					//not to others
+					reportSuccess = true;
+					outcome = Outcome.OK;
+				}
+				else {
+					outcome = isSmtpFromInLocalDomain ? Outcome.AUTH_REQUIRED : Outcome.RELAY_DENIED;
+				}
+			}
+			else {
+				long t0 = System.nanoTime();
+				authUser = authUserEnc==null ? "" : HttpUtils.urlDecode(authUserEnc, HttpUtils.UTF_8, false);
+				authPassword = authPasswordEnc==null ? "" : HttpUtils.urlDecode(authPasswordEnc, HttpUtils.UTF_8, false);
+				long t1 = System.nanoTime();
+				m_metrics.recordPhase(Phase.DECODE, t1 - t0);
+				//pessimistic default, changed below on success
+				outcome = Outcome.BAD_PASSWORD;
+				userKey = authUser.trim().toLowerCase(Locale.ENGLISH);
+
+				if (m_failureThrottle!=null && m_failureThrottle.isBlocked(throttleIP, userKey)) {
+					//too many recent failures for this client or user
+					blocked = true;
+					outcome = Outcome.BLOCKED;
+					m_metrics.recordPhase(Phase.PRECHECK, System.nanoTime() - t1);
+					if (debug)
+						LogUtil.debug("login.blocked", authUser, clientIP, "blocked after repeated failures, attempt: "+authLoginAttempt);
+				}
+				else if (m_unknownUserFilter!=null && m_unknownUserFilter.isUnknown(authUser)) {
+					//user does not exist, no need to access the directory
+					outcome = Outcome.UNKNOWN_USER;
+					m_metrics.recordPhase(Phase.PRECHECK, System.nanoTime() - t1);
+					if (debug)
+						LogUtil.debug("login.unknownuser", authUser, clientIP, "rejected by unknown user filter, attempt: "+authLoginAttempt);
+				}
+				else {
+					long t2 = System.nanoTime();
+					m_metrics.recordPhase(Phase.PRECHECK, t2 - t1);
+
+					if (m_credentialCache!=null) {
+						//drop verified credentials if the password has been changed in the meantime
+						String knownHash = m_directory.getKnownPasswordHash(authUser);
+						if (knownHash!=null) {
+							m_credentialCache.checkPasswordHash(authUser, knownHash);
+						}
+					}
+
+					boolean cached = m_credentialCache!=null && m_credentialCache.isVerified(authUser, authPassword);
+					if (m_credentialCache!=null) {
+						m_metrics.recordPhase(Phase.CACHE, System.nanoTime() - t2);
+					}
+
+					if (cached) {
+						//credentials have been verified recently, no need to access the directory
+						reportSuccess = true;
+						outcome = Outcome.OK;
+
+						if (debug)
+							LogUtil.debug("login.cached", authUser, clientIP, "credentials found in cache");
+					}
+					else {
+						CredentialCheckResult checkResult;
+						try {
+							checkResult = m_directory.checkCredentials(authUser, authPassword);
+						}
+						catch (Exception e) {
+							if (!(e instanceof DirectoryUnavailableException || e instanceof DirectoryOverloadException || e instanceof TimeoutException) ||
+									m_credentialCache==null || !m_credentialCache.isVerifiedStale(authUser, authPassword)) {
+								throw e;
+							}
+							//directory unavailable, but the credentials have been verified shortly before
+							checkResult = null;
+							if (debug)
+								LogUtil.debug("login.stale", authUser, clientIP, "directory unavailable ("+e.getClass().getSimpleName()+
+										"), accepting recently verified credentials");
+						}
+
+						if (checkResult==null) {
+							reportSuccess = true;
+							outcome = Outcome.OK_STALE;
+						}
+						else if (checkResult.getStatus()==Status.OK) {
+							//success
+							reportSuccess = true;
+							outcome = Outcome.OK;
+
+							if (m_credentialCache!=null) {
+								m_credentialCache.putVerified(authUser, authPassword, checkResult.getPasswordHash());
+							}
+						}
+						else {
+							if (m_credentialCache!=null) {
+								m_credentialCache.invalidate(authUser);
+							}
+							if (checkResult.getStatus()==Status.UNKNOWN_USER) {
+								outcome = Outcome.UNKNOWN_USER;
+								if (m_unknownUserFilter!=null && !synthetic) {
+									m_unknownUserFilter.addUnknown(authUser);
+								}
+								if (debug)
+									LogUtil.debug("login.unknownuser", authUser, clientIP, "not found in directory, attempt: "+authLoginAttempt);
+							}
+						}
+					}
+				}
+			}
+
+			if (reportSuccess && userKey!=null && m_groupPolicy!=null) {
+				//precomputed nested group membership, a bit test per request
+				GroupPolicy.Access groupAccess = m_groupPolicy.check(authProtocol, userKey);
+				if (groupAccess==GroupPolicy.Access.UNAVAILABLE) {
+					outcome = Outcome.TEMPORARY_FAILURE;
+					if (debug)
+						LogUtil.debug("group.unavailable", authUser, clientIP, "group index not loaded yet, attempt: "+authLoginAttempt);
+					sendTemporaryFailure(resp);
+					return;
+				}
+				else if (groupAccess==GroupPolicy.Access.DENIED) {
+					outcome = Outcome.GROUP_DENIED;
+					if (debug)
+						LogUtil.debug("group.denied", authUser, clientIP, "no member of the groups allowed for "+authProtocol+", attempt: "+authLoginAttempt);
+					resp.setHeader("Auth-Status", "Access denied");
+					resp.setHeader("Auth-Error-Code", "535 5.7.1");
+					return;
+				}
+			}
+
+			if (reportSuccess) {
+//				HTTP/1.0 200 OK
+//				Auth-Status: OK
+//				Auth-Server: 198.51.100.1
+//				Auth-Port: 143
+				String homeServerAddress = null;
+				if (m_homeServerLocator!=null && userKey!=null && ("imap".equals(authProtocol) || "pop3".equals(authProtocol))) {
+					//in-memory lookup of the server hosting the mail file
+					homeServerAddress = m_homeServerLocator.getHomeServerAddress(userKey);
+				}
+
+				Backend backend = null;
+				if (homeServerAddress==null && m_backendPool!=null && m_backendPool.hasBackends(authProtocol)) {
+					//route sessions of a user to the same server when hashing, anonymous SMTP by recipient
+					backend = m_backendPool.select(authProtocol, userKey!=null ? userKey : smtpTo);
+					if (backend==null) {
+						outcome = Outcome.TEMPORARY_FAILURE;
+						if (debug)
+							LogUtil.debug("backend.unavailable", authUser, clientIP, "no healthy "+authProtocol+" backend, attempt: "+authLoginAttempt);
+						sendTemporaryFailure(resp);
+						return;
+					}
+				}
+
+				if (debug) {
+					LogUtil.debug("success", authUser, clientIP, "protocol: "+authProtocol+", attempt: "+authLoginAttempt);
+				}
+
+				resp.setHeader("Auth-User", authUser);
+				resp.setHeader("Auth-Pass", authPassword);
+				resp.setHeader("Auth-Status", "OK");
+
+				if (backend!=null) {
+					if (debug)
+						LogUtil.debug("backend.selected", authUser, clientIP, backend.toString());
+					resp.setHeader("Auth-Server", backend.getAddress());
+					resp.setHeader("Auth-Port", backend.getPortValue());
+					targetServer = backend.getAddress();
+				}
+				else {
+					//we must return an IP address here to not get error
+					//4143 auth http server 1.2.3.4:80 sent invalid server address:"mail.domain.de" while in http auth state
+					String serverIP = homeServerAddress!=null ? homeServerAddress : getLocalIP(config);
+					if (debug && homeServerAddress!=null)
+						LogUtil.debug("homeserver.selected", authUser, clientIP, homeServerAddress);
+					if (StringUtil.isNotEmpty(serverIP)) {
+						resp.setHeader("Auth-Server", serverIP);
+						targetServer = serverIP;
+					}
+
+					if ("pop3".equals(authProtocol)) {
+						resp.setHeader("Auth-Port", "110");
+					}
+					else if ("imap".equals(authProtocol)) {
+						resp.setHeader("Auth-Port", "143");
+					}
+					else if ("smtp".equals(authProtocol)) {
+						resp.setHeader("Auth-Port", "25");
+					}
+				}
+
+				//send shared secret to ensure that the request comes from this script
+				String authKeyHeader = config.getAuthKeyHeader();
+				String authKeyValue = config.getAuthKeyValue();
+				if (StringUtil.isNotEmpty(authKeyHeader) && StringUtil.isNotEmpty(authKeyValue)) {
+					resp.setHeader(authKeyHeader, authKeyValue);
+				}
+			}
+			else {
+//				HTTP/1.0 200 OK
+//				Auth-Status: Invalid login or password
+//				Auth-Wait: 3
+				if (StringUtil.isNotEmpty(authUser)) {
+					//user provided wrong credentials
+					if (debug)
+						LogUtil.debug("login.badpassword", authUser, clientIP, "password mismatch, attempt: "+authLoginAttempt);
+
+					resp.setHeader("Auth-Status", "Invalid login or password");
+
+					if (m_failureThrottle!=null) {
+						int waitSeconds;
+						if (blocked) {
+							//no further counting, the client is already over the limit
+							waitSeconds = m_failureThrottle.getMaxWaitSeconds(config.getWaitOnErrorSeconds());
+						}
+						else if (synthetic) {
+							waitSeconds = 0;
+						}
+						else {
+							//escalate the wait time with the number of recent failures; per user only for
+							//existing accounts, random user names must not raise the counters of real users
+							waitSeconds = m_failureThrottle.recordFailure(throttleIP, outcome==Outcome.BAD_PASSWORD ? userKey : null,
+									config.getWaitOnErrorSeconds());
+						}
+						resp.setHeader("Auth-Wait", toHeaderValue(waitSeconds));
+					}
+					else if (StringUtil.isNotEmpty(config.getWaitOnError())) {
+						resp.setHeader("Auth-Wait", config.getWaitOnError());
+					}
+				}
+				else {
+					//user tried anonymous access and tried to send mail to external hosts or unknown local users
+					if (isUnknownRecipient) {
+						if (debug)
+							LogUtil.debug("smtp.unknownrecipient", null, clientIP, "recipient does not exist, "+smtpFrom+" => "+smtpTo+", attempt: "+authLoginAttempt);
+
+						resp.setHeader("Auth-Status", "Recipient address rejected: user unknown");
+						resp.setHeader("Auth-Error-Code", "550 5.1.1");
+					}
+					else if (isSmtpFromInLocalDomain) {
+						//from contained a local user
+						if (debug)
+							LogUtil.debug("smtp.authrequired", null, clientIP, "authentication is required for sending mail to external hosts, "+smtpFrom+" => "+smtpTo+", attempt: "+authLoginAttempt);
+
+						resp.setHeader("Auth-Status", "This mail server requires authentication before sending mail from a locally hosted domain. Please reconfigure your mail client to authenticate before sending mail.");
+						resp.setHeader("Auth-Error-Code", "551");
+					}
+					else {
+						//from contained an external user
+						if (debug)
+							LogUtil.debug("smtp.relaydenied", null, clientIP, "relaying forbidden, "+smtpFrom+" => "+smtpTo+", attempt: "+authLoginAttempt);
+
+						resp.setHeader("Auth-Status", "Relaying denied");
+						resp.setHeader("Auth-Error-Code", "550");
+					}
+					if (StringUtil.isNotEmpty(config.getWaitOnError()))
+						resp.setHeader("Auth-Wait", config.getWaitOnError());
+				}
+			}
+		}
+		catch (DirectoryOverloadException e) {
+			//too many pending lookups, shed load instead of blocking the HTTP thread
+			outcome = Outcome.TEMPORARY_FAILURE;
+			if (debug)
+				LogUtil.debug("directory.overload", authUserEnc, clientIP, m_directory+", attempt: "+authLoginAttempt);
+			sendTemporaryFailure(resp);
+		}
+		catch (DirectoryUnavailableException e) {
+			//circuit breaker open, fail fast until the directory responds again
+			outcome = Outcome.TEMPORARY_FAILURE;
+			if (debug)
+				LogUtil.debug("directory.unavailable", authUserEnc, clientIP, e.getMessage()+", attempt: "+authLoginAttempt);
+			sendTemporaryFailure(resp);
+		}
+		catch (TimeoutException e) {
+			outcome = Outcome.TEMPORARY_FAILURE;
+			LogUtil.log(Level.WARNING, "Timeout checking credentials of "+authUserEnc+" via "+clientIP+", "+m_directory);
+			sendTemporaryFailure(resp);
+		}
+		catch (Exception e) {
+			LogUtil.log(Level.SEVERE, "Error checking credentials of "+authUserEnc+" / SMTP connection from "+smtpFrom+" to "+smtpTo+" via "+clientIP, e);
+			//without Auth-Status nginx drops the session, let the client retry instead
+			sendTemporaryFailure(resp);
+		}
+		finally {
+			if (!synthetic) {
+				long durationNanos = System.nanoTime() - tStart;
+				m_metrics.recordOutcome(authProtocol, outcome);
+				m_metrics.recordPhase(Phase.REQUEST, durationNanos);
+				if (m_auditTrail!=null) {
+					//never blocks, dropped and counted if the writer cannot keep up
+					m_auditTrail.offer(authProtocol, outcome.getLabel(), authUser!=null ? authUser : authUserEnc, clientIP,
+							smtpFrom, smtpTo, authLoginAttempt, targetServer, durationNanos / 1000);
+				}
+			}
+		}
+	}
+
+	private static String toHeaderValue(int seconds) {
+		return seconds>=0 && seconds<WAIT_SECONDS_VALUES.length ? WAIT_SECONDS_VALUES[seconds] : Integer.toString(seconds);
+	}
+
+	/**
+	 * Tells nginx to retry the auth request later
+	 * 
+	 * @param resp response
+	 */
+	public void sendTemporaryFailure(AuthResponse resp) {
+//		HTTP/1.0 200 OK
+//		Auth-Status: Temporary server problem, try again later
+//		Auth-Error-Code: 451 4.3.0
+//		Auth-Wait: 3
+		resp.setHeader("Auth-Status", "Temporary server problem, try again later");
+		resp.setHeader("Auth-Error-Code", "451 4.3.0");
+		resp.setHeader("Auth-Wait", m_config.getWaitOnOverload());
+	}
+
+}
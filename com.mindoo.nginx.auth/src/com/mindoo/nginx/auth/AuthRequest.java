@@ -0,0 +1,27 @@
+package com.mindoo.nginx.auth;
+
+import java.util.Collection;
+
+/**
+ * Auth request received from nginx, independent of the front-end that received it
+ * 
+ * @author Karsten Lehmann
+ */
+public interface AuthRequest {
+
+	/**
+	 * Returns the value of a request header
+	 * 
+	 * @param name header name, case-insensitive
+	 * @return value or null if missing
+	 */
+	public String getHeader(String name);
+
+	/**
+	 * Returns the names of all request headers
+	 * 
+	 * @return names
+	 */
+	public Collection<String> getHeaderNames();
+
+}
@@ -0,0 +1,27 @@
+package com.mindoo.nginx.auth;
+
+/**
+ * Response to an nginx auth request. Front-ends send HTTP status 200 without body
+ * unless {@link #sendError(int, String)} is called.
+ * 
+ * @author Karsten Lehmann
+ */
+public interface AuthResponse {
+
+	/**
+	 * Sets a response header
+	 * 
+	 * @param name name
+	 * @param value value
+	 */
+	public void setHeader(String name, String value);
+
+	/**
+	 * Replaces the response with an HTTP error
+	 * 
+	 * @param status HTTP status code
+	 * @param msg message
+	 */
+	public void sendError(int status, String msg);
+
+}
@@ -0,0 +1,127 @@
+package com.mindoo.nginx.auth.audit;
+
+/**
+ * Preallocated, reusable slot of the {@link AuditTrail}. Fields are written by the
+ * request thread before the slot gets published and read by the writer thread
+ * afterwards; {@link AuditSink} implementations must not keep a reference to the
+ * event after {@link AuditSink#write(AuditEvent)} has returned.
+ *
+ * @author Karsten Lehmann
+ */
+public class AuditEvent {
+	private long m_time;
+	private String m_protocol;
+	private String m_outcome;
+	private String m_user;
+	private String m_clientIP;
+	private String m_smtpFrom;
+	private String m_smtpTo;
+	private String m_loginAttempt;
+	private String m_server;
+	private long m_durationMicros;
+
+	void set(long time, String protocol, String outcome, String user, String clientIP, String smtpFrom, String smtpTo,
+			String loginAttempt, String server, long durationMicros) {
+		m_time = time;
+		m_protocol = protocol;
+		m_outcome = outcome;
+		m_user = user;
+		m_clientIP = clientIP;
+		m_smtpFrom = smtpFrom;
+		m_smtpTo = smtpTo;
+		m_loginAttempt = loginAttempt;
+		m_server = server;
+		m_durationMicros = durationMicros;
+	}
+
+	void clear() {
+		m_protocol = null;
+		m_outcome = null;
+		m_user = null;
+		m_clientIP = null;
+		m_smtpFrom = null;
+		m_smtpTo = null;
+		m_loginAttempt = null;
+		m_server = null;
+	}
+
+	/**
+	 * Returns the time the request has been answered
+	 *
+	 * @return time in milliseconds since 1970
+	 */
+	public long getTime() {
+		return m_time;
+	}
+
+	/**
+	 * Returns the mail protocol
+	 *
+	 * @return imap, pop3, smtp or null
+	 */
+	public String getProtocol() {
+		return m_protocol;
+	}
+
+	/**
+	 * Returns the label of the request outcome
+	 *
+	 * @return outcome, e.g. "ok" or "bad_password"
+	 */
+	public String getOutcome() {
+		return m_outcome;
+	}
+
+	/**
+	 * Returns the login name sent by the client
+	 *
+	 * @return user or null for anonymous SMTP
+	 */
+	public String getUser() {
+		return m_user;
+	}
+
+	public String getClientIP() {
+		return m_clientIP;
+	}
+
+	/**
+	 * Returns the SMTP envelope sender
+	 *
+	 * @return MAIL FROM value or null
+	 */
+	public String getSmtpFrom() {
+		return m_smtpFrom;
+	}
+
+	/**
+	 * Returns the SMTP envelope recipient
+	 *
+	 * @return RCPT TO value or null
+	 */
+	public String getSmtpTo() {
+		return m_smtpTo;
+	}
+
+	public String getLoginAttempt() {
+		return m_loginAttempt;
+	}
+
+	/**
+	 * Returns the mail server address the session has been sent to
+	 *
+	 * @return address or null if the request has been rejected
+	 */
+	public String getServer() {
+		return m_server;
+	}
+
+	/**
+	 * Returns the processing time of the request
+	 *
+	 * @return microseconds
+	 */
+	public long getDurationMicros() {
+		return m_durationMicros;
+	}
+}
@@ -0,0 +1,37 @@
+package com.mindoo.nginx.auth.audit;
+
+/**
+ * Destination of audit events, only called by the writer thread of the {@link AuditTrail}
+ *
+ * @author Karsten Lehmann
+ */
+public interface AuditSink {
+
+	/**
+	 * Writes an event; the event object gets reused after this call
+	 *
+	 * @param event event
+	 * @throws Exception
+	 */
+	public void write(AuditEvent event) throws Exception;
+
+	/**
+	 * Called after a batch of events has been written
+	 *
+	 * @throws Exception
+	 */
+	public void flush() throws Exception;
+
+	/**
+	 * Frees all resources
+	 */
+	public void close();
+
+	/**
+	 * Returns true if the writer thread needs to be a {@link lotus.domino.NotesThread}
+	 *
+	 * @return true for Domino API access
+	 */
+	public boolean isNotesThreadRequired();
+
+}
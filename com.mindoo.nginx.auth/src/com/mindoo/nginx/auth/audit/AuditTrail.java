@@ -0,0 +1,268 @@
+package com.mindoo.nginx.auth.audit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import lotus.domino.NotesThread;
+
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Asynchronous record of all auth decisions. Works like the
+ * {@link com.mindoo.nginx.auth.log.RingBufferLog}: request threads claim a preallocated
+ * {@link AuditEvent} slot with a single CAS and publish it, a background thread passes
+ * published events to an {@link AuditSink} and flushes the sink when a batch is full or
+ * the flush interval has passed since the first unflushed event.<br>
+ * <br>
+ * Authentication never waits for the sink: if the buffer is full, because the log
+ * database or disk is slow or unavailable, new events are dropped and counted.
+ *
+ * @author Karsten Lehmann
+ */
+public class AuditTrail {
+	private static final long IDLE_PARK_NANOS = 5000000L;
+
+	private final AuditEvent[] m_slots;
+	private final int m_mask;
+	/** sequence number published in each slot, -1 if empty */
+	private final AtomicLongArray m_published;
+	/** next sequence number to claim by producers */
+	private final AtomicLong m_head = new AtomicLong();
+	/** next sequence number to read by the writer thread */
+	private volatile long m_tail;
+
+	private final AuditSink m_sink;
+	private final int m_batchSize;
+	private final long m_flushIntervalMillis;
+	private Thread m_writerThread;
+	private volatile boolean m_stopped;
+	/** true after a sink error until the next successful flush, used to log only the first error */
+	private boolean m_failing;
+
+	private final AtomicLong m_dropped = new AtomicLong();
+	private final AtomicLong m_written = new AtomicLong();
+	private final AtomicLong m_batches = new AtomicLong();
+	private final AtomicLong m_sinkErrors = new AtomicLong();
+
+	/**
+	 * Creates a new audit trail
+	 *
+	 * @param capacity number of buffered events, rounded up to the next power of two
+	 * @param batchSize max number of events written before the sink gets flushed
+	 * @param flushIntervalMillis max time in milliseconds an event stays unflushed
+	 * @param sink destination of the events
+	 */
+	public AuditTrail(int capacity, int batchSize, long flushIntervalMillis, AuditSink sink) {
+		int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+		m_slots = new AuditEvent[size];
+		for (int i=0; i<size; i++) {
+			m_slots[i] = new AuditEvent();
+		}
+		m_mask = size - 1;
+		m_published = new AtomicLongArray(size);
+		for (int i=0; i<size; i++) {
+			m_published.set(i, -1);
+		}
+		m_batchSize = Math.max(1, batchSize);
+		m_flushIntervalMillis = Math.max(1, flushIntervalMillis);
+		m_sink = sink;
+	}
+
+	/**
+	 * Starts the writer thread
+	 */
+	public synchronized void start() {
+		if (m_writerThread!=null) {
+			return;
+		}
+		Runnable writer = new Runnable() {
+
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		//the NotesThread initializes the Notes runtime for the Domino sink
+		m_writerThread = m_sink.isNotesThreadRequired() ? new NotesThread(writer, "NGINXAUTH audit writer") :
+			new Thread(writer, "NGINXAUTH audit writer");
+		m_writerThread.setDaemon(true);
+		m_writerThread.start();
+	}
+
+	/**
+	 * Writes all buffered events, stops the writer thread and closes the sink
+	 */
+	public synchronized void stop() {
+		m_stopped = true;
+		if (m_writerThread!=null) {
+			LockSupport.unpark(m_writerThread);
+			try {
+				m_writerThread.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			m_writerThread = null;
+		}
+	}
+
+	/**
+	 * Adds an event to the buffer without blocking
+	 *
+	 * @param protocol mail protocol
+	 * @param outcome outcome label
+	 * @param user login name or null
+	 * @param clientIP client IP or null
+	 * @param smtpFrom SMTP envelope sender or null
+	 * @param smtpTo SMTP envelope recipient or null
+	 * @param loginAttempt login attempt sent by nginx or null
+	 * @param server mail server the session has been sent to or null
+	 * @param durationMicros processing time of the request
+	 * @return false if the event has been dropped because the buffer is full
+	 */
+	public boolean offer(String protocol, String outcome, String user, String clientIP, String smtpFrom, String smtpTo,
+			String loginAttempt, String server, long durationMicros) {
+		long seq;
+		do {
+			seq = m_head.get();
+			if (seq - m_tail >= m_slots.length) {
+				m_dropped.incrementAndGet();
+				return false;
+			}
+		}
+		while (!m_head.compareAndSet(seq, seq+1));
+
+		int idx = (int) (seq & m_mask);
+		m_slots[idx].set(System.currentTimeMillis(), protocol, outcome, user, clientIP, smtpFrom, smtpTo, loginAttempt,
+				server, durationMicros);
+		//ordered store, makes the slot content visible to the writer thread
+		m_published.lazySet(idx, seq);
+		return true;
+	}
+
+	private void writeLoop() {
+		int pending = 0;
+		long firstPendingAt = 0;
+		try {
+			while (true) {
+				int drained = 0;
+				long seq = m_tail;
+				int idx = (int) (seq & m_mask);
+				while (pending < m_batchSize && m_published.get(idx)==seq) {
+					AuditEvent event = m_slots[idx];
+					try {
+						m_sink.write(event);
+						if (pending++ == 0) {
+							firstPendingAt = System.currentTimeMillis();
+						}
+					}
+					catch (Throwable t) {
+						onSinkError(t);
+					}
+					event.clear();
+					m_published.set(idx, -1);
+					//frees the slot for producers
+					m_tail = ++seq;
+					idx = (int) (seq & m_mask);
+					drained++;
+				}
+
+				long unflushedMillis = pending==0 ? 0 : System.currentTimeMillis() - firstPendingAt;
+				if (pending>0 && (pending>=m_batchSize || unflushedMillis>=m_flushIntervalMillis || m_stopped)) {
+					try {
+						m_sink.flush();
+						m_written.addAndGet(pending);
+						m_batches.incrementAndGet();
+						m_failing = false;
+					}
+					catch (Throwable t) {
+						onSinkError(t);
+					}
+					pending = 0;
+				}
+				else if (drained==0) {
+					if (m_stopped && pending==0) {
+						break;
+					}
+					long parkNanos = IDLE_PARK_NANOS;
+					if (pending>0) {
+						parkNanos = Math.min(parkNanos, TimeUnit.MILLISECONDS.toNanos(m_flushIntervalMillis - unflushedMillis));
+					}
+					LockSupport.parkNanos(parkNanos);
+				}
+			}
+		}
+		finally {
+			m_sink.close();
+		}
+	}
+
+	private void onSinkError(Throwable t) {
+		m_sinkErrors.incrementAndGet();
+		if (!m_failing) {
+			m_failing = true;
+			LogUtil.log(Level.SEVERE, "Error writing audit events to "+m_sink+", further errors are only counted until the next successful write", t);
+		}
+	}
+
+	/**
+	 * Returns the number of events dropped because the buffer was full
+	 *
+	 * @return count
+	 */
+	public long getDropped() {
+		return m_dropped.get();
+	}
+
+	/**
+	 * Returns the number of events written and flushed to the sink
+	 *
+	 * @return count
+	 */
+	public long getWritten() {
+		return m_written.get();
+	}
+
+	/**
+	 * Returns the number of sink flushes
+	 *
+	 * @return count
+	 */
+	public long getBatches() {
+		return m_batches.get();
+	}
+
+	/**
+	 * Returns the number of failed event writes and flushes
+	 *
+	 * @return count
+	 */
+	public long getSinkErrors() {
+		return m_sinkErrors.get();
+	}
+
+	/**
+	 * Returns the number of events waiting for the writer thread
+	 *
+	 * @return count
+	 */
+	public long getQueued() {
+		return Math.max(0, m_head.get() - m_tail);
+	}
+
+	public int getCapacity() {
+		return m_slots.length;
+	}
+
+	public AuditSink getSink() {
+		return m_sink;
+	}
+
+	@Override
+	public String toString() {
+		return "AuditTrail [sink="+m_sink+", capacity="+m_slots.length+", batchSize="+m_batchSize+", written="+m_written.get()+
+				", batches="+m_batches.get()+", dropped="+m_dropped.get()+", sinkErrors="+m_sinkErrors.get()+"]";
+	}
+}
@@ -0,0 +1,132 @@
+package com.mindoo.nginx.auth.audit;
+
+import java.util.Date;
+import java.util.logging.Level;
+
+import lotus.domino.Database;
+import lotus.domino.DateTime;
+import lotus.domino.Document;
+import lotus.domino.NotesException;
+import lotus.domino.NotesFactory;
+import lotus.domino.Session;
+
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Writes audit events as documents with form "AuthEvent" to a local Domino database,
+ * which gets created if it does not exist yet. Session and database stay open across
+ * batches and are reopened after an error.<br>
+ * <br>
+ * Items: Time, Outcome, Protocol, User, ClientIP, SMTPFrom, SMTPTo, LoginAttempt,
+ * Server, DurationMicros.
+ *
+ * @author Karsten Lehmann
+ */
+public class DominoAuditSink implements AuditSink {
+	private static final String FORM = "AuthEvent";
+
+	private final String m_dbPath;
+	private Session m_session;
+	private Database m_db;
+
+	/**
+	 * Creates a new sink
+	 *
+	 * @param dbPath database path relative to the data directory, e.g. nginxauth/audit.nsf
+	 */
+	public DominoAuditSink(String dbPath) {
+		m_dbPath = dbPath;
+	}
+
+	private void open() throws NotesException {
+		m_session = NotesFactory.createSession();
+		m_db = m_session.getDatabase("", m_dbPath, true);
+		if (!m_db.isOpen()) {
+			m_db.open();
+		}
+		LogUtil.log(Level.INFO, "Writing auth audit events to "+m_db.getFilePath());
+	}
+
+	@Override
+	public void write(AuditEvent event) throws Exception {
+		if (m_db==null) {
+			open();
+		}
+		Document doc = null;
+		DateTime time = null;
+		try {
+			doc = m_db.createDocument();
+			time = m_session.createDateTime(new Date(event.getTime()));
+			doc.replaceItemValue("Form", FORM);
+			doc.replaceItemValue("Time", time);
+			doc.replaceItemValue("Outcome", toItemValue(event.getOutcome()));
+			doc.replaceItemValue("Protocol", toItemValue(event.getProtocol()));
+			doc.replaceItemValue("User", toItemValue(event.getUser()));
+			doc.replaceItemValue("ClientIP", toItemValue(event.getClientIP()));
+			doc.replaceItemValue("SMTPFrom", toItemValue(event.getSmtpFrom()));
+			doc.replaceItemValue("SMTPTo", toItemValue(event.getSmtpTo()));
+			doc.replaceItemValue("LoginAttempt", toItemValue(event.getLoginAttempt()));
+			doc.replaceItemValue("Server", toItemValue(event.getServer()));
+			doc.replaceItemValue("DurationMicros", Double.valueOf(event.getDurationMicros()));
+			doc.save(true, false);
+		}
+		catch (NotesException e) {
+			recycle(time, doc);
+			time = null;
+			doc = null;
+			//reopen for the next event
+			close();
+			throw e;
+		}
+		finally {
+			recycle(time, doc);
+		}
+	}
+
+	private static String toItemValue(String value) {
+		return value==null ? "" : value;
+	}
+
+	private static void recycle(DateTime time, Document doc) {
+		try {
+			if (time!=null) {
+				time.recycle();
+			}
+			if (doc!=null) {
+				doc.recycle();
+			}
+		}
+		catch (NotesException e) {
+			//ignore
+		}
+	}
+
+	@Override
+	public void flush() throws Exception {
+		//documents are saved one by one
+	}
+
+	@Override
+	public void close() {
+		if (m_session!=null) {
+			try {
+				m_session.recycle();
+			}
+			catch (NotesException e) {
+				//ignore
+			}
+		}
+		m_session = null;
+		m_db = null;
+	}
+
+	@Override
+	public boolean isNotesThreadRequired() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "DominoAuditSink [db="+m_dbPath+"]";
+	}
+}
@@ -0,0 +1,107 @@
+package com.mindoo.nginx.auth.audit;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import com.mindoo.nginx.auth.log.RollingFileLogSink;
+
+/**
+ * Writes audit events as tab separated lines to a local file that gets rotated when
+ * it reaches a max size. Columns: time, outcome, protocol, user, client IP, SMTP from,
+ * SMTP to, login attempt, server, processing time in microseconds; missing values are
+ * written as "-".
+ *
+ * @author Karsten Lehmann
+ */
+public class FileAuditSink implements AuditSink {
+	private final RollingFileLogSink m_file;
+	/** only used by the writer thread */
+	private final SimpleDateFormat m_secondFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+	private final SimpleDateFormat m_zoneFormat = new SimpleDateFormat("Z");
+	private final StringBuilder m_line = new StringBuilder(256);
+	/** formatting dates is the most expensive part of a line, so it is only done once per second */
+	private long m_cachedSecond = Long.MIN_VALUE;
+	private String m_cachedSecondStr;
+	private String m_cachedZoneStr;
+
+	/**
+	 * Creates a new sink
+	 *
+	 * @param file audit file
+	 * @param maxBytes size after which the file gets rotated
+	 * @param maxFiles number of rotated files to keep
+	 */
+	public FileAuditSink(File file, long maxBytes, int maxFiles) {
+		m_file = new RollingFileLogSink(file, maxBytes, maxFiles);
+	}
+
+	@Override
+	public void write(AuditEvent event) throws Exception {
+		StringBuilder sb = m_line;
+		sb.setLength(0);
+		appendTime(sb, event.getTime());
+		appendColumn(sb, event.getOutcome());
+		appendColumn(sb, event.getProtocol());
+		appendColumn(sb, event.getUser());
+		appendColumn(sb, event.getClientIP());
+		appendColumn(sb, event.getSmtpFrom());
+		appendColumn(sb, event.getSmtpTo());
+		appendColumn(sb, event.getLoginAttempt());
+		appendColumn(sb, event.getServer());
+		sb.append('\t').append(event.getDurationMicros());
+		m_file.write(sb.toString());
+	}
+
+	private void appendTime(StringBuilder sb, long time) {
+		long second = time / 1000;
+		if (second!=m_cachedSecond) {
+			Date date = new Date(second * 1000);
+			m_cachedSecondStr = m_secondFormat.format(date);
+			m_cachedZoneStr = m_zoneFormat.format(date);
+			m_cachedSecond = second;
+		}
+		int millis = (int) (time - second * 1000);
+		sb.append(m_cachedSecondStr).append('.');
+		if (millis<100) {
+			sb.append('0');
+		}
+		if (millis<10) {
+			sb.append('0');
+		}
+		sb.append(millis).append(m_cachedZoneStr);
+	}
+
+	private static void appendColumn(StringBuilder sb, String value) {
+		sb.append('\t');
+		if (value==null || value.length()==0) {
+			sb.append('-');
+			return;
+		}
+		//values come from client headers, keep one event per line
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			sb.append(c=='\t' || c=='\r' || c=='\n' ? ' ' : c);
+		}
+	}
+
+	@Override
+	public void flush() throws Exception {
+		m_file.flush();
+	}
+
+	@Override
+	public void close() {
+		m_file.close();
+	}
+
+	@Override
+	public boolean isNotesThreadRequired() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "FileAuditSink ["+m_file+"]";
+	}
+}
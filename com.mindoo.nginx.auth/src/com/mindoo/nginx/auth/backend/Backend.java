@@ -0,0 +1,153 @@
+package com.mindoo.nginx.auth.backend;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mail server that nginx can proxy a session to, returned as Auth-Server and Auth-Port.
+ * The health state is written by the probes of the {@link BackendPool} and read
+ * without locking during selection.
+ * 
+ * @author Karsten Lehmann
+ */
+public class Backend {
+	private final String m_protocol;
+	private final String m_host;
+	private final int m_port;
+	private final String m_portValue;
+	private final int m_weight;
+
+	/** resolved IP, nginx does not accept host names in Auth-Server */
+	private volatile String m_address;
+	private volatile boolean m_up;
+	private final AtomicInteger m_consecutiveFailures = new AtomicInteger();
+	/** probe failures, halved on every successful probe */
+	private final AtomicInteger m_recentFailures = new AtomicInteger();
+	private final AtomicLong m_selected = new AtomicLong();
+
+	/**
+	 * Creates a new backend, considered healthy until the first probes fail
+	 * 
+	 * @param protocol value of Auth-Protocol, e.g. "imap"
+	 * @param host host name or IP
+	 * @param port port
+	 * @param weight relative share of sessions for weighted round-robin and consistent hashing
+	 */
+	public Backend(String protocol, String host, int port, int weight) {
+		if (port<=0 || port>65535) {
+			throw new IllegalArgumentException("Invalid port: "+port);
+		}
+		m_protocol = protocol;
+		m_host = host;
+		m_port = port;
+		m_portValue = Integer.toString(port);
+		m_weight = Math.max(1, weight);
+		m_up = resolve();
+	}
+
+	/**
+	 * Resolves the host name to the IP returned to nginx
+	 * 
+	 * @return true if resolved
+	 */
+	boolean resolve() {
+		try {
+			m_address = InetAddress.getByName(m_host).getHostAddress();
+			return true;
+		}
+		catch (UnknownHostException e) {
+			return false;
+		}
+	}
+
+	public String getProtocol() {
+		return m_protocol;
+	}
+
+	public String getHost() {
+		return m_host;
+	}
+
+	public int getPort() {
+		return m_port;
+	}
+
+	/**
+	 * Returns the port as Auth-Port header value
+	 * 
+	 * @return port
+	 */
+	public String getPortValue() {
+		return m_portValue;
+	}
+
+	public int getWeight() {
+		return m_weight;
+	}
+
+	/**
+	 * Returns the IP as Auth-Server header value
+	 * 
+	 * @return IP or null if the host name could not be resolved yet
+	 */
+	public String getAddress() {
+		return m_address;
+	}
+
+	public boolean isUp() {
+		return m_up && m_address!=null;
+	}
+
+	public int getRecentFailures() {
+		return m_recentFailures.get();
+	}
+
+	public long getSelected() {
+		return m_selected.get();
+	}
+
+	void markSelected() {
+		m_selected.incrementAndGet();
+	}
+
+	/**
+	 * Records a successful probe
+	 * 
+	 * @return true if the backend was down before
+	 */
+	boolean probeSucceeded() {
+		m_consecutiveFailures.set(0);
+		int failures;
+		do {
+			failures = m_recentFailures.get();
+		}
+		while (failures>0 && !m_recentFailures.compareAndSet(failures, failures / 2));
+
+		boolean wasUp = m_up;
+		m_up = true;
+		return !wasUp;
+	}
+
+	/**
+	 * Records a failed probe
+	 * 
+	 * @param maxFails number of consecutive failures after which the backend is considered down
+	 * @return true if the backend was up before and is down now
+	 */
+	boolean probeFailed(int maxFails) {
+		m_recentFailures.incrementAndGet();
+		if (m_consecutiveFailures.incrementAndGet() >= maxFails && m_up) {
+			m_up = false;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return m_protocol+"://"+m_host+":"+m_port+(m_weight!=1 ? "*"+m_weight : "")+
+				" [up="+isUp()+", recentFailures="+m_recentFailures.get()+", selected="+m_selected.get()+"]";
+	}
+}
@@ -0,0 +1,468 @@
+package com.mindoo.nginx.auth.backend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import com.mindoo.nginx.auth.metrics.AuthMetrics;
+import com.mindoo.nginx.auth.utils.HashUtil;
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Per-protocol groups of mail servers that nginx sessions get spread across.<br>
+ * <br>
+ * Background probes open a TCP connection to every backend; after a number of
+ * consecutive failures a backend is skipped until a probe succeeds again. Selection
+ * reads immutable arrays and atomic counters only, so it does not lock.
+ * 
+ * @author Karsten Lehmann
+ */
+public class BackendPool {
+	/** virtual nodes per weight unit on the consistent hash ring */
+	private static final int HASH_POINTS_PER_WEIGHT = 100;
+
+	public static enum Strategy {
+		/** backend with the lowest number of recent probe failures, round-robin between equal ones */
+		LEAST_FAILURES,
+		/** weighted round-robin */
+		ROUND_ROBIN,
+		/** consistent hashing on the user name, so sessions of a user go to the same server */
+		HASH;
+
+		/**
+		 * Parses a Notes.ini value
+		 * 
+		 * @param value "leastfailures", "roundrobin" or "hash"
+		 * @return strategy or null if unknown
+		 */
+		public static Strategy parse(String value) {
+			if (value==null) {
+				return null;
+			}
+			String valueLC = value.trim().toLowerCase(Locale.ENGLISH);
+			if ("leastfailures".equals(valueLC)) {
+				return LEAST_FAILURES;
+			}
+			else if ("roundrobin".equals(valueLC)) {
+				return ROUND_ROBIN;
+			}
+			else if ("hash".equals(valueLC)) {
+				return HASH;
+			}
+			return null;
+		}
+	}
+
+	private final Strategy m_strategy;
+	private final int m_maxFails;
+	private final int m_probeTimeoutMillis;
+	private final Map<String,List<Backend>> m_backendsByProtocol = new HashMap<String,List<Backend>>();
+	private volatile Map<String,Group> m_groups = new HashMap<String,Group>();
+	private ScheduledExecutorService m_probeExecutor;
+
+	/**
+	 * Creates a new pool
+	 * 
+	 * @param strategy selection strategy
+	 * @param maxFails number of consecutive probe failures after which a backend is considered down
+	 * @param probeTimeoutMillis connect timeout of probes in milliseconds
+	 */
+	public BackendPool(Strategy strategy, int maxFails, int probeTimeoutMillis) {
+		m_strategy = strategy;
+		m_maxFails = Math.max(1, maxFails);
+		m_probeTimeoutMillis = Math.max(1, probeTimeoutMillis);
+	}
+
+	/**
+	 * Parses a comma separated list of backends in the format host[:port][*weight],
+	 * IPv6 addresses with port need to be enclosed in brackets, e.g. [2001:db8::1]:143
+	 * 
+	 * @param protocol value of Auth-Protocol, e.g. "imap"
+	 * @param spec list of backends
+	 * @param defaultPort port if missing in an entry
+	 * @return backends
+	 * @throws IllegalArgumentException for invalid entries
+	 */
+	public static List<Backend> parse(String protocol, String spec, int defaultPort) {
+		List<Backend> backends = new ArrayList<Backend>();
+		for (String currEntry : spec.split(",")) {
+			String entry = currEntry.trim();
+			if (entry.length()==0) {
+				continue;
+			}
+			try {
+				int weight = 1;
+				int iPos = entry.lastIndexOf('*');
+				if (iPos!=-1) {
+					weight = Integer.parseInt(entry.substring(iPos+1).trim());
+					entry = entry.substring(0, iPos).trim();
+				}
+				String host = entry;
+				int port = defaultPort;
+				if (entry.startsWith("[")) {
+					int iEnd = entry.indexOf(']');
+					if (iEnd==-1) {
+						throw new IllegalArgumentException("Invalid backend: "+currEntry);
+					}
+					host = entry.substring(1, iEnd);
+					if (entry.length()>iEnd+1) {
+						if (entry.charAt(iEnd+1)!=':') {
+							throw new IllegalArgumentException("Invalid backend: "+currEntry);
+						}
+						port = Integer.parseInt(entry.substring(iEnd+2).trim());
+					}
+				}
+				else if (entry.indexOf(':')!=-1 && entry.indexOf(':')==entry.lastIndexOf(':')) {
+					iPos = entry.indexOf(':');
+					host = entry.substring(0, iPos);
+					port = Integer.parseInt(entry.substring(iPos+1).trim());
+				}
+				backends.add(new Backend(protocol, host, port, weight));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid backend: "+currEntry);
+			}
+		}
+		return backends;
+	}
+
+	/**
+	 * Adds a backend
+	 * 
+	 * @param backend backend
+	 */
+	public synchronized void addBackend(Backend backend) {
+		List<Backend> backends = m_backendsByProtocol.get(backend.getProtocol());
+		if (backends==null) {
+			backends = new ArrayList<Backend>();
+			m_backendsByProtocol.put(backend.getProtocol(), backends);
+		}
+		backends.add(backend);
+
+		Map<String,Group> groups = new HashMap<String,Group>(m_groups);
+		groups.put(backend.getProtocol(), new Group(backends.toArray(new Backend[backends.size()])));
+		m_groups = groups;
+	}
+
+	/**
+	 * Checks if backends are configured for a protocol
+	 * 
+	 * @param protocol value of Auth-Protocol
+	 * @return true if configured, false to use the local server
+	 */
+	public boolean hasBackends(String protocol) {
+		return protocol!=null && m_groups.containsKey(protocol);
+	}
+
+	/**
+	 * Selects a healthy backend
+	 * 
+	 * @param protocol value of Auth-Protocol
+	 * @param key key for consistent hashing, e.g. the lowercase user name, or null
+	 * @return backend or null if no backend is configured or all are down
+	 */
+	public Backend select(String protocol, String key) {
+		Group group = protocol==null ? null : m_groups.get(protocol);
+		if (group==null) {
+			return null;
+		}
+		Backend backend;
+		if (m_strategy==Strategy.HASH && key!=null) {
+			backend = group.selectByHash(key);
+		}
+		else if (m_strategy==Strategy.LEAST_FAILURES) {
+			backend = group.selectLeastFailures();
+		}
+		else {
+			backend = group.selectRoundRobin();
+		}
+		if (backend!=null) {
+			backend.markSelected();
+		}
+		return backend;
+	}
+
+	/**
+	 * Returns all backends
+	 * 
+	 * @return backends
+	 */
+	public List<Backend> getBackends() {
+		List<Backend> backends = new ArrayList<Backend>();
+		for (Group currGroup : m_groups.values()) {
+			backends.addAll(Arrays.asList(currGroup.m_backends));
+		}
+		return backends;
+	}
+
+	/**
+	 * Probes all backends once in the calling thread
+	 */
+	public void probeAll() {
+		for (Backend currBackend : getBackends()) {
+			probe(currBackend);
+		}
+	}
+
+	/**
+	 * Opens and closes a TCP connection to the backend and updates its health state
+	 * 
+	 * @param backend backend
+	 * @return true if the connection could be established
+	 */
+	public boolean probe(Backend backend) {
+		boolean success = false;
+		if (backend.getAddress()!=null || backend.resolve()) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(backend.getAddress(), backend.getPort()), m_probeTimeoutMillis);
+				success = true;
+			}
+			catch (IOException e) {
+				//connection refused or timeout
+			}
+			finally {
+				try {
+					socket.close();
+				}
+				catch (IOException e) {
+					//ignore
+				}
+			}
+		}
+
+		if (success) {
+			if (backend.probeSucceeded()) {
+				LogUtil.log(Level.INFO, "Backend is up again: "+backend);
+			}
+		}
+		else if (backend.probeFailed(m_maxFails)) {
+			LogUtil.log(Level.WARNING, "Backend is down after "+m_maxFails+" failed probes: "+backend);
+		}
+		return success;
+	}
+
+	/**
+	 * Starts probing all backends in background threads
+	 * 
+	 * @param intervalMillis interval between probes of a backend in milliseconds
+	 */
+	public synchronized void start(long intervalMillis) {
+		if (m_probeExecutor!=null) {
+			return;
+		}
+		List<Backend> backends = getBackends();
+		if (backends.isEmpty()) {
+			return;
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		m_probeExecutor = Executors.newScheduledThreadPool(Math.min(4, backends.size()), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NGINXAUTH backend probe "+threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (final Backend currBackend : backends) {
+			m_probeExecutor.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						probe(currBackend);
+					}
+					catch (Throwable t) {
+						LogUtil.log(Level.SEVERE, "Error probing backend "+currBackend, t);
+					}
+				}
+			}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the probes
+	 */
+	public synchronized void shutdown() {
+		if (m_probeExecutor!=null) {
+			m_probeExecutor.shutdownNow();
+			m_probeExecutor = null;
+		}
+	}
+
+	/**
+	 * Writes health state and selection counts in Prometheus text format
+	 * 
+	 * @param sb string builder to write to
+	 */
+	public void writeMetrics(StringBuilder sb) {
+		List<Backend> backends = getBackends();
+		sb.append("# HELP nginxauth_backend_up 1 if the backend passed its last health probes\n");
+		sb.append("# TYPE nginxauth_backend_up gauge\n");
+		for (Backend currBackend : backends) {
+			appendLabels(sb.append("nginxauth_backend_up"), currBackend).append(currBackend.isUp() ? 1 : 0).append('\n');
+		}
+		sb.append("# HELP nginxauth_backend_selected_total Sessions routed to the backend\n");
+		sb.append("# TYPE nginxauth_backend_selected_total counter\n");
+		for (Backend currBackend : backends) {
+			appendLabels(sb.append("nginxauth_backend_selected_total"), currBackend).append(currBackend.getSelected()).append('\n');
+		}
+		AuthMetrics.appendGauge(sb, "nginxauth_backends_up", "Number of healthy backends", countUp(backends));
+	}
+
+	private static StringBuilder appendLabels(StringBuilder sb, Backend backend) {
+		return sb.append("{protocol=\"").append(backend.getProtocol()).append("\",backend=\"").append(backend.getHost())
+				.append(':').append(backend.getPort()).append("\"} ");
+	}
+
+	private static int countUp(List<Backend> backends) {
+		int up = 0;
+		for (Backend currBackend : backends) {
+			if (currBackend.isUp()) {
+				up++;
+			}
+		}
+		return up;
+	}
+
+	@Override
+	public String toString() {
+		return "BackendPool [strategy="+m_strategy+", maxFails="+m_maxFails+", backends="+getBackends()+"]";
+	}
+
+	/**
+	 * Immutable selection structures of the backends of one protocol
+	 */
+	private static class Group {
+		private final Backend[] m_backends;
+		/** backend indexes interleaved according to their weight */
+		private final int[] m_schedule;
+		private final long[] m_ringHashes;
+		private final Backend[] m_ringOwners;
+		private final AtomicInteger m_counter = new AtomicInteger();
+
+		public Group(Backend[] backends) {
+			m_backends = backends;
+			m_schedule = createSchedule(backends);
+
+			//consistent hash ring, sorted by hash
+			int points = 0;
+			for (Backend currBackend : backends) {
+				points += currBackend.getWeight() * HASH_POINTS_PER_WEIGHT;
+			}
+			long[] hashes = new long[points];
+			Backend[] owners = new Backend[points];
+			int idx = 0;
+			for (Backend currBackend : backends) {
+				String id = currBackend.getHost()+":"+currBackend.getPort()+"#";
+				for (int i=0; i<currBackend.getWeight() * HASH_POINTS_PER_WEIGHT; i++) {
+					hashes[idx] = HashUtil.hash64(id+i);
+					owners[idx] = currBackend;
+					idx++;
+				}
+			}
+			Integer[] order = new Integer[points];
+			for (int i=0; i<points; i++) {
+				order[i] = Integer.valueOf(i);
+			}
+			final long[] unsortedHashes = hashes;
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					long h1 = unsortedHashes[o1.intValue()];
+					long h2 = unsortedHashes[o2.intValue()];
+					return h1<h2 ? -1 : (h1==h2 ? 0 : 1);
+				}
+			});
+			m_ringHashes = new long[points];
+			m_ringOwners = new Backend[points];
+			for (int i=0; i<points; i++) {
+				m_ringHashes[i] = hashes[order[i].intValue()];
+				m_ringOwners[i] = owners[order[i].intValue()];
+			}
+		}
+
+		/**
+		 * Spreads the backends over a schedule like nginx' smooth weighted round-robin,
+		 * so a backend with weight 3 does not get three sessions in a row
+		 */
+		private static int[] createSchedule(Backend[] backends) {
+			int totalWeight = 0;
+			for (Backend currBackend : backends) {
+				totalWeight += currBackend.getWeight();
+			}
+			int[] schedule = new int[totalWeight];
+			int[] current = new int[backends.length];
+			for (int i=0; i<totalWeight; i++) {
+				int best = 0;
+				for (int j=0; j<backends.length; j++) {
+					current[j] += backends[j].getWeight();
+					if (current[j] > current[best]) {
+						best = j;
+					}
+				}
+				current[best] -= totalWeight;
+				schedule[i] = best;
+			}
+			return schedule;
+		}
+
+		private int nextCounter() {
+			return m_counter.getAndIncrement() & Integer.MAX_VALUE;
+		}
+
+		public Backend selectRoundRobin() {
+			for (int i=0; i<m_schedule.length; i++) {
+				//take a new slot per attempt, so the share of a down backend is spread by weight
+				Backend backend = m_backends[m_schedule[nextCounter() % m_schedule.length]];
+				if (backend.isUp()) {
+					return backend;
+				}
+			}
+			return null;
+		}
+
+		public Backend selectLeastFailures() {
+			int start = nextCounter();
+			Backend best = null;
+			for (int i=0; i<m_backends.length; i++) {
+				Backend backend = m_backends[(start + i) % m_backends.length];
+				if (backend.isUp() && (best==null || backend.getRecentFailures() < best.getRecentFailures())) {
+					best = backend;
+				}
+			}
+			return best;
+		}
+
+		public Backend selectByHash(String key) {
+			long hash = HashUtil.hash64(key);
+			int idx = Arrays.binarySearch(m_ringHashes, hash);
+			if (idx<0) {
+				idx = -idx - 1;
+			}
+			//walk clockwise to the next healthy backend
+			for (int i=0; i<m_ringHashes.length; i++) {
+				Backend backend = m_ringOwners[(idx + i) % m_ringHashes.length];
+				if (backend.isUp()) {
+					return backend;
+				}
+			}
+			return null;
+		}
+	}
+}
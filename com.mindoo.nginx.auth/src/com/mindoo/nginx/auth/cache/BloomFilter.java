@@ -0,0 +1,126 @@
+package com.mindoo.nginx.auth.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.mindoo.nginx.auth.utils.HashUtil;
+
+/**
+ * Compact membership filter for strings. {@link #mightContain(String)} never returns
+ * false for an added string, but may return true for strings that have not been added
+ * (false positives) with a probability defined at construction time.<br>
+ * <br>
+ * Adding and testing is lock-free and allocation-free, so the filter can be updated
+ * while it is being read.
+ *
+ * @author Karsten Lehmann
+ */
+public class BloomFilter {
+	private final AtomicLongArray m_bits;
+	private final long m_numBits;
+	private final int m_numHashes;
+
+	/**
+	 * Creates a filter sized for the specified number of entries and false-positive rate
+	 *
+	 * @param expectedEntries expected number of entries
+	 * @param fpp desired false-positive probability, e.g. 0.01 for 1%
+	 * @param maxBytes upper limit for the memory of the bit array, 0 for no limit; the false-positive rate rises if the limit is hit
+	 */
+	public BloomFilter(int expectedEntries, double fpp, long maxBytes) {
+		expectedEntries = Math.max(1, expectedEntries);
+		if (fpp<=0 || fpp>=1) {
+			throw new IllegalArgumentException("False-positive probability must be between 0 and 1: "+fpp);
+		}
+
+		long numBits = (long) Math.ceil(-expectedEntries * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		if (maxBytes>0) {
+			numBits = Math.min(numBits, maxBytes * 8);
+		}
+		//round up to full longs
+		numBits = Math.max(64, ((numBits + 63) / 64) * 64);
+		m_numBits = numBits;
+		m_numHashes = Math.max(1, (int) Math.round((double) numBits / expectedEntries * Math.log(2)));
+		m_bits = new AtomicLongArray((int) (numBits / 64));
+	}
+
+	/**
+	 * Adds a string to the filter
+	 *
+	 * @param value value
+	 */
+	public void put(String value) {
+		long hash = HashUtil.hash64(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i=1; i<=m_numHashes; i++) {
+			long bitIndex = bitIndex(h1 + i * h2);
+			int wordIndex = (int) (bitIndex >>> 6);
+			long mask = 1L << bitIndex;
+			long word;
+			do {
+				word = m_bits.get(wordIndex);
+				if ((word & mask)!=0) {
+					break;
+				}
+			}
+			while (!m_bits.compareAndSet(wordIndex, word, word | mask));
+		}
+	}
+
+	/**
+	 * Tests if a string might have been added to the filter
+	 *
+	 * @param value value
+	 * @return false if the value has definitely not been added
+	 */
+	public boolean mightContain(String value) {
+		long hash = HashUtil.hash64(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i=1; i<=m_numHashes; i++) {
+			long bitIndex = bitIndex(h1 + i * h2);
+			if ((m_bits.get((int) (bitIndex >>> 6)) & (1L << bitIndex))==0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long bitIndex(int combinedHash) {
+		if (combinedHash<0) {
+			combinedHash = ~combinedHash;
+		}
+		return combinedHash % m_numBits;
+	}
+
+	/**
+	 * Returns the size of the bit array in bytes
+	 *
+	 * @return bytes
+	 */
+	public long getMemoryBytes() {
+		return m_numBits / 8;
+	}
+
+	public int getNumHashes() {
+		return m_numHashes;
+	}
+
+	/**
+	 * Estimates the current false-positive probability from the ratio of set bits
+	 *
+	 * @return probability between 0 and 1
+	 */
+	public double getEstimatedFpp() {
+		long setBits = 0;
+		for (int i=0; i<m_bits.length(); i++) {
+			setBits += Long.bitCount(m_bits.get(i));
+		}
+		return Math.pow((double) setBits / m_numBits, m_numHashes);
+	}
+
+	@Override
+	public String toString() {
+		return "BloomFilter [bytes="+getMemoryBytes()+", hashes="+m_numHashes+", estimatedFpp="+getEstimatedFpp()+"]";
+	}
+}
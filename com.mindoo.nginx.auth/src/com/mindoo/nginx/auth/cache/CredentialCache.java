@@ -0,0 +1,314 @@
+package com.mindoo.nginx.auth.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of successfully verified credentials with TTL and LRU eviction.<br>
+ * <br>
+ * The cache never stores the cleartext password. Entries are keyed by the lowercase
+ * user name and contain a salted SHA-256 digest of the password (the salt is created
+ * randomly per cache instance and only lives in memory) and the HTTPPassword hash
+ * the password had been verified against.<br>
+ * <br>
+ * Optionally, expired entries are kept for a staleness window, so that users can
+ * still log in with their last verified password while the directory is unavailable
+ * (see {@link #isVerifiedStale(String, String)}).
+ *
+ * @author Karsten Lehmann
+ */
+public class CredentialCache {
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private final int m_maxEntries;
+	private final long m_ttlMillis;
+	private final long m_maxStaleMillis;
+	private final byte[] m_salt;
+	private final Map<String,CacheEntry> m_entries;
+
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_evictions = new AtomicLong();
+	private final AtomicLong m_staleHits = new AtomicLong();
+	private final AtomicLong m_staleAgeMillisSum = new AtomicLong();
+
+	/**
+	 * Creates a new cache
+	 *
+	 * @param maxEntries maximum number of entries before the least recently used one gets evicted
+	 * @param ttlMillis time in milliseconds that a verified credential stays valid
+	 */
+	public CredentialCache(int maxEntries, long ttlMillis) {
+		this(maxEntries, ttlMillis, 0);
+	}
+
+	/**
+	 * Creates a new cache that keeps expired entries for a fallback while the directory is unavailable
+	 *
+	 * @param maxEntries maximum number of entries before the least recently used one gets evicted
+	 * @param ttlMillis time in milliseconds that a verified credential stays valid
+	 * @param maxStaleMillis time in milliseconds after expiration that an entry may still be used by {@link #isVerifiedStale(String, String)}
+	 */
+	public CredentialCache(int maxEntries, long ttlMillis, long maxStaleMillis) {
+		m_maxEntries = maxEntries;
+		m_ttlMillis = ttlMillis;
+		m_maxStaleMillis = Math.max(0, maxStaleMillis);
+
+		m_salt = new byte[16];
+		new SecureRandom().nextBytes(m_salt);
+
+		//access ordered map to get LRU semantics
+		m_entries = new LinkedHashMap<String,CacheEntry>(Math.min(maxEntries, 1024), 0.75f, true) {
+			private static final long serialVersionUID = -2203462383036524387L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,CacheEntry> eldest) {
+				if (size() > m_maxEntries) {
+					m_evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Checks if the specified credentials have been verified recently. A cache entry
+	 * for the user with a different password gets evicted.
+	 *
+	 * @param user user name as sent by the client
+	 * @param password cleartext password
+	 * @return true if cached and not expired
+	 */
+	public boolean isVerified(String user, String password) {
+		String key = toKey(user);
+		byte[] digest = digest(key, password);
+		long now = currentTimeMillis();
+
+		synchronized (m_entries) {
+			CacheEntry entry = m_entries.get(key);
+			if (entry!=null) {
+				if (entry.isExpired(now)) {
+					//keep it as fallback within the staleness window
+					if (entry.isExpired(now - m_maxStaleMillis)) {
+						m_entries.remove(key);
+						m_evictions.incrementAndGet();
+					}
+				}
+				else if (MessageDigest.isEqual(entry.getPasswordDigest(), digest)) {
+					m_hits.incrementAndGet();
+					return true;
+				}
+				else {
+					//password mismatch, force a check against the directory
+					m_entries.remove(key);
+					m_evictions.incrementAndGet();
+				}
+			}
+		}
+		m_misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Checks if the specified credentials have been verified within TTL and staleness window,
+	 * to be used if they cannot be checked because the directory is unavailable
+	 *
+	 * @param user user name as sent by the client
+	 * @param password cleartext password
+	 * @return true if verified recently enough
+	 */
+	public boolean isVerifiedStale(String user, String password) {
+		if (m_maxStaleMillis<=0) {
+			return false;
+		}
+		String key = toKey(user);
+		byte[] digest = digest(key, password);
+		long now = currentTimeMillis();
+
+		synchronized (m_entries) {
+			CacheEntry entry = m_entries.get(key);
+			if (entry!=null && !entry.isExpired(now - m_maxStaleMillis) && MessageDigest.isEqual(entry.getPasswordDigest(), digest)) {
+				m_staleHits.incrementAndGet();
+				m_staleAgeMillisSum.addAndGet(Math.max(0, now - (entry.getExpiresAt() - m_ttlMillis)));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stores credentials that have been verified successfully
+	 *
+	 * @param user user name as sent by the client
+	 * @param password cleartext password
+	 * @param passwordHash HTTPPassword hash the password has been verified against
+	 */
+	public void putVerified(String user, String password, String passwordHash) {
+		String key = toKey(user);
+		CacheEntry entry = new CacheEntry(digest(key, password), passwordHash, currentTimeMillis() + m_ttlMillis);
+		synchronized (m_entries) {
+			m_entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Evicts the cache entry for a user if it has been verified against a different
+	 * HTTPPassword hash than the one currently stored in the directory
+	 *
+	 * @param user user name as sent by the client
+	 * @param currentPasswordHash current HTTPPassword hash
+	 */
+	public void checkPasswordHash(String user, String currentPasswordHash) {
+		String key = toKey(user);
+		synchronized (m_entries) {
+			CacheEntry entry = m_entries.get(key);
+			if (entry!=null && !entry.getPasswordHash().equals(currentPasswordHash)) {
+				m_entries.remove(key);
+				m_evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes the cache entry for a user
+	 *
+	 * @param user user name as sent by the client
+	 */
+	public void invalidate(String user) {
+		String key = toKey(user);
+		synchronized (m_entries) {
+			if (m_entries.remove(key)!=null) {
+				m_evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries expired for longer than the staleness window
+	 */
+	public void purgeExpired() {
+		long staleLimit = currentTimeMillis() - m_maxStaleMillis;
+		synchronized (m_entries) {
+			Iterator<CacheEntry> entriesIt = m_entries.values().iterator();
+			while (entriesIt.hasNext()) {
+				if (entriesIt.next().isExpired(staleLimit)) {
+					entriesIt.remove();
+					m_evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (m_entries) {
+			return m_entries.size();
+		}
+	}
+
+	public long getHits() {
+		return m_hits.get();
+	}
+
+	public long getMisses() {
+		return m_misses.get();
+	}
+
+	public long getEvictions() {
+		return m_evictions.get();
+	}
+
+	/**
+	 * Returns the number of logins accepted by {@link #isVerifiedStale(String, String)}
+	 *
+	 * @return count
+	 */
+	public long getStaleHits() {
+		return m_staleHits.get();
+	}
+
+	/**
+	 * Returns the summed age of the verifications used by {@link #isVerifiedStale(String, String)}
+	 *
+	 * @return milliseconds
+	 */
+	public long getStaleAgeMillisSum() {
+		return m_staleAgeMillisSum.get();
+	}
+
+	public long getMaxStaleMillis() {
+		return m_maxStaleMillis;
+	}
+
+	/**
+	 * Returns the current time, overridden in tests
+	 *
+	 * @return milliseconds
+	 */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private String toKey(String user) {
+		return user.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	private byte[] digest(String key, String password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			md.update(m_salt);
+			md.update(key.getBytes("UTF-8"));
+			md.update((byte) 0);
+			md.update(password.getBytes("UTF-8"));
+			return md.digest();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM+" not supported by JVM", e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported by JVM", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CredentialCache [size="+size()+", maxEntries="+m_maxEntries+", ttl="+m_ttlMillis+"ms, hits="+getHits()+
+				", misses="+getMisses()+", evictions="+getEvictions()+
+				(m_maxStaleMillis>0 ? ", maxStale="+m_maxStaleMillis+"ms, staleHits="+getStaleHits() : "")+"]";
+	}
+
+	private static class CacheEntry {
+		private final byte[] m_passwordDigest;
+		private final String m_passwordHash;
+		private final long m_expiresAt;
+
+		public CacheEntry(byte[] passwordDigest, String passwordHash, long expiresAt) {
+			m_passwordDigest = passwordDigest;
+			m_passwordHash = passwordHash==null ? "" : passwordHash;
+			m_expiresAt = expiresAt;
+		}
+
+		public byte[] getPasswordDigest() {
+			return m_passwordDigest;
+		}
+
+		public String getPasswordHash() {
+			return m_passwordHash;
+		}
+
+		public long getExpiresAt() {
+			return m_expiresAt;
+		}
+
+		public boolean isExpired(long now) {
+			return now > m_expiresAt;
+		}
+	}
+}
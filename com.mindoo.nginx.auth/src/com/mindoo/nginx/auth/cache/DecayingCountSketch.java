@@ -0,0 +1,131 @@
+package com.mindoo.nginx.auth.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.mindoo.nginx.auth.utils.HashUtil;
+
+/**
+ * Fixed-size count-min sketch with time-decaying counters, used to count events
+ * per key (e.g. failed logins per client IP) for an unbounded number of keys with
+ * bounded memory. Counts may be overestimated on hash collisions, never underestimated.<br>
+ * <br>
+ * Each cell stores the time window of its last update together with the count. Counts
+ * are halved for every window that has passed since the last update. All operations
+ * are lock-free and allocation-free.
+ *
+ * @author Karsten Lehmann
+ */
+public class DecayingCountSketch {
+	private static final int DEPTH = 4;
+
+	private final AtomicLongArray m_cells;
+	private final int m_widthMask;
+	private final long m_windowMillis;
+
+	/**
+	 * Creates a new sketch
+	 *
+	 * @param width number of counters per row, rounded up to a power of two
+	 * @param windowMillis length of a time window in milliseconds, counts are halved per window
+	 */
+	public DecayingCountSketch(int width, long windowMillis) {
+		int roundedWidth = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+		m_widthMask = roundedWidth - 1;
+		m_windowMillis = Math.max(1, windowMillis);
+		m_cells = new AtomicLongArray(roundedWidth * DEPTH);
+	}
+
+	/**
+	 * Increments the count for a key. Uses conservative update: only the counters that
+	 * are at the current minimum of the key are raised, so many distinct keys fill the
+	 * sketch much slower than with plain count-min increments.
+	 *
+	 * @param key key
+	 * @return new estimated count
+	 */
+	public int increment(String key) {
+		long hash = HashUtil.hash64(key);
+		int currWindow = currentWindow();
+		int min = Integer.MAX_VALUE;
+		for (int row=0; row<DEPTH; row++) {
+			min = Math.min(min, decayedCount(m_cells.get(cellIndex(hash, row)), currWindow));
+		}
+		int newCount = min<Integer.MAX_VALUE ? min + 1 : min;
+		for (int row=0; row<DEPTH; row++) {
+			int cellIdx = cellIndex(hash, row);
+			long cell;
+			do {
+				cell = m_cells.get(cellIdx);
+				if (decayedCount(cell, currWindow) >= newCount) {
+					//counter already covers the new count, e.g. because of collisions
+					break;
+				}
+			}
+			while (!m_cells.compareAndSet(cellIdx, cell, pack(currWindow, newCount)));
+		}
+		return newCount;
+	}
+
+	/**
+	 * Returns the estimated count of a key
+	 *
+	 * @param key key
+	 * @return count
+	 */
+	public int estimate(String key) {
+		long hash = HashUtil.hash64(key);
+		int currWindow = currentWindow();
+		int min = Integer.MAX_VALUE;
+		for (int row=0; row<DEPTH; row++) {
+			min = Math.min(min, decayedCount(m_cells.get(cellIndex(hash, row)), currWindow));
+			if (min==0) {
+				break;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Returns the memory of the counters in bytes
+	 *
+	 * @return bytes
+	 */
+	public long getMemoryBytes() {
+		return m_cells.length() * 8L;
+	}
+
+	private int currentWindow() {
+		return (int) (currentTimeMillis() / m_windowMillis);
+	}
+
+	/**
+	 * Returns the current time, overridden in tests
+	 *
+	 * @return milliseconds
+	 */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private int cellIndex(long hash, int row) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		return row * (m_widthMask + 1) + ((h1 + row * h2) & m_widthMask);
+	}
+
+	private static int decayedCount(long cell, int currWindow) {
+		int count = (int) cell;
+		if (count==0) {
+			return 0;
+		}
+		int elapsedWindows = currWindow - (int) (cell >>> 32);
+		if (elapsedWindows<=0) {
+			return count;
+		}
+		return elapsedWindows>=31 ? 0 : (count >>> elapsedWindows);
+	}
+
+	private static long pack(int window, int count) {
+		return (((long) window) << 32) | (count & 0xffffffffL);
+	}
+}
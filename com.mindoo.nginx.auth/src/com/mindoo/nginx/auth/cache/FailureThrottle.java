@@ -0,0 +1,125 @@
+package com.mindoo.nginx.auth.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks failed logins per client IP and per user to return escalating Auth-Wait
+ * values and to reject clients or accounts over a threshold before the directory
+ * is accessed.<br>
+ * <br>
+ * Memory is bounded by using {@link DecayingCountSketch} instances, so millions
+ * of distinct IPs or user names do not let the tracker grow. Successful logins
+ * and blocked attempts only read the counters and never write to them.
+ *
+ * @author Karsten Lehmann
+ */
+public class FailureThrottle {
+	private final DecayingCountSketch m_ipFailures;
+	private final DecayingCountSketch m_userFailures;
+	private final int m_ipLimit;
+	private final int m_userLimit;
+	private final int m_maxWaitSeconds;
+
+	private final AtomicLong m_failures = new AtomicLong();
+	private final AtomicLong m_blocked = new AtomicLong();
+
+	/**
+	 * Creates a new throttle
+	 *
+	 * @param sketchWidth number of counters per sketch row
+	 * @param windowMillis decay window in milliseconds, failure counts are halved per window
+	 * @param ipLimit number of failures per client IP after which logins from the IP get rejected, 0 for no limit
+	 * @param userLimit number of failures per user after which logins of the user get rejected, 0 for no limit
+	 * @param maxWaitSeconds upper limit for Auth-Wait values
+	 */
+	public FailureThrottle(int sketchWidth, long windowMillis, int ipLimit, int userLimit, int maxWaitSeconds) {
+		m_ipFailures = new DecayingCountSketch(sketchWidth, windowMillis);
+		m_userFailures = new DecayingCountSketch(sketchWidth, windowMillis);
+		m_ipLimit = ipLimit;
+		m_userLimit = userLimit;
+		m_maxWaitSeconds = Math.max(1, maxWaitSeconds);
+	}
+
+	/**
+	 * Checks if the number of recent failures for the client IP or the user exceeds the limit
+	 *
+	 * @param clientIP client IP or null
+	 * @param userLC lowercase user name or null
+	 * @return true to reject the login without checking the credentials
+	 */
+	public boolean isBlocked(String clientIP, String userLC) {
+		if ((m_ipLimit>0 && clientIP!=null && m_ipFailures.estimate(clientIP) >= m_ipLimit) ||
+				(m_userLimit>0 && userLC!=null && m_userFailures.estimate(userLC) >= m_userLimit)) {
+			m_blocked.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a failed login. Must not be called for logins rejected by {@link #isBlocked(String, String)},
+	 * otherwise a blocked client keeps its counters at the limit by retrying.
+	 *
+	 * @param clientIP client IP or null
+	 * @param userLC lowercase user name, null if the user does not exist, so that guessing random user
+	 * names cannot fill the user counters up to the limit of real accounts
+	 * @param baseWaitSeconds Auth-Wait value for the first failure, doubled for each further failure; passed per call
+	 * so that a reloaded $NGINXAUTH_WAITONERROR takes effect immediately
+	 * @return number of seconds nginx should wait before reporting the failure to the client
+	 */
+	public int recordFailure(String clientIP, String userLC, int baseWaitSeconds) {
+		m_failures.incrementAndGet();
+		int failures = 0;
+		if (clientIP!=null) {
+			failures = m_ipFailures.increment(clientIP);
+		}
+		if (userLC!=null) {
+			failures = Math.max(failures, m_userFailures.increment(userLC));
+		}
+		return getWaitSeconds(failures, baseWaitSeconds);
+	}
+
+	/**
+	 * Returns the max Auth-Wait value, used for blocked clients
+	 *
+	 * @param baseWaitSeconds Auth-Wait value for the first failure
+	 * @return seconds
+	 */
+	public int getMaxWaitSeconds(int baseWaitSeconds) {
+		return Math.max(Math.max(1, baseWaitSeconds), m_maxWaitSeconds);
+	}
+
+	/**
+	 * Returns the number of recorded failures
+	 * 
+	 * @return count
+	 */
+	public long getFailures() {
+		return m_failures.get();
+	}
+
+	/**
+	 * Returns the number of logins rejected because of too many failures
+	 * 
+	 * @return count
+	 */
+	public long getBlocked() {
+		return m_blocked.get();
+	}
+
+	private int getWaitSeconds(int failures, int baseWaitSeconds) {
+		int baseWait = Math.max(1, baseWaitSeconds);
+		if (failures<=1) {
+			return baseWait;
+		}
+		int shift = Math.min(failures - 1, 16);
+		long wait = ((long) baseWait) << shift;
+		return (int) Math.min(wait, getMaxWaitSeconds(baseWait));
+	}
+
+	@Override
+	public String toString() {
+		return "FailureThrottle [ipLimit="+m_ipLimit+", userLimit="+m_userLimit+", maxWaitSeconds="+m_maxWaitSeconds+
+				", memory="+(m_ipFailures.getMemoryBytes()+m_userFailures.getMemoryBytes())+" bytes, failures="+getFailures()+", blocked="+getBlocked()+"]";
+	}
+}
@@ -0,0 +1,186 @@
+package com.mindoo.nginx.auth.cache;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects login names that do not exist in the directory without accessing Domino,
+ * to shed brute-force attempts with random user names.<br>
+ * <br>
+ * Combines a {@link BloomFilter} of all known login names, rebuilt from the directory,
+ * with a short-lived negative cache of names the directory reported as unknown. The
+ * negative cache covers false positives of the filter and entries expire quickly, so
+ * users created after a lookup get found on one of the next attempts.
+ *
+ * @author Karsten Lehmann
+ */
+public class UnknownUserFilter {
+	private final int m_capacity;
+	private final double m_fpp;
+	private final long m_maxBytes;
+	private final int m_negativeCacheSize;
+	private final long m_negativeCacheTTLMillis;
+
+	private volatile BloomFilter m_filter;
+	private final Map<String,Long> m_negativeCache;
+
+	private final AtomicLong m_filterRejects = new AtomicLong();
+	private final AtomicLong m_negativeCacheRejects = new AtomicLong();
+	private final AtomicLong m_passed = new AtomicLong();
+
+	/**
+	 * Creates a new filter
+	 *
+	 * @param capacity expected number of login names, 0 to size the filter based on the current directory
+	 * @param fpp desired false-positive probability of the filter
+	 * @param maxBytes max memory of the filter in bytes, 0 for no limit
+	 * @param negativeCacheSize max number of unknown names to remember
+	 * @param negativeCacheTTLMillis time in milliseconds to remember unknown names
+	 */
+	public UnknownUserFilter(int capacity, double fpp, long maxBytes, final int negativeCacheSize, long negativeCacheTTLMillis) {
+		m_capacity = capacity;
+		m_fpp = fpp;
+		m_maxBytes = maxBytes;
+		m_negativeCacheSize = negativeCacheSize;
+		m_negativeCacheTTLMillis = negativeCacheTTLMillis;
+
+		m_negativeCache = new LinkedHashMap<String,Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 6373524207658925741L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+				return size() > m_negativeCacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Checks if a login name is known to not exist in the directory
+	 *
+	 * @param user user name as sent by the client
+	 * @return true if the user does not exist
+	 */
+	public boolean isUnknown(String user) {
+		String key = toKey(user);
+
+		BloomFilter filter = m_filter;
+		if (filter!=null && !filter.mightContain(key)) {
+			m_filterRejects.incrementAndGet();
+			return true;
+		}
+
+		if (m_negativeCacheSize>0) {
+			synchronized (m_negativeCache) {
+				Long expiresAt = m_negativeCache.get(key);
+				if (expiresAt!=null) {
+					if (expiresAt.longValue() > currentTimeMillis()) {
+						m_negativeCacheRejects.incrementAndGet();
+						return true;
+					}
+					m_negativeCache.remove(key);
+				}
+			}
+		}
+		m_passed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Remembers a login name that has not been found in the directory
+	 *
+	 * @param user user name as sent by the client
+	 */
+	public void addUnknown(String user) {
+		if (m_negativeCacheSize>0) {
+			String key = toKey(user);
+			synchronized (m_negativeCache) {
+				m_negativeCache.put(key, Long.valueOf(currentTimeMillis() + m_negativeCacheTTLMillis));
+			}
+		}
+	}
+
+	/**
+	 * Replaces the filter with a new one containing the specified names
+	 *
+	 * @param names all known lowercase login names
+	 */
+	public void rebuild(Collection<String> names) {
+		int capacity = m_capacity>0 ? m_capacity : (names.size() + names.size()/2 + 1000);
+		BloomFilter filter = new BloomFilter(capacity, m_fpp, m_maxBytes);
+		for (String currName : names) {
+			filter.put(currName);
+		}
+		m_filter = filter;
+	}
+
+	/**
+	 * Adds new login names to the current filter, e.g. after an incremental directory sync
+	 *
+	 * @param names lowercase login names
+	 */
+	public void addKnown(String[] names) {
+		BloomFilter filter = m_filter;
+		for (String currName : names) {
+			if (filter!=null) {
+				filter.put(currName);
+			}
+			if (m_negativeCacheSize>0) {
+				synchronized (m_negativeCache) {
+					m_negativeCache.remove(currName);
+				}
+			}
+		}
+	}
+
+	public boolean isFilterBuilt() {
+		return m_filter!=null;
+	}
+
+	public long getFilterMemoryBytes() {
+		BloomFilter filter = m_filter;
+		return filter==null ? 0 : filter.getMemoryBytes();
+	}
+
+	public double getFilterEstimatedFpp() {
+		BloomFilter filter = m_filter;
+		return filter==null ? 0 : filter.getEstimatedFpp();
+	}
+
+	public long getFilterRejects() {
+		return m_filterRejects.get();
+	}
+
+	public long getNegativeCacheRejects() {
+		return m_negativeCacheRejects.get();
+	}
+
+	public long getPassed() {
+		return m_passed.get();
+	}
+
+	/**
+	 * Returns the current time, overridden in tests
+	 *
+	 * @return milliseconds
+	 */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private String toKey(String user) {
+		return user.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	@Override
+	public String toString() {
+		int negativeCacheSize;
+		synchronized (m_negativeCache) {
+			negativeCacheSize = m_negativeCache.size();
+		}
+		return "UnknownUserFilter [filter="+m_filter+", configuredFpp="+m_fpp+", negativeCacheSize="+negativeCacheSize+
+				", filterRejects="+getFilterRejects()+", negativeCacheRejects="+getNegativeCacheRejects()+", passed="+getPassed()+"]";
+	}
+}
@@ -0,0 +1,301 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.logging.Level;
+
+import lotus.domino.Database;
+import lotus.domino.DateTime;
+import lotus.domino.Document;
+import lotus.domino.DocumentCollection;
+import lotus.domino.NotesException;
+import lotus.domino.ReplicationInfo;
+import lotus.domino.Session;
+
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Base class for in-memory indexes built from the documents of all address books
+ * of the server. The first refresh reads all documents, subsequent refreshes only
+ * process documents modified or deleted since the last sync of each address book.<br>
+ * <br>
+ * Refreshes are expected to be run by a single thread (see {@link DirectoryIndexUpdater}),
+ * while lookups in subclasses may happen concurrently.
+ * 
+ * @author Karsten Lehmann
+ */
+public abstract class AbstractDirectoryIndex {
+	/** replica id of address book => time of last sync */
+	private final Map<String,Date> m_watermarks = new HashMap<String,Date>();
+	private List<String> m_addressBookReplicaIds = new ArrayList<String>();
+
+	private volatile boolean m_loaded;
+	private volatile long m_lastFullRefresh;
+	private volatile long m_lastRefresh;
+	private volatile long m_lastRefreshDurationMillis;
+	private volatile long m_lastFullRefreshDurationMillis;
+	private volatile int m_lastRefreshDocCount;
+
+	/**
+	 * Returns a name for log messages
+	 * 
+	 * @return name
+	 */
+	public abstract String getName();
+
+	/**
+	 * Called before all documents get re-read. Implementations should start filling
+	 * new data structures that replace the existing ones in {@link #endFullRefresh()}.
+	 */
+	protected abstract void beginFullRefresh();
+
+	/**
+	 * Called after all documents have been read in a full refresh
+	 */
+	protected abstract void endFullRefresh();
+
+	/**
+	 * Called if a full refresh failed, implementations should discard the data structures
+	 * created in {@link #beginFullRefresh()}, so that the next incremental refresh updates
+	 * the current ones again
+	 */
+	protected abstract void abortFullRefresh();
+
+	/**
+	 * Called for each new or modified document
+	 * 
+	 * @param session session
+	 * @param addressBookIndex position of the address book in the server's address book list
+	 * @param addressBookReplicaId replica id of the address book
+	 * @param doc document
+	 * @throws NotesException
+	 */
+	protected abstract void indexDocument(Session session, int addressBookIndex, String addressBookReplicaId, Document doc) throws NotesException;
+
+	/**
+	 * Called for each document deleted since the last sync, i.e. for each deletion stub
+	 * returned by an incremental refresh
+	 * 
+	 * @param addressBookReplicaId replica id of the address book
+	 * @param noteId note id of the deleted document
+	 */
+	protected abstract void removeDocument(String addressBookReplicaId, String noteId);
+
+	/**
+	 * Returns the number of entries in the index
+	 * 
+	 * @return count
+	 */
+	public abstract int getEntryCount();
+
+	/**
+	 * Called after all modified documents of a refresh have been indexed, before the
+	 * index is reported as loaded. Can be overridden to derive data structures that
+	 * depend on several documents.
+	 * 
+	 * @param full true for a full refresh
+	 */
+	protected void afterRefresh(boolean full) {
+	}
+
+	/**
+	 * Reads new and modified documents from all address books
+	 * 
+	 * @param session session with server rights
+	 * @param full true to re-read all documents
+	 * @return true if all documents have been re-read, also if an incremental refresh was not possible
+	 * @throws NotesException
+	 */
+	public boolean refresh(Session session, boolean full) throws NotesException {
+		long t0 = System.currentTimeMillis();
+		if (!m_loaded) {
+			full = true;
+		}
+
+		@SuppressWarnings("unchecked")
+		Vector<Database> addressBooks = session.getAddressBooks();
+		for (int i=0; i<addressBooks.size(); i++) {
+			Database currNABDb = addressBooks.get(i);
+			if (!currNABDb.isOpen()) {
+				currNABDb.open();
+			}
+			if (!full && !isDeletionStubsAvailable(currNABDb)) {
+				LogUtil.log(Level.INFO, "Deletion stubs of "+currNABDb.getFilePath()+" since the last sync may have been purged, "+
+						"doing a full refresh of "+getName());
+				full = true;
+			}
+		}
+
+		if (full) {
+			beginFullRefresh();
+		}
+
+		int docCount = 0;
+		boolean success = false;
+		try {
+			List<String> replicaIds = new ArrayList<String>();
+
+			for (int i=0; i<addressBooks.size(); i++) {
+				Database currNABDb = addressBooks.get(i);
+				String replicaId = currNABDb.getReplicaID();
+				replicaIds.add(replicaId);
+
+				Date since = full ? null : m_watermarks.get(replicaId);
+				DateTime sinceDT = since==null ? null : session.createDateTime(since);
+				DocumentCollection modifiedDocs = currNABDb.getModifiedDocuments(sinceDT, Database.DBMOD_DOC_DATA);
+
+				Document currDoc = modifiedDocs.getFirstDocument();
+				while (currDoc!=null) {
+					if (!currDoc.isDeleted()) {
+						indexDocument(session, i, replicaId, currDoc);
+						docCount++;
+					}
+					else if (!full) {
+						//deletion stub, the new data structures of a full refresh do not contain the document anyway
+						removeDocument(replicaId, currDoc.getNoteID());
+						docCount++;
+					}
+					Document nextDoc = modifiedDocs.getNextDocument(currDoc);
+					currDoc.recycle();
+					currDoc = nextDoc;
+				}
+
+				DateTime untilDT = modifiedDocs.getUntilTime();
+				m_watermarks.put(replicaId, untilDT.toJavaDate());
+				untilDT.recycle();
+				if (sinceDT!=null) {
+					sinceDT.recycle();
+				}
+				modifiedDocs.recycle();
+			}
+			m_addressBookReplicaIds = replicaIds;
+			success = true;
+		}
+		finally {
+			if (full) {
+				if (success) {
+					endFullRefresh();
+				}
+				else {
+					m_watermarks.clear();
+					abortFullRefresh();
+				}
+			}
+		}
+
+		afterRefresh(full);
+
+		long now = System.currentTimeMillis();
+		m_lastRefresh = now;
+		m_lastRefreshDurationMillis = now - t0;
+		m_lastRefreshDocCount = docCount;
+		if (full) {
+			m_lastFullRefresh = now;
+			m_lastFullRefreshDurationMillis = now - t0;
+			m_loaded = true;
+		}
+		return full;
+	}
+
+	/**
+	 * Checks if an incremental refresh still gets all deletion stubs since the last sync.
+	 * Domino purges them after the cutoff interval of the replication settings (90 days
+	 * by default), which can pass e.g. for a restored snapshot or if full refreshes are
+	 * disabled.
+	 * 
+	 * @param db address book
+	 * @return true if the stubs are available or the address book has not been synced yet
+	 * @throws NotesException
+	 */
+	private boolean isDeletionStubsAvailable(Database db) throws NotesException {
+		Date since = m_watermarks.get(db.getReplicaID());
+		if (since==null) {
+			return true;
+		}
+		ReplicationInfo replInfo = db.getReplicationInfo();
+		try {
+			long cutoffDays = replInfo.getCutoffInterval();
+			return cutoffDays<=0 || (System.currentTimeMillis() - since.getTime()) < cutoffDays * 24L * 60 * 60 * 1000;
+		}
+		finally {
+			replInfo.recycle();
+		}
+	}
+
+	/**
+	 * Returns the time of the last sync per address book; only to be called by
+	 * the refreshing thread
+	 * 
+	 * @return replica id => time of last sync
+	 */
+	public Map<String,Date> getWatermarks() {
+		return new HashMap<String,Date>(m_watermarks);
+	}
+
+	/**
+	 * Restores the sync state of previously indexed data, e.g. read from a snapshot file,
+	 * so that the next refresh only processes documents modified since then
+	 * 
+	 * @param watermarks replica id => time of last sync
+	 * @param addressBookReplicaIds replica ids of the address books in the server's order
+	 * @param lastFullRefresh time of the last full refresh of the restored data
+	 * @param lastFullRefreshDurationMillis duration of that full refresh
+	 */
+	protected void restoreState(Map<String,Date> watermarks, List<String> addressBookReplicaIds, long lastFullRefresh,
+			long lastFullRefreshDurationMillis) {
+		m_watermarks.clear();
+		m_watermarks.putAll(watermarks);
+		m_addressBookReplicaIds = new ArrayList<String>(addressBookReplicaIds);
+		m_lastFullRefresh = lastFullRefresh;
+		m_lastFullRefreshDurationMillis = lastFullRefreshDurationMillis;
+		m_loaded = true;
+	}
+
+	/**
+	 * Returns the replica ids of the address books in the order of the last refresh
+	 * 
+	 * @return replica ids
+	 */
+	public List<String> getAddressBookReplicaIds() {
+		return m_addressBookReplicaIds;
+	}
+
+	/**
+	 * Returns true if the first full refresh has completed
+	 * 
+	 * @return true if loaded
+	 */
+	public boolean isLoaded() {
+		return m_loaded;
+	}
+
+	public long getLastRefresh() {
+		return m_lastRefresh;
+	}
+
+	public long getLastFullRefresh() {
+		return m_lastFullRefresh;
+	}
+
+	public long getLastRefreshDurationMillis() {
+		return m_lastRefreshDurationMillis;
+	}
+
+	public long getLastFullRefreshDurationMillis() {
+		return m_lastFullRefreshDurationMillis;
+	}
+
+	public int getLastRefreshDocCount() {
+		return m_lastRefreshDocCount;
+	}
+
+	@Override
+	public String toString() {
+		return getName()+" [entries="+getEntryCount()+", lastRefresh="+m_lastRefreshDurationMillis+"ms/"+m_lastRefreshDocCount+" docs"+
+				", lastFullRefresh="+m_lastFullRefreshDurationMillis+"ms]";
+	}
+}
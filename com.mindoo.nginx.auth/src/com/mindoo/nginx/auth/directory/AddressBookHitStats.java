@@ -0,0 +1,104 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindoo.nginx.auth.directory.DirectoryContext.AddressBook;
+
+/**
+ * Counts in which address book users were found, so that the ($Users) views
+ * can be probed in the order of their hit counts. With several Directory Assistance
+ * books where most users live in the last one, this saves a view lookup per
+ * book in front of it.<br>
+ * <br>
+ * If a name exists in several address books, the most frequently hit book wins
+ * instead of the first one in the server's order.
+ * 
+ * @author Karsten Lehmann
+ */
+public class AddressBookHitStats {
+	private final ConcurrentHashMap<String,AtomicLong> m_hitsByReplicaId = new ConcurrentHashMap<String,AtomicLong>();
+
+	/**
+	 * Records that a user has been found in an address book
+	 * 
+	 * @param replicaId replica id of the address book
+	 */
+	public void recordHit(String replicaId) {
+		AtomicLong hits = m_hitsByReplicaId.get(replicaId);
+		if (hits==null) {
+			AtomicLong newHits = new AtomicLong();
+			hits = m_hitsByReplicaId.putIfAbsent(replicaId, newHits);
+			if (hits==null) {
+				hits = newHits;
+			}
+		}
+		hits.incrementAndGet();
+	}
+
+	/**
+	 * Returns the hit count of an address book
+	 * 
+	 * @param replicaId replica id
+	 * @return hits
+	 */
+	public long getHits(String replicaId) {
+		AtomicLong hits = m_hitsByReplicaId.get(replicaId);
+		return hits==null ? 0 : hits.get();
+	}
+
+	/**
+	 * Sorts address books by descending hit count, keeping the server's order for equal counts
+	 * 
+	 * @param books address books in the server's order
+	 * @return sorted copy
+	 */
+	public List<AddressBook> order(List<AddressBook> books) {
+		int count = books.size();
+		if (count<2) {
+			return books;
+		}
+		//snapshot of the counters, they change while sorting
+		AddressBook[] sortedBooks = books.toArray(new AddressBook[count]);
+		long[] hits = new long[count];
+		for (int i=0; i<count; i++) {
+			hits[i] = getHits(sortedBooks[i].getReplicaId());
+		}
+		//insertion sort, stable and fast for the few books of a server
+		for (int i=1; i<count; i++) {
+			AddressBook book = sortedBooks[i];
+			long bookHits = hits[i];
+			int j = i - 1;
+			while (j>=0 && hits[j]<bookHits) {
+				sortedBooks[j+1] = sortedBooks[j];
+				hits[j+1] = hits[j];
+				j--;
+			}
+			sortedBooks[j+1] = book;
+			hits[j+1] = bookHits;
+		}
+		return Arrays.asList(sortedBooks);
+	}
+
+	/**
+	 * Returns the hit counts
+	 * 
+	 * @return replica id => hits
+	 */
+	public Map<String,Long> getHits() {
+		Map<String,Long> hits = new TreeMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> currEntry : m_hitsByReplicaId.entrySet()) {
+			hits.put(currEntry.getKey(), Long.valueOf(currEntry.getValue().get()));
+		}
+		return hits;
+	}
+
+	@Override
+	public String toString() {
+		return "AddressBookHitStats "+getHits();
+	}
+}
@@ -0,0 +1,232 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * {@link UserDirectory} wrapper with a circuit breaker: while an address book is
+ * compacted, replicated or rebuilt, lookups can stall for seconds, so after a number
+ * of consecutive failed or timed out checks the directory is skipped for a while and
+ * requests fail immediately with a {@link DirectoryUnavailableException} instead of
+ * tying up HTTP threads and pooled sessions.<br>
+ * <br>
+ * After the open time a single trial check is let through (half-open state); if it
+ * succeeds, the breaker closes, otherwise it opens again. Results like unknown user
+ * or wrong password count as success, the directory has answered. A full lookup queue
+ * ({@link DirectoryOverloadException}) is not counted, so shedding a burst of logins
+ * does not turn into an outage.
+ * 
+ * @author Karsten Lehmann
+ */
+public class CircuitBreakerDirectory implements UserDirectory {
+	/**
+	 * Breaker state, exposed as numeric metric value
+	 */
+	public static enum State {
+		CLOSED(0),
+		OPEN(1),
+		HALF_OPEN(2);
+
+		private final int m_value;
+
+		private State(int value) {
+			m_value = value;
+		}
+
+		public int getValue() {
+			return m_value;
+		}
+	}
+
+	private final UserDirectory m_delegate;
+	private final int m_failureThreshold;
+	private final long m_openMillis;
+
+	private volatile State m_state = State.CLOSED;
+	private volatile long m_openedAt;
+	/** time the breaker left the closed state */
+	private long m_outageStart;
+	private final AtomicInteger m_consecutiveFailures = new AtomicInteger();
+	private final AtomicBoolean m_trialInFlight = new AtomicBoolean();
+
+	private final AtomicLong m_openedCount = new AtomicLong();
+	private final AtomicLong m_closedCount = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private final AtomicLong m_openMillisSum = new AtomicLong();
+
+	/**
+	 * Creates a new wrapper
+	 * 
+	 * @param delegate directory to run the checks
+	 * @param failureThreshold number of consecutive failures that open the breaker
+	 * @param openMillis time in milliseconds to skip the directory before a trial check
+	 */
+	public CircuitBreakerDirectory(UserDirectory delegate, int failureThreshold, long openMillis) {
+		m_delegate = delegate;
+		m_failureThreshold = Math.max(1, failureThreshold);
+		m_openMillis = openMillis;
+	}
+
+	public UserDirectory getDelegate() {
+		return m_delegate;
+	}
+
+	@Override
+	public CredentialCheckResult checkCredentials(String user, String password) throws Exception {
+		boolean trial = false;
+		State state = m_state;
+		if (state!=State.CLOSED) {
+			if (state==State.OPEN && (currentTimeMillis() - m_openedAt) >= m_openMillis) {
+				transition(State.OPEN, State.HALF_OPEN, null);
+				state = m_state;
+			}
+			if (state==State.OPEN || !m_trialInFlight.compareAndSet(false, true)) {
+				m_rejected.incrementAndGet();
+				throw new DirectoryUnavailableException("Directory circuit breaker is "+state);
+			}
+			trial = true;
+		}
+
+		try {
+			CredentialCheckResult result = m_delegate.checkCredentials(user, password);
+			recordSuccess();
+			return result;
+		}
+		catch (DirectoryOverloadException e) {
+			//load shedding, the directory itself has not failed
+			throw e;
+		}
+		catch (InterruptedException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			recordFailure(e);
+			throw e;
+		}
+		finally {
+			if (trial) {
+				m_trialInFlight.set(false);
+			}
+		}
+	}
+
+	private void recordSuccess() {
+		if (m_consecutiveFailures.get()!=0) {
+			m_consecutiveFailures.set(0);
+		}
+		if (m_state!=State.CLOSED) {
+			transition(State.HALF_OPEN, State.CLOSED, null);
+		}
+	}
+
+	private void recordFailure(Exception e) {
+		int failures = m_consecutiveFailures.incrementAndGet();
+		State state = m_state;
+		if (state==State.HALF_OPEN) {
+			transition(State.HALF_OPEN, State.OPEN, e);
+		}
+		else if (state==State.CLOSED && failures>=m_failureThreshold) {
+			transition(State.CLOSED, State.OPEN, e);
+		}
+	}
+
+	private synchronized void transition(State from, State to, Exception cause) {
+		if (m_state!=from) {
+			//changed by another thread
+			return;
+		}
+		long now = currentTimeMillis();
+		if (to==State.OPEN) {
+			if (from==State.CLOSED) {
+				m_openedCount.incrementAndGet();
+				m_outageStart = now;
+			}
+			m_openedAt = now;
+			LogUtil.log(Level.WARNING, "Directory circuit breaker opened after "+m_consecutiveFailures.get()+
+					" consecutive failures, skipping directory for "+m_openMillis+"ms"+(cause!=null ? ": "+cause : ""));
+		}
+		else if (to==State.HALF_OPEN) {
+			LogUtil.log(Level.INFO, "Directory circuit breaker half-open, trying the directory again");
+		}
+		else if (to==State.CLOSED) {
+			m_closedCount.incrementAndGet();
+			m_openMillisSum.addAndGet(now - m_outageStart);
+			LogUtil.log(Level.INFO, "Directory circuit breaker closed, directory responding again");
+		}
+		m_state = to;
+	}
+
+	/**
+	 * Returns the current time, overridden in tests
+	 *
+	 * @return milliseconds
+	 */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public String getKnownPasswordHash(String user) {
+		return m_delegate.getKnownPasswordHash(user);
+	}
+
+	@Override
+	public boolean warmUp(long timeoutMillis) throws InterruptedException {
+		return m_delegate.warmUp(timeoutMillis);
+	}
+
+	@Override
+	public void shutdown() {
+		m_delegate.shutdown();
+	}
+
+	public State getState() {
+		return m_state;
+	}
+
+	/**
+	 * Returns how often the breaker opened after having been closed
+	 * 
+	 * @return count
+	 */
+	public long getOpenedCount() {
+		return m_openedCount.get();
+	}
+
+	/**
+	 * Returns how often the breaker closed after a successful trial
+	 * 
+	 * @return count
+	 */
+	public long getClosedCount() {
+		return m_closedCount.get();
+	}
+
+	/**
+	 * Returns the number of checks rejected while the breaker was not closed
+	 * 
+	 * @return count
+	 */
+	public long getRejected() {
+		return m_rejected.get();
+	}
+
+	/**
+	 * Returns the summed time the breaker was open before closing again
+	 * 
+	 * @return milliseconds
+	 */
+	public long getOpenMillisSum() {
+		return m_openMillisSum.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CircuitBreakerDirectory [state="+m_state+", opened="+m_openedCount.get()+", rejected="+m_rejected.get()+
+				", delegate="+m_delegate+"]";
+	}
+}
@@ -0,0 +1,42 @@
+package com.mindoo.nginx.auth.directory;
+
+/**
+ * Result of a password verification against the Domino directory
+ * 
+ * @author Karsten Lehmann
+ */
+public class CredentialCheckResult {
+	public enum Status {
+		/** password matches */
+		OK,
+		/** user exists, but password does not match */
+		INVALID_PASSWORD,
+		/** user does not exist in any address book */
+		UNKNOWN_USER }
+
+	private final Status m_status;
+	private final String m_passwordHash;
+
+	public CredentialCheckResult(Status status, String passwordHash) {
+		m_status = status;
+		m_passwordHash = passwordHash;
+	}
+
+	public Status getStatus() {
+		return m_status;
+	}
+
+	/**
+	 * Returns the HTTPPassword hash the password has been checked against
+	 * 
+	 * @return hash or null if user is unknown
+	 */
+	public String getPasswordHash() {
+		return m_passwordHash;
+	}
+
+	@Override
+	public String toString() {
+		return "CredentialCheckResult [status="+m_status+"]";
+	}
+}
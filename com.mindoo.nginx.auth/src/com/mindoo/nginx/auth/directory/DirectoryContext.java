@@ -0,0 +1,216 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import lotus.domino.Database;
+import lotus.domino.Directory;
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+import lotus.domino.View;
+
+import com.mindoo.nginx.auth.utils.DominoUtilsExt;
+import com.mindoo.nginx.auth.utils.DominoUtilsExt.SessionHolder;
+
+/**
+ * Long-lived server session with opened address books and ($Users) views,
+ * owned by a single {@link DirectorySessionPool} worker thread
+ * 
+ * @author Karsten Lehmann
+ */
+public class DirectoryContext {
+	private final String m_serverName;
+	private SessionHolder m_sessionHolder;
+	private List<AddressBook> m_addressBooks;
+	private Directory m_directory;
+	private int m_uses;
+	private long m_lastHealthCheck;
+
+	DirectoryContext(String serverName) {
+		m_serverName = serverName;
+	}
+
+	/**
+	 * Creates the server session and opens all address books
+	 * 
+	 * @throws Exception
+	 */
+	void open() throws Exception {
+		//get session with server rights to be able to open address books
+		m_sessionHolder = DominoUtilsExt.createSessionAsUser(m_serverName);
+		Session session = m_sessionHolder.getSession();
+
+		List<AddressBook> addressBooks = new ArrayList<AddressBook>();
+		@SuppressWarnings("unchecked")
+		Vector<Database> addressBookDbs = session.getAddressBooks();
+		for (Database currNABDb : addressBookDbs) {
+			if (!currNABDb.isOpen()) {
+				currNABDb.open();
+			}
+			View viewUsers = currNABDb.getView("($Users)");
+			if (viewUsers==null) {
+				continue;
+			}
+			viewUsers.setAutoUpdate(false);
+			addressBooks.add(new AddressBook(currNABDb, currNABDb.getReplicaID(), viewUsers));
+		}
+		m_addressBooks = Collections.unmodifiableList(addressBooks);
+		m_uses = 0;
+		m_lastHealthCheck = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks that session and address books are still usable and refreshes
+	 * the ($Users) views to see recent directory changes
+	 * 
+	 * @return true if healthy
+	 */
+	boolean checkHealth() {
+		m_lastHealthCheck = System.currentTimeMillis();
+		if (m_sessionHolder==null || m_sessionHolder.getSession()==null || !m_sessionHolder.getSession().isValid()) {
+			return false;
+		}
+		try {
+			for (AddressBook currBook : m_addressBooks) {
+				if (!currBook.getDatabase().isOpen()) {
+					return false;
+				}
+				currBook.getUsersView().refresh();
+			}
+			return true;
+		}
+		catch (NotesException e) {
+			return false;
+		}
+	}
+
+	long getLastHealthCheck() {
+		return m_lastHealthCheck;
+	}
+
+	void markUnhealthy() {
+		m_lastHealthCheck = 0;
+	}
+
+	int incrementUses() {
+		return ++m_uses;
+	}
+
+	int getUses() {
+		return m_uses;
+	}
+
+	/**
+	 * Returns the server session
+	 * 
+	 * @return session
+	 */
+	public Session getSession() {
+		return m_sessionHolder.getSession();
+	}
+
+	/**
+	 * Returns the directory of the server to resolve names across all address books
+	 * and Directory Assistance, created on first use
+	 * 
+	 * @return directory
+	 * @throws NotesException
+	 */
+	public Directory getDirectory() throws NotesException {
+		if (m_directory==null) {
+			Directory directory = getSession().getDirectory();
+			directory.setSearchAllDirectories(true);
+			m_directory = directory;
+		}
+		return m_directory;
+	}
+
+	/**
+	 * Returns the opened address books of the server
+	 * 
+	 * @return address books
+	 */
+	public List<AddressBook> getAddressBooks() {
+		return m_addressBooks;
+	}
+
+	/**
+	 * Returns an opened address book by its replica id
+	 * 
+	 * @param replicaId replica id
+	 * @return address book or null if not found
+	 */
+	public AddressBook getAddressBook(String replicaId) {
+		for (AddressBook currBook : m_addressBooks) {
+			if (currBook.getReplicaId().equalsIgnoreCase(replicaId)) {
+				return currBook;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Frees the address book handles and the session
+	 */
+	void recycle() {
+		if (m_directory!=null) {
+			try {
+				m_directory.recycle();
+			}
+			catch (NotesException e) {
+				//ignore
+			}
+			m_directory = null;
+		}
+		if (m_addressBooks!=null) {
+			for (AddressBook currBook : m_addressBooks) {
+				try {
+					currBook.getUsersView().recycle();
+					currBook.getDatabase().recycle();
+				}
+				catch (NotesException e) {
+					//ignore
+				}
+			}
+			m_addressBooks = null;
+		}
+		if (m_sessionHolder!=null) {
+			try {
+				m_sessionHolder.recycle();
+			}
+			catch (NotesException e) {
+				//ignore
+			}
+			m_sessionHolder = null;
+		}
+	}
+
+	/**
+	 * Opened address book database with its ($Users) view
+	 */
+	public static class AddressBook {
+		private final Database m_db;
+		private final String m_replicaId;
+		private final View m_usersView;
+
+		private AddressBook(Database db, String replicaId, View usersView) {
+			m_db = db;
+			m_replicaId = replicaId;
+			m_usersView = usersView;
+		}
+
+		public Database getDatabase() {
+			return m_db;
+		}
+
+		public String getReplicaId() {
+			return m_replicaId;
+		}
+
+		public View getUsersView() {
+			return m_usersView;
+		}
+	}
+}
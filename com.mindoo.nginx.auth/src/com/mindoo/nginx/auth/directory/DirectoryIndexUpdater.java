@@ -0,0 +1,108 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+import lotus.domino.NotesException;
+
+import com.mindoo.nginx.auth.utils.DominoUtilsExt;
+import com.mindoo.nginx.auth.utils.DominoUtilsExt.SessionHolder;
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Periodic job that refreshes all registered {@link AbstractDirectoryIndex} instances.
+ * Needs to be scheduled on a Notes initialized thread, e.g. by using a
+ * {@link com.mindoo.nginx.auth.utils.NotesThreadFactory}.
+ * 
+ * @author Karsten Lehmann
+ */
+public class DirectoryIndexUpdater implements Runnable {
+	private final String m_serverName;
+	private final long m_fullRefreshIntervalMillis;
+	private final List<AbstractDirectoryIndex> m_indexes = new CopyOnWriteArrayList<AbstractDirectoryIndex>();
+	private final List<RefreshListener> m_listeners = new CopyOnWriteArrayList<RefreshListener>();
+	private volatile boolean m_debug;
+
+	/**
+	 * Creates a new updater
+	 * 
+	 * @param serverName name of the Domino server, used to create a session with server rights
+	 * @param fullRefreshIntervalMillis interval in milliseconds to re-read all documents, as a safety net for missed changes
+	 */
+	public DirectoryIndexUpdater(String serverName, long fullRefreshIntervalMillis) {
+		m_serverName = serverName;
+		m_fullRefreshIntervalMillis = fullRefreshIntervalMillis;
+	}
+
+	/**
+	 * Callback invoked by the refreshing thread after an index has been refreshed
+	 */
+	public static interface RefreshListener {
+
+		/**
+		 * Called after a successful refresh
+		 * 
+		 * @param index refreshed index
+		 * @param full true for a full refresh
+		 */
+		public void onRefreshed(AbstractDirectoryIndex index, boolean full);
+
+	}
+
+	public void addIndex(AbstractDirectoryIndex index) {
+		m_indexes.add(index);
+	}
+
+	public void addRefreshListener(RefreshListener listener) {
+		m_listeners.add(listener);
+	}
+
+	public void setDebug(boolean debug) {
+		m_debug = debug;
+	}
+
+	@Override
+	public void run() {
+		SessionHolder sessionHolder = null;
+		try {
+			sessionHolder = DominoUtilsExt.createSessionAsUser(m_serverName);
+
+			for (AbstractDirectoryIndex currIndex : m_indexes) {
+				boolean full = !currIndex.isLoaded() ||
+						(m_fullRefreshIntervalMillis>0 && (System.currentTimeMillis() - currIndex.getLastFullRefresh()) > m_fullRefreshIntervalMillis);
+				try {
+					//the index may have switched to a full refresh
+					full = currIndex.refresh(sessionHolder.getSession(), full);
+
+					if (full) {
+						LogUtil.log(Level.INFO, "Full refresh of "+currIndex);
+					}
+					else if (m_debug) {
+						LogUtil.log(Level.INFO, "Incremental refresh of "+currIndex);
+					}
+					for (RefreshListener currListener : m_listeners) {
+						currListener.onRefreshed(currIndex, full);
+					}
+				}
+				catch (Exception e) {
+					LogUtil.log(Level.SEVERE, "Error refreshing "+currIndex.getName(), e);
+				}
+			}
+		}
+		catch (Throwable t) {
+			//don't let the exception cancel the scheduled execution
+			LogUtil.log(Level.SEVERE, "Error refreshing directory indexes", t);
+		}
+		finally {
+			if (sessionHolder!=null) {
+				try {
+					sessionHolder.recycle();
+				} catch (NotesException e) {
+					//ignore
+				}
+			}
+		}
+	}
+
+}
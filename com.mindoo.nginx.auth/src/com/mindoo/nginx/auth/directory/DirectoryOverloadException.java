@@ -0,0 +1,16 @@
+package com.mindoo.nginx.auth.directory;
+
+/**
+ * Thrown by {@link DirectorySessionPool} when a task cannot be queued because
+ * the configured maximum number of pending tasks has been reached
+ * 
+ * @author Karsten Lehmann
+ */
+public class DirectoryOverloadException extends Exception {
+	private static final long serialVersionUID = -5183625049046585734L;
+
+	public DirectoryOverloadException(String msg) {
+		super(msg);
+	}
+
+}
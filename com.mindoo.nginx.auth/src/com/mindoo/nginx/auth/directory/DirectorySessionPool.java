@@ -0,0 +1,484 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import lotus.domino.NotesThread;
+
+import com.mindoo.nginx.auth.metrics.AuthMetrics;
+import com.mindoo.nginx.auth.metrics.AuthMetrics.Phase;
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Bounded pool of long-lived server sessions. Each session is owned by a dedicated
+ * {@link NotesThread} worker that keeps its address books and ($Users) views open
+ * between requests, so that callers don't need to create and tear down a session
+ * per auth request.<br>
+ * <br>
+ * Sessions get health checked periodically and are recreated after a configurable
+ * number of uses or when a task failed.<br>
+ * <br>
+ * The number of pending tasks is bounded. If the queue is full, {@link #execute(DirectoryTask, long)}
+ * fails immediately with a {@link DirectoryOverloadException} instead of blocking the calling
+ * HTTP thread, so that a slow directory cannot tie up all threads of the HTTP task.
+ *
+ * @author Karsten Lehmann
+ */
+public class DirectorySessionPool {
+	private final String m_serverName;
+	private final int m_size;
+	private final int m_maxUses;
+	private final long m_healthCheckIntervalMillis;
+
+	private final BlockingQueue<Job<?>> m_jobs;
+	private final List<Worker> m_workers = new ArrayList<Worker>();
+	private volatile boolean m_shutdown;
+	private volatile AuthMetrics m_metrics;
+
+	private final AtomicLong m_sessionsCreated = new AtomicLong();
+	private final AtomicLong m_sessionsRecycled = new AtomicLong();
+	private final AtomicLong m_healthCheckFailures = new AtomicLong();
+	private final AtomicLong m_rejections = new AtomicLong();
+	private final AtomicLong m_timeouts = new AtomicLong();
+	private final AtomicLong m_runTimeouts = new AtomicLong();
+	private final AtomicLong m_executedTasks = new AtomicLong();
+	private final AtomicLong m_totalWaitNanos = new AtomicLong();
+	private final AtomicLong m_maxWaitNanos = new AtomicLong();
+
+	/**
+	 * Creates a new pool
+	 *
+	 * @param serverName name of the Domino server, used to create sessions with server rights
+	 * @param size number of worker threads / sessions
+	 * @param maxUses number of tasks after which a session gets recreated, 0 for no limit
+	 * @param healthCheckIntervalMillis interval in milliseconds for session health checks and ($Users) view refreshes
+	 * @param maxQueuedTasks max number of tasks waiting for a free worker
+	 */
+	public DirectorySessionPool(String serverName, int size, int maxUses, long healthCheckIntervalMillis, int maxQueuedTasks) {
+		m_serverName = serverName;
+		m_size = Math.max(1, size);
+		m_maxUses = maxUses;
+		m_healthCheckIntervalMillis = healthCheckIntervalMillis;
+		m_jobs = new ArrayBlockingQueue<Job<?>>(Math.max(1, maxQueuedTasks));
+	}
+
+	/**
+	 * Sets the metrics to record queue wait and session creation times
+	 *
+	 * @param metrics metrics or null
+	 */
+	public void setMetrics(AuthMetrics metrics) {
+		m_metrics = metrics;
+	}
+
+	/**
+	 * Starts the worker threads
+	 */
+	public synchronized void start() {
+		for (int i=0; i<m_size; i++) {
+			Worker worker = new Worker(i);
+			m_workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Stops the worker threads and recycles their sessions
+	 */
+	public synchronized void shutdown() {
+		m_shutdown = true;
+		for (Worker currWorker : m_workers) {
+			currWorker.interrupt();
+		}
+		for (Worker currWorker : m_workers) {
+			try {
+				currWorker.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		m_workers.clear();
+
+		Job<?> job;
+		while ((job = m_jobs.poll())!=null) {
+			job.fail(new IllegalStateException("Directory session pool has been shut down"));
+		}
+	}
+
+	/**
+	 * Executes a task on one of the pooled sessions and waits for its result
+	 *
+	 * @param task task
+	 * @param timeoutMillis max time in milliseconds to wait for a worker to pick up and complete the task
+	 * @return result
+	 * @throws DirectoryOverloadException if the max number of queued tasks has been reached
+	 * @throws TimeoutException if the task did not start or complete in time
+	 * @throws Exception exception thrown by the task
+	 */
+	public <T> T execute(DirectoryTask<T> task, long timeoutMillis) throws Exception {
+		if (m_shutdown) {
+			throw new IllegalStateException("Directory session pool has been shut down");
+		}
+		Job<T> job = new Job<T>(task);
+		if (!m_jobs.offer(job)) {
+			m_rejections.incrementAndGet();
+			throw new DirectoryOverloadException("Too many pending directory lookups ("+m_jobs.size()+")");
+		}
+
+		if (!job.await(timeoutMillis)) {
+			if (job.cancel()) {
+				m_timeouts.incrementAndGet();
+				throw new TimeoutException("Timeout waiting "+timeoutMillis+"ms for directory access");
+			}
+			//worker already picked it up, but don't let a stalled lookup (e.g. during
+			//compaction of an address book) block the calling thread beyond the timeout
+			if (!job.await(0)) {
+				m_runTimeouts.incrementAndGet();
+				throw new TimeoutException("Directory lookup still running after "+timeoutMillis+"ms");
+			}
+		}
+		return job.getResult();
+	}
+
+	/**
+	 * Makes every worker create its session and open the address books by queueing one
+	 * task per worker that blocks until all workers have picked up theirs
+	 *
+	 * @param task optional task to run on every worker after the barrier, e.g. to open further handles, or null
+	 * @param timeoutMillis max time in milliseconds to wait
+	 * @return number of workers that completed the warm-up
+	 * @throws InterruptedException
+	 */
+	public int warmUp(final DirectoryTask<?> task, final long timeoutMillis) throws InterruptedException {
+		final CountDownLatch claimed = new CountDownLatch(m_size);
+		List<Job<Object>> jobs = new ArrayList<Job<Object>>(m_size);
+		for (int i=0; i<m_size; i++) {
+			Job<Object> job = new Job<Object>(new DirectoryTask<Object>() {
+
+				@Override
+				public Object run(DirectoryContext ctx) throws Exception {
+					//keep this worker busy so the other jobs go to the other workers
+					claimed.countDown();
+					claimed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+					return task==null ? null : task.run(ctx);
+				}
+			});
+			if (!m_jobs.offer(job)) {
+				break;
+			}
+			jobs.add(job);
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		int warmedUp = 0;
+		for (Job<Object> currJob : jobs) {
+			if (!currJob.await(Math.max(0, deadline - System.currentTimeMillis()))) {
+				if (currJob.cancel()) {
+					continue;
+				}
+				//the worker picked it up late, e.g. still creating its session; it may finish
+				//in the background, but warm-up must not wait longer than the timeout
+				if (!currJob.await(Math.max(0, deadline - System.currentTimeMillis()))) {
+					LogUtil.log(Level.WARNING, "Directory session warm-up still running after "+timeoutMillis+"ms");
+					continue;
+				}
+			}
+			try {
+				currJob.getResult();
+				warmedUp++;
+			}
+			catch (Exception e) {
+				LogUtil.log(Level.WARNING, "Directory session warm-up failed", e);
+			}
+		}
+		return warmedUp;
+	}
+
+	public int getSize() {
+		return m_size;
+	}
+
+	public int getQueuedTasks() {
+		return m_jobs.size();
+	}
+
+	public long getSessionsCreated() {
+		return m_sessionsCreated.get();
+	}
+
+	public long getSessionsRecycled() {
+		return m_sessionsRecycled.get();
+	}
+
+	public long getHealthCheckFailures() {
+		return m_healthCheckFailures.get();
+	}
+
+	/**
+	 * Returns the number of tasks rejected because the queue was full
+	 * 
+	 * @return count
+	 */
+	public long getRejections() {
+		return m_rejections.get();
+	}
+
+	/**
+	 * Returns the number of tasks cancelled because no worker picked them up in time
+	 * 
+	 * @return count
+	 */
+	public long getTimeouts() {
+		return m_timeouts.get();
+	}
+
+	/**
+	 * Returns the number of tasks the caller stopped waiting for while they were running
+	 * 
+	 * @return count
+	 */
+	public long getRunTimeouts() {
+		return m_runTimeouts.get();
+	}
+
+	/**
+	 * Returns the number of tasks picked up by a worker
+	 * 
+	 * @return count
+	 */
+	public long getExecutedTasks() {
+		return m_executedTasks.get();
+	}
+
+	/**
+	 * Returns the sum of the times tasks spent in the queue
+	 * 
+	 * @return nanoseconds
+	 */
+	public long getTotalWaitNanos() {
+		return m_totalWaitNanos.get();
+	}
+
+	/**
+	 * Returns the longest time a task spent in the queue
+	 * 
+	 * @return nanoseconds
+	 */
+	public long getMaxWaitNanos() {
+		return m_maxWaitNanos.get();
+	}
+
+	private void recordWait(long waitNanos) {
+		AuthMetrics metrics = m_metrics;
+		if (metrics!=null) {
+			metrics.recordPhase(Phase.DIRECTORY_WAIT, waitNanos);
+		}
+		m_executedTasks.incrementAndGet();
+		m_totalWaitNanos.addAndGet(waitNanos);
+		long max;
+		do {
+			max = m_maxWaitNanos.get();
+			if (waitNanos <= max) {
+				break;
+			}
+		}
+		while (!m_maxWaitNanos.compareAndSet(max, waitNanos));
+	}
+
+	@Override
+	public String toString() {
+		long executed = getExecutedTasks();
+		long avgWaitMicros = executed==0 ? 0 : getTotalWaitNanos() / executed / 1000;
+		return "DirectorySessionPool [size="+m_size+", queued="+getQueuedTasks()+", executed="+executed+
+				", avgWait="+avgWaitMicros+"us, maxWait="+(getMaxWaitNanos()/1000)+"us, rejections="+getRejections()+
+				", timeouts="+getTimeouts()+", runTimeouts="+getRunTimeouts()+", created="+getSessionsCreated()+
+				", recycled="+getSessionsRecycled()+", healthCheckFailures="+getHealthCheckFailures()+"]";
+	}
+
+	/**
+	 * Task submitted to the pool together with its result
+	 */
+	private static class Job<T> {
+		private final DirectoryTask<T> m_task;
+		private final CountDownLatch m_done = new CountDownLatch(1);
+		private final AtomicBoolean m_claimed = new AtomicBoolean();
+		private final long m_enqueuedNanos = System.nanoTime();
+		private T m_result;
+		private Throwable m_error;
+
+		public Job(DirectoryTask<T> task) {
+			m_task = task;
+		}
+
+		/**
+		 * Called by the worker to take ownership of the job
+		 *
+		 * @return false if the caller already gave up
+		 */
+		public boolean claim() {
+			return m_claimed.compareAndSet(false, true);
+		}
+
+		public long getEnqueuedNanos() {
+			return m_enqueuedNanos;
+		}
+
+		/**
+		 * Called by the caller on timeout
+		 *
+		 * @return true if the job has been cancelled before a worker picked it up
+		 */
+		public boolean cancel() {
+			return m_claimed.compareAndSet(false, true);
+		}
+
+		/**
+		 * Runs the task and stores its result
+		 *
+		 * @param ctx context
+		 * @return false if the task threw an exception
+		 */
+		public boolean run(DirectoryContext ctx) {
+			try {
+				m_result = m_task.run(ctx);
+				return true;
+			}
+			catch (Throwable t) {
+				m_error = t;
+				return false;
+			}
+			finally {
+				m_done.countDown();
+			}
+		}
+
+		public void fail(Throwable t) {
+			m_error = t;
+			m_done.countDown();
+		}
+
+		public boolean await(long timeoutMillis) throws InterruptedException {
+			return m_done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public T getResult() throws Exception {
+			if (m_error instanceof Exception) {
+				throw (Exception) m_error;
+			}
+			else if (m_error!=null) {
+				throw new ExecutionException(m_error);
+			}
+			return m_result;
+		}
+	}
+
+	/**
+	 * Worker thread owning one {@link DirectoryContext}
+	 */
+	private class Worker extends NotesThread {
+		private DirectoryContext m_ctx;
+
+		public Worker(int index) {
+			super("NGINXAUTH directory worker "+index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void runNotes() {
+			try {
+				while (!m_shutdown) {
+					Job<?> job;
+					try {
+						job = m_jobs.poll(m_healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						break;
+					}
+
+					if (job==null) {
+						//idle, keep session alive and views up to date
+						if (m_ctx!=null && !m_ctx.checkHealth()) {
+							m_healthCheckFailures.incrementAndGet();
+							closeContext();
+						}
+						continue;
+					}
+					if (!job.claim()) {
+						//caller ran into a timeout
+						continue;
+					}
+					recordWait(System.nanoTime() - job.getEnqueuedNanos());
+
+					try {
+						prepareContext();
+					}
+					catch (Throwable t) {
+						LogUtil.log(Level.SEVERE, "Could not create directory session", t);
+						closeContext();
+						job.fail(t);
+						continue;
+					}
+
+					if (!job.run(m_ctx)) {
+						//make sure the session gets checked before the next use
+						m_ctx.markUnhealthy();
+					}
+				}
+			}
+			finally {
+				closeContext();
+			}
+		}
+
+		private void prepareContext() throws Exception {
+			if (m_ctx!=null) {
+				if (m_maxUses>0 && m_ctx.getUses()>=m_maxUses) {
+					closeContext();
+				}
+				else if ((System.currentTimeMillis() - m_ctx.getLastHealthCheck()) > m_healthCheckIntervalMillis) {
+					if (!m_ctx.checkHealth()) {
+						m_healthCheckFailures.incrementAndGet();
+						closeContext();
+					}
+				}
+			}
+
+			if (m_ctx==null) {
+				long t0 = System.nanoTime();
+				DirectoryContext ctx = new DirectoryContext(m_serverName);
+				try {
+					ctx.open();
+				}
+				catch (Exception e) {
+					ctx.recycle();
+					throw e;
+				}
+				m_ctx = ctx;
+				m_sessionsCreated.incrementAndGet();
+
+				AuthMetrics metrics = m_metrics;
+				if (metrics!=null) {
+					metrics.recordPhase(Phase.SESSION_CREATE, System.nanoTime() - t0);
+				}
+			}
+			m_ctx.incrementUses();
+		}
+
+		private void closeContext() {
+			if (m_ctx!=null) {
+				m_ctx.recycle();
+				m_ctx = null;
+				m_sessionsRecycled.incrementAndGet();
+			}
+		}
+	}
+}
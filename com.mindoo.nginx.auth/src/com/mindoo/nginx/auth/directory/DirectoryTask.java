@@ -0,0 +1,23 @@
+package com.mindoo.nginx.auth.directory;
+
+/**
+ * Unit of work that gets executed by a {@link DirectorySessionPool} worker thread
+ * 
+ * @author Karsten Lehmann
+ *
+ * @param <T> result type
+ */
+public interface DirectoryTask<T> {
+
+	/**
+	 * Implement this method to access the directory. Domino objects of the
+	 * context are owned by the worker thread and must not be recycled
+	 * or passed to other threads.
+	 * 
+	 * @param ctx context with server session and opened address books
+	 * @return result
+	 * @throws Exception
+	 */
+	public T run(DirectoryContext ctx) throws Exception;
+
+}
@@ -0,0 +1,16 @@
+package com.mindoo.nginx.auth.directory;
+
+/**
+ * Thrown by {@link CircuitBreakerDirectory} while the circuit breaker is open and
+ * directory access is skipped
+ * 
+ * @author Karsten Lehmann
+ */
+public class DirectoryUnavailableException extends Exception {
+	private static final long serialVersionUID = 3315820617351052194L;
+
+	public DirectoryUnavailableException(String msg) {
+		super(msg);
+	}
+
+}
@@ -0,0 +1,384 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import lotus.domino.DirectoryNavigator;
+import lotus.domino.Document;
+import lotus.domino.NotesException;
+
+import com.mindoo.nginx.auth.directory.CredentialCheckResult.Status;
+import com.mindoo.nginx.auth.directory.DirectoryContext.AddressBook;
+import com.mindoo.nginx.auth.directory.UserIndex.UserEntry;
+import com.mindoo.nginx.auth.metrics.AuthMetrics;
+import com.mindoo.nginx.auth.metrics.AuthMetrics.Phase;
+import com.mindoo.nginx.auth.utils.LogUtil;
+import com.mindoo.nginx.auth.utils.NotesThreadFactory;
+
+/**
+ * {@link UserDirectory} implementation that checks credentials against the
+ * address books of the Domino server, using pooled sessions and an optional
+ * in-memory {@link UserIndex}
+ * 
+ * @author Karsten Lehmann
+ */
+public class DominoUserDirectory implements UserDirectory {
+	private final DirectorySessionPool m_sessionPool;
+	private final long m_timeoutMillis;
+	private final UserIndex m_userIndex;
+	private ScheduledExecutorService m_indexUpdateExecutor;
+	private volatile AuthMetrics m_metrics;
+	private volatile LookupMode m_lookupMode = LookupMode.VIEW;
+	private volatile AddressBookHitStats m_hitStats;
+
+	/**
+	 * Defines how users are looked up while the {@link UserIndex} is disabled or loading,
+	 * and how the current password hash is read after the indexed one did not match
+	 */
+	public static enum LookupMode {
+		/** probe the ($Users) view of each address book and open the person document */
+		VIEW,
+		/** one NAMELookup across all directories via {@link lotus.domino.Directory}, reading only the HTTPPassword item */
+		DIRECTORY;
+
+		/**
+		 * Parses a Notes.ini value
+		 * 
+		 * @param value "view" or "directory"
+		 * @return mode or null if unknown
+		 */
+		public static LookupMode parse(String value) {
+			if ("view".equalsIgnoreCase(value.trim())) {
+				return VIEW;
+			}
+			else if ("directory".equalsIgnoreCase(value.trim())) {
+				return DIRECTORY;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a new directory
+	 * 
+	 * @param sessionPool started session pool
+	 * @param timeoutMillis max time in milliseconds to wait for a lookup
+	 * @param userIndex index to use for lookups once loaded or null to probe the ($Users) views
+	 */
+	public DominoUserDirectory(DirectorySessionPool sessionPool, long timeoutMillis, UserIndex userIndex) {
+		m_sessionPool = sessionPool;
+		m_timeoutMillis = timeoutMillis;
+		m_userIndex = userIndex;
+	}
+
+	/**
+	 * Schedules the periodic refresh of directory indexes. The initial load runs in the
+	 * background, lookups probe the address books until it is done.
+	 * 
+	 * @param indexUpdater updater
+	 * @param refreshIntervalMillis interval between refreshes
+	 */
+	public synchronized void startIndexUpdates(DirectoryIndexUpdater indexUpdater, long refreshIntervalMillis) {
+		if (m_indexUpdateExecutor==null) {
+			m_indexUpdateExecutor = Executors.newSingleThreadScheduledExecutor(new NotesThreadFactory("NGINXAUTH index updater"));
+		}
+		m_indexUpdateExecutor.scheduleWithFixedDelay(indexUpdater, 0, Math.max(1000, refreshIntervalMillis), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets the metrics to record lookup and password verification times
+	 * 
+	 * @param metrics metrics or null
+	 */
+	public void setMetrics(AuthMetrics metrics) {
+		m_metrics = metrics;
+		m_sessionPool.setMetrics(metrics);
+	}
+
+	public void setLookupMode(LookupMode mode) {
+		m_lookupMode = mode;
+	}
+
+	public LookupMode getLookupMode() {
+		return m_lookupMode;
+	}
+
+	/**
+	 * Enables probing the address books in the order of their hit counts in {@link LookupMode#VIEW}
+	 * 
+	 * @param hitStats statistics or null to probe in the server's order
+	 */
+	public void setAddressBookHitStats(AddressBookHitStats hitStats) {
+		m_hitStats = hitStats;
+	}
+
+	public AddressBookHitStats getAddressBookHitStats() {
+		return m_hitStats;
+	}
+
+	public DirectorySessionPool getSessionPool() {
+		return m_sessionPool;
+	}
+
+	public UserIndex getUserIndex() {
+		return m_userIndex;
+	}
+
+	@Override
+	public CredentialCheckResult checkCredentials(String user, String password) throws Exception {
+		//check credentials on a pooled session with server rights
+		return m_sessionPool.execute(new CheckCredentialsTask(m_userIndex, user, password, m_metrics,
+				m_lookupMode, m_hitStats), m_timeoutMillis);
+	}
+
+	@Override
+	public String getKnownPasswordHash(String user) {
+		if (m_userIndex!=null) {
+			UserEntry userEntry = m_userIndex.lookup(user);
+			if (userEntry!=null) {
+				return userEntry.getPasswordHash();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean warmUp(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		//open sessions, address books and ($Users) views of all workers
+		final LookupMode lookupMode = m_lookupMode;
+		int warmedUp = m_sessionPool.warmUp(new DirectoryTask<Object>() {
+
+			@Override
+			public Object run(DirectoryContext ctx) throws Exception {
+				if (lookupMode==LookupMode.DIRECTORY) {
+					ctx.getDirectory();
+				}
+				return null;
+			}
+		}, timeoutMillis);
+		boolean success = warmedUp==m_sessionPool.getSize();
+
+		//wait for the initial load of the index, started by startIndexUpdates
+		if (m_userIndex!=null) {
+			while (!m_userIndex.isLoaded()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining<=0) {
+					return false;
+				}
+				Thread.sleep(Math.min(100, remaining));
+			}
+		}
+		return success;
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		if (m_indexUpdateExecutor!=null) {
+			m_indexUpdateExecutor.shutdownNow();
+			m_indexUpdateExecutor = null;
+		}
+		if (m_userIndex!=null) {
+			LogUtil.log(Level.INFO, "User index statistics: "+m_userIndex);
+		}
+		m_sessionPool.shutdown();
+		LogUtil.log(Level.INFO, "Directory session pool statistics: "+m_sessionPool);
+	}
+
+	@Override
+	public String toString() {
+		return "DominoUserDirectory [lookupMode="+m_lookupMode+", pool="+m_sessionPool+", index="+m_userIndex+
+				(m_hitStats!=null ? ", hits="+m_hitStats : "")+"]";
+	}
+
+	/**
+	 * Looks up a user in the address books of the server and verifies the password
+	 */
+	private static class CheckCredentialsTask implements DirectoryTask<CredentialCheckResult> {
+		private final UserIndex m_userIndex;
+		private final String m_user;
+		private final String m_password;
+		private final AuthMetrics m_metrics;
+		private final LookupMode m_lookupMode;
+		private final AddressBookHitStats m_hitStats;
+		private long m_verifyNanos;
+
+		public CheckCredentialsTask(UserIndex userIndex, String user, String password, AuthMetrics metrics,
+				LookupMode lookupMode, AddressBookHitStats hitStats) {
+			m_userIndex = userIndex;
+			m_user = user;
+			m_password = password;
+			m_metrics = metrics;
+			m_lookupMode = lookupMode;
+			m_hitStats = hitStats;
+		}
+
+		@Override
+		public CredentialCheckResult run(DirectoryContext ctx) throws Exception {
+			long t0 = System.nanoTime();
+			try {
+				return checkCredentials(ctx);
+			}
+			finally {
+				if (m_metrics!=null) {
+					if (m_verifyNanos>0) {
+						m_metrics.recordPhase(Phase.VERIFY_PASSWORD, m_verifyNanos);
+					}
+					m_metrics.recordPhase(Phase.LOOKUP, System.nanoTime() - t0 - m_verifyNanos);
+				}
+			}
+		}
+
+		private boolean verifyPassword(DirectoryContext ctx, String hash) throws NotesException {
+			long t0 = System.nanoTime();
+			try {
+				return ctx.getSession().verifyPassword(m_password, hash);
+			}
+			finally {
+				m_verifyNanos += System.nanoTime() - t0;
+			}
+		}
+
+		/**
+		 * Reads the HTTPPassword item of the user across all directories of the server,
+		 * including Directory Assistance, without opening the person document
+		 * 
+		 * @param ctx context
+		 * @return hash, empty string if not set, null if the user is unknown
+		 * @throws NotesException
+		 */
+		private String lookupPasswordHash(DirectoryContext ctx) throws NotesException {
+			Vector<String> items = new Vector<String>(1);
+			items.add("HTTPPassword");
+			DirectoryNavigator nav = ctx.getDirectory().lookupNames("$Users", m_user, items, false);
+			try {
+				if (!nav.findFirstMatch()) {
+					return null;
+				}
+				Vector<?> values = nav.getFirstItemValue();
+				return values==null || values.isEmpty() ? "" : values.get(0).toString();
+			}
+			finally {
+				nav.recycle();
+			}
+		}
+
+		/**
+		 * Reads the HTTPPassword item of the user by probing the ($Users) views of the
+		 * address books, most frequently hit books first if hit statistics are enabled
+		 * 
+		 * @param ctx context
+		 * @return hash, empty string if not set, null if the user is unknown
+		 * @throws NotesException
+		 */
+		private String probePasswordHash(DirectoryContext ctx) throws NotesException {
+			List<AddressBook> books = m_hitStats!=null ? m_hitStats.order(ctx.getAddressBooks()) : ctx.getAddressBooks();
+			for (AddressBook currBook : books) {
+				Document docPerson = currBook.getUsersView().getDocumentByKey(m_user, false);
+				if (docPerson!=null) {
+					try {
+						if (m_hitStats!=null) {
+							m_hitStats.recordHit(currBook.getReplicaId());
+						}
+						return docPerson.getItemValueString("HTTPPassword");
+					}
+					finally {
+						docPerson.recycle();
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Reads the current HTTPPassword item of an indexed user
+		 * 
+		 * @param ctx context
+		 * @param userEntry index entry
+		 * @return hash or null if the person document has been deleted since the last index refresh
+		 * @throws NotesException
+		 */
+		private String readIndexedPasswordHash(DirectoryContext ctx, UserEntry userEntry) throws NotesException {
+			if (m_lookupMode==LookupMode.DIRECTORY) {
+				return lookupPasswordHash(ctx);
+			}
+			AddressBook book = ctx.getAddressBook(userEntry.getAddressBookReplicaId());
+			if (book==null) {
+				return null;
+			}
+			Document docPerson;
+			try {
+				docPerson = book.getDatabase().getDocumentByID(userEntry.getNoteId());
+			}
+			catch (NotesException e) {
+				//document has been deleted since the last index refresh
+				return null;
+			}
+			if (docPerson==null) {
+				return null;
+			}
+			try {
+				if (docPerson.isDeleted() || !docPerson.isValid()) {
+					return null;
+				}
+				return docPerson.getItemValueString("HTTPPassword");
+			}
+			finally {
+				docPerson.recycle();
+			}
+		}
+
+		private CredentialCheckResult checkCredentials(DirectoryContext ctx) throws Exception {
+			String hashedPW;
+			String checkedHash = null;
+
+			if (m_userIndex!=null && m_userIndex.isLoaded()) {
+				//single hash probe instead of one view lookup per address book
+				UserEntry userEntry = m_userIndex.lookup(m_user);
+				if (userEntry==null) {
+					return new CredentialCheckResult(Status.UNKNOWN_USER, null);
+				}
+
+				String indexedHash = userEntry.getPasswordHash();
+				if (indexedHash!=null && indexedHash.length()>0) {
+					if (verifyPassword(ctx, indexedHash)) {
+						return new CredentialCheckResult(Status.OK, indexedHash);
+					}
+					checkedHash = indexedHash;
+				}
+
+				//password might have been changed since the last index refresh, read the current one
+				hashedPW = readIndexedPasswordHash(ctx, userEntry);
+				if (indexedHash==null && hashedPW!=null) {
+					//entry restored from a snapshot, no document access for the next logins
+					userEntry.restorePasswordHash(hashedPW);
+				}
+			}
+			else if (m_lookupMode==LookupMode.DIRECTORY) {
+				hashedPW = lookupPasswordHash(ctx);
+			}
+			else {
+				hashedPW = probePasswordHash(ctx);
+			}
+
+			if (hashedPW==null) {
+				return new CredentialCheckResult(Status.UNKNOWN_USER, null);
+			}
+			else if (hashedPW.equals(checkedHash)) {
+				//already verified against this hash
+				return new CredentialCheckResult(Status.INVALID_PASSWORD, hashedPW);
+			}
+			else if (verifyPassword(ctx, hashedPW)) {
+				return new CredentialCheckResult(Status.OK, hashedPW);
+			}
+			else {
+				return new CredentialCheckResult(Status.INVALID_PASSWORD, hashedPW);
+			}
+		}
+	}
+}
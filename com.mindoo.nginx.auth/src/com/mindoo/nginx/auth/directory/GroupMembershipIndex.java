@@ -0,0 +1,311 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import lotus.domino.Document;
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+
+/**
+ * In-memory index of the members of up to 64 policy groups, including the members of
+ * nested groups. The group documents of all address books are read incrementally like
+ * the other indexes; after a refresh that changed a group, the policy groups are expanded
+ * once into a map of member name to a 64 bit mask with one bit per policy group, so that
+ * a membership check is a hash lookup and a bit test.<br>
+ * <br>
+ * Names are compared in lowercase abbreviated form, e.g. "john doe/sales/acme".
+ * Wildcard members like "*&#47;Sales/Acme" are supported, Directory Assistance
+ * and LDAP groups are not.
+ * 
+ * @author Karsten Lehmann
+ */
+public class GroupMembershipIndex extends AbstractDirectoryIndex {
+	/** max number of policy groups, one bit per group */
+	public static final int MAX_GROUPS = 64;
+
+	private final String[] m_policyGroups;
+
+	/** replica id + note id => group document, only used by the refreshing thread */
+	private Map<String,GroupDoc> m_groupsByNote = new HashMap<String,GroupDoc>();
+	private Map<String,GroupDoc> m_newGroupsByNote;
+	private boolean m_changed;
+
+	private volatile Membership m_membership = new Membership(Collections.<String,Long>emptyMap(), new String[0], new long[0]);
+
+	/**
+	 * Creates a new index
+	 * 
+	 * @param policyGroups names of the groups to expand, bit i of a membership mask stands for policyGroups[i]
+	 * @throws IllegalArgumentException if more than {@link #MAX_GROUPS} groups are specified
+	 */
+	public GroupMembershipIndex(List<String> policyGroups) {
+		if (policyGroups.size()>MAX_GROUPS) {
+			throw new IllegalArgumentException("At most "+MAX_GROUPS+" policy groups are supported, found "+policyGroups.size());
+		}
+		m_policyGroups = new String[policyGroups.size()];
+		for (int i=0; i<m_policyGroups.length; i++) {
+			m_policyGroups[i] = toKey(policyGroups.get(i));
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "GroupMembershipIndex";
+	}
+
+	/**
+	 * Returns the bit of a policy group in the membership masks
+	 * 
+	 * @param group group name
+	 * @return mask with the group's bit set or 0 if it is not a policy group
+	 */
+	public long getGroupMask(String group) {
+		String groupKey = toKey(group);
+		for (int i=0; i<m_policyGroups.length; i++) {
+			if (m_policyGroups[i].equals(groupKey)) {
+				return 1L << i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the policy groups a user is a direct or nested member of
+	 * 
+	 * @param name user name in canonical or abbreviated form
+	 * @return mask with one bit per policy group
+	 */
+	public long getGroupBits(String name) {
+		Membership membership = m_membership;
+		String key = toKey(name);
+		Long bits = membership.m_bitsByMember.get(key);
+		long result = bits==null ? 0 : bits.longValue();
+		String[] wildcardSuffixes = membership.m_wildcardSuffixes;
+		for (int i=0; i<wildcardSuffixes.length; i++) {
+			if (key.endsWith(wildcardSuffixes[i])) {
+				result |= membership.m_wildcardBits[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of indexed group documents
+	 * 
+	 * @return count
+	 */
+	@Override
+	public int getEntryCount() {
+		return m_groupsByNote.size();
+	}
+
+	/**
+	 * Returns the number of distinct members of all policy groups after expansion
+	 * 
+	 * @return count
+	 */
+	public int getMemberCount() {
+		return m_membership.m_bitsByMember.size();
+	}
+
+	@Override
+	protected void beginFullRefresh() {
+		m_newGroupsByNote = new HashMap<String,GroupDoc>();
+	}
+
+	@Override
+	protected void endFullRefresh() {
+		m_groupsByNote = m_newGroupsByNote;
+		m_newGroupsByNote = null;
+		m_changed = true;
+	}
+
+	@Override
+	protected void abortFullRefresh() {
+		m_newGroupsByNote = null;
+	}
+
+	@Override
+	protected void removeDocument(String addressBookReplicaId, String noteId) {
+		if (m_groupsByNote.remove(addressBookReplicaId+"!"+noteId)!=null) {
+			m_changed = true;
+		}
+	}
+
+	@Override
+	protected void indexDocument(Session session, int addressBookIndex, String addressBookReplicaId, Document doc) throws NotesException {
+		Map<String,GroupDoc> groupsByNote = m_newGroupsByNote!=null ? m_newGroupsByNote : m_groupsByNote;
+		String noteKey = addressBookReplicaId+"!"+doc.getNoteID();
+
+		if (groupsByNote.remove(noteKey)!=null) {
+			m_changed = true;
+		}
+		if (!"Group".equalsIgnoreCase(doc.getItemValueString("Type"))) {
+			return;
+		}
+
+		Set<String> names = new LinkedHashSet<String>();
+		for (Object currListName : doc.getItemValue("ListName")) {
+			String key = toKey(currListName.toString());
+			if (key.length()>0) {
+				names.add(key);
+			}
+		}
+		if (names.isEmpty()) {
+			return;
+		}
+		Set<String> members = new LinkedHashSet<String>();
+		for (Object currMember : doc.getItemValue("Members")) {
+			String key = toKey(currMember.toString());
+			if (key.length()>0) {
+				members.add(key);
+			}
+		}
+		groupsByNote.put(noteKey, new GroupDoc(names.toArray(new String[names.size()]), members.toArray(new String[members.size()])));
+		m_changed = true;
+	}
+
+	@Override
+	protected void afterRefresh(boolean full) {
+		if (!m_changed) {
+			return;
+		}
+		m_changed = false;
+
+		//group name => members of all documents with that name, address books get merged like in NAMELookup
+		Map<String,List<String[]>> membersByGroup = new HashMap<String,List<String[]>>();
+		for (GroupDoc currGroup : m_groupsByNote.values()) {
+			for (String currName : currGroup.m_names) {
+				List<String[]> members = membersByGroup.get(currName);
+				if (members==null) {
+					members = new ArrayList<String[]>(1);
+					membersByGroup.put(currName, members);
+				}
+				members.add(currGroup.m_members);
+			}
+		}
+
+		Map<String,Long> bitsByMember = new HashMap<String,Long>();
+		Map<String,Long> bitsByWildcard = new HashMap<String,Long>();
+		for (int i=0; i<m_policyGroups.length; i++) {
+			long bit = 1L << i;
+			//iterative expansion, nested groups may contain cycles
+			Set<String> visited = new HashSet<String>();
+			List<String> pending = new ArrayList<String>();
+			pending.add(m_policyGroups[i]);
+			while (!pending.isEmpty()) {
+				String currGroup = pending.remove(pending.size()-1);
+				if (!visited.add(currGroup)) {
+					continue;
+				}
+				List<String[]> groupMembers = membersByGroup.get(currGroup);
+				if (groupMembers==null) {
+					continue;
+				}
+				for (String[] currMembers : groupMembers) {
+					for (String currMember : currMembers) {
+						if (membersByGroup.containsKey(currMember)) {
+							pending.add(currMember);
+						}
+						else if (currMember.startsWith("*/")) {
+							addBit(bitsByWildcard, currMember.substring(1), bit);
+						}
+						else {
+							addBit(bitsByMember, currMember, bit);
+						}
+					}
+				}
+			}
+		}
+
+		String[] wildcardSuffixes = bitsByWildcard.keySet().toArray(new String[bitsByWildcard.size()]);
+		long[] wildcardBits = new long[wildcardSuffixes.length];
+		for (int i=0; i<wildcardSuffixes.length; i++) {
+			wildcardBits[i] = bitsByWildcard.get(wildcardSuffixes[i]).longValue();
+		}
+		m_membership = new Membership(bitsByMember, wildcardSuffixes, wildcardBits);
+	}
+
+	private static void addBit(Map<String,Long> bitsByName, String name, long bit) {
+		Long bits = bitsByName.get(name);
+		bitsByName.put(name, Long.valueOf(bits==null ? bit : (bits.longValue() | bit)));
+	}
+
+	/**
+	 * Converts a name to lowercase abbreviated form without the Notes API, e.g.
+	 * "CN=John Doe/OU=Sales/O=Acme" to "john doe/sales/acme"
+	 * 
+	 * @param name name
+	 * @return key
+	 */
+	static String toKey(String name) {
+		String key = name.trim().toLowerCase(Locale.ENGLISH);
+		if (key.indexOf('=')==-1) {
+			return key;
+		}
+		StringBuilder sb = new StringBuilder(key.length());
+		int start = 0;
+		while (start<=key.length()) {
+			int end = key.indexOf('/', start);
+			if (end==-1) {
+				end = key.length();
+			}
+			int valueStart = key.indexOf('=', start);
+			if (valueStart==-1 || valueStart>end) {
+				valueStart = start;
+			}
+			else {
+				valueStart++;
+			}
+			if (sb.length()>0) {
+				sb.append('/');
+			}
+			sb.append(key, valueStart, end);
+			start = end + 1;
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getName()+" [policyGroups="+m_policyGroups.length+", groups="+m_groupsByNote.size()+
+				", members="+m_membership.m_bitsByMember.size()+", wildcards="+m_membership.m_wildcardSuffixes.length+"]";
+	}
+
+	/**
+	 * Names and members of a group document
+	 */
+	private static class GroupDoc {
+		private final String[] m_names;
+		private final String[] m_members;
+
+		public GroupDoc(String[] names, String[] members) {
+			m_names = names;
+			m_members = members;
+		}
+	}
+
+	/**
+	 * Immutable result of the group expansion, replaced as a whole
+	 */
+	private static class Membership {
+		private final Map<String,Long> m_bitsByMember;
+		/** wildcard entries like "/sales/acme" for "*&#47;Sales/Acme" */
+		private final String[] m_wildcardSuffixes;
+		private final long[] m_wildcardBits;
+
+		public Membership(Map<String,Long> bitsByMember, String[] wildcardSuffixes, long[] wildcardBits) {
+			m_bitsByMember = bitsByMember;
+			m_wildcardSuffixes = wildcardSuffixes;
+			m_wildcardBits = wildcardBits;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindoo.nginx.auth.directory.UserIndex.UserEntry;
+
+/**
+ * Restricts IMAP, POP3 and SMTP AUTH logins to members of Domino groups. Each protocol
+ * can have allowed groups (if set, the user must be a direct or nested member of one of
+ * them) and denied groups (members are rejected, even if also allowed).<br>
+ * <br>
+ * Login names are resolved with the {@link UserIndex}, group memberships are precomputed
+ * by the {@link GroupMembershipIndex}, so a check is two hash lookups and a bit test.
+ * Users not found in the user index, e.g. from Directory Assistance, are not member of
+ * any group.
+ * 
+ * @author Karsten Lehmann
+ */
+public class GroupPolicy {
+	private static final String[] PROTOCOLS = new String[] {"imap", "pop3", "smtp"};
+
+	/**
+	 * Result of a policy check
+	 */
+	public static enum Access {
+		ALLOWED,
+		/** not member of an allowed group or member of a denied group */
+		DENIED,
+		/** group index not loaded yet */
+		UNAVAILABLE
+	}
+
+	private final UserIndex m_userIndex;
+	private final GroupMembershipIndex m_membershipIndex;
+	private final long[] m_allowMasks = new long[PROTOCOLS.length];
+	private final long[] m_denyMasks = new long[PROTOCOLS.length];
+	private final Map<String,List<String>> m_allowGroups;
+	private final Map<String,List<String>> m_denyGroups;
+
+	private final AtomicLong m_allowed = new AtomicLong();
+	private final AtomicLong m_denied = new AtomicLong();
+
+	/**
+	 * Creates a new policy
+	 * 
+	 * @param userIndex index of person documents
+	 * @param allowGroups protocol (imap, pop3, smtp) => allowed groups
+	 * @param denyGroups protocol => denied groups
+	 * @throws IllegalArgumentException if more than {@link GroupMembershipIndex#MAX_GROUPS} distinct groups are specified
+	 */
+	public GroupPolicy(UserIndex userIndex, Map<String,List<String>> allowGroups, Map<String,List<String>> denyGroups) {
+		m_userIndex = userIndex;
+		m_allowGroups = new LinkedHashMap<String,List<String>>(allowGroups);
+		m_denyGroups = new LinkedHashMap<String,List<String>>(denyGroups);
+
+		List<String> policyGroups = new ArrayList<String>();
+		collectGroups(allowGroups, policyGroups);
+		collectGroups(denyGroups, policyGroups);
+		m_membershipIndex = new GroupMembershipIndex(policyGroups);
+
+		for (int i=0; i<PROTOCOLS.length; i++) {
+			m_allowMasks[i] = toMask(allowGroups.get(PROTOCOLS[i]));
+			m_denyMasks[i] = toMask(denyGroups.get(PROTOCOLS[i]));
+		}
+	}
+
+	private static void collectGroups(Map<String,List<String>> groupsByProtocol, List<String> policyGroups) {
+		for (List<String> currGroups : groupsByProtocol.values()) {
+			for (String currGroup : currGroups) {
+				String groupKey = GroupMembershipIndex.toKey(currGroup);
+				if (!policyGroups.contains(groupKey)) {
+					policyGroups.add(groupKey);
+				}
+			}
+		}
+	}
+
+	private long toMask(List<String> groups) {
+		long mask = 0;
+		if (groups!=null) {
+			for (String currGroup : groups) {
+				mask |= m_membershipIndex.getGroupMask(currGroup);
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Splits a comma separated list of group names
+	 * 
+	 * @param groups group names or null
+	 * @return list
+	 */
+	public static List<String> parseGroups(String groups) {
+		List<String> result = new ArrayList<String>();
+		if (groups!=null) {
+			for (String currGroup : groups.split(",")) {
+				if (currGroup.trim().length()>0) {
+					result.add(currGroup.trim());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index to be refreshed by the {@link DirectoryIndexUpdater}
+	 * 
+	 * @return index
+	 */
+	public GroupMembershipIndex getMembershipIndex() {
+		return m_membershipIndex;
+	}
+
+	/**
+	 * Checks if an authenticated user may use a protocol
+	 * 
+	 * @param protocol protocol, e.g. imap
+	 * @param user login name
+	 * @return access
+	 */
+	public Access check(String protocol, String user) {
+		int idx = protocolIndex(protocol);
+		if (idx==-1) {
+			return Access.ALLOWED;
+		}
+		long allowMask = m_allowMasks[idx];
+		long denyMask = m_denyMasks[idx];
+		if (allowMask==0 && denyMask==0) {
+			return Access.ALLOWED;
+		}
+		if (!m_membershipIndex.isLoaded()) {
+			return Access.UNAVAILABLE;
+		}
+		UserEntry entry = m_userIndex.lookup(user);
+		String canonicalName = entry==null ? null : entry.getCanonicalName();
+		long bits = canonicalName==null ? 0 : m_membershipIndex.getGroupBits(canonicalName);
+
+		if ((bits & denyMask)!=0 || (allowMask!=0 && (bits & allowMask)==0)) {
+			m_denied.incrementAndGet();
+			return Access.DENIED;
+		}
+		m_allowed.incrementAndGet();
+		return Access.ALLOWED;
+	}
+
+	private static int protocolIndex(String protocol) {
+		for (int i=0; i<PROTOCOLS.length; i++) {
+			if (PROTOCOLS[i].equals(protocol)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of restricted logins that passed the policy
+	 * 
+	 * @return count
+	 */
+	public long getAllowed() {
+		return m_allowed.get();
+	}
+
+	/**
+	 * Returns the number of logins rejected by the policy
+	 * 
+	 * @return count
+	 */
+	public long getDenied() {
+		return m_denied.get();
+	}
+
+	@Override
+	public String toString() {
+		return "GroupPolicy [allow="+m_allowGroups+", deny="+m_denyGroups+", allowed="+m_allowed.get()+", denied="+m_denied.get()+
+				", "+m_membershipIndex+"]";
+	}
+}
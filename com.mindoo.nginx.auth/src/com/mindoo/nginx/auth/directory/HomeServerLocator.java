@@ -0,0 +1,95 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindoo.nginx.auth.directory.UserIndex.UserEntry;
+
+/**
+ * Finds the IP of the server hosting a user's mail file by combining the MailServer
+ * item of the {@link UserIndex} with the {@link ServerAddressMap}. Both are in-memory
+ * maps refreshed in the background, so a lookup never accesses the directory or DNS.
+ * 
+ * @author Karsten Lehmann
+ */
+public class HomeServerLocator {
+	private final UserIndex m_userIndex;
+	private final ServerAddressMap m_serverAddresses;
+	private final String m_localServerNameLC;
+
+	private final AtomicLong m_remote = new AtomicLong();
+	private final AtomicLong m_local = new AtomicLong();
+	private final AtomicLong m_unresolved = new AtomicLong();
+
+	/**
+	 * Creates a new locator
+	 * 
+	 * @param userIndex index of person documents
+	 * @param serverAddresses index of server documents
+	 * @param localServerName canonical name of this server, users hosted here are not redirected
+	 */
+	public HomeServerLocator(UserIndex userIndex, ServerAddressMap serverAddresses, String localServerName) {
+		m_userIndex = userIndex;
+		m_serverAddresses = serverAddresses;
+		m_localServerNameLC = localServerName==null ? null : localServerName.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns the IP of the user's home server
+	 * 
+	 * @param user login name
+	 * @return IP or null if the user is hosted on this server or the home server is unknown
+	 */
+	public String getHomeServerAddress(String user) {
+		UserEntry entry = m_userIndex.lookup(user);
+		String mailServer = entry==null ? null : entry.getMailServer();
+		if (mailServer==null || mailServer.equals(m_localServerNameLC)) {
+			m_local.incrementAndGet();
+			return null;
+		}
+		String address = m_serverAddresses.lookup(mailServer);
+		if (address==null) {
+			m_unresolved.incrementAndGet();
+			return null;
+		}
+		m_remote.incrementAndGet();
+		return address;
+	}
+
+	public ServerAddressMap getServerAddresses() {
+		return m_serverAddresses;
+	}
+
+	/**
+	 * Returns the number of sessions routed to another server
+	 * 
+	 * @return count
+	 */
+	public long getRemote() {
+		return m_remote.get();
+	}
+
+	/**
+	 * Returns the number of sessions of users hosted on this server or without mail server
+	 * 
+	 * @return count
+	 */
+	public long getLocal() {
+		return m_local.get();
+	}
+
+	/**
+	 * Returns the number of sessions whose home server has no known address
+	 * 
+	 * @return count
+	 */
+	public long getUnresolved() {
+		return m_unresolved.get();
+	}
+
+	@Override
+	public String toString() {
+		return "HomeServerLocator [remote="+m_remote.get()+", local="+m_local.get()+", unresolved="+m_unresolved.get()+
+				", servers="+m_serverAddresses.getEntryCount()+"]";
+	}
+}
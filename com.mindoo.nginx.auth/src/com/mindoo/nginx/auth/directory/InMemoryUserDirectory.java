@@ -0,0 +1,179 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mindoo.nginx.auth.directory.CredentialCheckResult.Status;
+
+/**
+ * {@link UserDirectory} implementation that keeps users and passwords in memory and
+ * simulates the latency of an address book lookup with password verification. It is
+ * a stand-in for the Domino directory to measure and load test the request processing
+ * of {@link com.mindoo.nginx.auth.AuthHandler} without a running Domino server.
+ *
+ * @author Karsten Lehmann
+ */
+public class InMemoryUserDirectory implements UserDirectory {
+	/** lowercase name => user */
+	private final ConcurrentHashMap<String,User> m_usersByName = new ConcurrentHashMap<String,User>();
+
+	private volatile long m_minLatencyNanos;
+	private volatile long m_maxLatencyNanos;
+
+	private final AtomicLong m_lookups = new AtomicLong();
+
+	/**
+	 * Sets the simulated duration of each credential check, picked uniformly between
+	 * min and max
+	 *
+	 * @param minMicros min latency in microseconds
+	 * @param maxMicros max latency in microseconds
+	 */
+	public void setLatency(long minMicros, long maxMicros) {
+		m_minLatencyNanos = Math.max(0, minMicros) * 1000;
+		m_maxLatencyNanos = Math.max(m_minLatencyNanos, maxMicros * 1000);
+	}
+
+	/**
+	 * Adds a user
+	 *
+	 * @param names login names of the user, e.g. full name, short name and internet address
+	 * @param password cleartext password
+	 */
+	public void addUser(String[] names, String password) {
+		User user = new User(hashPassword(password));
+		for (String currName : names) {
+			m_usersByName.put(toKey(currName), user);
+		}
+	}
+
+	/**
+	 * Removes a user name
+	 *
+	 * @param name name
+	 */
+	public void removeUser(String name) {
+		m_usersByName.remove(toKey(name));
+	}
+
+	/**
+	 * Returns the number of user names
+	 *
+	 * @return count
+	 */
+	public int getNameCount() {
+		return m_usersByName.size();
+	}
+
+	public long getLookups() {
+		return m_lookups.get();
+	}
+
+	@Override
+	public CredentialCheckResult checkCredentials(String user, String password) throws Exception {
+		m_lookups.incrementAndGet();
+		simulateLatency();
+
+		User userObj = m_usersByName.get(toKey(user));
+		if (userObj==null) {
+			return new CredentialCheckResult(Status.UNKNOWN_USER, null);
+		}
+		if (userObj.m_passwordHash.equals(hashPassword(password))) {
+			return new CredentialCheckResult(Status.OK, userObj.m_passwordHash);
+		}
+		return new CredentialCheckResult(Status.INVALID_PASSWORD, userObj.m_passwordHash);
+	}
+
+	@Override
+	public String getKnownPasswordHash(String user) {
+		User userObj = m_usersByName.get(toKey(user));
+		return userObj==null ? null : userObj.m_passwordHash;
+	}
+
+	@Override
+	public boolean warmUp(long timeoutMillis) {
+		//nothing to prepare
+		return true;
+	}
+
+	@Override
+	public void shutdown() {
+		//nothing to free
+	}
+
+	private void simulateLatency() {
+		long min = m_minLatencyNanos;
+		long max = m_maxLatencyNanos;
+		if (max<=0) {
+			return;
+		}
+		long latency = min;
+		if (max>min) {
+			latency += (long) (ThreadLocalRandomHolder.get().nextDouble() * (max - min));
+		}
+		long deadline = System.nanoTime() + latency;
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private static String toKey(String name) {
+		return name.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	private static String hashPassword(String password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(password.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length*2 + 2);
+			sb.append('(');
+			for (byte currByte : digest) {
+				sb.append(Character.forDigit((currByte >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(currByte & 0xf, 16));
+			}
+			sb.append(')');
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryUserDirectory [names="+m_usersByName.size()+", lookups="+m_lookups.get()+
+				", latency="+(m_minLatencyNanos/1000)+"-"+(m_maxLatencyNanos/1000)+"us]";
+	}
+
+	/**
+	 * Per-thread random generator (java.util.concurrent.ThreadLocalRandom requires Java 7)
+	 */
+	private static class ThreadLocalRandomHolder {
+		private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+			@Override
+			protected Random initialValue() {
+				return new Random();
+			}
+		};
+
+		public static Random get() {
+			return RANDOM.get();
+		}
+	}
+
+	private static class User {
+		private final String m_passwordHash;
+
+		public User(String passwordHash) {
+			m_passwordHash = passwordHash;
+		}
+	}
+}
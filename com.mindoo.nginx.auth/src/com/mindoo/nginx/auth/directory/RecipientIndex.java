@@ -0,0 +1,396 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lotus.domino.Document;
+import lotus.domino.Name;
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+
+import com.mindoo.nginx.auth.smtp.SmtpAddress;
+import com.mindoo.nginx.auth.utils.HashUtil;
+
+/**
+ * In-memory index of the internet addresses the Domino SMTP task accepts for
+ * local domains, used to reject anonymous deliveries to unknown mailboxes before
+ * the message is received and bounced.<br>
+ * <br>
+ * Indexed are persons, mail-in databases, resources and mail groups: their full
+ * InternetAddress and, since Domino also resolves the local part of local domains
+ * against the ($Users) names, the local part of that address, short names, common
+ * names and group names. Matching local parts regardless of the domain keeps
+ * domain aliases of the Global Domain document working.<br>
+ * <br>
+ * Only 64 bit hashes of the lowercase keys are stored in an open addressing table
+ * of primitive arrays, 12 bytes per table slot. A hash collision can at worst accept
+ * an unknown recipient, never reject a known one.
+ * 
+ * @author Karsten Lehmann
+ */
+public class RecipientIndex extends AbstractDirectoryIndex {
+	private volatile HashCountTable m_table = new HashCountTable(1024);
+	/** replica id + note id => key hashes of the document, only used by the refreshing thread */
+	private Map<String,long[]> m_hashesByNote = new HashMap<String,long[]>();
+
+	/** new data structures filled during a full refresh */
+	private HashCountTable m_newTable;
+	private Map<String,long[]> m_newHashesByNote;
+
+	private final AtomicLong m_accepted = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+
+	@Override
+	public String getName() {
+		return "RecipientIndex";
+	}
+
+	/**
+	 * Checks if mail to a recipient of a local domain can be delivered
+	 * 
+	 * @param recipient recipient with local domain
+	 * @return true if the recipient exists or the index has not been loaded yet
+	 */
+	public boolean isDeliverable(SmtpAddress recipient) {
+		if (!isLoaded()) {
+			return true;
+		}
+		String localPart = recipient.getLocalPart();
+		if (localPart.length()>1 && localPart.charAt(0)=='"' && localPart.charAt(localPart.length()-1)=='"') {
+			localPart = localPart.substring(1, localPart.length()-1);
+		}
+		localPart = localPart.trim().toLowerCase(Locale.ENGLISH);
+
+		HashCountTable table = m_table;
+		boolean found = table.contains(HashUtil.hash64(localPart+"@"+recipient.getDomain())) ||
+				table.contains(HashUtil.hash64(localPart));
+		if (!found && (localPart.indexOf('_')!=-1 || localPart.indexOf('.')!=-1)) {
+			//john_doe@ or john.doe@ for the common name "John Doe"
+			found = table.contains(HashUtil.hash64(localPart.replace('_', ' ').replace('.', ' ')));
+		}
+		if (found) {
+			m_accepted.incrementAndGet();
+		}
+		else {
+			m_rejected.incrementAndGet();
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the number of distinct indexed addresses and local parts
+	 * 
+	 * @return count
+	 */
+	@Override
+	public int getEntryCount() {
+		return m_table.size();
+	}
+
+	/**
+	 * Returns the number of recipients found in the index
+	 * 
+	 * @return count
+	 */
+	public long getAccepted() {
+		return m_accepted.get();
+	}
+
+	/**
+	 * Returns the number of recipients not found in the index
+	 * 
+	 * @return count
+	 */
+	public long getRejected() {
+		return m_rejected.get();
+	}
+
+	@Override
+	protected void beginFullRefresh() {
+		m_newTable = new HashCountTable(Math.max(1024, m_table.size() * 2));
+		m_newHashesByNote = new HashMap<String,long[]>();
+	}
+
+	@Override
+	protected void endFullRefresh() {
+		m_table = m_newTable;
+		m_hashesByNote = m_newHashesByNote;
+		m_newTable = null;
+		m_newHashesByNote = null;
+	}
+
+	@Override
+	protected void abortFullRefresh() {
+		m_newTable = null;
+		m_newHashesByNote = null;
+	}
+
+	@Override
+	protected void removeDocument(String addressBookReplicaId, String noteId) {
+		long[] oldHashes = m_hashesByNote.remove(addressBookReplicaId+"!"+noteId);
+		if (oldHashes!=null) {
+			HashCountTable table = m_table;
+			for (long currHash : oldHashes) {
+				table.remove(currHash);
+			}
+		}
+	}
+
+	@Override
+	protected void indexDocument(Session session, int addressBookIndex, String addressBookReplicaId, Document doc) throws NotesException {
+		boolean fullRefresh = m_newTable!=null;
+		HashCountTable table = fullRefresh ? m_newTable : m_table;
+		Map<String,long[]> hashesByNote = fullRefresh ? m_newHashesByNote : m_hashesByNote;
+
+		String noteKey = addressBookReplicaId+"!"+doc.getNoteID();
+
+		Set<String> keys = new LinkedHashSet<String>();
+		String type = doc.getItemValueString("Type");
+		boolean deliverable = true;
+		if ("Person".equalsIgnoreCase(type) || "Database".equalsIgnoreCase(type) || "Resource".equalsIgnoreCase(type)) {
+			for (Object currFullName : doc.getItemValue("FullName")) {
+				addCommonName(session, keys, currFullName.toString());
+			}
+			for (Object currShortName : doc.getItemValue("ShortName")) {
+				addKey(keys, currShortName.toString());
+			}
+		}
+		else if ("Group".equalsIgnoreCase(type)) {
+			//0 = multi-purpose, 1 = mail only; ACL and deny list groups do not receive mail
+			String groupType = doc.getItemValueString("GroupType");
+			deliverable = groupType==null || groupType.length()==0 || "0".equals(groupType) || "1".equals(groupType);
+			if (deliverable) {
+				for (Object currListName : doc.getItemValue("ListName")) {
+					addCommonName(session, keys, currListName.toString());
+				}
+			}
+		}
+		else {
+			deliverable = false;
+		}
+
+		if (deliverable) {
+			String internetAddress = doc.getItemValueString("InternetAddress");
+			if (internetAddress!=null) {
+				String addressLC = internetAddress.trim().toLowerCase(Locale.ENGLISH);
+				int atPos = addressLC.lastIndexOf('@');
+				if (atPos>0) {
+					addKey(keys, addressLC);
+					addKey(keys, addressLC.substring(0, atPos));
+				}
+			}
+		}
+
+		//add the new keys before removing the old ones, so that unchanged names are never missing for readers
+		long[] hashes = new long[keys.size()];
+		int i = 0;
+		for (String currKey : keys) {
+			hashes[i] = HashUtil.hash64(currKey);
+			table = table.add(hashes[i]);
+			i++;
+		}
+		long[] oldHashes = hashes.length>0 ? hashesByNote.put(noteKey, hashes) : hashesByNote.remove(noteKey);
+		if (oldHashes!=null) {
+			for (long currHash : oldHashes) {
+				table.remove(currHash);
+			}
+		}
+
+		//the table may have been grown
+		if (fullRefresh) {
+			m_newTable = table;
+		}
+		else {
+			m_table = table;
+		}
+	}
+
+	private static void addCommonName(Session session, Set<String> keys, String name) throws NotesException {
+		if (name.length()==0) {
+			return;
+		}
+		if (name.indexOf('/')==-1 && name.indexOf('=')==-1) {
+			addKey(keys, name);
+			return;
+		}
+		Name nameObj = session.createName(name);
+		try {
+			addKey(keys, nameObj.getCommon());
+		}
+		finally {
+			nameObj.recycle();
+		}
+	}
+
+	private static void addKey(Set<String> keys, String key) {
+		if (key!=null) {
+			String keyLC = key.trim().toLowerCase(Locale.ENGLISH);
+			if (keyLC.length()>0) {
+				keys.add(keyLC);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getName()+" [keys="+m_table.size()+", accepted="+m_accepted.get()+", rejected="+m_rejected.get()+"]";
+	}
+
+	/**
+	 * Open addressing hash table of 64 bit key hashes with reference counts, since
+	 * several documents may share a name. Written by a single thread and read
+	 * lock-free; removed keys stay as slots with count 0 until the table gets
+	 * rebuilt, so concurrent probes never miss a key.
+	 */
+	static class HashCountTable {
+		private final AtomicLongArray m_keys;
+		private final AtomicIntegerArray m_counts;
+		private final int m_mask;
+		private int m_usedSlots;
+		private volatile int m_size;
+
+		/**
+		 * Creates a new table
+		 * 
+		 * @param expectedKeys expected number of keys
+		 */
+		HashCountTable(int expectedKeys) {
+			//at most 75% of the slots used
+			int capacity = Integer.highestOneBit(Math.max(16, expectedKeys + expectedKeys / 3 + 1) - 1) << 1;
+			m_keys = new AtomicLongArray(capacity);
+			m_counts = new AtomicIntegerArray(capacity);
+			m_mask = capacity - 1;
+		}
+
+		/**
+		 * Checks if a key is in the table
+		 * 
+		 * @param hash key hash
+		 * @return true if found
+		 */
+		boolean contains(long hash) {
+			if (hash==0) {
+				//0 marks empty slots
+				hash = 1;
+			}
+			int slot = (int) hash & m_mask;
+			while (true) {
+				long key = m_keys.get(slot);
+				if (key==0) {
+					return false;
+				}
+				if (key==hash) {
+					return m_counts.get(slot)>0;
+				}
+				slot = (slot + 1) & m_mask;
+			}
+		}
+
+		/**
+		 * Adds a key or increments its count
+		 * 
+		 * @param hash key hash
+		 * @return this table or a larger copy if the table was full
+		 */
+		HashCountTable add(long hash) {
+			if (hash==0) {
+				hash = 1;
+			}
+			HashCountTable table = this;
+			if ((m_usedSlots + 1) * 4 > (m_mask + 1) * 3) {
+				//grow, or just drop removed keys if most slots are unused
+				table = rebuild(Math.max(16, m_size * 2));
+			}
+			table.addInternal(hash);
+			return table;
+		}
+
+		private void addInternal(long hash) {
+			int slot = (int) hash & m_mask;
+			while (true) {
+				long key = m_keys.get(slot);
+				if (key==hash) {
+					if (m_counts.getAndIncrement(slot)==0) {
+						m_size++;
+					}
+					return;
+				}
+				if (key==0) {
+					//count first, readers check the count after finding the key
+					m_counts.set(slot, 1);
+					m_keys.set(slot, hash);
+					m_usedSlots++;
+					m_size++;
+					return;
+				}
+				slot = (slot + 1) & m_mask;
+			}
+		}
+
+		/**
+		 * Decrements the count of a key
+		 * 
+		 * @param hash key hash
+		 */
+		void remove(long hash) {
+			if (hash==0) {
+				hash = 1;
+			}
+			int slot = (int) hash & m_mask;
+			while (true) {
+				long key = m_keys.get(slot);
+				if (key==0) {
+					return;
+				}
+				if (key==hash) {
+					int count = m_counts.get(slot);
+					if (count>0) {
+						m_counts.set(slot, count - 1);
+						if (count==1) {
+							m_size--;
+						}
+					}
+					return;
+				}
+				slot = (slot + 1) & m_mask;
+			}
+		}
+
+		/**
+		 * Copies the keys with count &gt; 0 into a new table
+		 */
+		private HashCountTable rebuild(int expectedKeys) {
+			HashCountTable newTable = new HashCountTable(expectedKeys);
+			for (int i=0; i<=m_mask; i++) {
+				int count = m_counts.get(i);
+				if (count>0) {
+					long hash = m_keys.get(i);
+					int slot = (int) hash & newTable.m_mask;
+					while (newTable.m_keys.get(slot)!=0) {
+						slot = (slot + 1) & newTable.m_mask;
+					}
+					newTable.m_counts.set(slot, count);
+					newTable.m_keys.set(slot, hash);
+					newTable.m_usedSlots++;
+					newTable.m_size++;
+				}
+			}
+			return newTable;
+		}
+
+		/**
+		 * Returns the number of keys with count &gt; 0
+		 * 
+		 * @return count
+		 */
+		int size() {
+			return m_size;
+		}
+	}
+}
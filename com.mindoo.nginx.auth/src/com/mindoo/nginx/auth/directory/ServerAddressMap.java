@@ -0,0 +1,267 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import lotus.domino.Document;
+import lotus.domino.Name;
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * In-memory index of the server documents of the server's address books, mapping
+ * the canonical server name to the IP nginx should connect to.<br>
+ * <br>
+ * The connect host is read from the "Fully qualified Internet host name" field
+ * (SMTPFullHostDomain), falling back to the first network address and the common name.
+ * Host names are resolved by the refreshing thread and cached for a configurable
+ * time, so lookups never wait for DNS.
+ * 
+ * @author Karsten Lehmann
+ */
+public class ServerAddressMap extends AbstractDirectoryIndex {
+	private final long m_dnsTTLMillis;
+
+	/** lowercase canonical server name => entry */
+	private volatile ConcurrentHashMap<String,ServerEntry> m_entriesByName = new ConcurrentHashMap<String,ServerEntry>();
+	/** replica id + note id => entry */
+	private volatile ConcurrentHashMap<String,ServerEntry> m_entriesByNote = new ConcurrentHashMap<String,ServerEntry>();
+
+	/** new maps filled during a full refresh */
+	private ConcurrentHashMap<String,ServerEntry> m_newEntriesByName;
+	private ConcurrentHashMap<String,ServerEntry> m_newEntriesByNote;
+
+	/**
+	 * Creates a new map
+	 * 
+	 * @param dnsTTLMillis time in milliseconds after which host names get resolved again
+	 */
+	public ServerAddressMap(long dnsTTLMillis) {
+		m_dnsTTLMillis = dnsTTLMillis;
+	}
+
+	@Override
+	public String getName() {
+		return "ServerAddressMap";
+	}
+
+	/**
+	 * Returns the IP of a server
+	 * 
+	 * @param serverNameLC lowercase canonical server name
+	 * @return IP or null if unknown or not resolvable
+	 */
+	public String lookup(String serverNameLC) {
+		ServerEntry entry = m_entriesByName.get(serverNameLC);
+		return entry==null ? null : entry.getAddress();
+	}
+
+	/**
+	 * Returns the entry of a server
+	 * 
+	 * @param serverNameLC lowercase canonical server name
+	 * @return entry or null if unknown
+	 */
+	public ServerEntry getEntry(String serverNameLC) {
+		return m_entriesByName.get(serverNameLC);
+	}
+
+	@Override
+	public int getEntryCount() {
+		return m_entriesByNote.size();
+	}
+
+	@Override
+	public boolean refresh(Session session, boolean full) throws NotesException {
+		full = super.refresh(session, full);
+		//modified documents have been resolved while indexing, renew expired DNS results of the others
+		long now = System.currentTimeMillis();
+		for (ServerEntry currEntry : m_entriesByNote.values()) {
+			if ((now - currEntry.getResolvedAt()) > m_dnsTTLMillis) {
+				currEntry.resolve();
+			}
+		}
+		return full;
+	}
+
+	@Override
+	protected void beginFullRefresh() {
+		m_newEntriesByName = new ConcurrentHashMap<String,ServerEntry>();
+		m_newEntriesByNote = new ConcurrentHashMap<String,ServerEntry>();
+	}
+
+	@Override
+	protected void endFullRefresh() {
+		m_entriesByName = m_newEntriesByName;
+		m_entriesByNote = m_newEntriesByNote;
+		m_newEntriesByName = null;
+		m_newEntriesByNote = null;
+	}
+
+	@Override
+	protected void abortFullRefresh() {
+		m_newEntriesByName = null;
+		m_newEntriesByNote = null;
+	}
+
+	@Override
+	protected void removeDocument(String addressBookReplicaId, String noteId) {
+		ServerEntry oldEntry = m_entriesByNote.remove(addressBookReplicaId+"!"+noteId);
+		if (oldEntry!=null) {
+			removeName(oldEntry, m_entriesByName, m_entriesByNote);
+		}
+	}
+
+	/**
+	 * Removes an entry from the name map, a server document with the same name in the
+	 * next address book takes over
+	 */
+	private static void removeName(ServerEntry oldEntry, ConcurrentHashMap<String,ServerEntry> entriesByName,
+			ConcurrentHashMap<String,ServerEntry> entriesByNote) {
+		String serverName = oldEntry.getServerName();
+		if (entriesByName.get(serverName)!=oldEntry) {
+			return;
+		}
+		//only a few server documents, no need for a second map
+		ServerEntry nextEntry = null;
+		for (ServerEntry currEntry : entriesByNote.values()) {
+			if (currEntry.getServerName().equals(serverName) &&
+					(nextEntry==null || currEntry.getAddressBookIndex() < nextEntry.getAddressBookIndex())) {
+				nextEntry = currEntry;
+			}
+		}
+		if (nextEntry!=null) {
+			entriesByName.put(serverName, nextEntry);
+		}
+		else {
+			entriesByName.remove(serverName, oldEntry);
+		}
+	}
+
+	@Override
+	protected void indexDocument(Session session, int addressBookIndex, String addressBookReplicaId, Document doc) throws NotesException {
+		ConcurrentHashMap<String,ServerEntry> entriesByName = m_newEntriesByName!=null ? m_newEntriesByName : m_entriesByName;
+		ConcurrentHashMap<String,ServerEntry> entriesByNote = m_newEntriesByNote!=null ? m_newEntriesByNote : m_entriesByNote;
+
+		String noteKey = addressBookReplicaId+"!"+doc.getNoteID();
+
+		ServerEntry oldEntry = entriesByNote.remove(noteKey);
+		if (oldEntry!=null) {
+			removeName(oldEntry, entriesByName, entriesByNote);
+		}
+
+		if (!"Server".equalsIgnoreCase(doc.getItemValueString("Type"))) {
+			return;
+		}
+		String serverName = doc.getItemValueString("ServerName");
+		if (serverName==null || serverName.length()==0) {
+			return;
+		}
+		String serverNameLC;
+		String commonName;
+		Name nameObj = session.createName(serverName);
+		try {
+			serverNameLC = nameObj.getCanonical().toLowerCase(Locale.ENGLISH);
+			commonName = nameObj.getCommon();
+		}
+		finally {
+			nameObj.recycle();
+		}
+
+		String host = doc.getItemValueString("SMTPFullHostDomain");
+		if (host==null || host.trim().length()==0) {
+			host = null;
+			Vector<?> netAddresses = doc.getItemValue("NetAddresses");
+			for (Object currAddress : netAddresses) {
+				if (currAddress.toString().trim().length()>0) {
+					host = currAddress.toString();
+					break;
+				}
+			}
+		}
+		if (host==null) {
+			host = commonName;
+		}
+
+		ServerEntry newEntry = new ServerEntry(addressBookIndex, serverNameLC, host.trim());
+		newEntry.resolve();
+		entriesByNote.put(noteKey, newEntry);
+
+		ServerEntry existingEntry = entriesByName.get(serverNameLC);
+		if (existingEntry==null || existingEntry.getAddressBookIndex() >= addressBookIndex) {
+			entriesByName.put(serverNameLC, newEntry);
+		}
+	}
+
+	/**
+	 * Indexed server document
+	 */
+	public static class ServerEntry {
+		private final String m_serverName;
+		private final String m_host;
+		private final int m_addressBookIndex;
+		private volatile String m_address;
+		private volatile long m_resolvedAt;
+
+		public ServerEntry(int addressBookIndex, String serverNameLC, String host) {
+			m_addressBookIndex = addressBookIndex;
+			m_serverName = serverNameLC;
+			m_host = host;
+		}
+
+		/**
+		 * Resolves the host name, keeping the previous IP if DNS fails
+		 */
+		void resolve() {
+			try {
+				m_address = InetAddress.getByName(m_host).getHostAddress();
+			}
+			catch (UnknownHostException e) {
+				LogUtil.log(Level.WARNING, "Could not resolve host "+m_host+" of server "+m_serverName+
+						(m_address!=null ? ", keeping "+m_address : ""));
+			}
+			m_resolvedAt = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the lowercase canonical server name
+		 * 
+		 * @return name
+		 */
+		public String getServerName() {
+			return m_serverName;
+		}
+
+		public String getHost() {
+			return m_host;
+		}
+
+		public int getAddressBookIndex() {
+			return m_addressBookIndex;
+		}
+
+		/**
+		 * Returns the resolved IP
+		 * 
+		 * @return IP or null if never resolved
+		 */
+		public String getAddress() {
+			return m_address;
+		}
+
+		public long getResolvedAt() {
+			return m_resolvedAt;
+		}
+
+		@Override
+		public String toString() {
+			return "ServerEntry [name="+m_serverName+", host="+m_host+", address="+m_address+"]";
+		}
+	}
+}
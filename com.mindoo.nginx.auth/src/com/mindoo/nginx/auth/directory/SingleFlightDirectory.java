@@ -0,0 +1,186 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link UserDirectory} wrapper that coalesces concurrent checks of the same
+ * credentials: mail clients open several IMAP connections at once, so nginx sends
+ * parallel auth requests with identical user and password. The first request runs
+ * the check, all others that arrive while it is in flight wait for and share its
+ * result or exception.<br>
+ * <br>
+ * In-flight checks are keyed by the lowercase user name and a salted SHA-256 digest
+ * of the password, so cleartext passwords are never stored and a wrong password
+ * never shares the result of a correct one.
+ * 
+ * @author Karsten Lehmann
+ */
+public class SingleFlightDirectory implements UserDirectory {
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private final UserDirectory m_delegate;
+	private final long m_waitTimeoutMillis;
+	private final byte[] m_salt;
+	private final ConcurrentHashMap<String,Flight> m_inFlight = new ConcurrentHashMap<String,Flight>();
+
+	private final AtomicLong m_executed = new AtomicLong();
+	private final AtomicLong m_coalesced = new AtomicLong();
+
+	/**
+	 * Creates a new wrapper
+	 * 
+	 * @param delegate directory to run the checks
+	 * @param waitTimeoutMillis max time in milliseconds to wait for a check started by another request
+	 */
+	public SingleFlightDirectory(UserDirectory delegate, long waitTimeoutMillis) {
+		m_delegate = delegate;
+		m_waitTimeoutMillis = waitTimeoutMillis;
+		m_salt = new byte[16];
+		new SecureRandom().nextBytes(m_salt);
+	}
+
+	public UserDirectory getDelegate() {
+		return m_delegate;
+	}
+
+	@Override
+	public CredentialCheckResult checkCredentials(String user, String password) throws Exception {
+		String key = toKey(user, password);
+		Flight flight = new Flight();
+		Flight existingFlight = m_inFlight.putIfAbsent(key, flight);
+		if (existingFlight!=null) {
+			m_coalesced.incrementAndGet();
+			return existingFlight.await(m_waitTimeoutMillis);
+		}
+
+		m_executed.incrementAndGet();
+		try {
+			CredentialCheckResult result = m_delegate.checkCredentials(user, password);
+			flight.complete(result, null);
+			return result;
+		}
+		catch (Exception e) {
+			flight.complete(null, e);
+			throw e;
+		}
+		catch (Error e) {
+			flight.complete(null, e);
+			throw e;
+		}
+		finally {
+			//later requests start a new check, e.g. after a password change
+			m_inFlight.remove(key, flight);
+		}
+	}
+
+	@Override
+	public String getKnownPasswordHash(String user) {
+		return m_delegate.getKnownPasswordHash(user);
+	}
+
+	@Override
+	public boolean warmUp(long timeoutMillis) throws InterruptedException {
+		return m_delegate.warmUp(timeoutMillis);
+	}
+
+	@Override
+	public void shutdown() {
+		m_delegate.shutdown();
+	}
+
+	/**
+	 * Returns the number of checks passed to the wrapped directory
+	 * 
+	 * @return count
+	 */
+	public long getExecuted() {
+		return m_executed.get();
+	}
+
+	/**
+	 * Returns the number of checks that shared the result of a check in flight
+	 * 
+	 * @return count
+	 */
+	public long getCoalesced() {
+		return m_coalesced.get();
+	}
+
+	/**
+	 * Returns the number of checks currently in flight
+	 * 
+	 * @return count
+	 */
+	public int getInFlight() {
+		return m_inFlight.size();
+	}
+
+	private String toKey(String user, String password) {
+		String userLC = user.trim().toLowerCase(Locale.ENGLISH);
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			md.update(m_salt);
+			md.update(userLC.getBytes("UTF-8"));
+			md.update((byte) 0);
+			md.update(password.getBytes("UTF-8"));
+			byte[] digest = md.digest();
+
+			StringBuilder sb = new StringBuilder(userLC.length() + 1 + digest.length);
+			sb.append(userLC).append('\0');
+			for (byte currByte : digest) {
+				sb.append((char) (currByte & 0xff));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM+" not supported by JVM", e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported by JVM", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SingleFlightDirectory [executed="+m_executed.get()+", coalesced="+m_coalesced.get()+
+				", delegate="+m_delegate+"]";
+	}
+
+	/**
+	 * Check in flight, completed exactly once by the request that started it
+	 */
+	private static class Flight {
+		private final CountDownLatch m_done = new CountDownLatch(1);
+		private volatile CredentialCheckResult m_result;
+		private volatile Throwable m_error;
+
+		public void complete(CredentialCheckResult result, Throwable error) {
+			m_result = result;
+			m_error = error;
+			m_done.countDown();
+		}
+
+		public CredentialCheckResult await(long timeoutMillis) throws Exception {
+			if (!m_done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new TimeoutException("Timeout waiting for credential check in flight");
+			}
+			Throwable error = m_error;
+			if (error instanceof Exception) {
+				throw (Exception) error;
+			}
+			else if (error instanceof Error) {
+				throw (Error) error;
+			}
+			return m_result;
+		}
+	}
+}
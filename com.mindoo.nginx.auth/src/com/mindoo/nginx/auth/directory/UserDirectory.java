@@ -0,0 +1,46 @@
+package com.mindoo.nginx.auth.directory;
+
+/**
+ * Directory used to verify mail login credentials
+ * 
+ * @author Karsten Lehmann
+ */
+public interface UserDirectory {
+
+	/**
+	 * Looks up a user and verifies the password
+	 * 
+	 * @param user user name as sent by the client
+	 * @param password cleartext password
+	 * @return result
+	 * @throws DirectoryOverloadException if too many lookups are pending
+	 * @throws java.util.concurrent.TimeoutException if the lookup did not complete in time
+	 * @throws Exception on directory errors
+	 */
+	public CredentialCheckResult checkCredentials(String user, String password) throws Exception;
+
+	/**
+	 * Returns the password hash of a user if it is available without directory access,
+	 * e.g. from an in-memory index
+	 * 
+	 * @param user user name as sent by the client
+	 * @return hash or null if not available
+	 */
+	public String getKnownPasswordHash(String user);
+
+	/**
+	 * Prepares the directory for the first requests, e.g. by opening sessions and
+	 * loading indexes
+	 * 
+	 * @param timeoutMillis max time in milliseconds to wait
+	 * @return true if completed, false on timeout or errors
+	 * @throws InterruptedException
+	 */
+	public boolean warmUp(long timeoutMillis) throws InterruptedException;
+
+	/**
+	 * Frees all resources
+	 */
+	public void shutdown();
+
+}
@@ -0,0 +1,510 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lotus.domino.Document;
+import lotus.domino.Name;
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+
+import com.mindoo.nginx.auth.utils.HashUtil;
+
+/**
+ * In-memory index of all person documents of the server's address books, mapping
+ * each login name form used by the ($Users) view (full name in canonical, abbreviated
+ * and common form, short name and internet address) to the address book, note id,
+ * HTTPPassword hash and home mail server of the person.<br>
+ * <br>
+ * If a name exists in several address books, the entry of the first address book
+ * wins, same as when probing the books in order. The other entries are kept, so that
+ * the next one takes over when the winning person gets deleted or renamed.
+ * 
+ * @author Karsten Lehmann
+ */
+public class UserIndex extends AbstractDirectoryIndex {
+	/** lowercase name => entry */
+	private volatile ConcurrentHashMap<String,UserEntry> m_entriesByName = new ConcurrentHashMap<String,UserEntry>();
+	/** replica id + note id => entry */
+	private volatile ConcurrentHashMap<String,UserEntry> m_entriesByNote = new ConcurrentHashMap<String,UserEntry>();
+
+	/** lowercase name => entries hidden by the one in m_entriesByName, only used by the refreshing thread */
+	private Map<String,List<UserEntry>> m_shadowedByName = new HashMap<String,List<UserEntry>>();
+
+	/** new maps filled during a full refresh */
+	private ConcurrentHashMap<String,UserEntry> m_newEntriesByName;
+	private ConcurrentHashMap<String,UserEntry> m_newEntriesByNote;
+	private Map<String,List<UserEntry>> m_newShadowedByName;
+
+	/** lowercase name => removed entry, collected during an incremental refresh */
+	private final Map<String,UserEntry> m_removedNames = new HashMap<String,UserEntry>();
+
+	private volatile Listener m_listener;
+
+	/**
+	 * Callback to get notified about index changes, invoked by the refreshing thread
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called after a full refresh
+		 * 
+		 * @param names all lowercase login names of the index
+		 * @param removedNames lowercase login names that are no longer indexed or now belong to a different person
+		 */
+		public void onFullRefresh(Set<String> names, Set<String> removedNames);
+
+		/**
+		 * Called when a person has been added or changed during an incremental refresh
+		 * 
+		 * @param entry new entry
+		 */
+		public void onEntryChanged(UserEntry entry);
+
+		/**
+		 * Called after an incremental refresh that removed login names or assigned them to a
+		 * different person, because persons have been deleted or renamed
+		 * 
+		 * @param removedNames affected lowercase login names
+		 * @param names all lowercase login names of the index
+		 */
+		public void onNamesRemoved(Set<String> removedNames, Set<String> names);
+
+	}
+
+	public void setListener(Listener listener) {
+		m_listener = listener;
+	}
+
+	@Override
+	public String getName() {
+		return "UserIndex";
+	}
+
+	/**
+	 * Looks up a user by one of its login names
+	 * 
+	 * @param name name
+	 * @return entry or null if not found
+	 */
+	public UserEntry lookup(String name) {
+		return m_entriesByName.get(toKey(name));
+	}
+
+	@Override
+	public int getEntryCount() {
+		return m_entriesByNote.size();
+	}
+
+	/**
+	 * Returns the number of indexed name forms
+	 * 
+	 * @return count
+	 */
+	public int getNameCount() {
+		return m_entriesByName.size();
+	}
+
+	/**
+	 * Returns all indexed person documents
+	 * 
+	 * @return entries
+	 */
+	public Collection<UserEntry> getEntries() {
+		return m_entriesByNote.values();
+	}
+
+	/**
+	 * Replaces the index content with entries read from a snapshot; the next refresh
+	 * only reads documents modified after the watermarks
+	 * 
+	 * @param entries entries
+	 * @param watermarks replica id => time of last sync
+	 * @param addressBookReplicaIds replica ids of the address books in the server's order
+	 * @param lastFullRefresh time of the last full refresh before the snapshot was written
+	 * @param lastFullRefreshDurationMillis duration of that full refresh
+	 */
+	public void restore(Collection<UserEntry> entries, Map<String,Date> watermarks, List<String> addressBookReplicaIds,
+			long lastFullRefresh, long lastFullRefreshDurationMillis) {
+		ConcurrentHashMap<String,UserEntry> entriesByName = new ConcurrentHashMap<String,UserEntry>(entries.size() * 8);
+		ConcurrentHashMap<String,UserEntry> entriesByNote = new ConcurrentHashMap<String,UserEntry>(entries.size() * 2);
+		Map<String,List<UserEntry>> shadowedByName = new HashMap<String,List<UserEntry>>();
+		for (UserEntry currEntry : entries) {
+			entriesByNote.put(currEntry.getAddressBookReplicaId()+"!"+currEntry.getNoteId(), currEntry);
+			addNames(currEntry, entriesByName, shadowedByName);
+		}
+		m_entriesByName = entriesByName;
+		m_entriesByNote = entriesByNote;
+		m_shadowedByName = shadowedByName;
+		restoreState(watermarks, addressBookReplicaIds, lastFullRefresh, lastFullRefreshDurationMillis);
+
+		Listener listener = m_listener;
+		if (listener!=null) {
+			listener.onFullRefresh(entriesByName.keySet(), Collections.<String>emptySet());
+		}
+	}
+
+	@Override
+	protected void beginFullRefresh() {
+		m_newEntriesByName = new ConcurrentHashMap<String,UserEntry>();
+		m_newEntriesByNote = new ConcurrentHashMap<String,UserEntry>();
+		m_newShadowedByName = new HashMap<String,List<UserEntry>>();
+	}
+
+	@Override
+	protected void endFullRefresh() {
+		ConcurrentHashMap<String,UserEntry> oldEntriesByName = m_entriesByName;
+		m_entriesByName = m_newEntriesByName;
+		m_entriesByNote = m_newEntriesByNote;
+		m_shadowedByName = m_newShadowedByName;
+		m_newEntriesByName = null;
+		m_newEntriesByNote = null;
+		m_newShadowedByName = null;
+		m_removedNames.clear();
+
+		Listener listener = m_listener;
+		if (listener!=null) {
+			//persons deleted since the last refresh, e.g. while the deletion stubs were not available
+			Set<String> removedNames = new HashSet<String>();
+			for (Map.Entry<String,UserEntry> currEntry : oldEntriesByName.entrySet()) {
+				UserEntry newEntry = m_entriesByName.get(currEntry.getKey());
+				if (newEntry==null || !isSameDocument(newEntry, currEntry.getValue())) {
+					removedNames.add(currEntry.getKey());
+				}
+			}
+			listener.onFullRefresh(m_entriesByName.keySet(), removedNames);
+		}
+	}
+
+	@Override
+	protected void abortFullRefresh() {
+		m_newEntriesByName = null;
+		m_newEntriesByNote = null;
+		m_newShadowedByName = null;
+	}
+
+	@Override
+	protected void removeDocument(String addressBookReplicaId, String noteId) {
+		UserEntry oldEntry = m_entriesByNote.remove(addressBookReplicaId+"!"+noteId);
+		if (oldEntry!=null) {
+			removeNames(oldEntry, m_entriesByName, m_shadowedByName, m_removedNames);
+		}
+	}
+
+	@Override
+	protected void afterRefresh(boolean full) {
+		if (full || m_removedNames.isEmpty()) {
+			return;
+		}
+		//only report names that are gone or now resolve to a different person document
+		Set<String> removedNames = new HashSet<String>();
+		for (Map.Entry<String,UserEntry> currRemoved : m_removedNames.entrySet()) {
+			UserEntry entry = m_entriesByName.get(currRemoved.getKey());
+			if (entry==null || !isSameDocument(entry, currRemoved.getValue())) {
+				removedNames.add(currRemoved.getKey());
+			}
+		}
+		m_removedNames.clear();
+
+		Listener listener = m_listener;
+		if (listener!=null && !removedNames.isEmpty()) {
+			listener.onNamesRemoved(removedNames, m_entriesByName.keySet());
+		}
+	}
+
+	@Override
+	protected void indexDocument(Session session, int addressBookIndex, String addressBookReplicaId, Document doc) throws NotesException {
+		boolean fullRefresh = m_newEntriesByName!=null;
+		ConcurrentHashMap<String,UserEntry> entriesByName = fullRefresh ? m_newEntriesByName : m_entriesByName;
+		ConcurrentHashMap<String,UserEntry> entriesByNote = fullRefresh ? m_newEntriesByNote : m_entriesByNote;
+		Map<String,List<UserEntry>> shadowedByName = fullRefresh ? m_newShadowedByName : m_shadowedByName;
+
+		String noteId = doc.getNoteID();
+		String noteKey = addressBookReplicaId+"!"+noteId;
+
+		UserEntry oldEntry = entriesByNote.remove(noteKey);
+		if (oldEntry!=null) {
+			removeNames(oldEntry, entriesByName, shadowedByName, fullRefresh ? null : m_removedNames);
+		}
+
+		if (!"Person".equalsIgnoreCase(doc.getItemValueString("Type"))) {
+			return;
+		}
+
+		Set<String> names = new LinkedHashSet<String>();
+		String canonicalName = null;
+
+		Vector<?> fullNames = doc.getItemValue("FullName");
+		for (Object currFullNameObj : fullNames) {
+			String currFullName = currFullNameObj.toString();
+			if (currFullName.length()==0) {
+				continue;
+			}
+			Name nameObj = session.createName(currFullName);
+			try {
+				if (canonicalName==null) {
+					canonicalName = nameObj.getCanonical();
+				}
+				addName(names, nameObj.getCanonical());
+				addName(names, nameObj.getAbbreviated());
+				addName(names, nameObj.getCommon());
+			}
+			finally {
+				nameObj.recycle();
+			}
+		}
+		for (Object currShortName : doc.getItemValue("ShortName")) {
+			addName(names, currShortName.toString());
+		}
+		addName(names, doc.getItemValueString("InternetAddress"));
+
+		if (names.isEmpty()) {
+			return;
+		}
+
+		String mailServer = doc.getItemValueString("MailServer");
+		if (mailServer!=null && mailServer.length()>0) {
+			Name mailServerObj = session.createName(mailServer);
+			try {
+				mailServer = toKey(mailServerObj.getCanonical());
+			}
+			finally {
+				mailServerObj.recycle();
+			}
+		}
+		else {
+			mailServer = null;
+		}
+
+		UserEntry newEntry = new UserEntry(addressBookIndex, addressBookReplicaId, noteId, canonicalName,
+				doc.getItemValueString("HTTPPassword"), mailServer, names.toArray(new String[names.size()]));
+		entriesByNote.put(noteKey, newEntry);
+		addNames(newEntry, entriesByName, shadowedByName);
+
+		Listener listener = m_listener;
+		if (listener!=null && !fullRefresh) {
+			listener.onEntryChanged(newEntry);
+		}
+	}
+
+	/**
+	 * Makes an entry the winner for its names unless an entry of a preceding address book
+	 * already has them; the losing entries are remembered as shadowed
+	 */
+	private static void addNames(UserEntry entry, ConcurrentHashMap<String,UserEntry> entriesByName,
+			Map<String,List<UserEntry>> shadowedByName) {
+		for (String currName : entry.getNames()) {
+			UserEntry existingEntry = entriesByName.get(currName);
+			if (existingEntry==null) {
+				entriesByName.put(currName, entry);
+			}
+			else if (existingEntry.getAddressBookIndex() >= entry.getAddressBookIndex()) {
+				entriesByName.put(currName, entry);
+				addShadowed(shadowedByName, currName, existingEntry);
+			}
+			else {
+				addShadowed(shadowedByName, currName, entry);
+			}
+		}
+	}
+
+	private static void addShadowed(Map<String,List<UserEntry>> shadowedByName, String name, UserEntry entry) {
+		List<UserEntry> entries = shadowedByName.get(name);
+		if (entries==null) {
+			entries = new ArrayList<UserEntry>(1);
+			shadowedByName.put(name, entries);
+		}
+		entries.add(entry);
+	}
+
+	/**
+	 * Removes an entry from the name map, its names get taken over by the shadowed entry of the
+	 * first address book
+	 * 
+	 * @param removedNames map to collect names that lost their entry, null during a full refresh
+	 */
+	private static void removeNames(UserEntry oldEntry, ConcurrentHashMap<String,UserEntry> entriesByName,
+			Map<String,List<UserEntry>> shadowedByName, Map<String,UserEntry> removedNames) {
+		for (String currName : oldEntry.getNames()) {
+			List<UserEntry> shadowedEntries = shadowedByName.get(currName);
+			if (entriesByName.get(currName)==oldEntry) {
+				UserEntry nextEntry = null;
+				if (shadowedEntries!=null) {
+					for (UserEntry currShadowed : shadowedEntries) {
+						if (nextEntry==null || currShadowed.getAddressBookIndex() < nextEntry.getAddressBookIndex()) {
+							nextEntry = currShadowed;
+						}
+					}
+					shadowedEntries.remove(nextEntry);
+					if (shadowedEntries.isEmpty()) {
+						shadowedByName.remove(currName);
+					}
+				}
+				if (nextEntry!=null) {
+					//replace in one step, so that the name is never missing for readers
+					entriesByName.put(currName, nextEntry);
+				}
+				else {
+					entriesByName.remove(currName, oldEntry);
+				}
+				if (removedNames!=null && !removedNames.containsKey(currName)) {
+					removedNames.put(currName, oldEntry);
+				}
+			}
+			else if (shadowedEntries!=null) {
+				shadowedEntries.remove(oldEntry);
+				if (shadowedEntries.isEmpty()) {
+					shadowedByName.remove(currName);
+				}
+			}
+		}
+	}
+
+	private static boolean isSameDocument(UserEntry entry1, UserEntry entry2) {
+		return entry1.getNoteId().equals(entry2.getNoteId()) && entry1.getAddressBookReplicaId().equals(entry2.getAddressBookReplicaId());
+	}
+
+	private static void addName(Set<String> names, String name) {
+		if (name!=null) {
+			String key = toKey(name);
+			if (key.length()>0) {
+				names.add(key);
+			}
+		}
+	}
+
+	private static String toKey(String name) {
+		return name.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Indexed person document
+	 */
+	public static class UserEntry {
+		private final int m_addressBookIndex;
+		private final String m_addressBookReplicaId;
+		private final String m_noteId;
+		private final String m_canonicalName;
+		private volatile String m_passwordHash;
+		private final long m_passwordFingerprint;
+		private final String m_mailServer;
+		private final String[] m_names;
+
+		public UserEntry(int addressBookIndex, String addressBookReplicaId, String noteId, String canonicalName,
+				String passwordHash, String mailServer, String[] names) {
+			this(addressBookIndex, addressBookReplicaId, noteId, canonicalName, fingerprint(passwordHash), mailServer, names);
+			m_passwordHash = passwordHash;
+		}
+
+		/**
+		 * Creates an entry restored from a snapshot, which only contains a fingerprint of the
+		 * password hash; the hash is read from the person document on the first login
+		 * 
+		 * @param addressBookIndex position of the address book in the server's address book list
+		 * @param addressBookReplicaId replica id of the address book
+		 * @param noteId note id of the person document
+		 * @param canonicalName canonical name
+		 * @param passwordFingerprint fingerprint of the HTTPPassword hash, see {@link #fingerprint(String)}
+		 * @param mailServer lowercase canonical home mail server or null
+		 * @param names lowercase login names
+		 */
+		public UserEntry(int addressBookIndex, String addressBookReplicaId, String noteId, String canonicalName,
+				long passwordFingerprint, String mailServer, String[] names) {
+			m_addressBookIndex = addressBookIndex;
+			m_addressBookReplicaId = addressBookReplicaId;
+			m_noteId = noteId;
+			m_canonicalName = canonicalName;
+			m_passwordFingerprint = passwordFingerprint;
+			m_mailServer = mailServer;
+			m_names = names;
+		}
+
+		/**
+		 * Computes the fingerprint of a password hash, used to detect changes without storing the hash
+		 * 
+		 * @param passwordHash hash or null
+		 * @return fingerprint
+		 */
+		public static long fingerprint(String passwordHash) {
+			return passwordHash==null ? 0 : HashUtil.hash64(passwordHash);
+		}
+
+		public int getAddressBookIndex() {
+			return m_addressBookIndex;
+		}
+
+		public String getAddressBookReplicaId() {
+			return m_addressBookReplicaId;
+		}
+
+		public String getNoteId() {
+			return m_noteId;
+		}
+
+		public String getCanonicalName() {
+			return m_canonicalName;
+		}
+
+		/**
+		 * Returns the HTTPPassword hash at the time of the last sync
+		 * 
+		 * @return hash, empty string if not set, null if not known yet for an entry restored from a snapshot
+		 */
+		public String getPasswordHash() {
+			return m_passwordHash;
+		}
+
+		public long getPasswordFingerprint() {
+			return m_passwordFingerprint;
+		}
+
+		/**
+		 * Sets the password hash of an entry restored from a snapshot if it matches
+		 * the fingerprint, i.e. if the password has not been changed since
+		 * 
+		 * @param passwordHash current hash read from the person document
+		 * @return true if set
+		 */
+		public boolean restorePasswordHash(String passwordHash) {
+			if (m_passwordHash==null && fingerprint(passwordHash)==m_passwordFingerprint) {
+				m_passwordHash = passwordHash;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the home mail server of the person
+		 * 
+		 * @return lowercase canonical server name or null if not set
+		 */
+		public String getMailServer() {
+			return m_mailServer;
+		}
+
+		/**
+		 * Returns the lowercase login names of this user
+		 * 
+		 * @return names
+		 */
+		public String[] getNames() {
+			return m_names;
+		}
+
+		@Override
+		public String toString() {
+			return "UserEntry [name="+m_canonicalName+", replicaId="+m_addressBookReplicaId+", noteId="+m_noteId+"]";
+		}
+	}
+}
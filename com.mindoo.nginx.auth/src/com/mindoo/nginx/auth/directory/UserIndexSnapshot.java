@@ -0,0 +1,309 @@
+package com.mindoo.nginx.auth.directory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.mindoo.nginx.auth.directory.UserIndex.UserEntry;
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Snapshot of the {@link UserIndex} in a local file, so that the index is available
+ * right after an HTTP restart and only documents modified or deleted since the
+ * snapshot's watermarks need to be read from the address books. If the deletion stubs
+ * of that period may already have been purged, the first refresh re-reads all
+ * documents instead, see {@link AbstractDirectoryIndex#refresh}.<br>
+ * <br>
+ * The file contains the names, address book replica ids, note ids and home mail
+ * servers of all persons, but only a 64 bit fingerprint of each password hash: the
+ * hash itself is read from the person document on the first login and kept if it
+ * still matches the fingerprint.<br>
+ * <br>
+ * Format (big endian): magic, version, header with times and watermarks, entries,
+ * CRC32 of all preceding bytes. Files are written to a temporary file and renamed,
+ * files with unknown version or wrong checksum are ignored and the index is loaded
+ * from the address books as usual.
+ * 
+ * @author Karsten Lehmann
+ */
+public class UserIndexSnapshot implements DirectoryIndexUpdater.RefreshListener {
+	private static final int MAGIC = 0x4e475549; // NGUI
+	private static final int VERSION = 1;
+
+	private final File m_file;
+	private final long m_writeIntervalMillis;
+	private long m_lastWrite;
+	private boolean m_changedSinceWrite;
+
+	/**
+	 * Creates a new snapshot
+	 * 
+	 * @param file snapshot file
+	 * @param writeIntervalMillis min time in milliseconds between two writes
+	 */
+	public UserIndexSnapshot(File file, long writeIntervalMillis) {
+		m_file = file;
+		m_writeIntervalMillis = writeIntervalMillis;
+	}
+
+	public File getFile() {
+		return m_file;
+	}
+
+	@Override
+	public void onRefreshed(AbstractDirectoryIndex index, boolean full) {
+		if (!(index instanceof UserIndex)) {
+			return;
+		}
+		if (full || index.getLastRefreshDocCount()>0) {
+			m_changedSinceWrite = true;
+		}
+		long now = System.currentTimeMillis();
+		if (m_changedSinceWrite && (full || (now - m_lastWrite) >= m_writeIntervalMillis)) {
+			try {
+				write((UserIndex) index);
+				m_lastWrite = now;
+				m_changedSinceWrite = false;
+			}
+			catch (IOException e) {
+				LogUtil.log(Level.SEVERE, "Error writing user index snapshot "+m_file, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the index to the snapshot file; to be called by the refreshing thread
+	 * so that watermarks and entries are consistent
+	 * 
+	 * @param index index
+	 * @throws IOException
+	 */
+	public void write(UserIndex index) throws IOException {
+		long t0 = System.currentTimeMillis();
+		//watermarks first: entries changed in the meantime get read again after a restore
+		Map<String,Date> watermarks = index.getWatermarks();
+		List<String> replicaIds = index.getAddressBookReplicaIds();
+		List<UserEntry> entries = new ArrayList<UserEntry>(index.getEntries());
+
+		File dir = m_file.getAbsoluteFile().getParentFile();
+		if (dir!=null && !dir.exists()) {
+			dir.mkdirs();
+		}
+		File tmpFile = new File(m_file.getPath()+".tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream fOut = new FileOutputStream(tmpFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fOut, 65536), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(index.getLastFullRefresh());
+			out.writeLong(index.getLastFullRefreshDurationMillis());
+
+			//address books in the server's order, entries refer to them by position
+			Map<String,Integer> replicaIdPositions = new HashMap<String,Integer>();
+			List<String> allReplicaIds = new ArrayList<String>(replicaIds);
+			for (String currReplicaId : watermarks.keySet()) {
+				if (!allReplicaIds.contains(currReplicaId)) {
+					allReplicaIds.add(currReplicaId);
+				}
+			}
+			out.writeInt(replicaIds.size());
+			out.writeInt(allReplicaIds.size());
+			for (int i=0; i<allReplicaIds.size(); i++) {
+				String currReplicaId = allReplicaIds.get(i);
+				replicaIdPositions.put(currReplicaId, Integer.valueOf(i));
+				out.writeUTF(currReplicaId);
+				Date watermark = watermarks.get(currReplicaId);
+				out.writeLong(watermark==null ? 0 : watermark.getTime());
+			}
+
+			out.writeInt(entries.size());
+			for (UserEntry currEntry : entries) {
+				Integer replicaIdPos = replicaIdPositions.get(currEntry.getAddressBookReplicaId());
+				if (replicaIdPos==null) {
+					//cannot happen for entries of a completed refresh
+					throw new IOException("Entry of unknown address book "+currEntry);
+				}
+				out.writeShort(currEntry.getAddressBookIndex());
+				out.writeShort(replicaIdPos.intValue());
+				out.writeUTF(currEntry.getNoteId());
+				out.writeUTF(currEntry.getCanonicalName()==null ? "" : currEntry.getCanonicalName());
+				out.writeLong(currEntry.getPasswordFingerprint());
+				out.writeUTF(currEntry.getMailServer()==null ? "" : currEntry.getMailServer());
+				String[] names = currEntry.getNames();
+				out.writeShort(names.length);
+				for (String currName : names) {
+					out.writeUTF(currName);
+				}
+			}
+			out.flush();
+			//trailer, not part of the checksum
+			long checksum = crc.getValue();
+			DataOutputStream trailerOut = new DataOutputStream(fOut);
+			trailerOut.writeLong(checksum);
+			trailerOut.flush();
+			fOut.getFD().sync();
+		}
+		finally {
+			fOut.close();
+		}
+
+		if (m_file.exists() && !m_file.delete()) {
+			//on Windows, the mapping of the restored file blocks deletion until it is garbage collected
+			System.gc();
+			if (!m_file.delete()) {
+				throw new IOException("Could not replace "+m_file);
+			}
+		}
+		if (!tmpFile.renameTo(m_file)) {
+			throw new IOException("Could not rename "+tmpFile+" to "+m_file);
+		}
+		LogUtil.log(Level.INFO, "Wrote user index snapshot "+m_file+" with "+entries.size()+" entries in "+
+				(System.currentTimeMillis()-t0)+"ms ("+m_file.length()/1024+" KB)");
+	}
+
+	/**
+	 * Fills the index from the snapshot file
+	 * 
+	 * @param index index, must not have been loaded yet
+	 * @return true if restored, false if the file does not exist or is invalid
+	 */
+	public boolean restore(UserIndex index) {
+		if (!m_file.exists()) {
+			return false;
+		}
+		long t0 = System.currentTimeMillis();
+		try {
+			FileInputStream fIn = new FileInputStream(m_file);
+			try {
+				FileChannel channel = fIn.getChannel();
+				long size = channel.size();
+				if (size<16 || size>Integer.MAX_VALUE) {
+					throw new IOException("Invalid file size "+size);
+				}
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+				//verify the checksum before parsing anything
+				ByteBuffer content = buf.duplicate();
+				content.limit((int) size - 8);
+				CRC32 crc = new CRC32();
+				byte[] chunk = new byte[65536];
+				while (content.hasRemaining()) {
+					int len = Math.min(chunk.length, content.remaining());
+					content.get(chunk, 0, len);
+					crc.update(chunk, 0, len);
+				}
+				if (buf.getLong((int) size - 8)!=crc.getValue()) {
+					throw new IOException("Checksum mismatch");
+				}
+
+				ByteBuffer data = buf.duplicate();
+				data.limit((int) size - 8);
+				DataInputStream in = new DataInputStream(new ByteBufferInputStream(data));
+				if (in.readInt()!=MAGIC) {
+					throw new IOException("Not a user index snapshot");
+				}
+				int version = in.readInt();
+				if (version!=VERSION) {
+					throw new IOException("Unsupported version "+version);
+				}
+				long createdAt = in.readLong();
+				long lastFullRefresh = in.readLong();
+				long lastFullRefreshDuration = in.readLong();
+
+				int orderedReplicaIdCount = in.readInt();
+				int replicaIdCount = in.readInt();
+				String[] replicaIds = new String[replicaIdCount];
+				List<String> orderedReplicaIds = new ArrayList<String>();
+				Map<String,Date> watermarks = new LinkedHashMap<String,Date>();
+				for (int i=0; i<replicaIdCount; i++) {
+					replicaIds[i] = in.readUTF();
+					long watermark = in.readLong();
+					if (watermark!=0) {
+						watermarks.put(replicaIds[i], new Date(watermark));
+					}
+					if (i<orderedReplicaIdCount) {
+						orderedReplicaIds.add(replicaIds[i]);
+					}
+				}
+
+				int entryCount = in.readInt();
+				List<UserEntry> entries = new ArrayList<UserEntry>(entryCount);
+				for (int i=0; i<entryCount; i++) {
+					int addressBookIndex = in.readShort();
+					String replicaId = replicaIds[in.readUnsignedShort()];
+					String noteId = in.readUTF();
+					String canonicalName = in.readUTF();
+					long passwordFingerprint = in.readLong();
+					String mailServer = in.readUTF();
+					String[] names = new String[in.readUnsignedShort()];
+					for (int j=0; j<names.length; j++) {
+						names[j] = in.readUTF();
+					}
+					entries.add(new UserEntry(addressBookIndex, replicaId, noteId, canonicalName.length()==0 ? null : canonicalName,
+							passwordFingerprint, mailServer.length()==0 ? null : mailServer, names));
+				}
+				if (data.hasRemaining()) {
+					throw new IOException("Unexpected data after "+entryCount+" entries");
+				}
+
+				index.restore(entries, watermarks, orderedReplicaIds, lastFullRefresh, lastFullRefreshDuration);
+				LogUtil.log(Level.INFO, "Restored user index from snapshot "+m_file+" with "+entryCount+" entries in "+
+						(System.currentTimeMillis()-t0)+"ms (last full refresh from the address books took "+lastFullRefreshDuration+
+						"ms, snapshot age "+((System.currentTimeMillis()-createdAt)/1000)+"s)");
+				return true;
+			}
+			finally {
+				fIn.close();
+			}
+		}
+		catch (Exception e) {
+			LogUtil.log(Level.WARNING, "Ignoring user index snapshot "+m_file+", loading from the address books: "+e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a byte buffer sequentially
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer m_buf;
+
+		public ByteBufferInputStream(ByteBuffer buf) {
+			m_buf = buf;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return m_buf.hasRemaining() ? (m_buf.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!m_buf.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, m_buf.remaining());
+			m_buf.get(b, off, count);
+			return count;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.mindoo.nginx.auth.internal;
+
+import java.io.File;
+import java.util.List;
+
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+import com.mindoo.nginx.auth.AuthHandler;
+import com.mindoo.nginx.auth.tools.LookupModeBenchmark;
+
+/**
+ * OSGi console command to inspect and reload the configuration without restarting
+ * the HTTP task, e.g. <code>tell http osgi nginxauth reload</code>
+ * 
+ * @author Karsten Lehmann
+ */
+public class NginxAuthCommandProvider implements CommandProvider {
+
+	public void _nginxauth(CommandInterpreter ci) {
+		String cmd = ci.nextArgument();
+		AuthHandler handler = NginxAuthServletActivator.getHandler();
+		if (handler==null) {
+			ci.println("NGINXAUTH servlet has not been initialized yet");
+			return;
+		}
+
+		if ("reload".equalsIgnoreCase(cmd)) {
+			try {
+				List<String> changes = handler.reloadConfig();
+				if (changes.isEmpty()) {
+					ci.println("NGINXAUTH configuration unchanged");
+				}
+				else {
+					for (String currChange : changes) {
+						ci.println("NGINXAUTH configuration changed: "+currChange);
+					}
+				}
+			}
+			catch (Exception e) {
+				ci.println("Error reloading NGINXAUTH configuration: "+e);
+			}
+		}
+		else if ("config".equalsIgnoreCase(cmd)) {
+			ci.println(handler.getConfig());
+		}
+		else if ("lookupbench".equalsIgnoreCase(cmd)) {
+			String file = ci.nextArgument();
+			if (file==null) {
+				ci.println(getHelp());
+				return;
+			}
+			String threads = ci.nextArgument();
+			String seconds = ci.nextArgument();
+			try {
+				List<String> users = LookupModeBenchmark.readUsers(new File(file));
+				LookupModeBenchmark benchmark = new LookupModeBenchmark(users, threads==null ? 4 : Integer.parseInt(threads),
+						(seconds==null ? 30 : Integer.parseInt(seconds)) * 1000L);
+				ci.println("Comparing NGINXAUTH lookup modes, this takes a while...");
+				for (String currLine : benchmark.run()) {
+					ci.println(currLine);
+				}
+			}
+			catch (Exception e) {
+				ci.println("Error comparing NGINXAUTH lookup modes: "+e);
+			}
+		}
+		else {
+			ci.println(getHelp());
+		}
+	}
+
+	@Override
+	public String getHelp() {
+		return "---NGINX auth commands---\n"+
+				"\tnginxauth reload - reread NGINXAUTH_* settings from Notes.ini\n"+
+				"\tnginxauth config - show the active configuration\n"+
+				"\tnginxauth lookupbench <file> [threads] [seconds] - compare the lookup modes view and directory for the login names in the file\n";
+	}
+
+}
@@ -1,23 +1,74 @@
 package com.mindoo.nginx.auth.internal;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import com.mindoo.nginx.auth.AuthHandler;
+import com.mindoo.nginx.auth.nio.NioAuthListener;
 
 public class NginxAuthServletActivator implements BundleActivator {
 	public static final String PLUGIN_ID = "com.mindoo.nginx.auth";
-	
+
 	private static BundleContext context;
+	private static NioAuthListener listener;
+	private static volatile AuthHandler handler;
+	private static ServiceRegistration commandRegistration;
 
 	static BundleContext getContext() {
 		return context;
 	}
 
+	/**
+	 * Sets the handler of the servlet for the console command
+	 * 
+	 * @param authHandler handler or null if destroyed
+	 */
+	public static void setHandler(AuthHandler authHandler) {
+		handler = authHandler;
+	}
+
+	static AuthHandler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * Starts the embedded auth_http listener, replacing a running one
+	 * 
+	 * @param handler handler to process requests
+	 * @param address address to bind to
+	 * @param port port
+	 * @param threads number of worker threads
+	 * @throws IOException if the address cannot be bound
+	 */
+	public static synchronized void startListener(AuthHandler handler, String address, int port, int threads) throws IOException {
+		stopListener();
+		NioAuthListener newListener = new NioAuthListener(handler, new InetSocketAddress(address, port), threads);
+		newListener.start();
+		listener = newListener;
+	}
+
+	/**
+	 * Stops the embedded auth_http listener if it is running
+	 */
+	public static synchronized void stopListener() {
+		if (listener!=null) {
+			listener.stop();
+			listener = null;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.osgi.framework.BundleActivator#start(org.osgi.framework.BundleContext)
 	 */
 	public void start(BundleContext bundleContext) throws Exception {
 		NginxAuthServletActivator.context = bundleContext;
+		commandRegistration = bundleContext.registerService(CommandProvider.class.getName(), new NginxAuthCommandProvider(), null);
 	}
 
 	/*
@@ -25,6 +76,11 @@ public class NginxAuthServletActivator implements BundleActivator {
 	 * @see org.osgi.framework.BundleActivator#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext bundleContext) throws Exception {
+		stopListener();
+		if (commandRegistration!=null) {
+			commandRegistration.unregister();
+			commandRegistration = null;
+		}
 		NginxAuthServletActivator.context = null;
 	}
 
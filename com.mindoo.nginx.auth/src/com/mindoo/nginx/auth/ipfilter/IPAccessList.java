@@ -0,0 +1,309 @@
+package com.mindoo.nginx.auth.ipfilter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.mindoo.nginx.auth.utils.LogUtil;
+
+/**
+ * Client IP allow and deny lists read from local text files with one address or
+ * CIDR block per line, e.g. exported DNSBL data or internal networks. Text after
+ * '#' or ';' is ignored.<br>
+ * <br>
+ * The files are parsed into {@link IPRangeSet} instances that get replaced as a
+ * whole when a file's modification time or size changes, so lookups never see a
+ * partially loaded list. If a file cannot be read, the previous ranges are kept.<br>
+ * <br>
+ * Allow entries take precedence over deny entries, so internal networks can be
+ * carved out of large block lists.
+ * 
+ * @author Karsten Lehmann
+ */
+public class IPAccessList {
+	/**
+	 * Result of an address check
+	 */
+	public static enum Access {
+		/** address is in the allow list */
+		ALLOWED,
+		/** address is in the deny list and not in the allow list */
+		DENIED,
+		/** address is in none of the lists */
+		UNLISTED
+	}
+
+	private final List<File> m_allowFiles;
+	private final List<File> m_denyFiles;
+
+	private volatile IPRangeSet m_allowed = IPRangeSet.EMPTY;
+	private volatile IPRangeSet m_denied = IPRangeSet.EMPTY;
+
+	/** modification time and size of the files, used to detect changes */
+	private long[] m_allowFileStamps;
+	private long[] m_denyFileStamps;
+
+	private final AtomicLong m_allowedCount = new AtomicLong();
+	private final AtomicLong m_deniedCount = new AtomicLong();
+	private final AtomicLong m_reloads = new AtomicLong();
+	private final AtomicLong m_loadErrors = new AtomicLong();
+	private ScheduledExecutorService m_reloadExecutor;
+
+	/**
+	 * Creates a new access list, call {@link #reload()} to read the files
+	 * 
+	 * @param allowFiles files with allowed ranges
+	 * @param denyFiles files with denied ranges
+	 */
+	public IPAccessList(List<File> allowFiles, List<File> denyFiles) {
+		m_allowFiles = new ArrayList<File>(allowFiles);
+		m_denyFiles = new ArrayList<File>(denyFiles);
+	}
+
+	/**
+	 * Splits a comma separated list of file paths
+	 * 
+	 * @param paths paths or null
+	 * @return files
+	 */
+	public static List<File> parseFiles(String paths) {
+		List<File> files = new ArrayList<File>();
+		if (paths!=null) {
+			for (String currPath : paths.split(",")) {
+				if (currPath.trim().length()>0) {
+					files.add(new File(currPath.trim()));
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Checks a client IP against the lists
+	 * 
+	 * @param clientIP IP in text form or null
+	 * @return access
+	 */
+	public Access check(String clientIP) {
+		if (clientIP==null) {
+			return Access.UNLISTED;
+		}
+		if (m_allowed.contains(clientIP)) {
+			m_allowedCount.incrementAndGet();
+			return Access.ALLOWED;
+		}
+		if (m_denied.contains(clientIP)) {
+			m_deniedCount.incrementAndGet();
+			return Access.DENIED;
+		}
+		return Access.UNLISTED;
+	}
+
+	/**
+	 * Reads files that have changed since the last call or could not be read last time
+	 * 
+	 * @return true if a list has been replaced
+	 */
+	public synchronized boolean reload() {
+		boolean changed = false;
+		long[] allowStamps = getStamps(m_allowFiles);
+		if (!equals(allowStamps, m_allowFileStamps)) {
+			IPRangeSet allowed = load(m_allowFiles);
+			if (allowed!=null) {
+				m_allowed = allowed;
+				LogUtil.log(Level.INFO, "Loaded IP allow list "+m_allowFiles+": "+allowed);
+				changed = true;
+				//only remember the files as loaded on success, otherwise they are read again next time
+				m_allowFileStamps = allowStamps;
+			}
+		}
+		long[] denyStamps = getStamps(m_denyFiles);
+		if (!equals(denyStamps, m_denyFileStamps)) {
+			IPRangeSet denied = load(m_denyFiles);
+			if (denied!=null) {
+				m_denied = denied;
+				LogUtil.log(Level.INFO, "Loaded IP deny list "+m_denyFiles+": "+denied);
+				changed = true;
+				//only remember the files as loaded on success, otherwise they are read again next time
+				m_denyFileStamps = denyStamps;
+			}
+		}
+		if (changed) {
+			m_reloads.incrementAndGet();
+		}
+		return changed;
+	}
+
+	/**
+	 * Starts a thread that periodically calls {@link #reload()}
+	 * 
+	 * @param intervalMillis interval between checks for changed files in milliseconds
+	 */
+	public synchronized void start(long intervalMillis) {
+		if (m_reloadExecutor!=null) {
+			return;
+		}
+		m_reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NGINXAUTH IP list reloader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		m_reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					reload();
+				}
+				catch (Throwable t) {
+					LogUtil.log(Level.SEVERE, "Error reloading IP lists", t);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the reload thread
+	 */
+	public synchronized void shutdown() {
+		if (m_reloadExecutor!=null) {
+			m_reloadExecutor.shutdownNow();
+			m_reloadExecutor = null;
+		}
+	}
+
+	private static long[] getStamps(List<File> files) {
+		long[] stamps = new long[files.size() * 2];
+		for (int i=0; i<files.size(); i++) {
+			File currFile = files.get(i);
+			stamps[i*2] = currFile.lastModified();
+			stamps[i*2+1] = currFile.length();
+		}
+		return stamps;
+	}
+
+	private static boolean equals(long[] stamps1, long[] stamps2) {
+		return stamps2!=null && Arrays.equals(stamps1, stamps2);
+	}
+
+	/**
+	 * Parses files into a range set
+	 * 
+	 * @param files files
+	 * @return range set or null if a file could not be read
+	 */
+	private IPRangeSet load(List<File> files) {
+		IPRangeSet.Builder builder = new IPRangeSet.Builder();
+		for (File currFile : files) {
+			if (!currFile.exists()) {
+				LogUtil.log(Level.WARNING, "IP list file "+currFile+" does not exist");
+				continue;
+			}
+			int invalidLines = 0;
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(currFile), "UTF-8"));
+				try {
+					String line;
+					while ((line=reader.readLine())!=null) {
+						int commentStart = line.indexOf('#');
+						if (commentStart==-1) {
+							commentStart = line.indexOf(';');
+						}
+						if (commentStart!=-1) {
+							line = line.substring(0, commentStart);
+						}
+						line = line.trim();
+						if (line.length()==0) {
+							continue;
+						}
+						try {
+							builder.add(line);
+						}
+						catch (IllegalArgumentException e) {
+							if (invalidLines++ < 10) {
+								LogUtil.log(Level.WARNING, "Skipping invalid line in IP list file "+currFile+": "+e.getMessage());
+							}
+						}
+					}
+				}
+				finally {
+					reader.close();
+				}
+			}
+			catch (IOException e) {
+				LogUtil.log(Level.SEVERE, "Error reading IP list file "+currFile+", keeping the previous list", e);
+				m_loadErrors.incrementAndGet();
+				return null;
+			}
+			if (invalidLines>0) {
+				LogUtil.log(Level.WARNING, invalidLines+" invalid lines in IP list file "+currFile);
+			}
+		}
+		return builder.build();
+	}
+
+	public IPRangeSet getAllowed() {
+		return m_allowed;
+	}
+
+	public IPRangeSet getDenied() {
+		return m_denied;
+	}
+
+	/**
+	 * Returns the number of checked addresses found in the allow list
+	 * 
+	 * @return count
+	 */
+	public long getAllowedCount() {
+		return m_allowedCount.get();
+	}
+
+	/**
+	 * Returns the number of checked addresses found in the deny list
+	 * 
+	 * @return count
+	 */
+	public long getDeniedCount() {
+		return m_deniedCount.get();
+	}
+
+	/**
+	 * Returns how often a list has been replaced
+	 * 
+	 * @return count
+	 */
+	public long getReloads() {
+		return m_reloads.get();
+	}
+
+	/**
+	 * Returns how often a list could not be read and the previous one was kept
+	 * 
+	 * @return count
+	 */
+	public long getLoadErrors() {
+		return m_loadErrors.get();
+	}
+
+	@Override
+	public String toString() {
+		return "IPAccessList [allowed="+m_allowed+", denied="+m_denied+", allowedCount="+m_allowedCount.get()+
+				", deniedCount="+m_deniedCount.get()+"]";
+	}
+}
@@ -0,0 +1,548 @@
+package com.mindoo.nginx.auth.ipfilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable set of IPv4 and IPv6 address ranges, stored as sorted, merged intervals
+ * in primitive arrays.<br>
+ * <br>
+ * {@link #contains(String)} parses the address text itself and does a binary search,
+ * so it neither allocates nor touches DNS; with hundreds of thousands of CIDR blocks
+ * a lookup takes about 20 array reads. Bounds are stored with flipped sign bits to
+ * compare unsigned values with signed operators.<br>
+ * <br>
+ * IPv4-mapped IPv6 addresses (::ffff:192.0.2.1) are looked up in the IPv4 ranges.
+ * 
+ * @author Karsten Lehmann
+ */
+public class IPRangeSet {
+	/** empty set */
+	public static final IPRangeSet EMPTY = new Builder().build();
+
+	private static final int INT_FLIP = 0x80000000;
+	private static final long LONG_FLIP = 0x8000000000000000L;
+
+	private final int[] m_v4Starts;
+	private final int[] m_v4Ends;
+	private final long[] m_v6StartsHi;
+	private final long[] m_v6StartsLo;
+	private final long[] m_v6EndsHi;
+	private final long[] m_v6EndsLo;
+
+	private IPRangeSet(int[] v4Starts, int[] v4Ends, long[] v6StartsHi, long[] v6StartsLo, long[] v6EndsHi, long[] v6EndsLo) {
+		m_v4Starts = v4Starts;
+		m_v4Ends = v4Ends;
+		m_v6StartsHi = v6StartsHi;
+		m_v6StartsLo = v6StartsLo;
+		m_v6EndsHi = v6EndsHi;
+		m_v6EndsLo = v6EndsLo;
+	}
+
+	/**
+	 * Checks if an address is part of a range
+	 * 
+	 * @param ip IPv4 or IPv6 address in text form
+	 * @return true if contained, false if not or if the address cannot be parsed
+	 */
+	public boolean contains(String ip) {
+		if (ip==null) {
+			return false;
+		}
+		int len = ip.length();
+		if (len==0) {
+			return false;
+		}
+		if (ip.indexOf(':')==-1) {
+			long v4 = parseIPv4(ip, 0, len);
+			return v4>=0 && containsIPv4((int) v4);
+		}
+		if (isEmpty()) {
+			return false;
+		}
+
+		//IPv6, split into the 16 bit groups before and after "::"
+		long headHi = 0, headLo = 0;
+		long tailHi = 0, tailLo = 0;
+		int headGroups = 0;
+		int tailGroups = 0;
+		boolean compressed = false;
+		int pos = 0;
+		int end = len;
+		if (ip.charAt(0)=='[' && ip.charAt(len-1)==']') {
+			pos = 1;
+			end = len - 1;
+		}
+		int zone = ip.indexOf('%', pos);
+		if (zone!=-1 && zone<end) {
+			end = zone;
+		}
+		if (end-pos>=2 && ip.charAt(pos)==':' && ip.charAt(pos+1)==':') {
+			compressed = true;
+			pos += 2;
+		}
+		while (pos<end) {
+			int groupEnd = pos;
+			while (groupEnd<end && ip.charAt(groupEnd)!=':') {
+				groupEnd++;
+			}
+			long groupValue;
+			int groupCount;
+			if (groupEnd==end && ip.indexOf('.', pos)!=-1) {
+				//embedded IPv4 address in the last two groups
+				groupValue = parseIPv4(ip, pos, end);
+				groupCount = 2;
+			}
+			else {
+				groupValue = parseHexGroup(ip, pos, groupEnd);
+				groupCount = 1;
+			}
+			if (groupValue<0) {
+				return false;
+			}
+			int shift = 16 * groupCount;
+			if (compressed) {
+				tailHi = (tailHi << shift) | (tailLo >>> (64 - shift));
+				tailLo = (tailLo << shift) | groupValue;
+				tailGroups += groupCount;
+			}
+			else {
+				headHi = (headHi << shift) | (headLo >>> (64 - shift));
+				headLo = (headLo << shift) | groupValue;
+				headGroups += groupCount;
+			}
+			if (headGroups + tailGroups > 8) {
+				return false;
+			}
+
+			if (groupEnd==end) {
+				break;
+			}
+			pos = groupEnd + 1;
+			if (pos<end && ip.charAt(pos)==':') {
+				if (compressed) {
+					return false;
+				}
+				compressed = true;
+				pos++;
+			}
+			else if (pos==end) {
+				//trailing single colon
+				return false;
+			}
+		}
+		if (!compressed && headGroups!=8) {
+			return false;
+		}
+
+		//move the head groups to the top of the 128 bit value
+		int headShift = 16 * (8 - headGroups);
+		long hi;
+		long lo;
+		if (headShift==0) {
+			hi = headHi;
+			lo = headLo;
+		}
+		else if (headShift>=128) {
+			hi = 0;
+			lo = 0;
+		}
+		else if (headShift>=64) {
+			hi = headLo << (headShift - 64);
+			lo = 0;
+		}
+		else {
+			hi = (headHi << headShift) | (headLo >>> (64 - headShift));
+			lo = headLo << headShift;
+		}
+		hi |= tailHi;
+		lo |= tailLo;
+
+		if (hi==0 && (lo >>> 32)==0xffffL) {
+			return containsIPv4((int) lo);
+		}
+		return containsIPv6(hi, lo);
+	}
+
+	/**
+	 * Checks if an IPv4 address is part of a range
+	 * 
+	 * @param ip address as 32 bit value
+	 * @return true if contained
+	 */
+	public boolean containsIPv4(int ip) {
+		int flipped = ip ^ INT_FLIP;
+		int[] starts = m_v4Starts;
+		int low = 0;
+		int high = starts.length - 1;
+		//find the last range starting at or before the address
+		while (low<=high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= flipped) {
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return high>=0 && flipped <= m_v4Ends[high];
+	}
+
+	/**
+	 * Checks if an IPv6 address is part of a range
+	 * 
+	 * @param hi upper 64 bits of the address
+	 * @param lo lower 64 bits of the address
+	 * @return true if contained
+	 */
+	public boolean containsIPv6(long hi, long lo) {
+		long flippedHi = hi ^ LONG_FLIP;
+		long flippedLo = lo ^ LONG_FLIP;
+		long[] startsHi = m_v6StartsHi;
+		long[] startsLo = m_v6StartsLo;
+		int low = 0;
+		int high = startsHi.length - 1;
+		while (low<=high) {
+			int mid = (low + high) >>> 1;
+			if (startsHi[mid] < flippedHi || (startsHi[mid]==flippedHi && startsLo[mid] <= flippedLo)) {
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		if (high<0) {
+			return false;
+		}
+		long endHi = m_v6EndsHi[high];
+		return flippedHi < endHi || (flippedHi==endHi && flippedLo <= m_v6EndsLo[high]);
+	}
+
+	/**
+	 * Returns the number of merged IPv4 ranges
+	 * 
+	 * @return count
+	 */
+	public int getIPv4RangeCount() {
+		return m_v4Starts.length;
+	}
+
+	/**
+	 * Returns the number of merged IPv6 ranges
+	 * 
+	 * @return count
+	 */
+	public int getIPv6RangeCount() {
+		return m_v6StartsHi.length;
+	}
+
+	public boolean isEmpty() {
+		return m_v4Starts.length==0 && m_v6StartsHi.length==0;
+	}
+
+	@Override
+	public String toString() {
+		return "IPRangeSet [ipv4ranges="+m_v4Starts.length+", ipv6ranges="+m_v6StartsHi.length+"]";
+	}
+
+	/**
+	 * Parses a dotted IPv4 address
+	 * 
+	 * @param s text
+	 * @param start start index
+	 * @param end end index (exclusive)
+	 * @return address as unsigned 32 bit value or -1 if invalid
+	 */
+	static long parseIPv4(String s, int start, int end) {
+		long result = 0;
+		int octets = 0;
+		int octet = -1;
+		for (int i=start; i<end; i++) {
+			char c = s.charAt(i);
+			if (c>='0' && c<='9') {
+				octet = octet==-1 ? (c - '0') : octet * 10 + (c - '0');
+				if (octet>255) {
+					return -1;
+				}
+			}
+			else if (c=='.' && octet!=-1 && octets<3) {
+				result = (result << 8) | octet;
+				octets++;
+				octet = -1;
+			}
+			else {
+				return -1;
+			}
+		}
+		if (octet==-1 || octets!=3) {
+			return -1;
+		}
+		return (result << 8) | octet;
+	}
+
+	private static long parseHexGroup(String s, int start, int end) {
+		int len = end - start;
+		if (len<1 || len>4) {
+			return -1;
+		}
+		long result = 0;
+		for (int i=start; i<end; i++) {
+			int digit = Character.digit(s.charAt(i), 16);
+			if (digit<0) {
+				return -1;
+			}
+			result = (result << 4) | digit;
+		}
+		return result;
+	}
+
+	/**
+	 * Collects ranges and builds an {@link IPRangeSet}; overlapping and adjacent
+	 * ranges get merged
+	 */
+	public static class Builder {
+		private long[] m_v4Ranges = new long[1024];
+		private int m_v4Count;
+		private List<long[]> m_v6Ranges = new ArrayList<long[]>();
+
+		/**
+		 * Adds a single address or CIDR block, e.g. 192.0.2.0/24 or 2001:db8::/32
+		 * 
+		 * @param cidr address or block
+		 * @return this builder
+		 * @throws IllegalArgumentException if the value cannot be parsed
+		 */
+		public Builder add(String cidr) {
+			String value = cidr.trim();
+			int prefixLength = -1;
+			int slash = value.indexOf('/');
+			String addressStr = value;
+			if (slash!=-1) {
+				addressStr = value.substring(0, slash);
+				try {
+					prefixLength = Integer.parseInt(value.substring(slash+1).trim());
+				}
+				catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid prefix length: "+cidr);
+				}
+				if (prefixLength<0) {
+					//-1 would be taken as single address below
+					throw new IllegalArgumentException("Invalid prefix length: "+cidr);
+				}
+			}
+
+			if (addressStr.indexOf(':')==-1) {
+				long ip = parseIPv4(addressStr, 0, addressStr.length());
+				if (ip<0) {
+					throw new IllegalArgumentException("Invalid IPv4 address: "+cidr);
+				}
+				if (prefixLength==-1) {
+					prefixLength = 32;
+				}
+				else if (prefixLength<0 || prefixLength>32) {
+					throw new IllegalArgumentException("Invalid IPv4 prefix length: "+cidr);
+				}
+				long hostMask = prefixLength==0 ? 0xffffffffL : (1L << (32 - prefixLength)) - 1;
+				addIPv4Range(ip & ~hostMask, ip | hostMask);
+			}
+			else {
+				long[] ip = parseIPv6(addressStr);
+				if (ip==null) {
+					throw new IllegalArgumentException("Invalid IPv6 address: "+cidr);
+				}
+				if (prefixLength==-1) {
+					prefixLength = 128;
+				}
+				else if (prefixLength<0 || prefixLength>128) {
+					throw new IllegalArgumentException("Invalid IPv6 prefix length: "+cidr);
+				}
+				long maskHi = prefixLength>=64 ? -1L : (prefixLength==0 ? 0 : -1L << (64 - prefixLength));
+				long maskLo = prefixLength<=64 ? 0 : (prefixLength==128 ? -1L : -1L << (128 - prefixLength));
+				long startHi = ip[0] & maskHi;
+				long startLo = ip[1] & maskLo;
+				long endHi = ip[0] | ~maskHi;
+				long endLo = ip[1] | ~maskLo;
+				if (startHi==0 && (startLo >>> 32)==0xffffL && endHi==0 && (endLo >>> 32)==0xffffL) {
+					//IPv4-mapped block
+					addIPv4Range(startLo & 0xffffffffL, endLo & 0xffffffffL);
+				}
+				else {
+					m_v6Ranges.add(new long[] {startHi ^ LONG_FLIP, startLo ^ LONG_FLIP, endHi ^ LONG_FLIP, endLo ^ LONG_FLIP});
+				}
+			}
+			return this;
+		}
+
+		private void addIPv4Range(long start, long end) {
+			if (m_v4Count==m_v4Ranges.length) {
+				m_v4Ranges = Arrays.copyOf(m_v4Ranges, m_v4Ranges.length * 2);
+			}
+			//start in the upper, end in the lower half, sortable as signed long after flipping
+			m_v4Ranges[m_v4Count++] = ((start ^ 0x80000000L) << 32) | end;
+		}
+
+		/**
+		 * Returns the number of ranges added so far
+		 * 
+		 * @return count
+		 */
+		public int size() {
+			return m_v4Count + m_v6Ranges.size();
+		}
+
+		/**
+		 * Sorts and merges the collected ranges
+		 * 
+		 * @return range set
+		 */
+		public IPRangeSet build() {
+			long[] v4Ranges = Arrays.copyOf(m_v4Ranges, m_v4Count);
+			Arrays.sort(v4Ranges);
+			int[] v4Starts = new int[v4Ranges.length];
+			int[] v4Ends = new int[v4Ranges.length];
+			int v4Count = 0;
+			long currEnd = -1;
+			for (long currRange : v4Ranges) {
+				long start = (currRange >>> 32) ^ 0x80000000L;
+				long end = currRange & 0xffffffffL;
+				if (v4Count>0 && start <= currEnd + 1) {
+					if (end > currEnd) {
+						currEnd = end;
+						v4Ends[v4Count-1] = (int) end ^ INT_FLIP;
+					}
+				}
+				else {
+					v4Starts[v4Count] = (int) start ^ INT_FLIP;
+					v4Ends[v4Count] = (int) end ^ INT_FLIP;
+					currEnd = end;
+					v4Count++;
+				}
+			}
+
+			long[][] v6Ranges = m_v6Ranges.toArray(new long[m_v6Ranges.size()][]);
+			Arrays.sort(v6Ranges, new Comparator<long[]>() {
+
+				@Override
+				public int compare(long[] o1, long[] o2) {
+					if (o1[0]!=o2[0]) {
+						return o1[0] < o2[0] ? -1 : 1;
+					}
+					if (o1[1]!=o2[1]) {
+						return o1[1] < o2[1] ? -1 : 1;
+					}
+					return 0;
+				}
+			});
+			long[] v6StartsHi = new long[v6Ranges.length];
+			long[] v6StartsLo = new long[v6Ranges.length];
+			long[] v6EndsHi = new long[v6Ranges.length];
+			long[] v6EndsLo = new long[v6Ranges.length];
+			int v6Count = 0;
+			for (long[] currRange : v6Ranges) {
+				if (v6Count>0 && isAdjacentOrOverlapping(v6EndsHi[v6Count-1], v6EndsLo[v6Count-1], currRange[0], currRange[1])) {
+					int last = v6Count - 1;
+					if (currRange[2] > v6EndsHi[last] || (currRange[2]==v6EndsHi[last] && currRange[3] > v6EndsLo[last])) {
+						v6EndsHi[last] = currRange[2];
+						v6EndsLo[last] = currRange[3];
+					}
+				}
+				else {
+					v6StartsHi[v6Count] = currRange[0];
+					v6StartsLo[v6Count] = currRange[1];
+					v6EndsHi[v6Count] = currRange[2];
+					v6EndsLo[v6Count] = currRange[3];
+					v6Count++;
+				}
+			}
+
+			return new IPRangeSet(Arrays.copyOf(v4Starts, v4Count), Arrays.copyOf(v4Ends, v4Count),
+					Arrays.copyOf(v6StartsHi, v6Count), Arrays.copyOf(v6StartsLo, v6Count),
+					Arrays.copyOf(v6EndsHi, v6Count), Arrays.copyOf(v6EndsLo, v6Count));
+		}
+
+		/**
+		 * Checks if a range starting at start touches a range ending at end (flipped values)
+		 */
+		private static boolean isAdjacentOrOverlapping(long endHi, long endLo, long startHi, long startLo) {
+			if (startHi < endHi || (startHi==endHi && startLo <= endLo)) {
+				return true;
+			}
+			//start == end + 1
+			long nextLo = endLo + 1;
+			long nextHi = nextLo==LONG_FLIP ? endHi + 1 : endHi;
+			return startHi==nextHi && startLo==nextLo;
+		}
+
+		private static long[] parseIPv6(String s) {
+			long[] result = new long[2];
+			String[] parts = s.split("::", -1);
+			if (parts.length>2) {
+				return null;
+			}
+			long[] head = parseGroups(parts[0]);
+			long[] tail = parts.length==2 ? parseGroups(parts[1]) : new long[] {0, 0, 0};
+			if (head==null || tail==null) {
+				return null;
+			}
+			int groups = (int) (head[2] + tail[2]);
+			if (parts.length==1 ? groups!=8 : groups>7) {
+				return null;
+			}
+			int headShift = 16 * (8 - (int) head[2]);
+			if (headShift>=128) {
+				result[0] = 0;
+				result[1] = 0;
+			}
+			else if (headShift>=64) {
+				result[0] = headShift==64 ? head[1] : head[1] << (headShift - 64);
+				result[1] = 0;
+			}
+			else if (headShift==0) {
+				result[0] = head[0];
+				result[1] = head[1];
+			}
+			else {
+				result[0] = (head[0] << headShift) | (head[1] >>> (64 - headShift));
+				result[1] = head[1] << headShift;
+			}
+			result[0] |= tail[0];
+			result[1] |= tail[1];
+			return result;
+		}
+
+		/**
+		 * Parses colon separated groups into hi, lo and group count
+		 */
+		private static long[] parseGroups(String s) {
+			long hi = 0;
+			long lo = 0;
+			int groups = 0;
+			if (s.length()>0) {
+				String[] parts = s.split(":", -1);
+				for (int i=0; i<parts.length; i++) {
+					String currPart = parts[i];
+					long value;
+					int count;
+					if (i==parts.length-1 && currPart.indexOf('.')!=-1) {
+						value = parseIPv4(currPart, 0, currPart.length());
+						count = 2;
+					}
+					else {
+						value = parseHexGroup(currPart, 0, currPart.length());
+						count = 1;
+					}
+					if (value<0) {
+						return null;
+					}
+					int shift = 16 * count;
+					hi = (hi << shift) | (lo >>> (64 - shift));
+					lo = (lo << shift) | value;
+					groups += count;
+				}
+			}
+			return new long[] {hi, lo, groups};
+		}
+	}
+}
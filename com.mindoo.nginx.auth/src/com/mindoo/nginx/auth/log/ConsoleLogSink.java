@@ -0,0 +1,36 @@
+package com.mindoo.nginx.auth.log;
+
+/**
+ * Writes log lines to the Domino server console
+ *
+ * @author Karsten Lehmann
+ */
+public class ConsoleLogSink implements LogSink {
+
+	@Override
+	public void write(String line) {
+		System.out.println(line);
+	}
+
+	@Override
+	public void flush() {
+		System.out.flush();
+	}
+
+	@Override
+	public void close() {
+		//nothing to free
+	}
+
+	@Override
+	public boolean isTimestamped() {
+		//the console adds its own timestamps
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsoleLogSink";
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.mindoo.nginx.auth.log;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests write debug output: all requests of selected client IPs and
+ * users, plus every n-th other request if debugging is enabled globally, so that debug
+ * output can stay on under load.
+ *
+ * @author Karsten Lehmann
+ */
+public class DebugSampler {
+	private final boolean m_enabled;
+	private final int m_sampleRate;
+	private final Set<String> m_clientIPs;
+	private final Set<String> m_usersLC;
+	private final AtomicLong m_counter = new AtomicLong();
+
+	/**
+	 * Creates a new sampler
+	 *
+	 * @param enabled true to debug requests of all clients
+	 * @param sampleRate if enabled, only debug every n-th request (1 for all)
+	 * @param clientIPs client IPs to always debug
+	 * @param users user names to always debug
+	 */
+	public DebugSampler(boolean enabled, int sampleRate, String[] clientIPs, String[] users) {
+		m_enabled = enabled;
+		m_sampleRate = Math.max(1, sampleRate);
+		m_clientIPs = toSet(clientIPs);
+		m_usersLC = toSet(users);
+	}
+
+	private static Set<String> toSet(String[] values) {
+		Set<String> set = new HashSet<String>();
+		if (values!=null) {
+			for (String currValue : values) {
+				String trimmed = currValue.trim().toLowerCase(Locale.ENGLISH);
+				if (trimmed.length()>0) {
+					set.add(trimmed);
+				}
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * Checks if a request should write debug output
+	 *
+	 * @param clientIP value of the Client-IP header
+	 * @param user value of the Auth-User header or null
+	 * @return true to debug
+	 */
+	public boolean isDebug(String clientIP, String user) {
+		if (clientIP!=null && !m_clientIPs.isEmpty() && m_clientIPs.contains(clientIP.toLowerCase(Locale.ENGLISH))) {
+			return true;
+		}
+		if (user!=null && !m_usersLC.isEmpty() && m_usersLC.contains(user.trim().toLowerCase(Locale.ENGLISH))) {
+			return true;
+		}
+		if (m_enabled) {
+			return m_sampleRate==1 || (m_counter.incrementAndGet() % m_sampleRate)==0;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if any request may be debugged
+	 *
+	 * @return true if enabled globally or for selected clients or users
+	 */
+	public boolean isActive() {
+		return m_enabled || !m_clientIPs.isEmpty() || !m_usersLC.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "DebugSampler [enabled="+m_enabled+", sampleRate="+m_sampleRate+", clientIPs="+m_clientIPs+
+				", users="+m_usersLC+"]";
+	}
+}
@@ -0,0 +1,75 @@
+package com.mindoo.nginx.auth.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Level;
+
+/**
+ * Preallocated, reusable slot of the {@link RingBufferLog}. Fields are written by
+ * the producing thread before the slot gets published and read and cleared by the
+ * drain thread afterwards.
+ *
+ * @author Karsten Lehmann
+ */
+class LogEvent {
+	long m_time;
+	Level m_level;
+	String m_event;
+	String m_user;
+	String m_clientIP;
+	String m_message;
+	Throwable m_throwable;
+
+	void set(long time, Level level, String event, String user, String clientIP, String message, Throwable t) {
+		m_time = time;
+		m_level = level;
+		m_event = event;
+		m_user = user;
+		m_clientIP = clientIP;
+		m_message = message;
+		m_throwable = t;
+	}
+
+	void clear() {
+		m_level = null;
+		m_event = null;
+		m_user = null;
+		m_clientIP = null;
+		m_message = null;
+		m_throwable = null;
+	}
+
+	/**
+	 * Formats the event as one line (plus stack trace), e.g.<br>
+	 * <code>NGINXAUTH (INFO): [login.blocked] user=john ip=1.2.3.4 attempt: 2</code>
+	 *
+	 * @param sb target
+	 * @param withTimestamp true to prefix the line with date and time, e.g. for log files
+	 * @param dateFormat format for the timestamp, only used by the drain thread
+	 */
+	void format(StringBuilder sb, boolean withTimestamp, SimpleDateFormat dateFormat) {
+		if (withTimestamp) {
+			sb.append(dateFormat.format(new Date(m_time))).append(' ');
+		}
+		sb.append("NGINXAUTH (").append(m_level.getLocalizedName()).append("): ");
+		if (m_event!=null) {
+			sb.append('[').append(m_event).append("] ");
+		}
+		if (m_user!=null) {
+			sb.append("user=").append(m_user).append(' ');
+		}
+		if (m_clientIP!=null) {
+			sb.append("ip=").append(m_clientIP).append(' ');
+		}
+		if (m_message!=null) {
+			sb.append(m_message);
+		}
+		if (m_throwable!=null) {
+			StringWriter sw = new StringWriter();
+			m_throwable.printStackTrace(new PrintWriter(sw));
+			sb.append(System.getProperty("line.separator")).append(sw.toString().trim());
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.mindoo.nginx.auth.log;
+
+import java.io.IOException;
+
+/**
+ * Destination of log lines, only called by the drain thread of the {@link RingBufferLog}
+ *
+ * @author Karsten Lehmann
+ */
+public interface LogSink {
+
+	/**
+	 * Writes a formatted line
+	 *
+	 * @param line line without line separator
+	 * @throws IOException
+	 */
+	public void write(String line) throws IOException;
+
+	/**
+	 * Called when the buffer has been drained
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Frees all resources
+	 */
+	public void close();
+
+	/**
+	 * Returns true if lines should be prefixed with date and time
+	 *
+	 * @return true for timestamps
+	 */
+	public boolean isTimestamped();
+
+}
@@ -0,0 +1,242 @@
+package com.mindoo.nginx.auth.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+
+/**
+ * Asynchronous log with a preallocated lock-free ring buffer of {@link LogEvent} slots.
+ * Producers claim a slot with a single CAS, fill it and publish it; a background thread
+ * drains published events to a {@link LogSink}, so that request threads never block on
+ * the server console or on file I/O.<br>
+ * <br>
+ * If the buffer is full, new events are dropped and counted instead of waiting.
+ *
+ * @author Karsten Lehmann
+ */
+public class RingBufferLog {
+	private static final long IDLE_PARK_NANOS = 5000000L;
+
+	private final LogEvent[] m_slots;
+	private final int m_mask;
+	/** sequence number published in each slot, -1 if empty */
+	private final AtomicLongArray m_published;
+	/** next sequence number to claim by producers */
+	private final AtomicLong m_head = new AtomicLong();
+	/** next sequence number to read by the drain thread */
+	private volatile long m_tail;
+
+	private final LogSink m_sink;
+	private Thread m_drainThread;
+	private volatile boolean m_stopped;
+
+	private final AtomicLong m_dropped = new AtomicLong();
+	private final AtomicLong m_written = new AtomicLong();
+	private final AtomicLong m_sinkErrors = new AtomicLong();
+
+	/**
+	 * Creates a new log
+	 *
+	 * @param capacity number of slots, rounded up to the next power of two
+	 * @param sink destination of log lines
+	 */
+	public RingBufferLog(int capacity, LogSink sink) {
+		int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+		m_slots = new LogEvent[size];
+		for (int i=0; i<size; i++) {
+			m_slots[i] = new LogEvent();
+		}
+		m_mask = size - 1;
+		m_published = new AtomicLongArray(size);
+		for (int i=0; i<size; i++) {
+			m_published.set(i, -1);
+		}
+		m_sink = sink;
+	}
+
+	/**
+	 * Creates a log configured by NGINXAUTH_LOG_* Notes.ini variables
+	 *
+	 * @param session session to read Notes.ini variables
+	 * @return log, not started yet
+	 * @throws NotesException
+	 */
+	public static RingBufferLog createFromNotesIni(Session session) throws NotesException {
+		//OPTIONAL log file instead of the server console, e.g. nginxauth/nginxauth.log (console by default)
+		String logFile = session.getEnvironmentString("NGINXAUTH_LOG_FILE");
+		//OPTIONAL max size of the log file in KB before it gets rotated (10240 by default)
+		int maxSizeKB = getIniInt(session, "NGINXAUTH_LOG_MAXSIZE", 10240);
+		//OPTIONAL number of rotated log files to keep (5 by default)
+		int maxFiles = getIniInt(session, "NGINXAUTH_LOG_MAXFILES", 5);
+		//OPTIONAL number of log events buffered before new ones get dropped (8192 by default)
+		int bufferSize = getIniInt(session, "NGINXAUTH_LOG_BUFFER", 8192);
+
+		LogSink sink;
+		if (logFile!=null && logFile.trim().length()>0) {
+			sink = new RollingFileLogSink(new File(logFile.trim()), maxSizeKB * 1024L, maxFiles);
+		}
+		else {
+			sink = new ConsoleLogSink();
+		}
+		return new RingBufferLog(bufferSize, sink);
+	}
+
+	private static int getIniInt(Session session, String name, int defaultValue) throws NotesException {
+		String val = session.getEnvironmentString(name);
+		if (val==null || val.trim().length()==0) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(val.trim());
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Starts the drain thread
+	 */
+	public synchronized void start() {
+		if (m_drainThread!=null) {
+			return;
+		}
+		m_drainThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "NGINXAUTH log writer");
+		m_drainThread.setDaemon(true);
+		m_drainThread.start();
+	}
+
+	/**
+	 * Writes all buffered events, stops the drain thread and closes the sink
+	 */
+	public synchronized void stop() {
+		m_stopped = true;
+		if (m_drainThread!=null) {
+			LockSupport.unpark(m_drainThread);
+			try {
+				m_drainThread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			m_drainThread = null;
+		}
+	}
+
+	/**
+	 * Adds an event to the buffer without blocking
+	 *
+	 * @param level level
+	 * @param event event type, e.g. "login.blocked", or null for plain messages
+	 * @param user user name or null
+	 * @param clientIP client IP or null
+	 * @param message message or null
+	 * @param t throwable or null
+	 * @return false if the event has been dropped because the buffer is full
+	 */
+	public boolean offer(Level level, String event, String user, String clientIP, String message, Throwable t) {
+		long seq;
+		do {
+			seq = m_head.get();
+			if (seq - m_tail >= m_slots.length) {
+				m_dropped.incrementAndGet();
+				return false;
+			}
+		}
+		while (!m_head.compareAndSet(seq, seq+1));
+
+		int idx = (int) (seq & m_mask);
+		m_slots[idx].set(System.currentTimeMillis(), level, event, user, clientIP, message, t);
+		//ordered store, makes the slot content visible to the drain thread
+		m_published.lazySet(idx, seq);
+		return true;
+	}
+
+	private void drainLoop() {
+		StringBuilder sb = new StringBuilder(512);
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		boolean timestamped = m_sink.isTimestamped();
+
+		try {
+			while (true) {
+				int drained = 0;
+				long seq = m_tail;
+				int idx = (int) (seq & m_mask);
+				while (m_published.get(idx)==seq) {
+					LogEvent event = m_slots[idx];
+					sb.setLength(0);
+					event.format(sb, timestamped, dateFormat);
+					event.clear();
+					m_published.set(idx, -1);
+					//frees the slot for producers
+					m_tail = ++seq;
+					idx = (int) (seq & m_mask);
+
+					try {
+						m_sink.write(sb.toString());
+						m_written.incrementAndGet();
+					} catch (IOException e) {
+						m_sinkErrors.incrementAndGet();
+					}
+					drained++;
+				}
+
+				if (drained>0) {
+					try {
+						m_sink.flush();
+					} catch (IOException e) {
+						m_sinkErrors.incrementAndGet();
+					}
+				}
+				else if (m_stopped) {
+					break;
+				}
+				else {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			}
+		}
+		finally {
+			m_sink.close();
+		}
+	}
+
+	/**
+	 * Returns the number of events dropped because the buffer was full
+	 *
+	 * @return count
+	 */
+	public long getDropped() {
+		return m_dropped.get();
+	}
+
+	public long getWritten() {
+		return m_written.get();
+	}
+
+	public long getSinkErrors() {
+		return m_sinkErrors.get();
+	}
+
+	public int getCapacity() {
+		return m_slots.length;
+	}
+
+	@Override
+	public String toString() {
+		return "RingBufferLog [sink="+m_sink+", capacity="+m_slots.length+", written="+m_written.get()+
+				", dropped="+m_dropped.get()+", sinkErrors="+m_sinkErrors.get()+"]";
+	}
+}
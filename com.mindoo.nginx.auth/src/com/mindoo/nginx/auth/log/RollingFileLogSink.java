@@ -0,0 +1,110 @@
+package com.mindoo.nginx.auth.log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes log lines to a file that gets rotated when it reaches a max size, keeping
+ * a configurable number of old files (name.1 being the newest)
+ *
+ * @author Karsten Lehmann
+ */
+public class RollingFileLogSink implements LogSink {
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private final File m_file;
+	private final long m_maxBytes;
+	private final int m_maxFiles;
+
+	private Writer m_writer;
+	private long m_size;
+
+	/**
+	 * Creates a new sink
+	 *
+	 * @param file log file
+	 * @param maxBytes size after which the file gets rotated
+	 * @param maxFiles number of rotated files to keep
+	 */
+	public RollingFileLogSink(File file, long maxBytes, int maxFiles) {
+		m_file = file;
+		m_maxBytes = Math.max(1024, maxBytes);
+		m_maxFiles = Math.max(0, maxFiles);
+	}
+
+	@Override
+	public void write(String line) throws IOException {
+		if (m_writer==null) {
+			open();
+		}
+		else if (m_size >= m_maxBytes) {
+			rotate();
+		}
+		m_writer.write(line);
+		m_writer.write(LINE_SEPARATOR);
+		//approximation, exact for ASCII
+		m_size += line.length() + LINE_SEPARATOR.length();
+	}
+
+	private void open() throws IOException {
+		File dir = m_file.getAbsoluteFile().getParentFile();
+		if (dir!=null && !dir.exists()) {
+			dir.mkdirs();
+		}
+		m_size = m_file.length();
+		m_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_file, true), "UTF-8"), 65536);
+	}
+
+	private void rotate() throws IOException {
+		close();
+
+		if (m_maxFiles==0) {
+			m_file.delete();
+		}
+		else {
+			File oldest = new File(m_file.getPath()+"."+m_maxFiles);
+			oldest.delete();
+			for (int i=m_maxFiles-1; i>=1; i--) {
+				File currFile = new File(m_file.getPath()+"."+i);
+				if (currFile.exists()) {
+					currFile.renameTo(new File(m_file.getPath()+"."+(i+1)));
+				}
+			}
+			m_file.renameTo(new File(m_file.getPath()+".1"));
+		}
+		open();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (m_writer!=null) {
+			m_writer.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (m_writer!=null) {
+			try {
+				m_writer.close();
+			} catch (IOException e) {
+				//ignore
+			}
+			m_writer = null;
+		}
+	}
+
+	@Override
+	public boolean isTimestamped() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "RollingFileLogSink [file="+m_file+"]";
+	}
+}
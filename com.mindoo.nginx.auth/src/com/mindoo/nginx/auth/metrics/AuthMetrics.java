@@ -0,0 +1,256 @@
+package com.mindoo.nginx.auth.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.mindoo.nginx.auth.utils.LatencyHistogram;
+
+/**
+ * Request metrics of the auth handler: latency histograms per processing phase and
+ * outcome counters per protocol. Recording is lock-free and does not allocate, so
+ * metrics can stay enabled in production. {@link #writePrometheus(StringBuilder)}
+ * renders them in the Prometheus text exposition format.
+ *
+ * @author Karsten Lehmann
+ */
+public class AuthMetrics {
+	/** upper bounds of the Prometheus histogram buckets in seconds */
+	private static final double[] BUCKET_BOUNDS_SECONDS = new double[] {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005,
+		0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+	/**
+	 * Timed phases of an auth request
+	 */
+	public enum Phase {
+		/** whole request processing */
+		REQUEST("request"),
+		/** URL decoding of user and password */
+		DECODE("decode"),
+		/** failure throttle and unknown user filter */
+		PRECHECK("precheck"),
+		/** credential cache lookup */
+		CACHE("cache"),
+		/** time a directory lookup waits for a pooled session */
+		DIRECTORY_WAIT("directory_wait"),
+		/** creation of a directory session incl. opening the address books */
+		SESSION_CREATE("session_create"),
+		/** person document lookup in the user index or ($Users) views */
+		LOOKUP("lookup"),
+		/** verifyPassword calls */
+		VERIFY_PASSWORD("verify_password");
+
+		private final String m_label;
+
+		private Phase(String label) {
+			m_label = label;
+		}
+
+		public String getLabel() {
+			return m_label;
+		}
+	}
+
+	/**
+	 * Result of an auth request
+	 */
+	public enum Outcome {
+		OK("ok"),
+		/** directory unavailable, accepted from an expired credential cache entry */
+		OK_STALE("ok_stale"),
+		BAD_PASSWORD("bad_password"),
+		UNKNOWN_USER("unknown_user"),
+		/** anonymous SMTP delivery to an external domain */
+		RELAY_DENIED("relay_denied"),
+		/** anonymous SMTP delivery from a local domain */
+		AUTH_REQUIRED("auth_required"),
+		/** anonymous SMTP delivery to an unknown mailbox of a local domain */
+		UNKNOWN_RECIPIENT("unknown_recipient"),
+		/** rejected by the failure throttle */
+		BLOCKED("blocked"),
+		/** client IP in the deny list */
+		IP_DENIED("ip_denied"),
+		/** valid credentials, but protocol not allowed by group membership */
+		GROUP_DENIED("group_denied"),
+		/** directory overloaded or lookup timed out */
+		TEMPORARY_FAILURE("temporary_failure"),
+		ERROR("error");
+
+		private final String m_label;
+
+		private Outcome(String label) {
+			m_label = label;
+		}
+
+		public String getLabel() {
+			return m_label;
+		}
+	}
+
+	private static final String[] PROTOCOLS = new String[] {"imap", "pop3", "smtp", "other"};
+	private static final int PROTOCOL_OTHER = PROTOCOLS.length - 1;
+
+	private final LatencyHistogram[] m_phaseHistograms;
+	private final AtomicLongArray m_outcomeCounts;
+	private final long m_startTime = System.currentTimeMillis();
+
+	public AuthMetrics() {
+		Phase[] phases = Phase.values();
+		m_phaseHistograms = new LatencyHistogram[phases.length];
+		for (int i=0; i<phases.length; i++) {
+			m_phaseHistograms[i] = new LatencyHistogram();
+		}
+		m_outcomeCounts = new AtomicLongArray(PROTOCOLS.length * Outcome.values().length);
+	}
+
+	/**
+	 * Records the duration of a phase
+	 *
+	 * @param phase phase
+	 * @param nanos duration in nanoseconds
+	 */
+	public void recordPhase(Phase phase, long nanos) {
+		m_phaseHistograms[phase.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Counts the outcome of a request
+	 *
+	 * @param protocol value of the Auth-Protocol header
+	 * @param outcome outcome
+	 */
+	public void recordOutcome(String protocol, Outcome outcome) {
+		m_outcomeCounts.incrementAndGet(protocolIndex(protocol) * Outcome.values().length + outcome.ordinal());
+	}
+
+	private static int protocolIndex(String protocol) {
+		if (protocol!=null) {
+			for (int i=0; i<PROTOCOL_OTHER; i++) {
+				if (PROTOCOLS[i].equalsIgnoreCase(protocol)) {
+					return i;
+				}
+			}
+		}
+		return PROTOCOL_OTHER;
+	}
+
+	/**
+	 * Clears all phase histograms, e.g. after warm-up so that synthetic requests
+	 * do not distort the latency percentiles. Outcome counters are kept.
+	 */
+	public void resetPhases() {
+		for (LatencyHistogram currHistogram : m_phaseHistograms) {
+			currHistogram.reset();
+		}
+	}
+
+	/**
+	 * Returns the histogram of a phase
+	 *
+	 * @param phase phase
+	 * @return histogram with values in nanoseconds
+	 */
+	public LatencyHistogram getHistogram(Phase phase) {
+		return m_phaseHistograms[phase.ordinal()];
+	}
+
+	/**
+	 * Returns the number of requests with an outcome
+	 *
+	 * @param protocol protocol or null for all
+	 * @param outcome outcome
+	 * @return count
+	 */
+	public long getOutcomeCount(String protocol, Outcome outcome) {
+		int outcomeCount = Outcome.values().length;
+		if (protocol!=null) {
+			return m_outcomeCounts.get(protocolIndex(protocol) * outcomeCount + outcome.ordinal());
+		}
+		long sum = 0;
+		for (int i=0; i<PROTOCOLS.length; i++) {
+			sum += m_outcomeCounts.get(i * outcomeCount + outcome.ordinal());
+		}
+		return sum;
+	}
+
+	/**
+	 * Writes all metrics in Prometheus text format. Bucket counts have the precision
+	 * of the underlying {@link LatencyHistogram}.
+	 *
+	 * @param sb string builder to write to
+	 */
+	public void writePrometheus(StringBuilder sb) {
+		sb.append("# HELP nginxauth_requests_total Auth requests by protocol and outcome\n");
+		sb.append("# TYPE nginxauth_requests_total counter\n");
+		Outcome[] outcomes = Outcome.values();
+		for (int p=0; p<PROTOCOLS.length; p++) {
+			for (int o=0; o<outcomes.length; o++) {
+				sb.append("nginxauth_requests_total{protocol=\"").append(PROTOCOLS[p]).append("\",outcome=\"")
+				.append(outcomes[o].getLabel()).append("\"} ").append(m_outcomeCounts.get(p * outcomes.length + o)).append('\n');
+			}
+		}
+
+		sb.append("# HELP nginxauth_phase_seconds Duration of auth request processing phases\n");
+		sb.append("# TYPE nginxauth_phase_seconds histogram\n");
+		for (Phase currPhase : Phase.values()) {
+			LatencyHistogram histogram = m_phaseHistograms[currPhase.ordinal()];
+			//read count first, buckets may grow concurrently but must not exceed +Inf
+			long count = histogram.getCount();
+			long sum = histogram.getSum();
+			for (double currBound : BUCKET_BOUNDS_SECONDS) {
+				long bucketCount = Math.min(count, histogram.getCountAtOrBelow((long) (currBound * 1e9)));
+				sb.append("nginxauth_phase_seconds_bucket{phase=\"").append(currPhase.getLabel()).append("\",le=\"")
+				.append(formatDouble(currBound)).append("\"} ").append(bucketCount).append('\n');
+			}
+			sb.append("nginxauth_phase_seconds_bucket{phase=\"").append(currPhase.getLabel()).append("\",le=\"+Inf\"} ")
+			.append(count).append('\n');
+			sb.append("nginxauth_phase_seconds_sum{phase=\"").append(currPhase.getLabel()).append("\"} ")
+			.append(formatDouble(sum / 1e9)).append('\n');
+			sb.append("nginxauth_phase_seconds_count{phase=\"").append(currPhase.getLabel()).append("\"} ")
+			.append(count).append('\n');
+		}
+
+		appendGauge(sb, "nginxauth_start_time_seconds", "Time the metrics have been created", m_startTime / 1000);
+	}
+
+	/**
+	 * Writes a single counter value
+	 *
+	 * @param sb string builder to write to
+	 * @param name metric name
+	 * @param help description
+	 * @param value value
+	 */
+	public static void appendCounter(StringBuilder sb, String name, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Writes a single gauge value
+	 *
+	 * @param sb string builder to write to
+	 * @param name metric name
+	 * @param help description
+	 * @param value value
+	 */
+	public static void appendGauge(StringBuilder sb, String name, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static String formatDouble(double val) {
+		if (val==Math.floor(val) && !Double.isInfinite(val)) {
+			return Long.toString((long) val);
+		}
+		return String.format(Locale.ENGLISH, "%.6f", val).replaceAll("0+$", "");
+	}
+
+	@Override
+	public String toString() {
+		LatencyHistogram requests = m_phaseHistograms[Phase.REQUEST.ordinal()];
+		return "AuthMetrics [requests="+requests.getCount()+", p50="+(requests.getValueAtPercentile(50)/1000)+"us"+
+				", p99="+(requests.getValueAtPercentile(99)/1000)+"us, max="+(requests.getMax()/1000)+"us]";
+	}
+}
@@ -0,0 +1,575 @@
+package com.mindoo.nginx.auth.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.mindoo.nginx.auth.AuthHandler;
+import com.mindoo.nginx.auth.AuthRequest;
+import com.mindoo.nginx.auth.AuthResponse;
+import com.mindoo.nginx.auth.utils.LogUtil;
+import com.mindoo.nginx.auth.utils.NotesThreadFactory;
+
+/**
+ * Minimal HTTP/1.0 listener for the nginx auth_http protocol that bypasses the Domino
+ * HTTP stack. A single selector thread accepts connections and reads the request headers
+ * without blocking, requests are processed by a small worker pool calling the shared
+ * {@link AuthHandler}, and the response is written back by the selector thread before
+ * closing the connection (nginx opens one connection per auth request).<br>
+ * <br>
+ * Only request headers are evaluated, a request body is ignored.
+ * 
+ * @author Karsten Lehmann
+ */
+public class NioAuthListener implements Runnable {
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/** max size of the request line and headers */
+	private static final int MAX_HEADER_BYTES = 16 * 1024;
+	/** connections without complete request or pending response get closed after this time */
+	private static final long IDLE_TIMEOUT_MILLIS = 30000;
+
+	private final AuthHandler m_handler;
+	private final InetSocketAddress m_address;
+	private final ThreadPoolExecutor m_workers;
+	private final ConcurrentLinkedQueue<Connection> m_completed = new ConcurrentLinkedQueue<Connection>();
+
+	private Selector m_selector;
+	private ServerSocketChannel m_serverChannel;
+	private Thread m_selectorThread;
+	private volatile boolean m_stopped;
+	private volatile long m_idleTimeoutMillis = IDLE_TIMEOUT_MILLIS;
+
+	private final AtomicLong m_requests = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private final AtomicLong m_badRequests = new AtomicLong();
+	private final AtomicLong m_idleClosed = new AtomicLong();
+
+	/**
+	 * Creates a new listener
+	 * 
+	 * @param handler handler to process requests
+	 * @param address address to bind to
+	 * @param threads number of worker threads
+	 */
+	public NioAuthListener(AuthHandler handler, InetSocketAddress address, int threads) {
+		m_handler = handler;
+		m_address = address;
+		int poolSize = Math.max(1, threads);
+		//bounded queue, requests beyond it get a temporary failure instead of piling up
+		m_workers = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(poolSize * 64), new NotesThreadFactory("NGINXAUTH listener worker"));
+	}
+
+	/**
+	 * Changes the time after which connections without complete request or pending
+	 * response get closed, e.g. for tests
+	 * 
+	 * @param idleTimeoutMillis timeout in milliseconds
+	 */
+	void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		m_idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Returns the address the server socket is bound to, e.g. to find out the port
+	 * if it was bound to port 0
+	 * 
+	 * @return address or null if not started
+	 */
+	public synchronized InetSocketAddress getLocalAddress() {
+		return m_serverChannel==null ? null : (InetSocketAddress) m_serverChannel.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * Binds the server socket and starts the selector thread
+	 * 
+	 * @throws IOException if the address cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		m_selector = Selector.open();
+		m_serverChannel = ServerSocketChannel.open();
+		m_serverChannel.configureBlocking(false);
+		m_serverChannel.socket().setReuseAddress(true);
+		m_serverChannel.socket().bind(m_address, 256);
+		m_serverChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+
+		m_selectorThread = new Thread(this, "NGINXAUTH listener "+m_address);
+		m_selectorThread.setDaemon(true);
+		m_selectorThread.start();
+		LogUtil.log(Level.INFO, "Embedded auth listener started on "+m_address);
+	}
+
+	/**
+	 * Closes the server socket and all open connections and stops the worker threads
+	 */
+	public synchronized void stop() {
+		m_stopped = true;
+		if (m_selector!=null) {
+			m_selector.wakeup();
+		}
+		if (m_selectorThread!=null) {
+			try {
+				m_selectorThread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			m_selectorThread = null;
+		}
+		m_workers.shutdownNow();
+		LogUtil.log(Level.INFO, "Embedded auth listener statistics: "+this);
+	}
+
+	@Override
+	public void run() {
+		long lastSweep = System.currentTimeMillis();
+		try {
+			while (!m_stopped) {
+				m_selector.select(1000);
+
+				Iterator<SelectionKey> keysIt = m_selector.selectedKeys().iterator();
+				while (keysIt.hasNext()) {
+					SelectionKey currKey = keysIt.next();
+					keysIt.remove();
+
+					try {
+						if (!currKey.isValid()) {
+							continue;
+						}
+						if (currKey.isAcceptable()) {
+							accept();
+						}
+						else if (currKey.isReadable()) {
+							read(currKey);
+						}
+						else if (currKey.isWritable()) {
+							write(currKey);
+						}
+					}
+					catch (IOException e) {
+						//client went away
+						close(currKey);
+					}
+				}
+
+				//switch connections with processed requests to write mode
+				Connection completedConn;
+				while ((completedConn = m_completed.poll())!=null) {
+					SelectionKey key = completedConn.m_key;
+					if (key.isValid()) {
+						key.interestOps(SelectionKey.OP_WRITE);
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if ((now - lastSweep) >= 1000) {
+					sweepIdleConnections(now);
+					lastSweep = now;
+				}
+			}
+		}
+		catch (ClosedSelectorException e) {
+			//stopped
+		}
+		catch (Throwable t) {
+			LogUtil.log(Level.SEVERE, "Embedded auth listener failed", t);
+		}
+		finally {
+			closeAll();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = m_serverChannel.accept())!=null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(m_selector, SelectionKey.OP_READ);
+			key.attach(new Connection(key));
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+
+		if (!conn.m_readBuffer.hasRemaining()) {
+			if (conn.m_readBuffer.capacity() >= MAX_HEADER_BYTES) {
+				m_badRequests.incrementAndGet();
+				respondNow(conn, "431 Request Header Fields Too Large");
+				return;
+			}
+			ByteBuffer newBuffer = ByteBuffer.allocate(Math.min(MAX_HEADER_BYTES, conn.m_readBuffer.capacity() * 2));
+			conn.m_readBuffer.flip();
+			newBuffer.put(conn.m_readBuffer);
+			conn.m_readBuffer = newBuffer;
+		}
+
+		int read = channel.read(conn.m_readBuffer);
+		if (read<0) {
+			close(key);
+			return;
+		}
+		conn.m_lastActivity = System.currentTimeMillis();
+
+		int headerEnd = findHeaderEnd(conn.m_readBuffer);
+		if (headerEnd<0) {
+			return;
+		}
+
+		ListenerRequest req = ListenerRequest.parse(new String(conn.m_readBuffer.array(), 0, headerEnd, ISO_8859_1));
+		if (req==null) {
+			m_badRequests.incrementAndGet();
+			respondNow(conn, "400 Bad Request");
+			return;
+		}
+
+		//request is complete, ignore further input while it is processed
+		key.interestOps(0);
+		m_requests.incrementAndGet();
+		//set before handing over, the worker may finish before execute returns
+		conn.m_processing = true;
+		try {
+			m_workers.execute(new ProcessRequestTask(conn, req));
+		}
+		catch (RejectedExecutionException e) {
+			//all workers busy, let nginx retry later
+			conn.m_processing = false;
+			m_rejected.incrementAndGet();
+			ListenerResponse resp = new ListenerResponse();
+			m_handler.sendTemporaryFailure(resp);
+			conn.m_writeBuffer = resp.toBuffer();
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void respondNow(Connection conn, String status) {
+		ListenerResponse resp = new ListenerResponse();
+		resp.m_status = status;
+		conn.m_writeBuffer = resp.toBuffer();
+		conn.m_key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Returns the position after the empty line terminating the request headers
+	 * 
+	 * @param buf buffer in write mode
+	 * @return end position or -1 if not received yet
+	 */
+	private static int findHeaderEnd(ByteBuffer buf) {
+		byte[] data = buf.array();
+		int len = buf.position();
+		for (int i=0; i<len-1; i++) {
+			if (data[i]=='\n') {
+				if (data[i+1]=='\n') {
+					return i+2;
+				}
+				if (data[i+1]=='\r' && i+2<len && data[i+2]=='\n') {
+					return i+3;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		ByteBuffer buf = conn.m_writeBuffer;
+		if (buf==null) {
+			key.interestOps(0);
+			return;
+		}
+		((SocketChannel) key.channel()).write(buf);
+		conn.m_lastActivity = System.currentTimeMillis();
+		if (!buf.hasRemaining()) {
+			//HTTP/1.0, one request per connection
+			close(key);
+		}
+	}
+
+	private void sweepIdleConnections(long now) {
+		for (SelectionKey currKey : m_selector.keys()) {
+			Object att = currKey.attachment();
+			if (att instanceof Connection) {
+				Connection conn = (Connection) att;
+				//connections with a request in progress are not idle
+				if (!conn.m_processing && (now - conn.m_lastActivity) > m_idleTimeoutMillis) {
+					m_idleClosed.incrementAndGet();
+					close(currKey);
+				}
+			}
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			//ignore
+		}
+	}
+
+	private void closeAll() {
+		try {
+			for (SelectionKey currKey : m_selector.keys()) {
+				close(currKey);
+			}
+		}
+		catch (ClosedSelectorException e) {
+			//ignore
+		}
+		try {
+			m_selector.close();
+		} catch (IOException e) {
+			//ignore
+		}
+		try {
+			m_serverChannel.close();
+		} catch (IOException e) {
+			//ignore
+		}
+	}
+
+	/**
+	 * Returns the number of complete requests received
+	 * 
+	 * @return count
+	 */
+	public long getRequests() {
+		return m_requests.get();
+	}
+
+	/**
+	 * Returns the number of requests answered with a temporary failure because all workers were busy
+	 * 
+	 * @return count
+	 */
+	public long getRejected() {
+		return m_rejected.get();
+	}
+
+	/**
+	 * Returns the number of malformed or too large requests
+	 * 
+	 * @return count
+	 */
+	public long getBadRequests() {
+		return m_badRequests.get();
+	}
+
+	/**
+	 * Returns the number of connections closed because they were idle
+	 * 
+	 * @return count
+	 */
+	public long getIdleClosed() {
+		return m_idleClosed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "NioAuthListener [address="+m_address+", requests="+m_requests.get()+", rejected="+m_rejected.get()+
+				", badRequests="+m_badRequests.get()+", idleClosed="+m_idleClosed.get()+
+				", activeWorkers="+m_workers.getActiveCount()+", queued="+m_workers.getQueue().size()+"]";
+	}
+
+	private static String getClientAddress(Connection conn) {
+		InetAddress address = ((SocketChannel) conn.m_key.channel()).socket().getInetAddress();
+		return address==null ? null : address.getHostAddress();
+	}
+
+	/**
+	 * Processes a request on a worker thread and hands the response back to the selector thread
+	 */
+	private class ProcessRequestTask implements Runnable {
+		private final Connection m_conn;
+		private final ListenerRequest m_req;
+
+		public ProcessRequestTask(Connection conn, ListenerRequest req) {
+			m_conn = conn;
+			m_req = req;
+		}
+
+		@Override
+		public void run() {
+			ListenerResponse resp = new ListenerResponse();
+			try {
+				if (m_req.m_path.endsWith("/metrics")) {
+					if (!m_handler.isMetricsEnabled()) {
+						resp.sendError(404, "Not Found");
+					}
+					else if (!m_handler.isMetricsAllowed(m_req, getClientAddress(m_conn))) {
+						resp.sendError(403, "Forbidden");
+					}
+					else {
+						StringBuilder sb = new StringBuilder(16384);
+						m_handler.writeMetrics(sb);
+						resp.setBody("text/plain; version=0.0.4; charset=utf-8", sb.toString());
+					}
+				}
+				else if (m_req.m_path.endsWith("/ready")) {
+					if (m_handler.isReady()) {
+						resp.setBody("text/plain; charset=utf-8", "ready\n");
+					}
+					else {
+						resp.sendError(503, "Service Unavailable");
+					}
+				}
+				else {
+					m_handler.handle(m_req, resp);
+				}
+			}
+			catch (Throwable t) {
+				LogUtil.log(Level.SEVERE, "Error processing auth request", t);
+				resp = new ListenerResponse();
+				resp.m_status = "500 Internal Server Error";
+			}
+			m_conn.m_writeBuffer = resp.toBuffer();
+			m_conn.m_processing = false;
+			m_completed.add(m_conn);
+			m_selector.wakeup();
+		}
+	}
+
+	/**
+	 * State of an accepted connection
+	 */
+	private static class Connection {
+		private final SelectionKey m_key;
+		private ByteBuffer m_readBuffer = ByteBuffer.allocate(1024);
+		private volatile ByteBuffer m_writeBuffer;
+		private volatile boolean m_processing;
+		private volatile long m_lastActivity = System.currentTimeMillis();
+
+		public Connection(SelectionKey key) {
+			m_key = key;
+		}
+	}
+
+	/**
+	 * Parsed request line and headers
+	 */
+	private static class ListenerRequest implements AuthRequest {
+		private final Map<String,String> m_headers = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+		private final List<String> m_headerNames = new ArrayList<String>();
+		private String m_path;
+
+		/**
+		 * Parses the request line and headers
+		 *
+		 * @param head request head up to the empty line
+		 * @return request or null if malformed
+		 */
+		public static ListenerRequest parse(String head) {
+			String[] lines = head.split("\r?\n");
+			if (lines.length==0) {
+				return null;
+			}
+			//GET /auth HTTP/1.0
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length!=3 || !requestLine[2].startsWith("HTTP/")) {
+				return null;
+			}
+
+			ListenerRequest req = new ListenerRequest();
+			int iQuery = requestLine[1].indexOf('?');
+			req.m_path = iQuery==-1 ? requestLine[1] : requestLine[1].substring(0, iQuery);
+			for (int i=1; i<lines.length; i++) {
+				String currLine = lines[i];
+				if (currLine.length()==0) {
+					break;
+				}
+				int iPos = currLine.indexOf(':');
+				if (iPos<=0) {
+					return null;
+				}
+				String name = currLine.substring(0, iPos).trim();
+				String value = currLine.substring(iPos+1).trim();
+				if (!req.m_headers.containsKey(name)) {
+					req.m_headerNames.add(name);
+					req.m_headers.put(name, value);
+				}
+			}
+			return req;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return m_headers.get(name);
+		}
+
+		@Override
+		public Collection<String> getHeaderNames() {
+			return m_headerNames;
+		}
+	}
+
+	/**
+	 * Collects the response headers and serializes them to an HTTP/1.0 response
+	 */
+	private static class ListenerResponse implements AuthResponse {
+		private String m_status = "200 OK";
+		private final Map<String,String> m_headers = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+		private String m_contentType = "text/html";
+		private byte[] m_body = new byte[0];
+
+		public void setBody(String contentType, String body) {
+			m_contentType = contentType;
+			m_body = body.getBytes(UTF_8);
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			m_headers.put(name, value);
+		}
+
+		@Override
+		public void sendError(int status, String msg) {
+			m_headers.clear();
+			m_status = status+" "+msg;
+		}
+
+		public ByteBuffer toBuffer() {
+			StringBuilder sb = new StringBuilder(256);
+			sb.append("HTTP/1.0 ").append(m_status).append("\r\n");
+			for (Map.Entry<String,String> currEntry : m_headers.entrySet()) {
+				String value = currEntry.getValue();
+				if (value!=null) {
+					//header values must not break the response
+					value = value.replace('\r', ' ').replace('\n', ' ');
+				}
+				sb.append(currEntry.getKey()).append(": ").append(value).append("\r\n");
+			}
+			sb.append("Content-Type: ").append(m_contentType).append("\r\n");
+			sb.append("Content-Length: ").append(m_body.length).append("\r\n");
+			sb.append("Connection: close\r\n\r\n");
+			byte[] head = sb.toString().getBytes(UTF_8);
+
+			ByteBuffer buf = ByteBuffer.allocate(head.length + m_body.length);
+			buf.put(head).put(m_body);
+			buf.flip();
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.mindoo.nginx.auth.smtp;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Precompiled matcher for the list of locally hosted mail domains. Exact domains
+ * are stored in a hash set, wildcard entries like <code>*.mydomain.com</code>
+ * (matching all subdomains of mydomain.com) in a trie of reversed domain labels,
+ * so the cost of a lookup does not depend on the number of configured domains.
+ * 
+ * @author Karsten Lehmann
+ */
+public class LocalDomainMatcher {
+	private final Set<String> m_exactDomains = new HashSet<String>();
+	private final LabelNode m_wildcardRoot = new LabelNode();
+	private final int m_size;
+
+	/**
+	 * Creates a new matcher
+	 * 
+	 * @param domains domains, either exact (mydomain.com) or wildcard for all subdomains (*.mydomain.com)
+	 */
+	public LocalDomainMatcher(String[] domains) {
+		int size = 0;
+		for (String currDomain : domains) {
+			String domainLC = currDomain.trim().toLowerCase(Locale.ENGLISH);
+			if (domainLC.endsWith(".")) {
+				domainLC = domainLC.substring(0, domainLC.length()-1);
+			}
+			if (domainLC.length()==0) {
+				continue;
+			}
+
+			if (domainLC.startsWith("*.")) {
+				LabelNode node = m_wildcardRoot;
+				String parentDomain = domainLC.substring(2);
+				int labelEnd = parentDomain.length();
+				while (labelEnd>0) {
+					int labelStart = parentDomain.lastIndexOf('.', labelEnd-1) + 1;
+					node = node.getOrCreateChild(parentDomain.substring(labelStart, labelEnd));
+					labelEnd = labelStart - 1;
+				}
+				node.m_wildcard = true;
+			}
+			else {
+				m_exactDomains.add(domainLC);
+			}
+			size++;
+		}
+		m_size = size;
+	}
+
+	/**
+	 * Checks if a domain is local
+	 * 
+	 * @param domain lowercase domain without trailing dot, e.g. from {@link SmtpAddress#getDomain()}
+	 * @return true if local
+	 */
+	public boolean isLocal(String domain) {
+		if (m_exactDomains.contains(domain)) {
+			return true;
+		}
+
+		//walk the trie from the top level domain down
+		LabelNode node = m_wildcardRoot;
+		int labelEnd = domain.length();
+		while (labelEnd>0 && node.m_children!=null) {
+			int labelStart = domain.lastIndexOf('.', labelEnd-1) + 1;
+			if (labelStart==0) {
+				//no more labels below the current node, so the domain itself
+				//may only match exactly, not via wildcard
+				return false;
+			}
+			node = node.m_children.get(domain.substring(labelStart, labelEnd));
+			if (node==null) {
+				return false;
+			}
+			if (node.m_wildcard) {
+				return true;
+			}
+			labelEnd = labelStart - 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if the domain of an address is local
+	 * 
+	 * @param address address, may be null
+	 * @return true if local
+	 */
+	public boolean isLocal(SmtpAddress address) {
+		return address!=null && isLocal(address.getDomain());
+	}
+
+	/**
+	 * Returns the number of configured domains
+	 * 
+	 * @return count
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	private static class LabelNode {
+		private Map<String,LabelNode> m_children;
+		private boolean m_wildcard;
+
+		private LabelNode getOrCreateChild(String label) {
+			if (m_children==null) {
+				m_children = new HashMap<String,LabelNode>();
+			}
+			LabelNode child = m_children.get(label);
+			if (child==null) {
+				child = new LabelNode();
+				m_children.put(label, child);
+			}
+			return child;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.mindoo.nginx.auth.smtp;
+
+import java.util.Locale;
+
+/**
+ * Envelope address parsed from an SMTP command as forwarded by nginx in the
+ * Auth-SMTP-From and Auth-SMTP-To headers, e.g. <code>MAIL FROM:&lt;peter.miller@gmail.com&gt; SIZE=1234</code>
+ * or <code>RCPT TO:&lt;john.doe@mylocaldomain.com&gt;</code>.
+ * 
+ * @author Karsten Lehmann
+ */
+public class SmtpAddress {
+	private final String m_localPart;
+	private final String m_domain;
+
+	private SmtpAddress(String localPart, String domain) {
+		m_localPart = localPart;
+		m_domain = domain;
+	}
+
+	/**
+	 * Returns the local part of the address as sent by the client
+	 * 
+	 * @return local part
+	 */
+	public String getLocalPart() {
+		return m_localPart;
+	}
+
+	/**
+	 * Returns the lowercase domain without trailing dot
+	 * 
+	 * @return domain
+	 */
+	public String getDomain() {
+		return m_domain;
+	}
+
+	/**
+	 * Returns the address with lowercase domain
+	 * 
+	 * @return address
+	 */
+	public String getAddress() {
+		return m_localPart+"@"+m_domain;
+	}
+
+	@Override
+	public String toString() {
+		return getAddress();
+	}
+
+	/**
+	 * Parses the envelope address of a MAIL FROM or RCPT TO command. Accepts the full command,
+	 * the path in angle brackets or a plain address. Source routes (RFC 5321 section 4.1.2) are
+	 * skipped, quoted local parts are supported.
+	 * 
+	 * @param cmd command or address
+	 * @return address or null if the value does not contain a valid address with domain (e.g. null sender &lt;&gt;)
+	 */
+	public static SmtpAddress parse(String cmd) {
+		if (cmd==null) {
+			return null;
+		}
+		int len = cmd.length();
+		int pos = skipWhitespace(cmd, 0);
+
+		//skip command verb
+		if (regionMatchesIgnoreCase(cmd, pos, "MAIL FROM:")) {
+			pos += 10;
+		}
+		else if (regionMatchesIgnoreCase(cmd, pos, "RCPT TO:")) {
+			pos += 8;
+		}
+		pos = skipWhitespace(cmd, pos);
+		if (pos>=len) {
+			return null;
+		}
+
+		boolean inBrackets = cmd.charAt(pos)=='<';
+		if (inBrackets) {
+			pos++;
+
+			//skip source route like <@relay1,@relay2:user@domain>
+			if (pos<len && cmd.charAt(pos)=='@') {
+				int colonPos = cmd.indexOf(':', pos);
+				if (colonPos==-1) {
+					return null;
+				}
+				pos = colonPos+1;
+			}
+		}
+
+		//read local part, possibly quoted
+		int localStart = pos;
+		boolean quoted = false;
+		int atPos = -1;
+		int end = -1;
+		while (pos<len) {
+			char c = cmd.charAt(pos);
+			if (quoted) {
+				if (c=='\\') {
+					pos++;
+				}
+				else if (c=='"') {
+					quoted = false;
+				}
+			}
+			else if (c=='"') {
+				quoted = true;
+			}
+			else if (c=='@') {
+				atPos = pos;
+			}
+			else if (inBrackets ? c=='>' : (c==' ' || c=='\t')) {
+				end = pos;
+				break;
+			}
+			pos++;
+		}
+		if (quoted || (inBrackets && end==-1)) {
+			//unterminated quote or path
+			return null;
+		}
+		if (end==-1) {
+			end = len;
+		}
+		if (atPos==-1 || atPos==localStart || atPos>=end-1) {
+			return null;
+		}
+
+		String localPart = cmd.substring(localStart, atPos);
+		int domainEnd = end;
+		if (cmd.charAt(domainEnd-1)=='.') {
+			domainEnd--;
+		}
+		String domain = cmd.substring(atPos+1, domainEnd).toLowerCase(Locale.ENGLISH);
+		if (!isValidDomain(domain)) {
+			return null;
+		}
+		return new SmtpAddress(localPart, domain);
+	}
+
+	private static boolean isValidDomain(String domain) {
+		if (domain.length()==0) {
+			return false;
+		}
+		if (domain.charAt(0)=='[') {
+			//address literal
+			return domain.charAt(domain.length()-1)==']';
+		}
+		char prev = '.';
+		for (int i=0; i<domain.length(); i++) {
+			char c = domain.charAt(i);
+			if (c=='.') {
+				if (prev=='.') {
+					//empty label
+					return false;
+				}
+			}
+			else if (!((c>='a' && c<='z') || (c>='0' && c<='9') || c=='-' || c=='_' || c>=0x80)) {
+				return false;
+			}
+			prev = c;
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(String str, int pos) {
+		while (pos<str.length() && (str.charAt(pos)==' ' || str.charAt(pos)=='\t')) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static boolean regionMatchesIgnoreCase(String str, int pos, String prefix) {
+		return str.regionMatches(true, pos, prefix, 0, prefix.length());
+	}
+}
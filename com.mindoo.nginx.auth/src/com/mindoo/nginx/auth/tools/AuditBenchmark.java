@@ -0,0 +1,181 @@
+package com.mindoo.nginx.auth.tools;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mindoo.nginx.auth.audit.AuditTrail;
+import com.mindoo.nginx.auth.audit.FileAuditSink;
+import com.mindoo.nginx.auth.utils.LatencyHistogram;
+
+/**
+ * Command line throughput test of the {@link AuditTrail} with a {@link FileAuditSink}:
+ * several threads record synthetic auth decisions as fast as possible or at a fixed rate,
+ * then the trail gets stopped and the number of written and dropped events, the write
+ * throughput and the time request threads spent in {@link AuditTrail#offer} are printed.<br>
+ * <br>
+ * Usage: <code>java com.mindoo.nginx.auth.tools.AuditBenchmark [options]</code>
+ * <ul>
+ * <li><code>-file audit.log</code> audit file, a temporary file if omitted</li>
+ * <li><code>-threads 8</code> number of producing threads</li>
+ * <li><code>-events 1000000</code> number of events per thread</li>
+ * <li><code>-rate 0</code> events per second per thread, 0 for no limit</li>
+ * <li><code>-buffer 16384</code> number of buffered events</li>
+ * <li><code>-batch 500</code> max number of events per flush</li>
+ * <li><code>-flushinterval 1000</code> max milliseconds before unflushed events get flushed</li>
+ * </ul>
+ *
+ * @author Karsten Lehmann
+ */
+public class AuditBenchmark {
+	private static final String[] PROTOCOLS = new String[] {"imap", "pop3", "smtp"};
+	private static final String[] OUTCOMES = new String[] {"ok", "ok", "ok", "bad_password", "unknown_user", "relay_denied"};
+	private static final double[] PERCENTILES = new double[] {50, 90, 99, 99.9, 99.99, 100};
+
+	private String m_file;
+	private int m_threads = 8;
+	private int m_events = 1000000;
+	private int m_rate;
+	private int m_bufferSize = 16384;
+	private int m_batchSize = 500;
+	private int m_flushIntervalMillis = 1000;
+
+	private final LatencyHistogram m_offerNanos = new LatencyHistogram();
+
+	public static void main(String[] args) throws Exception {
+		AuditBenchmark benchmark = new AuditBenchmark();
+		try {
+			benchmark.parseArgs(args);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		benchmark.run();
+	}
+
+	private void parseArgs(String[] args) {
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if (i+1>=args.length) {
+				throw new IllegalArgumentException("Missing value for "+arg);
+			}
+			String val = args[++i];
+			if ("-file".equals(arg)) {
+				m_file = val;
+			}
+			else if ("-threads".equals(arg)) {
+				m_threads = Integer.parseInt(val);
+			}
+			else if ("-events".equals(arg)) {
+				m_events = Integer.parseInt(val);
+			}
+			else if ("-rate".equals(arg)) {
+				m_rate = Integer.parseInt(val);
+			}
+			else if ("-buffer".equals(arg)) {
+				m_bufferSize = Integer.parseInt(val);
+			}
+			else if ("-batch".equals(arg)) {
+				m_batchSize = Integer.parseInt(val);
+			}
+			else if ("-flushinterval".equals(arg)) {
+				m_flushIntervalMillis = Integer.parseInt(val);
+			}
+			else {
+				throw new IllegalArgumentException("Unknown option "+arg);
+			}
+		}
+		if (m_threads<=0 || m_events<=0 || m_rate<0) {
+			throw new IllegalArgumentException("-threads and -events must be positive, -rate must not be negative");
+		}
+	}
+
+	private void run() throws Exception {
+		File file;
+		if (m_file!=null) {
+			file = new File(m_file);
+		}
+		else {
+			file = File.createTempFile("nginxauth-audit", ".log");
+			file.deleteOnExit();
+		}
+		//no rotation during the test
+		final AuditTrail trail = new AuditTrail(m_bufferSize, m_batchSize, m_flushIntervalMillis,
+				new FileAuditSink(file, Long.MAX_VALUE, 0));
+		trail.start();
+
+		System.out.println("Recording "+m_events+" events in each of "+m_threads+" threads"+
+				(m_rate>0 ? " at "+m_rate+" events/s" : "")+" to "+file+", buffer "+trail.getCapacity()+", batch "+m_batchSize);
+
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch doneLatch = new CountDownLatch(m_threads);
+		for (int t=0; t<m_threads; t++) {
+			final int threadIdx = t;
+			Thread producer = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+						produce(trail, threadIdx);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						doneLatch.countDown();
+					}
+				}
+			}, "AuditBenchmark producer "+t);
+			producer.start();
+		}
+
+		long start = System.nanoTime();
+		startLatch.countDown();
+		doneLatch.await();
+		long produced = System.nanoTime();
+		//writes the remaining buffered events
+		trail.stop();
+		long end = System.nanoTime();
+
+		long total = (long) m_threads * m_events;
+		double produceSeconds = (produced - start) / 1e9;
+		double totalSeconds = (end - start) / 1e9;
+		System.out.println("Offered:  "+total+" in "+String.format("%.2f", produceSeconds)+"s ("+
+				String.format("%.0f", total / produceSeconds)+" events/s)");
+		System.out.println("Written:  "+trail.getWritten()+" in "+String.format("%.2f", totalSeconds)+"s ("+
+				String.format("%.0f", trail.getWritten() / totalSeconds)+" events/s, "+trail.getBatches()+" batches, "+
+				(file.length()/1024)+" KB)");
+		System.out.println("Dropped:  "+trail.getDropped()+" ("+String.format("%.2f", 100.0 * trail.getDropped() / total)+"%)");
+		System.out.println("Errors:   "+trail.getSinkErrors());
+		StringBuilder sb = new StringBuilder("Offer ns: mean="+String.format("%.0f", m_offerNanos.getMean()));
+		for (double currPercentile : PERCENTILES) {
+			sb.append(", p").append(currPercentile==100 ? "100" : Double.toString(currPercentile).replace(".0", ""))
+					.append('=').append(m_offerNanos.getValueAtPercentile(currPercentile));
+		}
+		System.out.println(sb);
+	}
+
+	private void produce(AuditTrail trail, int threadIdx) {
+		long intervalNanos = m_rate>0 ? 1000000000L / m_rate : 0;
+		long start = System.nanoTime();
+		String clientIP = "10.0."+(threadIdx & 0xff)+".";
+		for (int i=0; i<m_events; i++) {
+			if (intervalNanos>0) {
+				long wait;
+				while ((wait = start + i * intervalNanos - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			String protocol = PROTOCOLS[i % PROTOCOLS.length];
+			boolean smtp = "smtp".equals(protocol);
+			String user = "user"+(i % 1000)+"@example.com";
+			String ip = clientIP+(i & 0xff);
+			long t0 = System.nanoTime();
+			trail.offer(protocol, OUTCOMES[i % OUTCOMES.length], smtp ? "" : user, ip, smtp ? "sender@example.org" : null,
+					smtp ? user : null, "1", "192.0.2.1", 350);
+			m_offerNanos.record(System.nanoTime() - t0);
+		}
+	}
+}
@@ -0,0 +1,522 @@
+package com.mindoo.nginx.auth.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mindoo.nginx.auth.AuthConfig;
+import com.mindoo.nginx.auth.AuthHandler;
+import com.mindoo.nginx.auth.AuthRequest;
+import com.mindoo.nginx.auth.AuthResponse;
+import com.mindoo.nginx.auth.directory.InMemoryUserDirectory;
+import com.mindoo.nginx.auth.utils.LatencyHistogram;
+
+/**
+ * Command line load generator for the nginx auth_http protocol. Sends synthetic or
+ * replayed auth requests at a fixed open-loop rate either to an /auth URL (Domino HTTP or
+ * the embedded listener) or to an in-process {@link AuthHandler} backed by an
+ * {@link InMemoryUserDirectory}.<br>
+ * <br>
+ * Latency is measured from the time a request was scheduled to be sent, not from the
+ * time it was actually sent, so queueing caused by a slow server is part of the
+ * result (no coordinated omission).<br>
+ * <br>
+ * Usage: <code>java com.mindoo.nginx.auth.tools.LoadGenerator [options]</code>
+ * <ul>
+ * <li><code>-url http://host:port/auth</code> target URL, in-process stand-in if omitted</li>
+ * <li><code>-rate 500</code> requests per second</li>
+ * <li><code>-duration 60</code> test duration in seconds</li>
+ * <li><code>-warmup 10</code> seconds to send requests before recording starts</li>
+ * <li><code>-connections 64</code> max concurrent requests</li>
+ * <li><code>-mix 70,10,10,10</code> percentage of valid logins, bad passwords, unknown users and anonymous relay checks</li>
+ * <li><code>-users 1000</code> number of synthetic users "user&lt;n&gt;@example.com" with password "pw&lt;n&gt;"</li>
+ * <li><code>-replay file</code> replay requests from a file instead: header lines, requests separated by an empty line</li>
+ * <li><code>-latency 500,5000</code> min/max latency in microseconds of the in-process directory</li>
+ * <li><code>-label name</code> label written to the results, e.g. the build number</li>
+ * <li><code>-out prefix</code> write results to prefix.json and the percentile distribution to prefix.csv</li>
+ * </ul>
+ *
+ * @author Karsten Lehmann
+ */
+public class LoadGenerator {
+	private static final String LOCAL_DOMAIN = "example.com";
+	private static final double[] PERCENTILES = new double[] {50, 75, 90, 95, 99, 99.9, 99.99, 100};
+
+	private String m_url;
+	private double m_rate = 500;
+	private int m_durationSeconds = 60;
+	private int m_warmupSeconds = 10;
+	private int m_connections = 64;
+	private int[] m_mix = new int[] {70, 10, 10, 10};
+	private int m_users = 1000;
+	private String m_replayFile;
+	private long m_minLatencyMicros = 500;
+	private long m_maxLatencyMicros = 5000;
+	private String m_label = "";
+	private String m_outPrefix;
+
+	private AuthHandler m_localHandler;
+	private List<Map<String,String>> m_replayRequests;
+
+	private volatile boolean m_recording;
+	private final LatencyHistogram m_histogram = new LatencyHistogram();
+	private final ConcurrentHashMap<String,AtomicLong> m_outcomes = new ConcurrentHashMap<String,AtomicLong>();
+	private final AtomicLong m_sent = new AtomicLong();
+	private final AtomicLong m_errors = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator gen = new LoadGenerator();
+		try {
+			gen.parseArgs(args);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		gen.run();
+	}
+
+	private void parseArgs(String[] args) {
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if (i+1>=args.length) {
+				throw new IllegalArgumentException("Missing value for "+arg);
+			}
+			String val = args[++i];
+			if ("-url".equals(arg)) {
+				m_url = val;
+			}
+			else if ("-rate".equals(arg)) {
+				m_rate = Double.parseDouble(val);
+			}
+			else if ("-duration".equals(arg)) {
+				m_durationSeconds = Integer.parseInt(val);
+			}
+			else if ("-warmup".equals(arg)) {
+				m_warmupSeconds = Integer.parseInt(val);
+			}
+			else if ("-connections".equals(arg)) {
+				m_connections = Integer.parseInt(val);
+			}
+			else if ("-mix".equals(arg)) {
+				String[] parts = val.split(",");
+				if (parts.length!=4) {
+					throw new IllegalArgumentException("-mix expects 4 percentages: valid,badpassword,unknown,relay");
+				}
+				for (int j=0; j<4; j++) {
+					m_mix[j] = Integer.parseInt(parts[j].trim());
+				}
+			}
+			else if ("-users".equals(arg)) {
+				m_users = Integer.parseInt(val);
+			}
+			else if ("-replay".equals(arg)) {
+				m_replayFile = val;
+			}
+			else if ("-latency".equals(arg)) {
+				String[] parts = val.split(",");
+				m_minLatencyMicros = Long.parseLong(parts[0].trim());
+				m_maxLatencyMicros = parts.length>1 ? Long.parseLong(parts[1].trim()) : m_minLatencyMicros;
+			}
+			else if ("-label".equals(arg)) {
+				m_label = val;
+			}
+			else if ("-out".equals(arg)) {
+				m_outPrefix = val;
+			}
+			else {
+				throw new IllegalArgumentException("Unknown option "+arg);
+			}
+		}
+		if (m_rate<=0 || m_durationSeconds<=0 || m_connections<=0) {
+			throw new IllegalArgumentException("-rate, -duration and -connections must be positive");
+		}
+	}
+
+	private void run() throws Exception {
+		if (m_replayFile!=null) {
+			m_replayRequests = readReplayFile(new File(m_replayFile));
+			if (m_replayRequests.isEmpty()) {
+				throw new IllegalArgumentException("No requests found in "+m_replayFile);
+			}
+		}
+		if (m_url==null) {
+			InMemoryUserDirectory directory = new InMemoryUserDirectory();
+			directory.setLatency(m_minLatencyMicros, m_maxLatencyMicros);
+			for (int i=0; i<m_users; i++) {
+				directory.addUser(new String[] {"user"+i, "user"+i+"@"+LOCAL_DOMAIN}, "pw"+i);
+			}
+			m_localHandler = new AuthHandler(directory, new AuthConfig(new String[] {LOCAL_DOMAIN}, "127.0.0.1",
+					null, null, null, null, true, false, 1, null, null, true));
+		}
+
+		System.out.println("Sending "+m_rate+" req/s to "+(m_url!=null ? m_url : "in-process stand-in")+
+				" for "+m_warmupSeconds+"s warmup + "+m_durationSeconds+"s");
+
+		ExecutorService executor = Executors.newFixedThreadPool(m_connections);
+		Random random = new Random(42);
+
+		long intervalNanos = (long) (1000000000L / m_rate);
+		long start = System.nanoTime();
+		long recordStart = start + m_warmupSeconds * 1000000000L;
+		long end = recordStart + m_durationSeconds * 1000000000L;
+
+		long count = 0;
+		long recordedScheduled = 0;
+		while (true) {
+			//open loop: the schedule does not depend on response times
+			final long intendedStart = start + count * intervalNanos;
+			if (intendedStart >= end) {
+				break;
+			}
+			long wait;
+			while ((wait = intendedStart - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			if (!m_recording && intendedStart >= recordStart) {
+				m_recording = true;
+			}
+			if (m_recording) {
+				recordedScheduled++;
+			}
+			final boolean record = m_recording;
+			final Map<String,String> headers = nextRequest(random, count);
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					sendAndRecord(headers, intendedStart, record);
+				}
+			});
+			count++;
+		}
+		executor.shutdown();
+		executor.awaitTermination(Math.max(60, m_durationSeconds), TimeUnit.SECONDS);
+		long elapsedNanos = System.nanoTime() - recordStart;
+
+		printResults(recordedScheduled, elapsedNanos);
+		if (m_outPrefix!=null) {
+			writeResults(recordedScheduled, elapsedNanos);
+		}
+		if (m_localHandler!=null) {
+			m_localHandler.shutdown();
+		}
+	}
+
+	private void sendAndRecord(Map<String,String> headers, long intendedStart, boolean record) {
+		String outcome;
+		try {
+			Map<String,String> respHeaders = m_url!=null ? sendHttp(headers) : sendLocal(headers);
+			outcome = classify(respHeaders);
+		}
+		catch (Exception e) {
+			outcome = "error";
+			if (record) {
+				m_errors.incrementAndGet();
+			}
+		}
+		if (record) {
+			m_histogram.record(System.nanoTime() - intendedStart);
+			m_sent.incrementAndGet();
+			AtomicLong counter = m_outcomes.get(outcome);
+			if (counter==null) {
+				AtomicLong newCounter = new AtomicLong();
+				counter = m_outcomes.putIfAbsent(outcome, newCounter);
+				if (counter==null) {
+					counter = newCounter;
+				}
+			}
+			counter.incrementAndGet();
+		}
+	}
+
+	private static String classify(Map<String,String> respHeaders) {
+		String status = respHeaders.get("auth-status");
+		String errorCode = respHeaders.get("auth-error-code");
+		if (status==null) {
+			return "http-"+respHeaders.get(":status");
+		}
+		if ("OK".equals(status)) {
+			return "ok";
+		}
+		if (errorCode!=null && errorCode.startsWith("451")) {
+			return "temporary-failure";
+		}
+		if (errorCode!=null) {
+			return "rejected-"+errorCode;
+		}
+		return "invalid-login";
+	}
+
+	private Map<String,String> nextRequest(Random random, long count) {
+		if (m_replayRequests!=null) {
+			return m_replayRequests.get((int) (count % m_replayRequests.size()));
+		}
+
+		Map<String,String> headers = new LinkedHashMap<String,String>();
+		headers.put("Auth-Method", "plain");
+		headers.put("Auth-Login-Attempt", "1");
+		headers.put("Client-IP", "10."+random.nextInt(256)+"."+random.nextInt(256)+"."+(1+random.nextInt(254)));
+
+		int userIdx = random.nextInt(Math.max(1, m_users));
+		int dice = random.nextInt(Math.max(1, m_mix[0]+m_mix[1]+m_mix[2]+m_mix[3]));
+		if (dice < m_mix[0]) {
+			//valid login
+			headers.put("Auth-Protocol", random.nextBoolean() ? "imap" : "pop3");
+			headers.put("Auth-User", "user"+userIdx);
+			headers.put("Auth-Pass", "pw"+userIdx);
+		}
+		else if (dice < m_mix[0]+m_mix[1]) {
+			//bad password
+			headers.put("Auth-Protocol", "imap");
+			headers.put("Auth-User", "user"+userIdx);
+			headers.put("Auth-Pass", "wrong"+random.nextInt());
+		}
+		else if (dice < m_mix[0]+m_mix[1]+m_mix[2]) {
+			//unknown user
+			headers.put("Auth-Protocol", "imap");
+			headers.put("Auth-User", "nobody"+random.nextInt(1000000));
+			headers.put("Auth-Pass", "pw");
+		}
+		else {
+			//anonymous delivery, half of them inbound, half of them relay attempts
+			headers.put("Auth-Protocol", "smtp");
+			headers.put("Auth-User", "");
+			headers.put("Auth-Pass", "");
+			headers.put("Auth-SMTP-Helo", "mx.example.org");
+			headers.put("Auth-SMTP-From", "MAIL FROM:<sender"+random.nextInt(1000)+"@example.org>");
+			if (random.nextBoolean()) {
+				headers.put("Auth-SMTP-To", "RCPT TO:<user"+userIdx+"@"+LOCAL_DOMAIN+">");
+			}
+			else {
+				headers.put("Auth-SMTP-To", "RCPT TO:<someone@example.net>");
+			}
+		}
+		return headers;
+	}
+
+	private Map<String,String> sendHttp(Map<String,String> headers) throws IOException {
+		URL url = new URL(m_url);
+		int port = url.getPort()!=-1 ? url.getPort() : url.getDefaultPort();
+		String path = url.getFile().length()==0 ? "/" : url.getFile();
+
+		StringBuilder sb = new StringBuilder(512);
+		sb.append("GET ").append(path).append(" HTTP/1.0\r\n");
+		sb.append("Host: ").append(url.getHost()).append("\r\n");
+		for (Map.Entry<String,String> currEntry : headers.entrySet()) {
+			String value = currEntry.getValue();
+			if ("Auth-User".equalsIgnoreCase(currEntry.getKey()) || "Auth-Pass".equalsIgnoreCase(currEntry.getKey())) {
+				//nginx sends both values URL encoded
+				value = URLEncoder.encode(value, "UTF-8");
+			}
+			sb.append(currEntry.getKey()).append(": ").append(value).append("\r\n");
+		}
+		sb.append("\r\n");
+
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(30000);
+			socket.connect(new InetSocketAddress(url.getHost(), port), 10000);
+			OutputStream out = socket.getOutputStream();
+			out.write(sb.toString().getBytes("UTF-8"));
+			out.flush();
+			return readResponseHeaders(socket.getInputStream());
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	private static Map<String,String> readResponseHeaders(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "ISO-8859-1"));
+		Map<String,String> headers = new HashMap<String,String>();
+		String statusLine = reader.readLine();
+		if (statusLine==null) {
+			throw new IOException("Empty response");
+		}
+		String[] statusParts = statusLine.split(" ");
+		headers.put(":status", statusParts.length>1 ? statusParts[1] : "");
+
+		String line;
+		while ((line = reader.readLine())!=null && line.length()>0) {
+			int iPos = line.indexOf(':');
+			if (iPos>0) {
+				headers.put(line.substring(0, iPos).trim().toLowerCase(Locale.ENGLISH), line.substring(iPos+1).trim());
+			}
+		}
+		return headers;
+	}
+
+	private Map<String,String> sendLocal(final Map<String,String> headers) throws Exception {
+		final Map<String,String> reqHeaders = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+		for (Map.Entry<String,String> currEntry : headers.entrySet()) {
+			String value = currEntry.getValue();
+			if ("Auth-User".equalsIgnoreCase(currEntry.getKey()) || "Auth-Pass".equalsIgnoreCase(currEntry.getKey())) {
+				value = URLEncoder.encode(value, "UTF-8");
+			}
+			reqHeaders.put(currEntry.getKey(), value);
+		}
+		final Map<String,String> respHeaders = new HashMap<String,String>();
+		respHeaders.put(":status", "200");
+
+		m_localHandler.handle(new AuthRequest() {
+
+			@Override
+			public String getHeader(String name) {
+				return reqHeaders.get(name);
+			}
+
+			@Override
+			public Collection<String> getHeaderNames() {
+				return reqHeaders.keySet();
+			}
+		}, new AuthResponse() {
+
+			@Override
+			public void setHeader(String name, String value) {
+				respHeaders.put(name.toLowerCase(Locale.ENGLISH), value);
+			}
+
+			@Override
+			public void sendError(int status, String msg) {
+				respHeaders.clear();
+				respHeaders.put(":status", Integer.toString(status));
+			}
+		});
+		return respHeaders;
+	}
+
+	/**
+	 * Reads requests to replay, one header per line, requests separated by an empty line
+	 *
+	 * @param file file
+	 * @return requests
+	 * @throws IOException
+	 */
+	private static List<Map<String,String>> readReplayFile(File file) throws IOException {
+		List<Map<String,String>> requests = new ArrayList<Map<String,String>>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			Map<String,String> currRequest = new LinkedHashMap<String,String>();
+			String line;
+			while ((line = reader.readLine())!=null) {
+				line = line.trim();
+				if (line.length()==0) {
+					if (!currRequest.isEmpty()) {
+						requests.add(currRequest);
+						currRequest = new LinkedHashMap<String,String>();
+					}
+				}
+				else if (!line.startsWith("#")) {
+					int iPos = line.indexOf(':');
+					if (iPos>0) {
+						currRequest.put(line.substring(0, iPos).trim(), line.substring(iPos+1).trim());
+					}
+				}
+			}
+			if (!currRequest.isEmpty()) {
+				requests.add(currRequest);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return requests;
+	}
+
+	private void printResults(long scheduled, long elapsedNanos) {
+		long completed = m_histogram.getCount();
+		System.out.println("Scheduled: "+scheduled+", completed: "+completed+", errors: "+m_errors.get());
+		System.out.println(String.format(Locale.ENGLISH, "Throughput: %.1f req/s", completed * 1e9 / elapsedNanos));
+		System.out.println("Outcomes: "+new TreeMap<String,AtomicLong>(m_outcomes));
+		for (double currPercentile : PERCENTILES) {
+			System.out.println(String.format(Locale.ENGLISH, "  p%-6s %10.3f ms", formatPercentile(currPercentile),
+					m_histogram.getValueAtPercentile(currPercentile) / 1e6));
+		}
+	}
+
+	private void writeResults(long scheduled, long elapsedNanos) throws IOException {
+		long completed = m_histogram.getCount();
+
+		PrintWriter json = new PrintWriter(new OutputStreamWriter(new FileOutputStream(m_outPrefix+".json"), "UTF-8"));
+		try {
+			json.println("{");
+			json.println("  \"label\": \""+escapeJson(m_label)+"\",");
+			json.println("  \"target\": \""+escapeJson(m_url!=null ? m_url : "in-process")+"\",");
+			json.println("  \"rate\": "+m_rate+",");
+			json.println("  \"durationSeconds\": "+m_durationSeconds+",");
+			json.println("  \"scheduled\": "+scheduled+",");
+			json.println("  \"completed\": "+completed+",");
+			json.println("  \"errors\": "+m_errors.get()+",");
+			json.println(String.format(Locale.ENGLISH, "  \"throughput\": %.1f,", completed * 1e9 / elapsedNanos));
+			json.print("  \"outcomes\": {");
+			boolean first = true;
+			for (Map.Entry<String,AtomicLong> currEntry : new TreeMap<String,AtomicLong>(m_outcomes).entrySet()) {
+				json.print((first ? "" : ", ")+"\""+escapeJson(currEntry.getKey())+"\": "+currEntry.getValue().get());
+				first = false;
+			}
+			json.println("},");
+			json.println("  \"latencyMicros\": {");
+			json.println(String.format(Locale.ENGLISH, "    \"mean\": %.1f,", m_histogram.getMean() / 1e3));
+			for (int i=0; i<PERCENTILES.length; i++) {
+				json.println("    \"p"+formatPercentile(PERCENTILES[i])+"\": "+(m_histogram.getValueAtPercentile(PERCENTILES[i]) / 1000)+
+						(i<PERCENTILES.length-1 ? "," : ""));
+			}
+			json.println("  }");
+			json.println("}");
+		}
+		finally {
+			json.close();
+		}
+
+		//percentile distribution, e.g. to plot results of several builds
+		PrintWriter csv = new PrintWriter(new OutputStreamWriter(new FileOutputStream(m_outPrefix+".csv"), "UTF-8"));
+		try {
+			csv.println("label,percentile,latency_us");
+			double[] distribution = new double[] {0, 10, 20, 30, 40, 50, 55, 60, 65, 70, 75, 77.5, 80, 82.5, 85, 87.5, 90,
+					92.5, 95, 96.25, 97.5, 98.125, 98.75, 99, 99.5, 99.9, 99.95, 99.99, 99.999, 100};
+			for (double currPercentile : distribution) {
+				csv.println(m_label+","+formatPercentile(currPercentile)+","+(m_histogram.getValueAtPercentile(currPercentile) / 1000));
+			}
+		}
+		finally {
+			csv.close();
+		}
+		System.out.println("Results written to "+m_outPrefix+".json and "+m_outPrefix+".csv");
+	}
+
+	private static String formatPercentile(double percentile) {
+		return percentile==Math.floor(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+	}
+
+	private static String escapeJson(String str) {
+		return str.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
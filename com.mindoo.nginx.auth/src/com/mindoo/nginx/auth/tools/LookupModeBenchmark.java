@@ -0,0 +1,222 @@
+package com.mindoo.nginx.auth.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lotus.domino.NotesException;
+import lotus.domino.NotesFactory;
+import lotus.domino.NotesThread;
+import lotus.domino.Session;
+
+import com.mindoo.nginx.auth.directory.AddressBookHitStats;
+import com.mindoo.nginx.auth.directory.CredentialCheckResult;
+import com.mindoo.nginx.auth.directory.CredentialCheckResult.Status;
+import com.mindoo.nginx.auth.directory.DirectorySessionPool;
+import com.mindoo.nginx.auth.directory.DominoUserDirectory;
+import com.mindoo.nginx.auth.directory.DominoUserDirectory.LookupMode;
+import com.mindoo.nginx.auth.utils.LatencyHistogram;
+
+/**
+ * Compares the directory lookup modes on the live server: the same list of user names
+ * is checked with {@link LookupMode#VIEW} in the server's address book order,
+ * {@link LookupMode#VIEW} ordered by hit counts and {@link LookupMode#DIRECTORY}, each on
+ * its own pool of sessions with server rights and without user index. For every mode, a
+ * first pass checks each name once to compare the results between the modes, then the
+ * given number of threads check the names round-robin for a fixed time.<br>
+ * <br>
+ * The checks use a password that does not match, so lookup and password verification
+ * run like for a wrong password; the failure throttle and audit trail are not involved.
+ * Has to run inside the HTTP task, e.g. via <code>tell http osgi nginxauth lookupbench
+ * nginxauth/users.txt 4 30</code>, with a file that contains one login name per line,
+ * ideally including users of Directory Assistance books and unknown names.
+ *
+ * @author Karsten Lehmann
+ */
+public class LookupModeBenchmark {
+	private static final String PASSWORD = "nginxauth-lookupbench-no-password";
+	private static final long LOOKUP_TIMEOUT_MILLIS = 30000;
+	private static final double[] PERCENTILES = new double[] {50, 90, 99};
+
+	private final List<String> m_users;
+	private final int m_threads;
+	private final long m_durationMillis;
+
+	/**
+	 * Creates a new benchmark
+	 *
+	 * @param users login names to check
+	 * @param threads number of concurrent checks and pooled sessions
+	 * @param durationMillis duration of the timed phase per mode in milliseconds
+	 */
+	public LookupModeBenchmark(List<String> users, int threads, long durationMillis) {
+		if (users.isEmpty()) {
+			throw new IllegalArgumentException("No user names specified");
+		}
+		m_users = users;
+		m_threads = Math.max(1, threads);
+		m_durationMillis = Math.max(1000, durationMillis);
+	}
+
+	/**
+	 * Reads login names, one per line, ignoring empty lines and lines starting with #
+	 *
+	 * @param file UTF-8 file, relative paths are resolved against the working directory
+	 * @return names
+	 * @throws IOException
+	 */
+	public static List<String> readUsers(File file) throws IOException {
+		List<String> users = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine())!=null) {
+				line = line.trim();
+				if (line.length()>0 && !line.startsWith("#")) {
+					users.add(line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return users;
+	}
+
+	private static String getServerName() throws NotesException {
+		NotesThread.sinitThread();
+		try {
+			Session session = NotesFactory.createSession();
+			try {
+				return session.getServerName();
+			}
+			finally {
+				session.recycle();
+			}
+		}
+		finally {
+			NotesThread.stermThread();
+		}
+	}
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @return report, one line per mode
+	 * @throws Exception if a lookup fails
+	 */
+	public List<String> run() throws Exception {
+		String serverName = getServerName();
+		List<String> report = new ArrayList<String>();
+		report.add("Checking "+m_users.size()+" names with "+m_threads+" threads for "+(m_durationMillis/1000)+"s per mode on "+serverName);
+
+		Status[] referenceStatus = null;
+		for (int i=0; i<3; i++) {
+			LookupMode mode = i==2 ? LookupMode.DIRECTORY : LookupMode.VIEW;
+			boolean reorder = i==1;
+			String label = mode==LookupMode.VIEW ? (reorder ? "view, reordered" : "view") : "directory";
+
+			//new sessions per mode, so no mode profits from views opened by another
+			DirectorySessionPool pool = new DirectorySessionPool(serverName, m_threads, 0, 60000, m_threads * 2);
+			pool.start();
+			try {
+				DominoUserDirectory directory = new DominoUserDirectory(pool, LOOKUP_TIMEOUT_MILLIS, null);
+				directory.setLookupMode(mode);
+				if (reorder) {
+					directory.setAddressBookHitStats(new AddressBookHitStats());
+				}
+				directory.warmUp(LOOKUP_TIMEOUT_MILLIS);
+
+				//first pass, also fills the hit statistics
+				Status[] status = new Status[m_users.size()];
+				int found = 0;
+				for (int j=0; j<status.length; j++) {
+					status[j] = directory.checkCredentials(m_users.get(j), PASSWORD).getStatus();
+					if (status[j]!=Status.UNKNOWN_USER) {
+						found++;
+					}
+				}
+				int mismatches = 0;
+				if (referenceStatus==null) {
+					referenceStatus = status;
+				}
+				else {
+					for (int j=0; j<status.length; j++) {
+						if (status[j]!=referenceStatus[j]) {
+							mismatches++;
+						}
+					}
+				}
+
+				report.add(runTimed(directory, label, found, mismatches));
+			}
+			finally {
+				pool.shutdown();
+			}
+		}
+		return report;
+	}
+
+	private String runTimed(final DominoUserDirectory directory, String label, int found, int mismatches) throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final AtomicLong nextUser = new AtomicLong();
+		final Exception[] errors = new Exception[m_threads];
+		final long deadline = System.nanoTime() + m_durationMillis * 1000000L;
+		final CountDownLatch doneLatch = new CountDownLatch(m_threads);
+
+		long start = System.nanoTime();
+		for (int t=0; t<m_threads; t++) {
+			final int threadIdx = t;
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+							String user = m_users.get((int) (nextUser.getAndIncrement() % m_users.size()));
+							long t0 = System.nanoTime();
+							CredentialCheckResult result = directory.checkCredentials(user, PASSWORD);
+							histogram.record(System.nanoTime() - t0);
+							if (result.getStatus()==Status.OK) {
+								throw new IllegalStateException("Unexpected successful login of "+user);
+							}
+						}
+					}
+					catch (Exception e) {
+						errors[threadIdx] = e;
+					}
+					finally {
+						doneLatch.countDown();
+					}
+				}
+			}, "NGINXAUTH lookup benchmark "+t);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		doneLatch.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (Exception currError : errors) {
+			if (currError!=null) {
+				throw currError;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-16s", label)).append(": ").append(String.format("%.0f", histogram.getCount() / seconds))
+		.append(" checks/s, mean=").append(String.format("%.0f", histogram.getMean() / 1000)).append("us");
+		for (double currPercentile : PERCENTILES) {
+			sb.append(", p").append((int) currPercentile).append('=').append(histogram.getValueAtPercentile(currPercentile) / 1000).append("us");
+		}
+		sb.append(", max=").append(histogram.getMax() / 1000).append("us, found=").append(found).append('/').append(m_users.size());
+		if (mismatches>0) {
+			sb.append(", ").append(mismatches).append(" results differ from view mode");
+		}
+		return sb.toString();
+	}
+}
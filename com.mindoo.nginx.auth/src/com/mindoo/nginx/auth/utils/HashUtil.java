@@ -0,0 +1,45 @@
+package com.mindoo.nginx.auth.utils;
+
+/**
+ * Allocation-free hash functions for in-memory filters and sketches
+ * 
+ * @author Karsten Lehmann
+ */
+public class HashUtil {
+
+	/**
+	 * 64 bit FNV-1a hash of the UTF-16 chars of a string with a final
+	 * avalanche step, so that lower and upper 32 bits can be used as
+	 * independent hash values
+	 *
+	 * @param value value
+	 * @return hash
+	 */
+	public static long hash64(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			hash ^= (c & 0xff);
+			hash *= 0x100000001b3L;
+			hash ^= (c >>> 8);
+			hash *= 0x100000001b3L;
+		}
+		return fmix64(hash);
+	}
+
+	/**
+	 * Finalization mix of MurmurHash3
+	 * 
+	 * @param hash hash
+	 * @return mixed hash
+	 */
+	public static long fmix64(long hash) {
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= (hash >>> 33);
+		return hash;
+	}
+
+}
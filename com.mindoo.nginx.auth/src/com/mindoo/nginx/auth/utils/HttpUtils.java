@@ -3,6 +3,9 @@ package com.mindoo.nginx.auth.utils;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.BitSet;
 
 /**
@@ -11,6 +14,21 @@ import java.util.BitSet;
  * @author Tammo Riedinger
  */
 public class HttpUtils {
+	/** cached UTF-8 charset, avoids the charset lookup per request */
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/** values longer than this are decoded without the per-thread buffers to keep them small */
+	private static final int MAX_BUFFERED_LENGTH = 4096;
+
+	/** per-thread buffers and decoder reused by {@link #urlDecode(String, Charset, boolean)} */
+	private static final ThreadLocal<DecodeBuffers> DECODE_BUFFERS = new ThreadLocal<DecodeBuffers>() {
+		@Override
+		protected DecodeBuffers initialValue() {
+			return new DecodeBuffers();
+		}
+	};
 
 	/**
 	 * Decode/unescape a portion of a URL, to use with the query part ensure
@@ -31,6 +49,16 @@ public class HttpUtils {
 		if (content == null) {
 			return null;
 		}
+		if (isAsciiCompatible(charset) && !needsDecoding(content, plusAsBlank)) {
+			//nothing to unescape and ASCII decodes to the same characters
+			return content;
+		}
+		if (content.length() <= MAX_BUFFERED_LENGTH) {
+			String decoded = DECODE_BUFFERS.get().decode(content, charset, plusAsBlank);
+			if (decoded!=null) {
+				return decoded;
+			}
+		}
 		final ByteBuffer bb = ByteBuffer.allocate(content.length());
 		final CharBuffer cb = CharBuffer.wrap(content);
 		while (cb.hasRemaining()) {
@@ -57,6 +85,98 @@ public class HttpUtils {
 		return charset.decode(bb).toString();
 	}
 
+	private static boolean isAsciiCompatible(Charset charset) {
+		return charset==UTF_8 || charset==ISO_8859_1 || charset==US_ASCII ||
+				UTF_8.equals(charset) || ISO_8859_1.equals(charset) || US_ASCII.equals(charset);
+	}
+
+	/**
+	 * Checks if a string contains characters that {@link #urlDecode(String, Charset, boolean)}
+	 * would change: escape sequences, '+' if converted to blank, and non-ASCII characters,
+	 * which the decoder truncates to one byte
+	 * 
+	 * @param content string
+	 * @param plusAsBlank true if '+' is converted to blank
+	 * @return true if decoding is required
+	 */
+	private static boolean needsDecoding(String content, boolean plusAsBlank) {
+		for (int i=0; i<content.length(); i++) {
+			char c = content.charAt(i);
+			if (c=='%' || c>=0x80 || (plusAsBlank && c=='+')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reusable buffers for {@link HttpUtils#urlDecode(String, Charset, boolean)}, producing
+	 * the same result without allocating buffers per call
+	 */
+	private static class DecodeBuffers {
+		private final byte[] m_bytes = new byte[MAX_BUFFERED_LENGTH];
+		private final ByteBuffer m_byteBuffer = ByteBuffer.wrap(m_bytes);
+		private final CharBuffer m_charBuffer = CharBuffer.allocate(MAX_BUFFERED_LENGTH);
+		private Charset m_decoderCharset;
+		private CharsetDecoder m_decoder;
+
+		/**
+		 * Unescapes and decodes a string
+		 * 
+		 * @param content string, max {@link HttpUtils#MAX_BUFFERED_LENGTH} characters
+		 * @param charset charset
+		 * @param plusAsBlank if {@code true}, then convert '+' to space
+		 * @return decoded string or null if the result does not fit into the buffer
+		 */
+		public String decode(String content, Charset charset, boolean plusAsBlank) {
+			final byte[] bytes = m_bytes;
+			final int len = content.length();
+			int pos = 0;
+			for (int i=0; i<len; i++) {
+				final char c = content.charAt(i);
+				if (c == '%' && (len - i - 1) >= 2) {
+					final char uc = content.charAt(++i);
+					final char lc = content.charAt(++i);
+					final int u = Character.digit(uc, 16);
+					final int l = Character.digit(lc, 16);
+					if (u != -1 && l != -1) {
+						bytes[pos++] = (byte) ((u << 4) + l);
+					} else {
+						bytes[pos++] = (byte) '%';
+						bytes[pos++] = (byte) uc;
+						bytes[pos++] = (byte) lc;
+					}
+				} else if (plusAsBlank && c == '+') {
+					bytes[pos++] = (byte) ' ';
+				} else {
+					bytes[pos++] = (byte) c;
+				}
+			}
+
+			if (m_decoder==null || !charset.equals(m_decoderCharset)) {
+				//same error handling as Charset.decode
+				m_decoder = charset.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				m_decoderCharset = charset;
+			}
+			m_byteBuffer.clear();
+			m_byteBuffer.limit(pos);
+			m_charBuffer.clear();
+			m_decoder.reset();
+			CoderResult result = m_decoder.decode(m_byteBuffer, m_charBuffer, true);
+			if (result.isOverflow()) {
+				return null;
+			}
+			result = m_decoder.flush(m_charBuffer);
+			if (result.isOverflow()) {
+				return null;
+			}
+			m_charBuffer.flip();
+			return m_charBuffer.toString();
+		}
+	}
+
 	/** 
 	 * Unreserved characters, i.e. alphanumeric, plus: {@code _ - ! . ~ ' ( ) *}
 	 * <p>
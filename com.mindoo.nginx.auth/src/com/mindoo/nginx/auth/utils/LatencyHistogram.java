@@ -0,0 +1,187 @@
+package com.mindoo.nginx.auth.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of non-negative long values (e.g. latencies in nanoseconds),
+ * similar to an HdrHistogram with 2 significant digits: values up to 127 are counted exactly,
+ * larger values in 64 linear sub-buckets per power of two, so every recorded value is
+ * represented with a relative error below 1.6%.<br>
+ * <br>
+ * Recording is a single atomic increment and safe to call from many threads concurrently.
+ *
+ * @author Karsten Lehmann
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+	/** values up to 2^MAX_BITS-1 are tracked, larger values are clamped */
+	private static final int MAX_BITS = 44;
+
+	private final AtomicLongArray m_counts;
+	private final AtomicLong m_totalCount = new AtomicLong();
+	private final AtomicLong m_totalSum = new AtomicLong();
+	private final AtomicLong m_max = new AtomicLong();
+
+	public LatencyHistogram() {
+		m_counts = new AtomicLongArray(indexOf((1L << MAX_BITS) - 1) + 1);
+	}
+
+	/**
+	 * Records a value
+	 *
+	 * @param value value, negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value<0) {
+			value = 0;
+		}
+		m_counts.incrementAndGet(indexOf(Math.min(value, (1L << MAX_BITS) - 1)));
+		m_totalCount.incrementAndGet();
+		m_totalSum.addAndGet(value);
+
+		long max;
+		while (value > (max = m_max.get())) {
+			if (m_max.compareAndSet(max, value)) {
+				break;
+			}
+		}
+	}
+
+	private static int indexOf(long value) {
+		if (value < (SUB_BUCKET_HALF << 1)) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		//sub bucket is between SUB_BUCKET_HALF and 2*SUB_BUCKET_HALF-1
+		int subBucket = (int) (value >>> shift);
+		return shift * SUB_BUCKET_HALF + subBucket;
+	}
+
+	/**
+	 * Returns the highest value represented by a bucket
+	 *
+	 * @param index bucket index
+	 * @return value
+	 */
+	private static long highestValueAt(int index) {
+		if (index < (SUB_BUCKET_HALF << 1)) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long subBucket = (index % SUB_BUCKET_HALF) + SUB_BUCKET_HALF;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return m_totalCount.get();
+	}
+
+	public long getSum() {
+		return m_totalSum.get();
+	}
+
+	public long getMax() {
+		return m_max.get();
+	}
+
+	public double getMean() {
+		long count = m_totalCount.get();
+		return count==0 ? 0 : (double) m_totalSum.get() / count;
+	}
+
+	/**
+	 * Returns the value at a percentile, i.e. the highest value of the bucket that contains it
+	 *
+	 * @param percentile percentile between 0 and 100
+	 * @return value or 0 if the histogram is empty
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] counts = snapshotCounts();
+		long total = 0;
+		for (long currCount : counts) {
+			total += currCount;
+		}
+		if (total==0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+		long seen = 0;
+		for (int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValueAt(i), m_max.get());
+			}
+		}
+		return m_max.get();
+	}
+
+	/**
+	 * Returns the number of recorded values that are less than or equal to a bound,
+	 * rounded to bucket precision
+	 *
+	 * @param bound bound
+	 * @return count
+	 */
+	public long getCountAtOrBelow(long bound) {
+		if (bound<0) {
+			return 0;
+		}
+		int maxIndex = indexOf(Math.min(bound, (1L << MAX_BITS) - 1));
+		long count = 0;
+		for (int i=0; i<=maxIndex; i++) {
+			count += m_counts.get(i);
+		}
+		return count;
+	}
+
+	private long[] snapshotCounts() {
+		long[] counts = new long[m_counts.length()];
+		for (int i=0; i<counts.length; i++) {
+			counts[i] = m_counts.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Adds all values of another histogram
+	 *
+	 * @param other other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i=0; i<m_counts.length(); i++) {
+			long count = other.m_counts.get(i);
+			if (count!=0) {
+				m_counts.addAndGet(i, count);
+			}
+		}
+		m_totalCount.addAndGet(other.getCount());
+		m_totalSum.addAndGet(other.getSum());
+		long otherMax = other.getMax();
+		long max;
+		while (otherMax > (max = m_max.get())) {
+			if (m_max.compareAndSet(max, otherMax)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Removes all values
+	 */
+	public void reset() {
+		for (int i=0; i<m_counts.length(); i++) {
+			m_counts.set(i, 0);
+		}
+		m_totalCount.set(0);
+		m_totalSum.set(0);
+		m_max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram [count="+getCount()+", p50="+getValueAtPercentile(50)+", p99="+getValueAtPercentile(99)+
+				", max="+getMax()+"]";
+	}
+}
@@ -0,0 +1,88 @@
+package com.mindoo.nginx.auth.utils;
+
+import java.util.logging.Level;
+
+import com.mindoo.nginx.auth.log.RingBufferLog;
+
+/**
+ * Writes log messages of the plugin to the server console. Once a {@link RingBufferLog}
+ * has been installed via {@link #start(RingBufferLog)}, messages are written asynchronously
+ * and the calling thread never blocks.
+ *
+ * @author Karsten Lehmann
+ */
+public class LogUtil {
+	private static volatile RingBufferLog m_log;
+
+	/**
+	 * Starts asynchronous logging, replacing a previously started log
+	 *
+	 * @param log log
+	 */
+	public static synchronized void start(RingBufferLog log) {
+		RingBufferLog oldLog = m_log;
+		log.start();
+		m_log = log;
+		if (oldLog!=null) {
+			oldLog.stop();
+		}
+	}
+
+	/**
+	 * Writes all buffered messages and switches back to synchronous console output
+	 */
+	public static synchronized void stop() {
+		RingBufferLog oldLog = m_log;
+		m_log = null;
+		if (oldLog!=null) {
+			oldLog.stop();
+			if (oldLog.getDropped()>0) {
+				log(Level.WARNING, "Log messages dropped because the log buffer was full: "+oldLog.getDropped());
+			}
+		}
+	}
+
+	/**
+	 * Returns the asynchronous log
+	 *
+	 * @return log or null if not started
+	 */
+	public static RingBufferLog getLog() {
+		return m_log;
+	}
+
+	public static void log(Level level, String msg) {
+		log(level, msg, (Throwable) null);
+	}
+
+	public static void log(Level level, String msg, Throwable t) {
+		RingBufferLog log = m_log;
+		if (log!=null) {
+			log.offer(level, null, null, null, msg, t);
+			return;
+		}
+		System.out.println("NGINXAUTH ("+level.getLocalizedName()+"): "+msg);
+		if (t!=null) {
+			t.printStackTrace(System.out);
+		}
+	}
+
+	/**
+	 * Writes a structured debug event of an auth request
+	 *
+	 * @param event event type, e.g. "login.blocked"
+	 * @param user user name or null
+	 * @param clientIP client IP or null
+	 * @param msg additional information or null
+	 */
+	public static void debug(String event, String user, String clientIP, String msg) {
+		RingBufferLog log = m_log;
+		if (log!=null) {
+			log.offer(Level.INFO, event, user, clientIP, msg, null);
+			return;
+		}
+		System.out.println("NGINXAUTH ("+Level.INFO.getLocalizedName()+"): ["+event+"] "+(user!=null ? "user="+user+" " : "")+
+				(clientIP!=null ? "ip="+clientIP+" " : "")+(msg!=null ? msg : ""));
+	}
+
+}
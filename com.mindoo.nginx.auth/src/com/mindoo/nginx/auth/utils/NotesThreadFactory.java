@@ -0,0 +1,35 @@
+package com.mindoo.nginx.auth.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lotus.domino.NotesThread;
+
+/**
+ * Thread factory for executors that need to access the Domino API. The
+ * created {@link NotesThread} instances initialize and terminate the Notes
+ * runtime around the executed runnable.
+ * 
+ * @author Karsten Lehmann
+ */
+public class NotesThreadFactory implements ThreadFactory {
+	private final String m_namePrefix;
+	private final AtomicInteger m_threadCount = new AtomicInteger();
+
+	/**
+	 * Creates a new factory
+	 * 
+	 * @param namePrefix prefix for thread names
+	 */
+	public NotesThreadFactory(String namePrefix) {
+		m_namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		NotesThread t = new NotesThread(r, m_namePrefix+" "+m_threadCount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+}